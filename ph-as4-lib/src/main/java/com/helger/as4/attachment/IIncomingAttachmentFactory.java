@@ -17,11 +17,12 @@
 package com.helger.as4.attachment;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 
 import javax.annotation.Nonnull;
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.InternetHeaders;
 
 import com.helger.as4.util.AS4ResourceManager;
 
@@ -35,10 +36,16 @@ import com.helger.as4.util.AS4ResourceManager;
 public interface IIncomingAttachmentFactory extends Serializable
 {
   /**
-   * Create an attachment if the source message is a MIME message
-   * 
-   * @param aBodyPart
-   *        The attachment body part
+   * Create an attachment if the source message is a MIME message. The passed
+   * stream is the raw (not yet content transfer decoded) content of a single
+   * MIME part and is only valid during this call - it must be consumed
+   * completely before this method returns.
+   *
+   * @param aIS
+   *        The raw attachment body part content. May not be <code>null</code>.
+   * @param aHeaders
+   *        The MIME headers of the attachment body part. May not be
+   *        <code>null</code>.
    * @param aResMgr
    *        The resource manager to use. May not be <code>null</code>.
    * @return The internal attachment representation. Never <code>null</code>.
@@ -48,6 +55,7 @@ public interface IIncomingAttachmentFactory extends Serializable
    *         In case MIME part reading fails.
    */
   @Nonnull
-  WSS4JAttachment createAttachment (@Nonnull MimeBodyPart aBodyPart,
+  WSS4JAttachment createAttachment (@Nonnull InputStream aIS,
+                                    @Nonnull InternetHeaders aHeaders,
                                     @Nonnull AS4ResourceManager aResMgr) throws IOException, MessagingException;
 }
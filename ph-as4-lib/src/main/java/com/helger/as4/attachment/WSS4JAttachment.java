@@ -20,7 +20,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
@@ -32,15 +31,17 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.mail.Header;
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
 
 import org.apache.wss4j.common.ext.Attachment;
 import org.apache.wss4j.common.util.AttachmentUtils;
 
 import com.helger.as4.CAS4;
+import com.helger.as4.util.AS4AttachmentSpillPolicy;
 import com.helger.as4.util.AS4ResourceManager;
-import com.helger.commons.CGlobal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.http.CHttpHeader;
@@ -50,6 +51,7 @@ import com.helger.commons.io.file.FilenameHelper;
 import com.helger.commons.io.stream.HasInputStream;
 import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
 import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.CMimeType;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.string.StringHelper;
 import com.helger.commons.string.ToStringGenerator;
@@ -367,58 +369,76 @@ public class WSS4JAttachment extends Attachment
     return ret;
   }
 
+  /**
+   * @param nBytes
+   *        Number of bytes to check
+   * @return <code>true</code> if the passed number of bytes is below the
+   *         per-attachment limit of the default spill policy.
+   * @deprecated Use the {@link com.helger.as4.util.IAS4AttachmentSpillPolicy}
+   *             of the resource manager instead
+   */
+  @Deprecated
   public static boolean canBeKeptInMemory (final long nBytes)
   {
-    return nBytes <= 64 * CGlobal.BYTES_PER_KILOBYTE;
+    return nBytes <= AS4AttachmentSpillPolicy.DEFAULT_MAX_BYTES_PER_ATTACHMENT;
   }
 
+  /**
+   * Create an incoming attachment from a raw MIME part stream. The stream is
+   * content transfer decoded on the fly. Whether the content is kept in memory
+   * or written to a temporary file is determined by the spill policy of the
+   * resource manager. The stream is read completely and never buffered as a
+   * whole in memory.
+   *
+   * @param aIS
+   *        The raw MIME part content (without the headers). May not be
+   *        <code>null</code>.
+   * @param aHeaders
+   *        The MIME part headers. May not be <code>null</code>.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws MessagingException
+   *         In case the content transfer encoding is unknown
+   * @throws IOException
+   *         In case reading or writing fails
+   */
   @Nonnull
-  public static WSS4JAttachment createIncomingFileAttachment (@Nonnull final MimeBodyPart aBodyPart,
+  public static WSS4JAttachment createIncomingFileAttachment (@Nonnull final InputStream aIS,
+                                                              @Nonnull final InternetHeaders aHeaders,
                                                               @Nonnull final AS4ResourceManager aResMgr) throws MessagingException,
                                                                                                          IOException
   {
-    ValueEnforcer.notNull (aBodyPart, "BodyPart");
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.notNull (aHeaders, "Headers");
     ValueEnforcer.notNull (aResMgr, "ResMgr");
 
-    final WSS4JAttachment ret = new WSS4JAttachment (aResMgr, aBodyPart.getContentType ());
+    // Same default as in MimeBodyPart
+    final String sContentType = aHeaders.getHeader (CHttpHeader.CONTENT_TYPE, null);
+    final WSS4JAttachment ret = new WSS4JAttachment (aResMgr,
+                                                     sContentType != null ? sContentType
+                                                                          : CMimeType.TEXT_PLAIN.getAsString ());
 
     {
       // Reference in header is: <ID>
       // See
       // http://docs.oasis-open.org/wss-m/wss/v1.1.1/os/wss-SwAProfile-v1.1.1-os.html
       // chapter 5.2
-      final String sRealContentID = StringHelper.trimStartAndEnd (aBodyPart.getContentID (), '<', '>');
+      final String sRealContentID = StringHelper.trimStartAndEnd (aHeaders.getHeader (CHttpHeader.CONTENT_ID, null),
+                                                                  '<',
+                                                                  '>');
       ret.setId (sRealContentID);
     }
 
-    if (canBeKeptInMemory (aBodyPart.getSize ()))
-    {
-      // keep some small parts in memory
-      final DataHandler aDH = aBodyPart.getDataHandler ();
-      ret.setSourceStreamProvider (HasInputStream.once ( () -> {
-        try
-        {
-          return aDH.getInputStream ();
-        }
-        catch (final IOException ex)
-        {
-          throw new UncheckedIOException (ex);
-        }
-      }));
-    }
-    else
-    {
-      // Write to temp file
-      final File aTempFile = aResMgr.createTempFile ();
-      try (final OutputStream aOS = FileHelper.getBufferedOutputStream (aTempFile))
-      {
-        aBodyPart.getDataHandler ().writeTo (aOS);
-      }
-      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile)));
-    }
+    // Decode the content transfer encoding while reading
+    final String sCTE = aHeaders.getHeader (CHttpHeader.CONTENT_TRANSFER_ENCODING, null);
+    final InputStream aDecodedIS = StringHelper.hasText (sCTE) ? MimeUtility.decode (aIS, sCTE.trim ()) : aIS;
+
+    // Starts in memory and spills to disk if the threshold is crossed
+    ret.setSourceStreamProvider (aResMgr.readIntoMemoryOrTempFile (aDecodedIS));
 
     // Convert all headers to attributes
-    final Enumeration <?> aEnum = aBodyPart.getAllHeaders ();
+    final Enumeration <?> aEnum = aHeaders.getAllHeaders ();
     while (aEnum.hasMoreElements ())
     {
       final Header aHeader = (Header) aEnum.nextElement ();
@@ -16,7 +16,14 @@
  */
 package com.helger.as4.attachment;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -34,10 +41,15 @@ import com.helger.as4.util.AS4ResourceManager;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
 import com.helger.commons.collection.impl.CommonsLinkedHashMap;
 import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
 import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileHelper;
 import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.StreamHelper;
 
 /**
  * A Callback Handler implementation for the case of signing/encrypting
@@ -52,14 +64,39 @@ public class WSS4JAttachmentCallbackHandler implements CallbackHandler
 
   private final ICommonsOrderedMap <String, WSS4JAttachment> m_aAttachmentMap = new CommonsLinkedHashMap <> ();
   private final AS4ResourceManager m_aResMgr;
+  private final Executor m_aExecutor;
+  // Attachment ID to the pending copy into a temporary file
+  private final ICommonsMap <String, CompletableFuture <Void>> m_aPersisting = new CommonsHashMap <> ();
 
   public WSS4JAttachmentCallbackHandler (@Nullable final Iterable <? extends WSS4JAttachment> aAttachments,
                                          @Nonnull final AS4ResourceManager aResMgr)
+  {
+    this (aAttachments, aResMgr, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aAttachments
+   *        The incoming attachments. May be <code>null</code>.
+   * @param aResMgr
+   *        The resource manager for temporary files. May not be
+   *        <code>null</code>.
+   * @param aExecutor
+   *        The executor used to decrypt and persist the resulting attachments
+   *        in parallel. It should be bounded and run rejected tasks in the
+   *        calling thread. May be <code>null</code> to handle all attachments
+   *        sequentially in the calling thread.
+   */
+  public WSS4JAttachmentCallbackHandler (@Nullable final Iterable <? extends WSS4JAttachment> aAttachments,
+                                         @Nonnull final AS4ResourceManager aResMgr,
+                                         @Nullable final Executor aExecutor)
   {
     if (aAttachments != null)
       for (final WSS4JAttachment aAttachment : aAttachments)
         m_aAttachmentMap.put (aAttachment.getId (), aAttachment);
     m_aResMgr = ValueEnforcer.notNull (aResMgr, "ResMgr");
+    m_aExecutor = aExecutor;
   }
 
   /**
@@ -117,6 +154,14 @@ public class WSS4JAttachmentCallbackHandler implements CallbackHandler
           aRealAttachment.setSourceStreamProvider (HasInputStream.once ( () -> aResponseAttachment.getSourceStream ()));
 
           m_aAttachmentMap.put (sAttachmentID, aRealAttachment);
+
+          if (m_aExecutor != null)
+          {
+            // Decryption happens while reading, so start it right now for all
+            // attachments in parallel. Later digest calculation reads the
+            // decrypted temporary file.
+            _startPersisting (sAttachmentID, aRealAttachment);
+          }
         }
         else
         {
@@ -125,6 +170,109 @@ public class WSS4JAttachmentCallbackHandler implements CallbackHandler
     }
   }
 
+  private static void _copyToFile (@Nonnull final IHasInputStream aISP,
+                                   @Nonnull final File aTempFile,
+                                   @Nonnull final String sAttachmentID)
+  {
+    final InputStream aIS = aISP.getInputStream ();
+    if (aIS == null ||
+        StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aIS, FileHelper.getBufferedOutputStream (aTempFile))
+                    .isFailure ())
+      throw new UncheckedIOException (new IOException ("Failed to copy attachment '" +
+                                                       sAttachmentID +
+                                                       "' to " +
+                                                       aTempFile.getAbsolutePath ()));
+  }
+
+  private void _startPersisting (@Nonnull final String sAttachmentID,
+                                 @Nonnull final WSS4JAttachment aAttachment) throws IOException
+  {
+    final IHasInputStream aSourceISP = aAttachment.getInputStreamProvider ();
+    if (aSourceISP == null)
+      throw new IOException ("Attachment '" + sAttachmentID + "' has no content");
+    final File aTempFile = m_aResMgr.createTempFile ();
+    final Runnable aTask = () -> _copyToFile (aSourceISP, aTempFile, sAttachmentID);
+    CompletableFuture <Void> aFuture;
+    if (m_aExecutor != null)
+      aFuture = CompletableFuture.runAsync (aTask, m_aExecutor);
+    else
+    {
+      aFuture = new CompletableFuture <> ();
+      try
+      {
+        aTask.run ();
+        aFuture.complete (null);
+      }
+      catch (final RuntimeException ex)
+      {
+        aFuture.completeExceptionally (ex);
+      }
+    }
+    final CompletableFuture <Void> aFinalFuture = aFuture;
+
+    // Always copy to a temporary file, so that decrypted content can be read
+    // more than once
+    aAttachment.setSourceStreamProvider (HasInputStream.multiple ( () -> {
+      aFinalFuture.join ();
+      return FileHelper.getBufferedInputStream (aTempFile);
+    }));
+    m_aPersisting.put (sAttachmentID, aFuture);
+  }
+
+  /**
+   * Copy the content of all resulting attachments to temporary files, so that
+   * the decrypted content can be read more than once. If an executor is
+   * present, the attachments are handled in parallel. After this method
+   * returned successfully, all attachments returned by
+   * {@link #getAllResponseAttachments()} are backed by temporary files.
+   *
+   * @throws IOException
+   *         If decrypting or writing an attachment failed
+   */
+  public void persistAllResponseAttachments () throws IOException
+  {
+    for (final Map.Entry <String, WSS4JAttachment> aEntry : m_aAttachmentMap.entrySet ())
+      if (!m_aPersisting.containsKey (aEntry.getKey ()))
+        _startPersisting (aEntry.getKey (), aEntry.getValue ());
+
+    // Wait for all - decrypted content must be complete
+    for (final CompletableFuture <Void> aFuture : m_aPersisting.values ())
+    {
+      try
+      {
+        aFuture.join ();
+      }
+      catch (final CompletionException ex)
+      {
+        final Throwable aCause = ex.getCause ();
+        if (aCause instanceof UncheckedIOException)
+          throw ((UncheckedIOException) aCause).getCause ();
+        throw new IOException ("Failed to persist attachment", aCause);
+      }
+    }
+  }
+
+  /**
+   * Wait until all copies started so far are finished - independent of their
+   * success. Call this before the resource manager is closed, e.g. if
+   * processing failed before {@link #persistAllResponseAttachments()} was
+   * called.
+   */
+  public void waitForPendingPersistence ()
+  {
+    for (final CompletableFuture <Void> aFuture : m_aPersisting.values ())
+    {
+      try
+      {
+        aFuture.join ();
+      }
+      catch (final CompletionException ex)
+      {
+        // Ignore
+      }
+    }
+  }
+
   @Nonnull
   @ReturnsMutableCopy
   public ICommonsList <WSS4JAttachment> getAllResponseAttachments ()
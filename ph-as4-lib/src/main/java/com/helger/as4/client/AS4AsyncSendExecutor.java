@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Executor for asynchronous transmissions that limits the number of
+ * concurrently running transmissions per endpoint. Submitting never blocks: if
+ * the window of an endpoint is full, the transmission is queued and started as
+ * soon as a previous transmission to the same endpoint finished. The overall
+ * number of threads is bounded independent of the number of endpoints or
+ * outstanding transmissions.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4AsyncSendExecutor implements AutoCloseable
+{
+  public static final int DEFAULT_THREAD_COUNT = 32;
+  public static final int DEFAULT_MAX_IN_FLIGHT_PER_ENDPOINT = 16;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncSendExecutor.class);
+
+  private static final SimpleLock s_aDefaultLock = new SimpleLock ();
+  @GuardedBy ("s_aDefaultLock")
+  private static AS4AsyncSendExecutor s_aDefaultInstance;
+
+  /**
+   * A single queued or running transmission.
+   *
+   * @param <T>
+   *        Result type
+   */
+  private final class Task <T> implements Runnable
+  {
+    private final String m_sEndpoint;
+    private final Callable <? extends T> m_aCallable;
+    private final CompletableFuture <T> m_aFuture = new CompletableFuture <> ();
+
+    Task (@Nonnull final String sEndpoint, @Nonnull final Callable <? extends T> aCallable)
+    {
+      m_sEndpoint = sEndpoint;
+      m_aCallable = aCallable;
+    }
+
+    public void run ()
+    {
+      try
+      {
+        m_aFuture.complete (m_aCallable.call ());
+      }
+      catch (final Throwable t)
+      {
+        m_aFuture.completeExceptionally (t);
+      }
+      finally
+      {
+        _onTaskFinished (m_sEndpoint);
+      }
+    }
+  }
+
+  /**
+   * Per endpoint state.
+   */
+  private static final class Endpoint
+  {
+    private int m_nInFlight = 0;
+    private final Queue <Task <?>> m_aPending = new ArrayDeque <> ();
+  }
+
+  private final int m_nMaxInFlightPerEndpoint;
+  private final ExecutorService m_aES;
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private final ICommonsMap <String, Endpoint> m_aEndpoints = new CommonsHashMap <> ();
+  // Signalled when the last outstanding transmission finished
+  private final Condition m_aAllFinished = m_aLock.newCondition ();
+
+  public AS4AsyncSendExecutor ()
+  {
+    this (DEFAULT_THREAD_COUNT, DEFAULT_MAX_IN_FLIGHT_PER_ENDPOINT);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nThreadCount
+   *        The number of threads to use for all transmissions. Must be &gt; 0.
+   * @param nMaxInFlightPerEndpoint
+   *        The maximum number of concurrently running transmissions per
+   *        endpoint. Must be &gt; 0.
+   */
+  public AS4AsyncSendExecutor (@Nonnegative final int nThreadCount, @Nonnegative final int nMaxInFlightPerEndpoint)
+  {
+    ValueEnforcer.isGT0 (nThreadCount, "ThreadCount");
+    ValueEnforcer.isGT0 (nMaxInFlightPerEndpoint, "MaxInFlightPerEndpoint");
+    m_nMaxInFlightPerEndpoint = nMaxInFlightPerEndpoint;
+    m_aES = Executors.newFixedThreadPool (nThreadCount,
+                                          new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                           .setNamingPattern ("as4-client-send-%d")
+                                                                           .build ());
+  }
+
+  /**
+   * @return The maximum number of concurrently running transmissions per
+   *         endpoint. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getMaxInFlightPerEndpoint ()
+  {
+    return m_nMaxInFlightPerEndpoint;
+  }
+
+  private void _execute (@Nonnull final Task <?> aTask)
+  {
+    try
+    {
+      m_aES.execute (aTask);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Executor was shut down
+      aTask.m_aFuture.completeExceptionally (ex);
+      _onTaskFinished (aTask.m_sEndpoint);
+    }
+  }
+
+  private void _onTaskFinished (@Nonnull final String sEndpoint)
+  {
+    final Task <?> aNext = m_aLock.locked ( () -> {
+      final Endpoint aEndpoint = m_aEndpoints.get (sEndpoint);
+      final Task <?> ret = aEndpoint.m_aPending.poll ();
+      if (ret == null)
+      {
+        // Nothing queued - free the slot
+        aEndpoint.m_nInFlight--;
+        if (aEndpoint.m_nInFlight == 0)
+        {
+          m_aEndpoints.remove (sEndpoint);
+          if (m_aEndpoints.isEmpty ())
+            m_aAllFinished.signalAll ();
+        }
+      }
+      return ret;
+    });
+    if (aNext != null)
+    {
+      // Slot is handed over to the next queued task
+      _execute (aNext);
+    }
+  }
+
+  /**
+   * Submit a new transmission. This method never blocks.
+   *
+   * @param sEndpoint
+   *        The endpoint (e.g. the URL) the transmission goes to. May neither
+   *        be <code>null</code> nor empty.
+   * @param aCallable
+   *        The transmission to execute. May not be <code>null</code>.
+   * @return The future that is completed with the result of the callable or
+   *         with the exception thrown by the callable. Never
+   *         <code>null</code>.
+   * @param <T>
+   *        Result type
+   */
+  @Nonnull
+  public <T> CompletableFuture <T> submit (@Nonnull @Nonempty final String sEndpoint,
+                                           @Nonnull final Callable <? extends T> aCallable)
+  {
+    ValueEnforcer.notEmpty (sEndpoint, "Endpoint");
+    ValueEnforcer.notNull (aCallable, "Callable");
+
+    final Task <T> aTask = new Task <> (sEndpoint, aCallable);
+    final boolean bRunNow = m_aLock.locked ( () -> {
+      final Endpoint aEndpoint = m_aEndpoints.computeIfAbsent (sEndpoint, k -> new Endpoint ());
+      if (aEndpoint.m_nInFlight < m_nMaxInFlightPerEndpoint)
+      {
+        aEndpoint.m_nInFlight++;
+        return true;
+      }
+      aEndpoint.m_aPending.add (aTask);
+      return false;
+    });
+    if (bRunNow)
+      _execute (aTask);
+    return aTask.m_aFuture;
+  }
+
+  /**
+   * @param sEndpoint
+   *        The endpoint to query. May be <code>null</code>.
+   * @return The number of currently running transmissions to the provided
+   *         endpoint.
+   */
+  @Nonnegative
+  public int getInFlightCount (@Nullable final String sEndpoint)
+  {
+    return m_aLock.locked ( () -> {
+      final Endpoint aEndpoint = m_aEndpoints.get (sEndpoint);
+      return aEndpoint == null ? 0 : aEndpoint.m_nInFlight;
+    });
+  }
+
+  /**
+   * @param sEndpoint
+   *        The endpoint to query. May be <code>null</code>.
+   * @return The number of transmissions to the provided endpoint that wait for
+   *         a free slot.
+   */
+  @Nonnegative
+  public int getQueuedCount (@Nullable final String sEndpoint)
+  {
+    return m_aLock.locked ( () -> {
+      final Endpoint aEndpoint = m_aEndpoints.get (sEndpoint);
+      return aEndpoint == null ? 0 : aEndpoint.m_aPending.size ();
+    });
+  }
+
+  /**
+   * Stop accepting new transmissions and wait until all running and queued
+   * transmissions are finished.
+   */
+  public void close ()
+  {
+    // Wait until the queues are drained, as queued tasks are only handed to
+    // the executor upon completion of a running task
+    m_aLock.lock ();
+    try
+    {
+      while (m_aEndpoints.isNotEmpty ())
+        m_aAllFinished.await ();
+    }
+    catch (final InterruptedException ex)
+    {
+      LOGGER.warn ("Interrupted while waiting for outstanding transmissions");
+      Thread.currentThread ().interrupt ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aES);
+  }
+
+  /**
+   * @return The default instance that is shared by all AS4 clients without a
+   *         specific executor. Created on demand. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4AsyncSendExecutor getDefaultInstance ()
+  {
+    return s_aDefaultLock.locked ( () -> {
+      if (s_aDefaultInstance == null)
+        s_aDefaultInstance = new AS4AsyncSendExecutor ();
+      return s_aDefaultInstance;
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxInFlightPerEndpoint", m_nMaxInFlightPerEndpoint).getToString ();
+  }
+}
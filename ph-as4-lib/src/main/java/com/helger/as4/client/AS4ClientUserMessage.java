@@ -31,6 +31,9 @@ import com.helger.as4.CAS4;
 import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.crypto.ECryptoAlgorithmCrypt;
+import com.helger.as4.crypto.ECryptoAlgorithmSign;
+import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
 import com.helger.as4.http.AS4HttpDebug;
 import com.helger.as4.http.HttpMimeMessageEntity;
 import com.helger.as4.http.HttpXMLEntity;
@@ -41,6 +44,7 @@ import com.helger.as4.messaging.mime.MimeMessageCreator;
 import com.helger.as4.messaging.sign.SignedMessageCreator;
 import com.helger.as4.model.pmode.IPMode;
 import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4.util.AS4ResourceManager;
 import com.helger.as4lib.ebms3header.Ebms3CollaborationInfo;
 import com.helger.as4lib.ebms3header.Ebms3MessageInfo;
@@ -49,6 +53,7 @@ import com.helger.as4lib.ebms3header.Ebms3PartyInfo;
 import com.helger.as4lib.ebms3header.Ebms3PayloadInfo;
 import com.helger.as4lib.ebms3header.Ebms3Property;
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.annotation.ReturnsMutableObject;
 import com.helger.commons.collection.impl.CommonsArrayList;
@@ -209,129 +214,242 @@ public class AS4ClientUserMessage extends AbstractAS4Client
   }
 
   /**
-   * Build the AS4 message to be sent. It uses all the attributes of this class to
-   * build the final message. Compression, signing and encryption happens in this
-   * methods.
+   * A single user message on its way from the client settings to the final
+   * HTTP entity. The creation takes a snapshot of all client attributes, so
+   * that the client may be modified or reused afterwards. The remaining steps
+   * {@link #build()}, {@link #sign()} and {@link #encrypt()} need to be called
+   * in this order, but not necessarily on the same thread. Only one thread may
+   * access an object of this class at a time.
    *
-   * @return The HTTP entity to be sent. Never <code>null</code>.
-   * @throws Exception
-   *         in case something goes wrong
+   * @author Philip Helger
    */
-  @Override
-  @Nonnull
-  public BuiltMessage buildMessage () throws Exception
-  {
-    // if pmode is set use attribute from pmode
-    _setValuesWithPMode ();
-
-    final String sAgreementRefPMode = m_aPModeIDFactory.apply (this);
-
-    // check mandatory attributes
-    _checkMandatoryAttributes ();
-
-    final boolean bSign = getCryptoAlgorithmSign () != null && getCryptoAlgorithmSignDigest () != null;
-    final boolean bEncrypt = getCryptoAlgorithmCrypt () != null;
-    final boolean bAttachmentsPresent = m_aAttachments.isNotEmpty ();
-
-    // Create a new message ID for each build!
-    final String sMessageID = createMessageID ();
-
-    final Ebms3MessageInfo aEbms3MessageInfo = MessageHelperMethods.createEbms3MessageInfo (sMessageID, null);
-    final Ebms3PayloadInfo aEbms3PayloadInfo = MessageHelperMethods.createEbms3PayloadInfo (m_aPayload != null,
-                                                                                            m_aAttachments);
-    final Ebms3CollaborationInfo aEbms3CollaborationInfo = MessageHelperMethods.createEbms3CollaborationInfo (sAgreementRefPMode,
-                                                                                                              m_sAgreementRefValue,
-                                                                                                              m_sServiceType,
-                                                                                                              m_sServiceValue,
-                                                                                                              m_sAction,
-                                                                                                              m_sConversationID);
-    final Ebms3PartyInfo aEbms3PartyInfo = MessageHelperMethods.createEbms3PartyInfo (m_sFromRole,
-                                                                                      m_sFromPartyID,
-                                                                                      m_sToRole,
-                                                                                      m_sToPartyID);
-
-    final Ebms3MessageProperties aEbms3MessageProperties = MessageHelperMethods.createEbms3MessageProperties (m_aEbms3Properties);
-
-    final AS4UserMessage aUserMsg = AS4UserMessage.create (aEbms3MessageInfo,
-                                                           aEbms3PayloadInfo,
-                                                           aEbms3CollaborationInfo,
-                                                           aEbms3PartyInfo,
-                                                           aEbms3MessageProperties,
-                                                           getSOAPVersion ())
-                                                  .setMustUnderstand (true);
-    Document aDoc = aUserMsg.getAsSOAPDocument (m_aPayload);
-
-    // 1. compress
-    // Is done when the attachments are added
-
-    // 2. sign and/or encrpyt
-    MimeMessage aMimeMsg = null;
-    if (bSign || bEncrypt)
+  @NotThreadSafe
+  public static final class PendingUserMessage
+  {
+    private final String m_sMessageID;
+    private final AS4UserMessage m_aUserMsg;
+    private final Node m_aPayload;
+    private final ICommonsList <WSS4JAttachment> m_aAttachments;
+    private final AS4ResourceManager m_aResMgr;
+    private final ESOAPVersion m_eSOAPVersion;
+    private final AS4CryptoFactory m_aCryptoFactory;
+    private final ECryptoAlgorithmSign m_eCryptoAlgorithmSign;
+    private final ECryptoAlgorithmSignDigest m_eCryptoAlgorithmSignDigest;
+    private final ECryptoAlgorithmCrypt m_eCryptoAlgorithmCrypt;
+
+    private Document m_aDoc;
+    private MimeMessage m_aMimeMsg;
+
+    PendingUserMessage (@Nonnull final AS4ClientUserMessage aClient) throws Exception
+    {
+      // if pmode is set use attribute from pmode
+      aClient._setValuesWithPMode ();
+
+      final String sAgreementRefPMode = aClient.m_aPModeIDFactory.apply (aClient);
+
+      // check mandatory attributes
+      aClient._checkMandatoryAttributes ();
+
+      final boolean bSign = aClient.getCryptoAlgorithmSign () != null &&
+                            aClient.getCryptoAlgorithmSignDigest () != null;
+      final boolean bEncrypt = aClient.getCryptoAlgorithmCrypt () != null;
+
+      // Create a new message ID for each build!
+      m_sMessageID = aClient.createMessageID ();
+
+      final Ebms3MessageInfo aEbms3MessageInfo = MessageHelperMethods.createEbms3MessageInfo (m_sMessageID, null);
+      final Ebms3PayloadInfo aEbms3PayloadInfo = MessageHelperMethods.createEbms3PayloadInfo (aClient.m_aPayload != null,
+                                                                                              aClient.m_aAttachments);
+      final Ebms3CollaborationInfo aEbms3CollaborationInfo = MessageHelperMethods.createEbms3CollaborationInfo (sAgreementRefPMode,
+                                                                                                                aClient.m_sAgreementRefValue,
+                                                                                                                aClient.m_sServiceType,
+                                                                                                                aClient.m_sServiceValue,
+                                                                                                                aClient.m_sAction,
+                                                                                                                aClient.m_sConversationID);
+      final Ebms3PartyInfo aEbms3PartyInfo = MessageHelperMethods.createEbms3PartyInfo (aClient.m_sFromRole,
+                                                                                        aClient.m_sFromPartyID,
+                                                                                        aClient.m_sToRole,
+                                                                                        aClient.m_sToPartyID);
+
+      final Ebms3MessageProperties aEbms3MessageProperties = MessageHelperMethods.createEbms3MessageProperties (aClient.m_aEbms3Properties);
+
+      m_aUserMsg = AS4UserMessage.create (aEbms3MessageInfo,
+                                          aEbms3PayloadInfo,
+                                          aEbms3CollaborationInfo,
+                                          aEbms3PartyInfo,
+                                          aEbms3MessageProperties,
+                                          aClient.getSOAPVersion ())
+                                 .setMustUnderstand (true);
+      m_aPayload = aClient.m_aPayload;
+      m_aAttachments = aClient.m_aAttachments.getClone ();
+      m_aResMgr = aClient.m_aResMgr;
+      m_eSOAPVersion = aClient.getSOAPVersion ();
+      m_aCryptoFactory = bSign || bEncrypt ? aClient.internalCreateCryptoFactory () : null;
+      m_eCryptoAlgorithmSign = bSign ? aClient.getCryptoAlgorithmSign () : null;
+      m_eCryptoAlgorithmSignDigest = bSign ? aClient.getCryptoAlgorithmSignDigest () : null;
+      m_eCryptoAlgorithmCrypt = bEncrypt ? aClient.getCryptoAlgorithmCrypt () : null;
+    }
+
+    /**
+     * @return The ID of the message. Neither <code>null</code> nor empty.
+     */
+    @Nonnull
+    @Nonempty
+    public String getMessageID ()
+    {
+      return m_sMessageID;
+    }
+
+    /**
+     * Create the SOAP document. Compression is done when the attachments are
+     * added.
+     *
+     * @return this for chaining
+     */
+    @Nonnull
+    public PendingUserMessage build ()
     {
-      final Document aPureDoc = aDoc;
-      AS4HttpDebug.debug ( () -> "Unsigned/unencrypted UserMessage:\n" +
-                                 XMLWriter.getNodeAsString (aPureDoc, AS4HttpDebug.getDebugXMLWriterSettings ()));
+      m_aDoc = m_aUserMsg.getAsSOAPDocument (m_aPayload);
+      if (m_aCryptoFactory != null)
+      {
+        final Document aPureDoc = m_aDoc;
+        AS4HttpDebug.debug ( () -> "Unsigned/unencrypted UserMessage:\n" +
+                                   XMLWriter.getNodeAsString (aPureDoc, AS4HttpDebug.getDebugXMLWriterSettings ()));
+      }
+      return this;
+    }
 
-      final AS4CryptoFactory aCryptoFactory = internalCreateCryptoFactory ();
+    /**
+     * Sign the SOAP document if signing is configured.
+     *
+     * @return this for chaining
+     * @throws Exception
+     *         in case something goes wrong
+     */
+    @Nonnull
+    public PendingUserMessage sign () throws Exception
+    {
+      if (m_aDoc == null)
+        throw new IllegalStateException ("Message was not yet built");
 
-      // 2a. sign
-      if (bSign)
+      if (m_eCryptoAlgorithmSign != null)
       {
         final boolean bMustUnderstand = true;
-        final Document aSignedDoc = SignedMessageCreator.createSignedMessage (aCryptoFactory,
-                                                                              aDoc,
-                                                                              getSOAPVersion (),
-                                                                              aUserMsg.getMessagingID (),
+        final Document aSignedDoc = SignedMessageCreator.createSignedMessage (m_aCryptoFactory,
+                                                                              m_aDoc,
+                                                                              m_eSOAPVersion,
+                                                                              m_aUserMsg.getMessagingID (),
                                                                               m_aAttachments,
                                                                               m_aResMgr,
                                                                               bMustUnderstand,
-                                                                              getCryptoAlgorithmSign (),
-                                                                              getCryptoAlgorithmSignDigest ());
-        aDoc = aSignedDoc;
+                                                                              m_eCryptoAlgorithmSign,
+                                                                              m_eCryptoAlgorithmSignDigest);
+        m_aDoc = aSignedDoc;
 
         AS4HttpDebug.debug ( () -> "Signed UserMessage:\n" +
                                    XMLWriter.getNodeAsString (aSignedDoc, AS4HttpDebug.getDebugXMLWriterSettings ()));
       }
+      return this;
+    }
 
-      // 2b. encrypt
-      if (bEncrypt)
+    /**
+     * Encrypt the SOAP document or the attachments if encryption is configured
+     * and create the MIME message if attachments are present.
+     *
+     * @return this for chaining
+     * @throws Exception
+     *         in case something goes wrong
+     */
+    @Nonnull
+    public PendingUserMessage encrypt () throws Exception
+    {
+      if (m_aDoc == null)
+        throw new IllegalStateException ("Message was not yet built");
+
+      final boolean bAttachmentsPresent = m_aAttachments.isNotEmpty ();
+      if (m_eCryptoAlgorithmCrypt != null)
       {
-        final EncryptionCreator aEncCreator = new EncryptionCreator (aCryptoFactory);
+        final EncryptionCreator aEncCreator = new EncryptionCreator (m_aCryptoFactory);
         // MustUnderstand always set to true
         final boolean bMustUnderstand = true;
         if (bAttachmentsPresent)
         {
-          aMimeMsg = aEncCreator.encryptMimeMessage (getSOAPVersion (),
-                                                     aDoc,
-                                                     bMustUnderstand,
-                                                     m_aAttachments,
-                                                     m_aResMgr,
-                                                     getCryptoAlgorithmCrypt ());
+          m_aMimeMsg = aEncCreator.encryptMimeMessage (m_eSOAPVersion,
+                                                       m_aDoc,
+                                                       bMustUnderstand,
+                                                       m_aAttachments,
+                                                       m_aResMgr,
+                                                       m_eCryptoAlgorithmCrypt);
         }
         else
         {
-          aDoc = aEncCreator.encryptSoapBodyPayload (getSOAPVersion (),
-                                                     aDoc,
-                                                     bMustUnderstand,
-                                                     getCryptoAlgorithmCrypt ());
+          m_aDoc = aEncCreator.encryptSoapBodyPayload (m_eSOAPVersion, m_aDoc, bMustUnderstand, m_eCryptoAlgorithmCrypt);
         }
       }
-    }
 
-    if (bAttachmentsPresent && aMimeMsg == null)
-    {
-      // * not encrypted, not signed
-      // * not encrypted, signed
-      aMimeMsg = MimeMessageCreator.generateMimeMessage (getSOAPVersion (), aDoc, m_aAttachments);
+      if (bAttachmentsPresent && m_aMimeMsg == null)
+      {
+        // * not encrypted, not signed
+        // * not encrypted, signed
+        m_aMimeMsg = MimeMessageCreator.generateMimeMessage (m_eSOAPVersion, m_aDoc, m_aAttachments);
+      }
+      return this;
     }
 
-    if (aMimeMsg != null)
+    /**
+     * @return The final message to be sent. Never <code>null</code>.
+     */
+    @Nonnull
+    public BuiltMessage getAsBuiltMessage ()
     {
-      return new BuiltMessage (sMessageID, new HttpMimeMessageEntity (aMimeMsg));
+      if (m_aDoc == null)
+        throw new IllegalStateException ("Message was not yet built");
+
+      if (m_aMimeMsg != null)
+        return new BuiltMessage (m_sMessageID, new HttpMimeMessageEntity (m_aMimeMsg));
+
+      // Wrap SOAP XML
+      return new BuiltMessage (m_sMessageID, new HttpXMLEntity (m_aDoc, m_eSOAPVersion));
     }
+  }
+
+  /**
+   * Take a snapshot of all attributes of this class for a new message. The
+   * returned object can be used to run the expensive steps of the message
+   * creation on other threads.
+   *
+   * @return The pending message. Never <code>null</code>.
+   * @throws Exception
+   *         in case something goes wrong
+   * @see AS4OutboundPipeline
+   */
+  @Nonnull
+  public PendingUserMessage createPendingMessage () throws Exception
+  {
+    return new PendingUserMessage (this);
+  }
+
+  @Override
+  protected boolean isReceiptExpected ()
+  {
+    // User messages are answered with receipts
+    return true;
+  }
 
-    // Wrap SOAP XML
-    return new BuiltMessage (sMessageID, new HttpXMLEntity (aDoc, getSOAPVersion ()));
+  /**
+   * Build the AS4 message to be sent. It uses all the attributes of this class to
+   * build the final message. Compression, signing and encryption happens in this
+   * methods.
+   *
+   * @return The HTTP entity to be sent. Never <code>null</code>.
+   * @throws Exception
+   *         in case something goes wrong
+   */
+  @Override
+  @Nonnull
+  public BuiltMessage buildMessage () throws Exception
+  {
+    return createPendingMessage ().build ().sign ().encrypt ().getAsBuiltMessage ();
   }
 
   @Nullable
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.client.ResponseHandler;
+
+import com.helger.as4.client.AS4ClientUserMessage.PendingUserMessage;
+import com.helger.as4.client.AbstractAS4Client.SentMessage;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Outbound pipeline for user messages. Building the SOAP document, signing,
+ * encrypting and transmitting each run on their own executor, so that e.g. the
+ * CPU intensive signing of one message overlaps with the network I/O of
+ * another message.<br>
+ * Each stage has a bounded queue. If the queue of a stage is full, the thread
+ * handing over the message runs the stage itself. This throttles the previous
+ * stage (or the submitting thread) until the congestion is resolved.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4OutboundPipeline implements AutoCloseable
+{
+  public static final int DEFAULT_QUEUE_SIZE = 64;
+
+  /**
+   * Like {@link ThreadPoolExecutor.CallerRunsPolicy} but fails if the
+   * executor is shut down, so that no message gets lost silently.
+   */
+  private static final RejectedExecutionHandler CALLER_RUNS = (aRunnable, aExecutor) -> {
+    if (aExecutor.isShutdown ())
+      throw new RejectedExecutionException ("AS4 outbound pipeline is shut down");
+    aRunnable.run ();
+  };
+
+  private final ExecutorService m_aBuildES;
+  private final ExecutorService m_aSignES;
+  private final ExecutorService m_aEncryptES;
+  private final ExecutorService m_aTransmitES;
+
+  /**
+   * Constructor with thread counts derived from the number of available
+   * processors and the default queue size.
+   */
+  public AS4OutboundPipeline ()
+  {
+    this (Math.max (1, Runtime.getRuntime ().availableProcessors () / 4),
+          Math.max (1, Runtime.getRuntime ().availableProcessors () / 2),
+          Math.max (1, Runtime.getRuntime ().availableProcessors () / 2),
+          Runtime.getRuntime ().availableProcessors () * 2,
+          DEFAULT_QUEUE_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nBuildThreads
+   *        Number of threads creating the SOAP documents. Must be &gt; 0.
+   * @param nSignThreads
+   *        Number of threads signing the messages. Must be &gt; 0.
+   * @param nEncryptThreads
+   *        Number of threads encrypting the messages. Must be &gt; 0.
+   * @param nTransmitThreads
+   *        Number of threads sending the messages. Must be &gt; 0.
+   * @param nQueueSize
+   *        The maximum number of messages waiting in front of each stage. Must
+   *        be &gt; 0.
+   */
+  public AS4OutboundPipeline (@Nonnegative final int nBuildThreads,
+                              @Nonnegative final int nSignThreads,
+                              @Nonnegative final int nEncryptThreads,
+                              @Nonnegative final int nTransmitThreads,
+                              @Nonnegative final int nQueueSize)
+  {
+    ValueEnforcer.isGT0 (nQueueSize, "QueueSize");
+    m_aBuildES = _createStage ("build", nBuildThreads, nQueueSize);
+    m_aSignES = _createStage ("sign", nSignThreads, nQueueSize);
+    m_aEncryptES = _createStage ("encrypt", nEncryptThreads, nQueueSize);
+    m_aTransmitES = _createStage ("transmit", nTransmitThreads, nQueueSize);
+  }
+
+  @Nonnull
+  private static ExecutorService _createStage (@Nonnull final String sName,
+                                               @Nonnegative final int nThreads,
+                                               @Nonnegative final int nQueueSize)
+  {
+    ValueEnforcer.isGT0 (nThreads, "Threads[" + sName + "]");
+    return new ThreadPoolExecutor (nThreads,
+                                   nThreads,
+                                   0L,
+                                   TimeUnit.MILLISECONDS,
+                                   new ArrayBlockingQueue <> (nQueueSize),
+                                   new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                    .setNamingPattern ("as4-outbound-" +
+                                                                                       sName +
+                                                                                       "-%d")
+                                                                    .build (),
+                                   CALLER_RUNS);
+  }
+
+  /**
+   * Send a user message through the pipeline. The message attributes and the
+   * HTTP settings (HTTP client factory and connection pool) of the client are
+   * read on the calling thread, so the client may be modified or reused as
+   * soon as this method returns. The payload and the attachments must not be
+   * modified until the returned future is completed. Like with
+   * {@link AbstractAS4Client#sendMessage(String, ResponseHandler)} the message
+   * is registered in the receipt correlation index of the client.
+   *
+   * @param aClient
+   *        The client with the message attributes and the HTTP settings to be
+   *        used. May not be <code>null</code>.
+   * @param sURL
+   *        The URL to send the message to. May neither be <code>null</code> nor
+   *        empty.
+   * @param aResponseHandler
+   *        The response handler to be used. May not be <code>null</code>.
+   * @return The future that is completed once the response is received or one
+   *         of the stages failed. Never <code>null</code>.
+   * @param <T>
+   *        Response type
+   */
+  @Nonnull
+  public <T> CompletableFuture <SentMessage <T>> sendMessage (@Nonnull final AS4ClientUserMessage aClient,
+                                                              @Nonnull @Nonempty final String sURL,
+                                                              @Nonnull final ResponseHandler <? extends T> aResponseHandler)
+  {
+    ValueEnforcer.notNull (aClient, "Client");
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.notNull (aResponseHandler, "ResponseHandler");
+
+    final PendingUserMessage aPending;
+    final BasicHttpPoster aPoster;
+    final AS4ReceiptCorrelationIndex aIndex;
+    try
+    {
+      aPending = aClient.createPendingMessage ();
+      aPoster = aClient.createSettingsSnapshot ();
+      aIndex = aClient.getReceiptCorrelationIndexIfExpected ();
+    }
+    catch (final Exception ex)
+    {
+      final CompletableFuture <SentMessage <T>> ret = new CompletableFuture <> ();
+      ret.completeExceptionally (ex);
+      return ret;
+    }
+
+    return CompletableFuture.supplyAsync (aPending::build, m_aBuildES)
+                            .thenApplyAsync (x -> _unchecked ( () -> x.sign ()), m_aSignES)
+                            .thenApplyAsync (x -> _unchecked ( () -> x.encrypt ().getAsBuiltMessage ()), m_aEncryptES)
+                            .thenApplyAsync (x -> _unchecked ( () -> AbstractAS4Client.sendBuiltMessage (aPoster,
+                                                                                                        aIndex,
+                                                                                                        sURL,
+                                                                                                        x,
+                                                                                                        aResponseHandler)),
+                                             m_aTransmitES);
+  }
+
+  /**
+   * Callable alike that may throw a checked exception.
+   *
+   * @param <T>
+   *        Result type
+   */
+  @FunctionalInterface
+  private interface IStage <T>
+  {
+    T run () throws Exception;
+  }
+
+  private static <T> T _unchecked (@Nonnull final IStage <T> aStage)
+  {
+    try
+    {
+      return aStage.run ();
+    }
+    catch (final RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch (final Exception ex)
+    {
+      // The cause is passed on to the future as is
+      throw new CompletionException (ex);
+    }
+  }
+
+  /**
+   * Stop accepting new messages and wait until all messages in the pipeline
+   * were processed.
+   */
+  public void close ()
+  {
+    // Order matters: each stage may still hand over to the next one
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aBuildES);
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aSignES);
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aEncryptES);
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aTransmitES);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("BuildES", m_aBuildES)
+                                       .append ("SignES", m_aSignES)
+                                       .append ("EncryptES", m_aEncryptES)
+                                       .append ("TransmitES", m_aTransmitES)
+                                       .getToString ();
+  }
+}
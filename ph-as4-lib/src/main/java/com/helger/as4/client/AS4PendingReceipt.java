@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.time.LocalDateTime;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * An outgoing message that waits for a receipt. Stored in the
+ * {@link AS4ReceiptCorrelationIndex}.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public class AS4PendingReceipt
+{
+  private final String m_sMessageID;
+  private final String m_sURL;
+  private final LocalDateTime m_aSentDT;
+  private final long m_nSentNanos;
+  private final long m_nExpiryMillis;
+
+  public AS4PendingReceipt (@Nonnull @Nonempty final String sMessageID,
+                            @Nullable final String sURL,
+                            final long nExpiryMillis)
+  {
+    m_sMessageID = ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    m_sURL = sURL;
+    m_aSentDT = PDTFactory.getCurrentLocalDateTime ();
+    m_nSentNanos = System.nanoTime ();
+    m_nExpiryMillis = nExpiryMillis;
+  }
+
+  /**
+   * @return The ID of the sent message. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * @return The URL the message was sent to. May be <code>null</code>.
+   */
+  @Nullable
+  public final String getURL ()
+  {
+    return m_sURL;
+  }
+
+  /**
+   * @return The date and time when the message was sent. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final LocalDateTime getSentDateTime ()
+  {
+    return m_aSentDT;
+  }
+
+  /**
+   * @return The milliseconds since the message was sent.
+   */
+  public final long getMillisSinceSent ()
+  {
+    return (System.nanoTime () - m_nSentNanos) / 1_000_000L;
+  }
+
+  /**
+   * @return The epoch milliseconds after which no receipt is expected anymore.
+   */
+  public final long getExpiryMillis ()
+  {
+    return m_nExpiryMillis;
+  }
+
+  public final boolean isExpired (final long nNowMillis)
+  {
+    return nNowMillis >= m_nExpiryMillis;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MessageID", m_sMessageID)
+                                       .appendIfNotNull ("URL", m_sURL)
+                                       .append ("SentDT", m_aSentDT)
+                                       .append ("ExpiryMillis", m_nExpiryMillis)
+                                       .getToString ();
+  }
+}
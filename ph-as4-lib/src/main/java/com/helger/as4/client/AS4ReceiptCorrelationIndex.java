@@ -0,0 +1,340 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.IStatisticsHandlerCounter;
+import com.helger.commons.statistics.IStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * In-memory index of outgoing messages that wait for a receipt. Messages are
+ * registered when they are sent and looked up by the
+ * <code>RefToMessageId</code> of incoming receipts, so that receipts can be
+ * correlated with a single hash lookup. Messages without a receipt are removed
+ * after a configurable expiry by a background sweep that runs until the index
+ * is closed or no longer referenced. The round trip time of all correlated
+ * messages, the number of expired messages and the number of receipts for
+ * unknown messages are recorded in the {@link StatisticsManager}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4ReceiptCorrelationIndex implements AutoCloseable
+{
+  public static final long DEFAULT_EXPIRY_MS = TimeUnit.HOURS.toMillis (1);
+  // The maximum time between two checks for expired messages
+  private static final long MAX_SWEEP_INTERVAL_MS = TimeUnit.MINUTES.toMillis (1);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4ReceiptCorrelationIndex.class);
+
+  private static final IMutableStatisticsHandlerTimer s_aStatsRoundTrip = StatisticsManager.getTimerHandler (AS4ReceiptCorrelationIndex.class.getName () +
+                                                                                                            "$roundtrip");
+  private static final IMutableStatisticsHandlerCounter s_aStatsExpired = StatisticsManager.getCounterHandler (AS4ReceiptCorrelationIndex.class.getName () +
+                                                                                                              "$expired");
+  private static final IMutableStatisticsHandlerCounter s_aStatsUnknown = StatisticsManager.getCounterHandler (AS4ReceiptCorrelationIndex.class.getName () +
+                                                                                                              "$unknown");
+
+  // One daemon thread sweeps all indices
+  private static final ScheduledExecutorService s_aSweeper = Executors.newSingleThreadScheduledExecutor (new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                                                                        .setNamingPattern ("as4-receipt-sweeper-%d")
+                                                                                                                                        .build ());
+
+  private static final SimpleLock s_aDefaultLock = new SimpleLock ();
+  @GuardedBy ("s_aDefaultLock")
+  private static AS4ReceiptCorrelationIndex s_aDefaultInstance;
+
+  private final long m_nExpiryMS;
+  private final long m_nSweepIntervalMS;
+  private final Map <String, AS4PendingReceipt> m_aMap = new ConcurrentHashMap <> ();
+  private final ScheduledFuture <?> m_aSweepFuture;
+
+  /**
+   * The scheduled sweep only weakly references the index, so that an index
+   * that is not closed explicitly can still be garbage collected.
+   */
+  private static final class Sweeper implements Runnable
+  {
+    private final WeakReference <AS4ReceiptCorrelationIndex> m_aIndex;
+    private volatile ScheduledFuture <?> m_aFuture;
+
+    Sweeper (@Nonnull final AS4ReceiptCorrelationIndex aIndex)
+    {
+      m_aIndex = new WeakReference <> (aIndex);
+    }
+
+    public void run ()
+    {
+      final AS4ReceiptCorrelationIndex aIndex = m_aIndex.get ();
+      if (aIndex != null)
+        aIndex.removeExpired ();
+      else
+      {
+        final ScheduledFuture <?> aFuture = m_aFuture;
+        if (aFuture != null)
+          aFuture.cancel (false);
+      }
+    }
+  }
+
+  public AS4ReceiptCorrelationIndex ()
+  {
+    this (DEFAULT_EXPIRY_MS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nExpiryMS
+   *        The time in milliseconds after which a message without a receipt is
+   *        removed. Must be &gt; 0.
+   */
+  public AS4ReceiptCorrelationIndex (@Nonnegative final long nExpiryMS)
+  {
+    ValueEnforcer.isGT0 (nExpiryMS, "ExpiryMS");
+    m_nExpiryMS = nExpiryMS;
+    m_nSweepIntervalMS = Math.min (nExpiryMS, MAX_SWEEP_INTERVAL_MS);
+    final Sweeper aSweeper = new Sweeper (this);
+    m_aSweepFuture = s_aSweeper.scheduleWithFixedDelay (aSweeper,
+                                                        m_nSweepIntervalMS,
+                                                        m_nSweepIntervalMS,
+                                                        TimeUnit.MILLISECONDS);
+    aSweeper.m_aFuture = m_aSweepFuture;
+  }
+
+  /**
+   * @return The time in milliseconds after which a message without a receipt
+   *         is removed.
+   */
+  @Nonnegative
+  public final long getExpiryMS ()
+  {
+    return m_nExpiryMS;
+  }
+
+  /**
+   * @return The time in milliseconds between two background checks for expired
+   *         messages.
+   */
+  @Nonnegative
+  public final long getSweepIntervalMS ()
+  {
+    return m_nSweepIntervalMS;
+  }
+
+  /**
+   * Register a sent message that waits for a receipt.
+   *
+   * @param sMessageID
+   *        The ID of the sent message. May neither be <code>null</code> nor
+   *        empty.
+   * @param sURL
+   *        The URL the message was sent to. May be <code>null</code>.
+   * @return The registered entry. Never <code>null</code>.
+   */
+  @Nonnull
+  public AS4PendingReceipt register (@Nonnull @Nonempty final String sMessageID, @Nullable final String sURL)
+  {
+    final AS4PendingReceipt ret = new AS4PendingReceipt (sMessageID, sURL, System.currentTimeMillis () + m_nExpiryMS);
+    // A retransmission replaces the previous entry
+    m_aMap.put (sMessageID, ret);
+    return ret;
+  }
+
+  /**
+   * Remove a registered message without recording it as expired, e.g. because
+   * the transmission failed.
+   *
+   * @param sMessageID
+   *        The ID of the message to remove. May be <code>null</code>.
+   * @return The removed entry or <code>null</code> if no such message is
+   *         registered.
+   */
+  @Nullable
+  public AS4PendingReceipt unregister (@Nullable final String sMessageID)
+  {
+    return sMessageID == null ? null : m_aMap.remove (sMessageID);
+  }
+
+  /**
+   * Correlate an incoming receipt with the sent message.
+   *
+   * @param sRefToMessageID
+   *        The <code>RefToMessageId</code> of the receipt. May be
+   *        <code>null</code>.
+   * @return The matching sent message or <code>null</code> if the receipt
+   *         refers to an unknown or already expired message.
+   */
+  @Nullable
+  public AS4PendingReceipt onReceiptReceived (@Nullable final String sRefToMessageID)
+  {
+    final AS4PendingReceipt ret = sRefToMessageID == null ? null : m_aMap.remove (sRefToMessageID);
+    if (ret == null)
+    {
+      s_aStatsUnknown.increment ();
+      LOGGER.info ("Received receipt for unknown message '" + sRefToMessageID + "'");
+    }
+    else
+      s_aStatsRoundTrip.addTime (ret.getMillisSinceSent ());
+    return ret;
+  }
+
+  /**
+   * @param sMessageID
+   *        The message ID to check. May be <code>null</code>.
+   * @return The registered entry or <code>null</code>.
+   */
+  @Nullable
+  public AS4PendingReceipt getPendingReceipt (@Nullable final String sMessageID)
+  {
+    return sMessageID == null ? null : m_aMap.get (sMessageID);
+  }
+
+  /**
+   * @return The number of messages currently waiting for a receipt.
+   */
+  @Nonnegative
+  public int getPendingCount ()
+  {
+    return m_aMap.size ();
+  }
+
+  /**
+   * Remove all messages for which no receipt is expected anymore. This is
+   * called automatically every {@link #getSweepIntervalMS()} milliseconds.
+   *
+   * @return The number of removed messages.
+   */
+  @Nonnegative
+  public int removeExpired ()
+  {
+    final long nNowMillis = System.currentTimeMillis ();
+    int ret = 0;
+    for (final AS4PendingReceipt aEntry : m_aMap.values ())
+      if (aEntry.isExpired (nNowMillis) && m_aMap.remove (aEntry.getMessageID (), aEntry))
+      {
+        LOGGER.warn ("No receipt received for message '" +
+                     aEntry.getMessageID () +
+                     "' sent to '" +
+                     aEntry.getURL () +
+                     "' at " +
+                     aEntry.getSentDateTime ());
+        ret++;
+      }
+    if (ret > 0)
+      s_aStatsExpired.increment (ret);
+    return ret;
+  }
+
+  /**
+   * @return The round trip time between sending a message and receiving the
+   *         matching receipt in milliseconds. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerTimer getRoundTripStatistics ()
+  {
+    return s_aStatsRoundTrip;
+  }
+
+  /**
+   * @return The number of messages for which no receipt was received. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getExpiredStatistics ()
+  {
+    return s_aStatsExpired;
+  }
+
+  /**
+   * @return The number of receipts that referred to an unknown message. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getUnknownReceiptStatistics ()
+  {
+    return s_aStatsUnknown;
+  }
+
+  /**
+   * @return The default instance that is shared by all AS4 clients and the
+   *         server. Created on demand. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4ReceiptCorrelationIndex getDefaultInstance ()
+  {
+    return s_aDefaultLock.locked ( () -> {
+      if (s_aDefaultInstance == null)
+        s_aDefaultInstance = new AS4ReceiptCorrelationIndex ();
+      return s_aDefaultInstance;
+    });
+  }
+
+  /**
+   * Set the default instance, e.g. to use a different expiry.
+   *
+   * @param aIndex
+   *        The new default instance. May not be <code>null</code>.
+   */
+  public static void setDefaultInstance (@Nonnull final AS4ReceiptCorrelationIndex aIndex)
+  {
+    ValueEnforcer.notNull (aIndex, "Index");
+    s_aDefaultLock.locked ( () -> {
+      s_aDefaultInstance = aIndex;
+    });
+  }
+
+  /**
+   * Stop the background sweep. Registered messages are kept and may still be
+   * correlated, but are no longer removed automatically.
+   */
+  public void close ()
+  {
+    m_aSweepFuture.cancel (false);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("ExpiryMS", m_nExpiryMS)
+                                       .append ("PendingCount", m_aMap.size ())
+                                       .getToString ();
+  }
+}
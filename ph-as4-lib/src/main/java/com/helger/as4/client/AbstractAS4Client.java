@@ -16,18 +16,24 @@
  */
 package com.helger.as4.client;
 
+import java.util.concurrent.CompletableFuture;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.client.ResponseHandler;
+import org.w3c.dom.Document;
 
+import com.helger.as4.CAS4;
 import com.helger.as4.crypto.AS4CryptoFactory;
 import com.helger.as4.crypto.ECryptoAlgorithmCrypt;
 import com.helger.as4.crypto.ECryptoAlgorithmSign;
 import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
 import com.helger.as4.http.AS4HttpDebug;
 import com.helger.as4.messaging.domain.MessageHelperMethods;
+import com.helger.as4.model.pmode.PModeReceptionAwareness;
+import com.helger.as4.outbox.AS4Outbox;
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
@@ -42,6 +48,8 @@ import com.helger.httpclient.response.ResponseHandlerMicroDom;
 import com.helger.security.keystore.EKeyStoreType;
 import com.helger.security.keystore.IKeyStoreType;
 import com.helger.xml.microdom.IMicroDocument;
+import com.helger.xml.microdom.IMicroElement;
+import com.helger.xml.microdom.IMicroNode;
 import com.helger.xml.microdom.serialize.MicroWriter;
 
 public abstract class AbstractAS4Client extends BasicHttpPoster
@@ -137,6 +145,11 @@ public abstract class AbstractAS4Client extends BasicHttpPoster
 
   private ESOAPVersion m_eSOAPVersion = ESOAPVersion.AS4_DEFAULT;
 
+  // null means: use the default executor
+  private AS4AsyncSendExecutor m_aAsyncSendExecutor;
+  // null means: use the default index
+  private AS4ReceiptCorrelationIndex m_aReceiptCorrelationIndex;
+
   protected AbstractAS4Client ()
   {}
 
@@ -180,8 +193,200 @@ public abstract class AbstractAS4Client extends BasicHttpPoster
                                           @Nonnull final ResponseHandler <? extends T> aResponseHandler) throws Exception
   {
     final BuiltMessage aBuiltMsg = buildMessage ();
-    final T aResponse = sendGenericMessage (sURL, aBuiltMsg.getHttpEntity (), aResponseHandler);
-    return new SentMessage <> (aBuiltMsg.getMessageID (), aResponse);
+    return _sendBuiltMessage (sURL, aBuiltMsg, aResponseHandler);
+  }
+
+  private static boolean _containsMicroReceiptFor (@Nullable final IMicroNode aNode, @Nonnull final String sMessageID)
+  {
+    if (aNode instanceof IMicroElement)
+    {
+      final IMicroElement aElement = (IMicroElement) aNode;
+      if (CAS4.EBMS_NS.equals (aElement.getNamespaceURI ()) && "SignalMessage".equals (aElement.getLocalName ()))
+      {
+        final IMicroElement aMessageInfo = aElement.getFirstChildElement (CAS4.EBMS_NS, "MessageInfo");
+        final IMicroElement aRef = aMessageInfo == null ? null
+                                                        : aMessageInfo.getFirstChildElement (CAS4.EBMS_NS,
+                                                                                             "RefToMessageId");
+        return aElement.getFirstChildElement (CAS4.EBMS_NS, "Receipt") != null &&
+               aRef != null &&
+               sMessageID.equals (aRef.getTextContentTrimmed ());
+      }
+    }
+    if (aNode != null && aNode.hasChildren ())
+      for (final IMicroNode aChild : aNode.getAllChildren ())
+        if (_containsMicroReceiptFor (aChild, sMessageID))
+          return true;
+    return false;
+  }
+
+  private static boolean _containsReceiptFor (@Nullable final Object aResponse, @Nonnull final String sMessageID)
+  {
+    if (aResponse instanceof Document)
+      return AS4Outbox.containsReceiptFor ((Document) aResponse, sMessageID);
+    if (aResponse instanceof IMicroNode)
+      return _containsMicroReceiptFor ((IMicroNode) aResponse, sMessageID);
+    return false;
+  }
+
+  /**
+   * @return The receipt correlation index the messages of this client are
+   *         registered in or <code>null</code> if no receipt is expected for
+   *         them.
+   */
+  @Nullable
+  final AS4ReceiptCorrelationIndex getReceiptCorrelationIndexIfExpected ()
+  {
+    return isReceiptExpected () ? getReceiptCorrelationIndex () : null;
+  }
+
+  @Nonnull
+  private <T> SentMessage <T> _sendBuiltMessage (@Nonnull final String sURL,
+                                                 @Nonnull final BuiltMessage aBuiltMsg,
+                                                 @Nonnull final ResponseHandler <? extends T> aResponseHandler) throws Exception
+  {
+    return sendBuiltMessage (this, getReceiptCorrelationIndexIfExpected (), sURL, aBuiltMsg, aResponseHandler);
+  }
+
+  /**
+   * Send a built message and keep the receipt correlation index up to date.
+   *
+   * @param aPoster
+   *        The HTTP poster to be used. May not be <code>null</code>.
+   * @param aIndex
+   *        The index to register the message in. May be <code>null</code> if
+   *        no receipt is expected.
+   * @param sURL
+   *        The URL to send the message to. May not be <code>null</code>.
+   * @param aBuiltMsg
+   *        The message to be sent. May not be <code>null</code>.
+   * @param aResponseHandler
+   *        The response handler to be used. May not be <code>null</code>.
+   * @return The sent message. Never <code>null</code>.
+   * @throws Exception
+   *         In case sending failed
+   * @param <T>
+   *        Response type
+   */
+  @Nonnull
+  static <T> SentMessage <T> sendBuiltMessage (@Nonnull final BasicHttpPoster aPoster,
+                                               @Nullable final AS4ReceiptCorrelationIndex aIndex,
+                                               @Nonnull final String sURL,
+                                               @Nonnull final BuiltMessage aBuiltMsg,
+                                               @Nonnull final ResponseHandler <? extends T> aResponseHandler) throws Exception
+  {
+    final String sMessageID = aBuiltMsg.getMessageID ();
+    if (aIndex != null)
+      aIndex.register (sMessageID, sURL);
+
+    final T aResponse;
+    try
+    {
+      aResponse = aPoster.sendGenericMessage (sURL, aBuiltMsg.getHttpEntity (), aResponseHandler);
+    }
+    catch (final Exception ex)
+    {
+      // Not delivered - no receipt to wait for
+      if (aIndex != null)
+        aIndex.unregister (sMessageID);
+      throw ex;
+    }
+
+    // Synchronous receipt
+    if (aIndex != null && _containsReceiptFor (aResponse, sMessageID))
+      aIndex.onReceiptReceived (sMessageID);
+    return new SentMessage <> (sMessageID, aResponse);
+  }
+
+  /**
+   * Send the message asynchronously. The message itself is built on the
+   * calling thread, so that later modifications of this client have no effect
+   * on it. Only the transmission happens in the background, using the
+   * {@link #getAsyncSendExecutor() async send executor} that limits the number
+   * of parallel transmissions per URL.
+   *
+   * @param sURL
+   *        The URL to send the message to. May neither be <code>null</code> nor
+   *        empty.
+   * @param aResponseHandler
+   *        The response handler to be used. May not be <code>null</code>.
+   * @return The future that is completed once the response is received or the
+   *         sending failed. Never <code>null</code>.
+   * @param <T>
+   *        Response type
+   */
+  @Nonnull
+  public <T> CompletableFuture <SentMessage <T>> sendMessageAsync (@Nonnull @Nonempty final String sURL,
+                                                                   @Nonnull final ResponseHandler <? extends T> aResponseHandler)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.notNull (aResponseHandler, "ResponseHandler");
+
+    final BuiltMessage aBuiltMsg;
+    try
+    {
+      aBuiltMsg = buildMessage ();
+    }
+    catch (final Exception ex)
+    {
+      final CompletableFuture <SentMessage <T>> ret = new CompletableFuture <> ();
+      ret.completeExceptionally (ex);
+      return ret;
+    }
+
+    return getAsyncSendExecutor ().submit (sURL, () -> _sendBuiltMessage (sURL, aBuiltMsg, aResponseHandler));
+  }
+
+  /**
+   * Send the message via the provided outbox. The message is persisted and
+   * retransmitted according to the provided reception awareness until a
+   * receipt is received. Note: the outbox uses its own transport, so a custom
+   * HTTP client factory or connection pool of this client is not used.
+   *
+   * @param aOutbox
+   *        The outbox to use. May not be <code>null</code>.
+   * @param sURL
+   *        The URL to send the message to. May neither be <code>null</code> nor
+   *        empty.
+   * @param sPModeID
+   *        The ID of the P-Mode used. May be <code>null</code>.
+   * @param aReceptionAwareness
+   *        The reception awareness of the P-Mode. May be <code>null</code> in
+   *        which case the message is sent only once.
+   * @return The ID of the message. Never <code>null</code>.
+   * @throws Exception
+   *         In case the message cannot be built
+   */
+  @Nonnull
+  @Nonempty
+  public String sendMessageViaOutbox (@Nonnull final AS4Outbox aOutbox,
+                                      @Nonnull @Nonempty final String sURL,
+                                      @Nullable final String sPModeID,
+                                      @Nullable final PModeReceptionAwareness aReceptionAwareness) throws Exception
+  {
+    ValueEnforcer.notNull (aOutbox, "Outbox");
+    ValueEnforcer.notEmpty (sURL, "URL");
+
+    final BuiltMessage aBuiltMsg = buildMessage ();
+    if (isReceiptExpected ())
+      getReceiptCorrelationIndex ().register (aBuiltMsg.getMessageID (), sURL);
+    aOutbox.submit (aBuiltMsg.getMessageID (),
+                    sPModeID,
+                    sURL,
+                    aBuiltMsg.getHttpEntity (),
+                    aReceptionAwareness,
+                    isReceiptExpected ());
+    return aBuiltMsg.getMessageID ();
+  }
+
+  /**
+   * @return <code>true</code> if the partner answers the messages of this
+   *         client with a receipt. Only user messages are answered with
+   *         receipts.
+   */
+  @OverrideOnDemand
+  protected boolean isReceiptExpected ()
+  {
+    return false;
   }
 
   @Nullable
@@ -386,4 +591,51 @@ public abstract class AbstractAS4Client extends BasicHttpPoster
     ValueEnforcer.notNull (eSOAPVersion, "SOAPVersion");
     m_eSOAPVersion = eSOAPVersion;
   }
+
+  /**
+   * @return The executor used for {@link #sendMessageAsync(String, ResponseHandler)}.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS4AsyncSendExecutor getAsyncSendExecutor ()
+  {
+    final AS4AsyncSendExecutor ret = m_aAsyncSendExecutor;
+    return ret != null ? ret : AS4AsyncSendExecutor.getDefaultInstance ();
+  }
+
+  /**
+   * Set the executor to be used for asynchronous sending.
+   *
+   * @param aAsyncSendExecutor
+   *        The executor to use. May be <code>null</code> to use the shared
+   *        default executor.
+   */
+  public final void setAsyncSendExecutor (@Nullable final AS4AsyncSendExecutor aAsyncSendExecutor)
+  {
+    m_aAsyncSendExecutor = aAsyncSendExecutor;
+  }
+
+  /**
+   * @return The index in which all sent messages that wait for a receipt are
+   *         registered. Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS4ReceiptCorrelationIndex getReceiptCorrelationIndex ()
+  {
+    final AS4ReceiptCorrelationIndex ret = m_aReceiptCorrelationIndex;
+    return ret != null ? ret : AS4ReceiptCorrelationIndex.getDefaultInstance ();
+  }
+
+  /**
+   * Set the index in which all sent messages that wait for a receipt are
+   * registered.
+   *
+   * @param aReceiptCorrelationIndex
+   *        The index to use. May be <code>null</code> to use the shared default
+   *        index.
+   */
+  public final void setReceiptCorrelationIndex (@Nullable final AS4ReceiptCorrelationIndex aReceiptCorrelationIndex)
+  {
+    m_aReceiptCorrelationIndex = aReceiptCorrelationIndex;
+  }
 }
@@ -25,8 +25,10 @@ import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
 
+import com.helger.as4.http.AS4HttpConnectionPool;
 import com.helger.as4.http.AS4HttpDebug;
 import com.helger.as4.http.HttpMimeMessageEntity;
 import com.helger.as4.messaging.domain.MessageHelperMethods;
@@ -39,23 +41,32 @@ import com.helger.httpclient.IHttpClientProvider;
 
 /**
  * A generic HTTP POST wrapper based on {@link IHttpClientProvider} and
- * {@link HttpPost}.
+ * {@link HttpPost}.<br>
+ * As long as neither a custom HTTP client factory nor a connection pool is
+ * used, all messages are sent via the shared
+ * {@link AS4HttpConnectionPool#getDefaultInstance()} so that connections are
+ * reused across instances.
  *
  * @author Philip Helger
  */
 public class BasicHttpPoster
 {
-  // By default no special SSL context present
-  private HttpClientFactory m_aHTTPClientFactory = new HttpClientFactory ().setRetries (3);
+  // null means: use the default connection pool
+  private HttpClientFactory m_aHTTPClientFactory;
+  private AS4HttpConnectionPool m_aConnectionPool;
 
   public BasicHttpPoster ()
   {}
 
   /**
-   * @return The internal http client factory used in
+   * @return The custom HTTP client factory used in
    *         {@link #sendGenericMessage(String, HttpEntity, ResponseHandler)}.
+   *         May be <code>null</code> if no custom factory was set, in which
+   *         case the shared default connection pool is used.
+   * @see #setHttpClientFactory(HttpClientFactory)
+   * @see #setConnectionPool(AS4HttpConnectionPool)
    */
-  @Nonnull
+  @Nullable
   public final HttpClientFactory getHttpClientFactory ()
   {
     return m_aHTTPClientFactory;
@@ -79,6 +90,75 @@ public class BasicHttpPoster
     return this;
   }
 
+  /**
+   * @return The explicitly set connection pool. May be <code>null</code>.
+   */
+  @Nullable
+  public final AS4HttpConnectionPool getConnectionPool ()
+  {
+    return m_aConnectionPool;
+  }
+
+  /**
+   * Set the connection pool to be used. If a connection pool is set, it has
+   * precedence over the HTTP client factory. The pool is not closed by this
+   * class.
+   *
+   * @param aConnectionPool
+   *        The connection pool to use. May be <code>null</code> to use the
+   *        HTTP client factory or the default pool.
+   * @return this for chaining
+   */
+  @Nonnull
+  public BasicHttpPoster setConnectionPool (@Nullable final AS4HttpConnectionPool aConnectionPool)
+  {
+    m_aConnectionPool = aConnectionPool;
+    return this;
+  }
+
+  /**
+   * @return The connection pool that is used for sending. This is either the
+   *         explicitly set connection pool, or the shared default connection
+   *         pool if no custom HTTP client factory is set. <code>null</code> if
+   *         a new HTTP client is created per message from the custom HTTP
+   *         client factory.
+   */
+  @Nullable
+  public final AS4HttpConnectionPool getEffectiveConnectionPool ()
+  {
+    final AS4HttpConnectionPool ret = m_aConnectionPool;
+    if (ret == null && m_aHTTPClientFactory == null)
+      return AS4HttpConnectionPool.getDefaultInstance ();
+    return ret;
+  }
+
+  /**
+   * Create a new poster that uses the HTTP client factory and the connection
+   * pool currently set in this poster. Later changes to the settings of this
+   * poster have no effect on the returned poster, so it may be used on another
+   * thread. {@link #customizeHttpPost(HttpPost)} is still delegated to this
+   * poster.
+   *
+   * @return A new poster with the current HTTP settings. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final BasicHttpPoster createSettingsSnapshot ()
+  {
+    final BasicHttpPoster aSource = this;
+    final BasicHttpPoster ret = new BasicHttpPoster ()
+    {
+      @Override
+      protected void customizeHttpPost (@Nonnull final HttpPost aPost)
+      {
+        aSource.customizeHttpPost (aPost);
+      }
+    };
+    ret.m_aHTTPClientFactory = m_aHTTPClientFactory;
+    ret.m_aConnectionPool = m_aConnectionPool;
+    return ret;
+  }
+
   /**
    * Customize the HTTP Post before it is to be sent.
    *
@@ -97,34 +177,43 @@ public class BasicHttpPoster
     ValueEnforcer.notEmpty (sURL, "URL");
     ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
 
-    try (final HttpClientManager aClient = new HttpClientManager (m_aHTTPClientFactory))
+    final HttpPost aPost = new HttpPost (sURL);
+    if (aHttpEntity instanceof HttpMimeMessageEntity)
     {
-      final HttpPost aPost = new HttpPost (sURL);
-      if (aHttpEntity instanceof HttpMimeMessageEntity)
+      MessageHelperMethods.moveMIMEHeadersToHTTPHeader (((HttpMimeMessageEntity) aHttpEntity).getMimeMessage (),
+                                                        aPost);
+    }
+    aPost.setEntity (aHttpEntity);
+
+    // Overridable method
+    customizeHttpPost (aPost);
+
+    AS4HttpDebug.debug ( () -> {
+      final StringBuilder ret = new StringBuilder ("SEND-START to ").append (sURL);
+      try
       {
-        MessageHelperMethods.moveMIMEHeadersToHTTPHeader (((HttpMimeMessageEntity) aHttpEntity).getMimeMessage (),
-                                                          aPost);
+        ret.append ("\n");
+        for (final Header h : aPost.getAllHeaders ())
+          ret.append (h.getName ()).append (": ").append (h.getValue ()).append (CHttp.EOL);
+        ret.append (CHttp.EOL);
+        ret.append (EntityUtils.toString (aHttpEntity));
       }
-      aPost.setEntity (aHttpEntity);
-
-      // Overridable method
-      customizeHttpPost (aPost);
-
-      AS4HttpDebug.debug ( () -> {
-        final StringBuilder ret = new StringBuilder ("SEND-START to ").append (sURL);
-        try
-        {
-          ret.append ("\n");
-          for (final Header h : aPost.getAllHeaders ())
-            ret.append (h.getName ()).append (": ").append (h.getValue ()).append (CHttp.EOL);
-          ret.append (CHttp.EOL);
-          ret.append (EntityUtils.toString (aHttpEntity));
-        }
-        catch (final IOException ex)
-        { /* ignore */ }
-        return ret.toString ();
-      });
+      catch (final IOException ex)
+      { /* ignore */ }
+      return ret.toString ();
+    });
 
+    final AS4HttpConnectionPool aPool = getEffectiveConnectionPool ();
+    if (aPool != null)
+    {
+      // Shared client - must not be closed
+      final CloseableHttpClient aHttpClient = aPool.getHttpClient ();
+      return aHttpClient.execute (aPost, aResponseHandler);
+    }
+
+    // Custom factory - new client per message
+    try (final HttpClientManager aClient = new HttpClientManager (m_aHTTPClientFactory))
+    {
       return aClient.execute (aPost, aResponseHandler);
     }
   }
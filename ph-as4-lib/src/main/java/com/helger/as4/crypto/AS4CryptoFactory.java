@@ -16,22 +16,30 @@
  */
 package com.helger.as4.crypto;
 
+import java.io.File;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
 
 import org.apache.wss4j.common.crypto.Crypto;
 import org.apache.wss4j.common.crypto.CryptoFactory;
 import org.apache.wss4j.dom.engine.WSSConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.exception.InitializationException;
 import com.helger.commons.io.resource.ClassPathResource;
 import com.helger.commons.string.StringHelper;
 
-@Immutable
+@ThreadSafe
 public final class AS4CryptoFactory implements Serializable
 {
   static
@@ -46,8 +54,19 @@ public final class AS4CryptoFactory implements Serializable
    */
   public static final AS4CryptoFactory DEFAULT_INSTANCE = new AS4CryptoFactory ((String) null);
 
+  /** By default the key store files are checked once per minute */
+  public static final long DEFAULT_TRUST_STORE_CHECK_INTERVAL_MS = CGlobal.MILLISECONDS_PER_MINUTE;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4CryptoFactory.class);
+
   private final CryptoProperties m_aCryptoProps;
-  private transient Crypto m_aCrypto;
+  // Lazily created and shared by all threads
+  private transient volatile Crypto m_aCrypto;
+  private transient volatile AS4TrustDecisionCache m_aTrustDecisionCache;
+  // Modification times of key store and trust store when the crypto was created
+  private transient volatile long [] m_aStoreLastModified;
+  private volatile long m_nTrustStoreCheckIntervalMS = DEFAULT_TRUST_STORE_CHECK_INTERVAL_MS;
+  private final AtomicLong m_aLastTrustStoreCheck = new AtomicLong (0);
 
   @Nonnull
   private static CryptoProperties _createPropsFromFile (@Nullable final String sCryptoPropertiesPath)
@@ -94,22 +113,158 @@ public final class AS4CryptoFactory implements Serializable
     return m_aCryptoProps;
   }
 
+  /**
+   * @return The crypto instance for the contained properties. It is created
+   *         only once and shared by all threads. Never <code>null</code>.
+   * @throws InitializationException
+   *         If the crypto instance cannot be created
+   */
   @Nonnull
   public Crypto getCrypto ()
   {
     Crypto ret = m_aCrypto;
     if (ret == null)
     {
-      try
+      // Creation loads the key store, so it must happen only once
+      synchronized (this)
       {
-        ret = CryptoFactory.getInstance (m_aCryptoProps.getAsProperties ());
+        ret = m_aCrypto;
+        if (ret == null)
+        {
+          // Determined before loading, so that changes while loading are
+          // detected afterwards
+          final long [] aStoreLastModified = _getStoreLastModified ();
+          try
+          {
+            ret = CryptoFactory.getInstance (m_aCryptoProps.getAsProperties ());
+          }
+          catch (final Exception ex)
+          {
+            throw new InitializationException ("Failed to init crypto properties!", ex);
+          }
+          m_aCrypto = ret;
+          m_aStoreLastModified = aStoreLastModified;
+        }
       }
-      catch (final Exception ex)
+    }
+    return ret;
+  }
+
+  /**
+   * @return The cache for positive trust decisions of the trust store of this
+   *         factory. It is created only once and shared by all threads. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public AS4TrustDecisionCache getTrustDecisionCache ()
+  {
+    AS4TrustDecisionCache ret = m_aTrustDecisionCache;
+    if (ret == null)
+    {
+      synchronized (this)
       {
-        throw new InitializationException ("Failed to init crypto properties!", ex);
+        ret = m_aTrustDecisionCache;
+        if (ret == null)
+        {
+          ret = new AS4TrustDecisionCache ();
+          m_aTrustDecisionCache = ret;
+        }
       }
-      m_aCrypto = ret;
     }
     return ret;
   }
+
+  /**
+   * Call this method if the key store or trust store referenced by the crypto
+   * properties changed. The crypto instance is re-created upon the next call
+   * to {@link #getCrypto()} and all cached trust decisions are dropped.
+   */
+  public void onTrustStoreChanged ()
+  {
+    synchronized (this)
+    {
+      m_aCrypto = null;
+      m_aStoreLastModified = null;
+    }
+    getTrustDecisionCache ().invalidate ();
+  }
+
+  /**
+   * @return The minimum number of milliseconds between two checks in
+   *         {@link #checkForTrustStoreChange()}. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getTrustStoreCheckIntervalMS ()
+  {
+    return m_nTrustStoreCheckIntervalMS;
+  }
+
+  /**
+   * Set the minimum number of milliseconds between two checks in
+   * {@link #checkForTrustStoreChange()}.
+   *
+   * @param nTrustStoreCheckIntervalMS
+   *        The interval in milliseconds. Must be &ge; 0. 0 means check every
+   *        time.
+   */
+  public void setTrustStoreCheckIntervalMS (@Nonnegative final long nTrustStoreCheckIntervalMS)
+  {
+    ValueEnforcer.isGE0 (nTrustStoreCheckIntervalMS, "TrustStoreCheckIntervalMS");
+    m_nTrustStoreCheckIntervalMS = nTrustStoreCheckIntervalMS;
+  }
+
+  private static long _getLastModified (@Nullable final String sPath)
+  {
+    if (StringHelper.hasNoText (sPath))
+      return 0;
+
+    // Same order as WSS4J: class path first, then file system. Files inside
+    // of JARs cannot be checked
+    File aFile = ClassPathResource.getAsFile (sPath);
+    if (aFile == null || !aFile.isFile ())
+      aFile = new File (sPath);
+    return aFile.isFile () ? aFile.lastModified () : 0;
+  }
+
+  @Nonnull
+  private long [] _getStoreLastModified ()
+  {
+    return new long [] { _getLastModified (m_aCryptoProps.getKeyStorePath ()),
+                         _getLastModified (m_aCryptoProps.getTrustStorePath ()) };
+  }
+
+  /**
+   * Check if the key store or trust store file was modified since the crypto
+   * instance was created and call {@link #onTrustStoreChanged()} if so. The
+   * files are checked at most once per
+   * {@link #getTrustStoreCheckIntervalMS() check interval}, so this method can
+   * be called for every message.
+   *
+   * @return <code>true</code> if a modification was detected,
+   *         <code>false</code> otherwise.
+   */
+  public boolean checkForTrustStoreChange ()
+  {
+    final long [] aStoreLastModified = m_aStoreLastModified;
+    if (aStoreLastModified == null)
+    {
+      // Crypto was not yet created
+      return false;
+    }
+
+    final long nNow = System.currentTimeMillis ();
+    final long nLastCheck = m_aLastTrustStoreCheck.get ();
+    if (nNow - nLastCheck < m_nTrustStoreCheckIntervalMS || !m_aLastTrustStoreCheck.compareAndSet (nLastCheck, nNow))
+    {
+      // Not yet due or checked by another thread
+      return false;
+    }
+
+    if (Arrays.equals (aStoreLastModified, _getStoreLastModified ()))
+      return false;
+
+    LOGGER.info ("Key store or trust store was modified - reloading crypto");
+    onTrustStoreChanged ();
+    return true;
+  }
 }
@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.map.LRUMap;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCache;
+import com.helger.commons.statistics.IStatisticsHandlerCache;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Remembers positive certificate trust decisions, so that the certificate
+ * path of known partners does not need to be validated against the trust store
+ * for every message. The key is the SHA-256 fingerprint of the certificate
+ * chain. An entry expires at the earliest "notAfter" of the chain or after
+ * the configured TTL, whatever comes first. The number of entries is limited
+ * (least recently used entries are dropped first). Negative decisions are
+ * never cached.<br>
+ * The cache must be invalidated via {@link #invalidate()} whenever the trust
+ * store changes. Decisions that were made before the invalidation are not
+ * added afterwards, see {@link #getGeneration()}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4TrustDecisionCache
+{
+  public static final int DEFAULT_MAX_SIZE = 1000;
+  public static final long DEFAULT_TTL_MS = TimeUnit.HOURS.toMillis (1);
+
+  private static final IMutableStatisticsHandlerCache s_aStatsCache = StatisticsManager.getCacheHandler (AS4TrustDecisionCache.class.getName ());
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private LRUMap <String, Long> m_aCache;
+  @GuardedBy ("m_aLock")
+  private long m_nGeneration = 0;
+  private volatile long m_nTTLMillis;
+
+  public AS4TrustDecisionCache ()
+  {
+    this (DEFAULT_MAX_SIZE, DEFAULT_TTL_MS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nMaxSize
+   *        The maximum number of cached decisions. Must be &gt; 0.
+   * @param nTTLMillis
+   *        The time in milliseconds after which a decision expires at the
+   *        latest. Must be &gt; 0.
+   */
+  public AS4TrustDecisionCache (@Nonnegative final int nMaxSize, @Nonnegative final long nTTLMillis)
+  {
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    ValueEnforcer.isGT0 (nTTLMillis, "TTLMillis");
+    m_aCache = new LRUMap <> (nMaxSize);
+    m_nTTLMillis = nTTLMillis;
+  }
+
+  @Nonnegative
+  public final int getMaxSize ()
+  {
+    return m_aLock.locked ( () -> m_aCache.getMaxSize ());
+  }
+
+  /**
+   * Change the maximum number of cached decisions. This clears the cache.
+   *
+   * @param nMaxSize
+   *        The maximum number of cached decisions. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4TrustDecisionCache setMaxSize (@Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    m_aLock.locked ( () -> {
+      m_aCache = new LRUMap <> (nMaxSize);
+    });
+    return this;
+  }
+
+  @Nonnegative
+  public final long getTTLMillis ()
+  {
+    return m_nTTLMillis;
+  }
+
+  /**
+   * Change the TTL for new decisions. Existing decisions are not affected.
+   *
+   * @param nTTLMillis
+   *        The time in milliseconds after which a decision expires at the
+   *        latest. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4TrustDecisionCache setTTLMillis (@Nonnegative final long nTTLMillis)
+  {
+    ValueEnforcer.isGT0 (nTTLMillis, "TTLMillis");
+    m_nTTLMillis = nTTLMillis;
+    return this;
+  }
+
+  /**
+   * Get the cache key of a certificate chain.
+   *
+   * @param aCerts
+   *        The certificate chain. May be <code>null</code>.
+   * @return <code>null</code> if the chain is empty or cannot be encoded.
+   */
+  @Nullable
+  public static String getFingerprint (@Nullable final X509Certificate [] aCerts)
+  {
+    if (aCerts == null || aCerts.length == 0)
+      return null;
+
+    try
+    {
+      final MessageDigest aMD = MessageDigest.getInstance ("SHA-256");
+      final StringBuilder aSB = new StringBuilder (aCerts.length * 65);
+      for (final X509Certificate aCert : aCerts)
+      {
+        if (aCert == null)
+          return null;
+        if (aSB.length () > 0)
+          aSB.append (':');
+        aSB.append (StringHelper.getHexEncoded (aMD.digest (aCert.getEncoded ())));
+      }
+      return aSB.toString ();
+    }
+    catch (final NoSuchAlgorithmException | CertificateEncodingException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * @return The current generation. It is incremented upon each
+   *         invalidation. Read it before the trust decision is made and pass
+   *         it to {@link #onTrusted(X509Certificate[], long)}.
+   */
+  public long getGeneration ()
+  {
+    return m_aLock.locked ( () -> m_nGeneration);
+  }
+
+  /**
+   * Check if a positive trust decision for the provided chain is cached.
+   *
+   * @param aCerts
+   *        The certificate chain. May be <code>null</code>.
+   * @return <code>true</code> if the chain is known to be trusted,
+   *         <code>false</code> if the chain needs to be validated.
+   */
+  public boolean isTrusted (@Nullable final X509Certificate [] aCerts)
+  {
+    final String sKey = getFingerprint (aCerts);
+    if (sKey == null)
+      return false;
+
+    final long nNow = System.currentTimeMillis ();
+    final boolean bTrusted = m_aLock.locked ( () -> {
+      final Long aExpiration = m_aCache.get (sKey);
+      if (aExpiration == null)
+        return false;
+      if (nNow >= aExpiration.longValue ())
+      {
+        m_aCache.remove (sKey);
+        return false;
+      }
+      return true;
+    });
+    if (bTrusted)
+      s_aStatsCache.cacheHit ();
+    else
+      s_aStatsCache.cacheMiss ();
+    return bTrusted;
+  }
+
+  /**
+   * Remember a positive trust decision.
+   *
+   * @param aCerts
+   *        The certificate chain that was successfully validated. May be
+   *        <code>null</code>.
+   * @param nGeneration
+   *        The generation read via {@link #getGeneration()} before the
+   *        decision was made. If the cache was invalidated in between, the
+   *        decision is not cached.
+   */
+  public void onTrusted (@Nullable final X509Certificate [] aCerts, final long nGeneration)
+  {
+    final String sKey = getFingerprint (aCerts);
+    if (sKey == null)
+      return;
+
+    long nExpiration = System.currentTimeMillis () + m_nTTLMillis;
+    for (final X509Certificate aCert : aCerts)
+      nExpiration = Math.min (nExpiration, aCert.getNotAfter ().getTime ());
+    final Long aExpiration = Long.valueOf (nExpiration);
+
+    m_aLock.locked ( () -> {
+      if (nGeneration == m_nGeneration)
+        m_aCache.put (sKey, aExpiration);
+    });
+  }
+
+  /**
+   * Remove all cached decisions. Must be called if the trust store changes.
+   */
+  public void invalidate ()
+  {
+    m_aLock.locked ( () -> {
+      m_aCache.clear ();
+      m_nGeneration++;
+    });
+  }
+
+  @Nonnegative
+  public int getCacheSize ()
+  {
+    return m_aLock.locked ( () -> m_aCache.size ());
+  }
+
+  /**
+   * @return The hit and miss statistics of all instances. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCache getCacheStatistics ()
+  {
+    return s_aStatsCache;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxSize", getMaxSize ())
+                                       .append ("TTLMillis", m_nTTLMillis)
+                                       .getToString ();
+  }
+}
@@ -110,6 +110,16 @@ public class CryptoProperties implements Serializable
     return EKeyStoreType.getFromIDCaseInsensitiveOrDefault (sProp, EKeyStoreType.JKS);
   }
 
+  /**
+   * @return The path of the separate trust store. <code>null</code> if the
+   *         key store is also used as trust store.
+   */
+  @Nullable
+  public String getTrustStorePath ()
+  {
+    return _getProperty ("org.apache.wss4j.crypto.merlin.truststore.file");
+  }
+
   @Nullable
   public String getKeyAlias ()
   {
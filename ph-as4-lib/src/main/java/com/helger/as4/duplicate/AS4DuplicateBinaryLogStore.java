@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.util.AbstractAS4AppendLog;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+
+/**
+ * Duplicate store based on an append-only binary log file. Every change is
+ * appended as a small record, so no full rewrite is necessary upon changes.
+ * Once the log contains more removed than live items, it is compacted in the
+ * background. See {@link AbstractAS4AppendLog} for details.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4DuplicateBinaryLogStore extends
+                                        AbstractAS4AppendLog <ICommonsOrderedMap <String, IAS4DuplicateItem>>
+                                        implements
+                                        IAS4DuplicateStore
+{
+  public static final int DEFAULT_MIN_COMPACTION_RECORDS = 10_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4DuplicateBinaryLogStore.class);
+
+  // File header and version
+  private static final int MAGIC = 0x41533444;
+  private static final int VERSION = 1;
+
+  // Record types
+  private static final byte RECORD_ADD = 1;
+  private static final byte RECORD_REMOVE = 2;
+  private static final byte RECORD_CLEAR = 3;
+
+  public AS4DuplicateBinaryLogStore (@Nonnull final File aFile)
+  {
+    this (aFile, DEFAULT_MIN_COMPACTION_RECORDS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aFile
+   *        The log file to use. May not be <code>null</code>. Is created if it
+   *        does not exist.
+   * @param nMinCompactionRecords
+   *        The minimum number of dead records before a compaction is
+   *        considered. Must be &ge; 0.
+   */
+  public AS4DuplicateBinaryLogStore (@Nonnull final File aFile, @Nonnegative final int nMinCompactionRecords)
+  {
+    super (aFile, "duplicate log", MAGIC, VERSION, nMinCompactionRecords);
+  }
+
+  private static void _writeAdd (@Nonnull final LogWriter aWriter,
+                                 @Nonnull final IAS4DuplicateItem aItem) throws IOException
+  {
+    final LocalDateTime aDT = aItem.getDateTime ();
+    aWriter.writeByte (RECORD_ADD);
+    aWriter.writeLong (aDT.toEpochSecond (ZoneOffset.UTC));
+    aWriter.writeInt (aDT.getNano ());
+    aWriter.writeString (aItem.getMessageID ());
+    aWriter.writeString (aItem.getProfileID ());
+    aWriter.writeString (aItem.getPModeID ());
+  }
+
+  @Override
+  @Nonnull
+  protected ICommonsOrderedMap <String, IAS4DuplicateItem> createReplayState ()
+  {
+    return new CommonsLinkedHashMap <> ();
+  }
+
+  @Override
+  protected void replayRecord (@Nonnull final ICommonsOrderedMap <String, IAS4DuplicateItem> aState,
+                               final byte nType,
+                               @Nonnull final LogReader aReader) throws IOException
+  {
+    switch (nType)
+    {
+      case RECORD_ADD:
+      {
+        final long nEpochSecond = aReader.readLong ();
+        final int nNano = aReader.readInt ();
+        final String sMessageID = aReader.readString ();
+        final String sProfileID = aReader.readString ();
+        final String sPModeID = aReader.readString ();
+        aState.put (sMessageID,
+                    new AS4DuplicateItem (LocalDateTime.ofEpochSecond (nEpochSecond, nNano, ZoneOffset.UTC),
+                                          sMessageID,
+                                          sProfileID,
+                                          sPModeID));
+        break;
+      }
+      case RECORD_REMOVE:
+        aState.remove (aReader.readString ());
+        break;
+      case RECORD_CLEAR:
+        aState.clear ();
+        break;
+      default:
+        throw new IOException ("Unsupported record type " + nType + " in duplicate log");
+    }
+  }
+
+  @Override
+  protected int getLiveItemCount (@Nonnull final ICommonsOrderedMap <String, IAS4DuplicateItem> aState)
+  {
+    return aState.size ();
+  }
+
+  @Override
+  protected void writeLiveRecords (@Nonnull final ICommonsOrderedMap <String, IAS4DuplicateItem> aState,
+                                   @Nonnull final LogWriter aWriter) throws IOException
+  {
+    for (final IAS4DuplicateItem aItem : aState.values ())
+      _writeAdd (aWriter, aItem);
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <IAS4DuplicateItem> getAllItems ()
+  {
+    final ICommonsList <IAS4DuplicateItem> ret = new CommonsArrayList <> (readAll ().values ());
+    LOGGER.info ("Read " + ret.size () + " incoming duplicate items from " + getFile ().getAbsolutePath ());
+    return ret;
+  }
+
+  public void onItemAdded (@Nonnull final AS4DuplicateItem aItem)
+  {
+    append (aWriter -> _writeAdd (aWriter, aItem), 1, 0);
+  }
+
+  public void onItemsRemoved (@Nonnull final ICommonsList <String> aMessageIDs)
+  {
+    if (aMessageIDs.isNotEmpty ())
+    {
+      // Each removal kills an add record and is a dead record itself
+      append (aWriter -> {
+        for (final String sMessageID : aMessageIDs)
+        {
+          aWriter.writeByte (RECORD_REMOVE);
+          aWriter.writeString (sMessageID);
+        }
+      }, -aMessageIDs.size (), 2L * aMessageIDs.size ());
+    }
+  }
+
+  public void onAllItemsRemoved ()
+  {
+    clear ();
+  }
+}
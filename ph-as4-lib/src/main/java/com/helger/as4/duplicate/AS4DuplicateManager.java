@@ -17,28 +17,114 @@
 package com.helger.as4.duplicate;
 
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
 
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.state.EChange;
 import com.helger.commons.state.EContinue;
 import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
 import com.helger.dao.DAOException;
-import com.helger.photon.basic.app.dao.AbstractPhotonMapBasedWALDAO;
 
 /**
- * This is the duplicate checker for avoiding duplicate messages.
+ * This is the duplicate checker for avoiding duplicate messages. All items are
+ * kept in a concurrent in-memory index keyed by message ID, so that checks for
+ * different message IDs don't block each other. New and removed items are
+ * forwarded to an {@link IAS4DuplicateStore} for persistence. The store is
+ * informed while the index entry of the message ID is locked, so that the
+ * store sees the changes of a single message ID in the same order as the
+ * index.<br>
+ * Additionally the message IDs are grouped into time buckets by their creation
+ * time. Eviction drops complete buckets and never needs to look at items that
+ * are retained.
  *
  * @author Philip Helger
  */
-public final class AS4DuplicateManager extends AbstractPhotonMapBasedWALDAO <IAS4DuplicateItem, AS4DuplicateItem>
+@ThreadSafe
+public final class AS4DuplicateManager
 {
+  public static final long DEFAULT_BUCKET_SECONDS = 60;
+
+  private final IAS4DuplicateStore m_aStore;
+  private final long m_nBucketSeconds;
+  private final ConcurrentHashMap <String, IAS4DuplicateItem> m_aItems = new ConcurrentHashMap <> ();
+  // Bucket number to message IDs
+  private final ConcurrentSkipListMap <Long, Queue <String>> m_aBuckets = new ConcurrentSkipListMap <> ();
+
   public AS4DuplicateManager (@Nullable final String sFilename) throws DAOException
   {
-    super (AS4DuplicateItem.class, sFilename);
+    this (new AS4DuplicateXMLStore (sFilename));
+  }
+
+  public AS4DuplicateManager (@Nonnull final IAS4DuplicateStore aStore)
+  {
+    this (aStore, DEFAULT_BUCKET_SECONDS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aStore
+   *        The persistence backend. May not be <code>null</code>.
+   * @param nBucketSeconds
+   *        The width of a single time bucket in seconds. Items are evicted at
+   *        most this long after the reference time passed to
+   *        {@link #evictAllItemsBefore(LocalDateTime)}. Must be &gt; 0.
+   */
+  public AS4DuplicateManager (@Nonnull final IAS4DuplicateStore aStore, @Nonnegative final long nBucketSeconds)
+  {
+    ValueEnforcer.notNull (aStore, "Store");
+    ValueEnforcer.isGT0 (nBucketSeconds, "BucketSeconds");
+    m_aStore = aStore;
+    m_nBucketSeconds = nBucketSeconds;
+    for (final IAS4DuplicateItem aItem : aStore.getAllItems ())
+      if (m_aItems.putIfAbsent (aItem.getMessageID (), aItem) == null)
+        _addToBucket (aItem);
+  }
+
+  private long _getBucket (@Nonnull final LocalDateTime aDT)
+  {
+    // Any fixed offset is fine, as long as it is always the same
+    return Math.floorDiv (aDT.toEpochSecond (ZoneOffset.UTC), m_nBucketSeconds);
+  }
+
+  private void _addToBucket (@Nonnull final IAS4DuplicateItem aItem)
+  {
+    m_aBuckets.computeIfAbsent (Long.valueOf (_getBucket (aItem.getDateTime ())),
+                                k -> new ConcurrentLinkedQueue <> ())
+              .add (aItem.getMessageID ());
+  }
+
+  /**
+   * @return The width of a single time bucket in seconds. Always &gt; 0.
+   */
+  @Nonnegative
+  public long getBucketSeconds ()
+  {
+    return m_nBucketSeconds;
+  }
+
+  /**
+   * @return The persistence backend. Never <code>null</code>.
+   */
+  @Nonnull
+  public IAS4DuplicateStore getStore ()
+  {
+    return m_aStore;
   }
 
   /**
@@ -65,20 +151,44 @@ public final class AS4DuplicateManager extends AbstractPhotonMapBasedWALDAO <IAS
     }
 
     final AS4DuplicateItem aItem = new AS4DuplicateItem (sMessageID, sProfileID, sPModeID);
-    try
-    {
-      m_aRWLock.writeLocked ( () -> {
-        internalCreateItem (aItem);
-      });
-    }
-    catch (final IllegalArgumentException ex)
+    final IAS4DuplicateItem aCurrent = m_aItems.computeIfAbsent (sMessageID, k -> {
+      m_aStore.onItemAdded (aItem);
+      return aItem;
+    });
+    if (aCurrent != aItem)
     {
       // ID already in use
       return EContinue.BREAK;
     }
+    _addToBucket (aItem);
     return EContinue.CONTINUE;
   }
 
+  /**
+   * Remove a single message ID that was previously registered, e.g. because
+   * the message could not be processed and the sender is expected to send it
+   * again.
+   *
+   * @param sMessageID
+   *        Message ID to remove. May be <code>null</code>.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange unregister (@Nullable final String sMessageID)
+  {
+    if (StringHelper.hasNoText (sMessageID))
+      return EChange.UNCHANGED;
+
+    final boolean [] aRemoved = { false };
+    m_aItems.computeIfPresent (sMessageID, (k, v) -> {
+      m_aStore.onItemsRemoved (new CommonsArrayList <> (k));
+      aRemoved[0] = true;
+      return null;
+    });
+    // The bucket entry is ignored upon eviction
+    return EChange.valueOf (aRemoved[0]);
+  }
+
   /**
    * Remove all entries in the cache.
    *
@@ -87,11 +197,18 @@ public final class AS4DuplicateManager extends AbstractPhotonMapBasedWALDAO <IAS
   @Nonnull
   public EChange clearCache ()
   {
-    return m_aRWLock.writeLocked ( () -> internalRemoveAllItemsNoCallback ());
+    if (m_aItems.isEmpty ())
+      return EChange.UNCHANGED;
+    m_aItems.clear ();
+    m_aBuckets.clear ();
+    m_aStore.onAllItemsRemoved ();
+    return EChange.CHANGED;
   }
 
   /**
    * Delete all duplicate items that were created before the provided time.
+   * Only complete time buckets are dropped, so items of the bucket containing
+   * the reference time are retained until the next call.
    *
    * @param aRefDT
    *        The reference date time to compare to. May not be <code>null</code>.
@@ -101,15 +218,103 @@ public final class AS4DuplicateManager extends AbstractPhotonMapBasedWALDAO <IAS
   @ReturnsMutableCopy
   public ICommonsList <String> evictAllItemsBefore (@Nonnull final LocalDateTime aRefDT)
   {
-    // Get all message IDs to be removed
-    final ICommonsList <String> aEvictItems = getAllMapped (x -> x.getDateTime ().isBefore (aRefDT),
-                                                            IAS4DuplicateItem::getMessageID);
-    if (aEvictItems.isNotEmpty ())
-      // Bulk erase all
-      m_aRWLock.writeLocked ( () -> {
-        for (final String sItemID : aEvictItems)
-          internalDeleteItem (sItemID);
-      });
+    ValueEnforcer.notNull (aRefDT, "RefDT");
+
+    // All buckets before the bucket of the reference time end before the
+    // reference time
+    final long nRefBucket = _getBucket (aRefDT);
+    final ICommonsList <String> aEvictItems = new CommonsArrayList <> ();
+    Map.Entry <Long, Queue <String>> aEntry;
+    while ((aEntry = m_aBuckets.firstEntry ()) != null && aEntry.getKey ().longValue () < nRefBucket)
+    {
+      if (m_aBuckets.remove (aEntry.getKey (), aEntry.getValue ()))
+        for (final String sMessageID : aEntry.getValue ())
+        {
+          // The ID may have been unregistered and registered again later
+          final long nBucket = aEntry.getKey ().longValue ();
+          m_aItems.computeIfPresent (sMessageID, (k, v) -> {
+            if (_getBucket (v.getDateTime ()) != nBucket)
+              return v;
+            m_aStore.onItemsRemoved (new CommonsArrayList <> (k));
+            aEvictItems.add (k);
+            return null;
+          });
+        }
+    }
     return aEvictItems;
   }
+
+  /**
+   * @return The number of time buckets currently in use. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getBucketCount ()
+  {
+    return m_aBuckets.size ();
+  }
+
+  /**
+   * @return <code>true</code> if no item is contained, <code>false</code>
+   *         otherwise.
+   */
+  public boolean isEmpty ()
+  {
+    return m_aItems.isEmpty ();
+  }
+
+  /**
+   * @return The number of contained items. Always &ge; 0.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_aItems.size ();
+  }
+
+  /**
+   * @param sMessageID
+   *        The message ID to check. May be <code>null</code>.
+   * @return <code>true</code> if an item with the provided message ID is
+   *         contained, <code>false</code> otherwise.
+   */
+  public boolean containsWithID (@Nullable final String sMessageID)
+  {
+    return sMessageID != null && m_aItems.containsKey (sMessageID);
+  }
+
+  /**
+   * @param aFilter
+   *        The filter to apply. May not be <code>null</code>.
+   * @return The first matching item or <code>null</code> if no such item is
+   *         contained.
+   */
+  @Nullable
+  public IAS4DuplicateItem findFirst (@Nonnull final Predicate <? super IAS4DuplicateItem> aFilter)
+  {
+    ValueEnforcer.notNull (aFilter, "Filter");
+    for (final IAS4DuplicateItem aItem : m_aItems.values ())
+      if (aFilter.test (aItem))
+        return aItem;
+    return null;
+  }
+
+  /**
+   * @return A copy of all contained items. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <IAS4DuplicateItem> getAll ()
+  {
+    return new CommonsArrayList <> (m_aItems.values ());
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Store", m_aStore)
+                                       .append ("BucketSeconds", m_nBucketSeconds)
+                                       .append ("Items", m_aItems.size ())
+                                       .append ("Buckets", m_aBuckets.size ())
+                                       .getToString ();
+  }
 }
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.dao.DAOException;
+import com.helger.photon.basic.app.dao.AbstractPhotonMapBasedWALDAO;
+
+/**
+ * Duplicate store based on an XML file with a write ahead log. This is the
+ * default store.<br>
+ * Changes are not written on the calling thread. They are queued and applied
+ * in batches by a background thread, so that the DAO write lock is acquired
+ * once per batch and never by the thread checking for duplicates. Call
+ * {@link #flushQueuedChanges()} to apply all queued changes synchronously.<br>
+ * Durability:
+ * {@link AS4DuplicateManager#registerAndCheck(String, String, String)} returns
+ * before the message ID is written. If the process dies before the
+ * background thread applied the batch (usually a few milliseconds), the
+ * message IDs registered in that window are lost, and a message re-sent with
+ * such an ID is not detected as a duplicate after the restart.<br>
+ * Each change is applied on its own: adding an existing item replaces it,
+ * removing a missing item is ignored, and a failing change is logged without
+ * affecting the other changes of the batch.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4DuplicateXMLStore extends AbstractPhotonMapBasedWALDAO <IAS4DuplicateItem, AS4DuplicateItem>
+                                        implements
+                                        IAS4DuplicateStore,
+                                        Closeable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4DuplicateXMLStore.class);
+
+  // Queued changes in the order they happened
+  private final Queue <Runnable> m_aQueuedChanges = new ConcurrentLinkedQueue <> ();
+  private final AtomicBoolean m_aFlushScheduled = new AtomicBoolean (false);
+  private final ExecutorService m_aFlushES = Executors.newSingleThreadExecutor (new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                                               .setNamingPattern ("as4-duplicate-xml-%d")
+                                                                                                               .build ());
+
+  public AS4DuplicateXMLStore (@Nullable final String sFilename) throws DAOException
+  {
+    super (AS4DuplicateItem.class, sFilename);
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <IAS4DuplicateItem> getAllItems ()
+  {
+    flushQueuedChanges ();
+    return getAll ();
+  }
+
+  private void _queue (@Nonnull final Runnable aChange)
+  {
+    m_aQueuedChanges.add (aChange);
+    if (!m_aFlushScheduled.getAndSet (true))
+    {
+      try
+      {
+        m_aFlushES.execute (this::flushQueuedChanges);
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        // Already closed
+        flushQueuedChanges ();
+      }
+    }
+  }
+
+  /**
+   * Apply all queued changes to the DAO. The DAO write lock is acquired only
+   * once for all queued changes.
+   */
+  public void flushQueuedChanges ()
+  {
+    // Reset first, so that changes queued from now on trigger a new flush
+    m_aFlushScheduled.set (false);
+    if (m_aQueuedChanges.isEmpty ())
+      return;
+
+    m_aRWLock.writeLocked ( () -> {
+      Runnable aChange;
+      while ((aChange = m_aQueuedChanges.poll ()) != null)
+        try
+        {
+          aChange.run ();
+        }
+        catch (final RuntimeException ex)
+        {
+          // Don't lose the other changes of the batch
+          LOGGER.error ("Failed to persist duplicate store change", ex);
+        }
+    });
+  }
+
+  private void _createOrUpdateItem (@Nonnull final AS4DuplicateItem aItem)
+  {
+    // The ID may have been removed and re-added before it was persisted
+    if (containsWithID (aItem.getID ()))
+      internalUpdateItem (aItem);
+    else
+      internalCreateItem (aItem);
+  }
+
+  public void onItemAdded (@Nonnull final AS4DuplicateItem aItem)
+  {
+    _queue ( () -> _createOrUpdateItem (aItem));
+  }
+
+  public void onItemsRemoved (@Nonnull final ICommonsList <String> aMessageIDs)
+  {
+    for (final String sItemID : aMessageIDs)
+      _queue ( () -> internalDeleteItem (sItemID));
+  }
+
+  public void onAllItemsRemoved ()
+  {
+    _queue ( () -> internalRemoveAllItemsNoCallback ());
+  }
+
+  /**
+   * Stop the background thread and apply all queued changes.
+   */
+  public void close ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aFlushES);
+    flushQueuedChanges ();
+  }
+}
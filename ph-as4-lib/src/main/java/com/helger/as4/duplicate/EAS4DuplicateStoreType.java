@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines the available persistence backends for the duplicate detection.
+ *
+ * @author Philip Helger
+ */
+public enum EAS4DuplicateStoreType implements IHasID <String>
+{
+  /** XML based write ahead log - see {@link AS4DuplicateXMLStore} */
+  XML ("xml", "as4-duplicate-incoming.xml"),
+  /** Append-only binary log - see {@link AS4DuplicateBinaryLogStore} */
+  BINARY_LOG ("binary", "as4-duplicate-incoming.bin");
+
+  public static final EAS4DuplicateStoreType DEFAULT = XML;
+
+  private final String m_sID;
+  private final String m_sIncomingFilename;
+
+  private EAS4DuplicateStoreType (@Nonnull @Nonempty final String sID,
+                                  @Nonnull @Nonempty final String sIncomingFilename)
+  {
+    m_sID = sID;
+    m_sIncomingFilename = sIncomingFilename;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return The data path relative filename used for incoming duplicates.
+   */
+  @Nonnull
+  @Nonempty
+  public String getIncomingFilename ()
+  {
+    return m_sIncomingFilename;
+  }
+
+  @Nullable
+  public static EAS4DuplicateStoreType getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4DuplicateStoreType.class, sID);
+  }
+
+  @Nullable
+  public static EAS4DuplicateStoreType getFromIDOrDefault (@Nullable final String sID,
+                                                           @Nullable final EAS4DuplicateStoreType eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EAS4DuplicateStoreType.class, sID, eDefault);
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import javax.annotation.Nonnull;
+
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * Persistence backend of the {@link AS4DuplicateManager}. The duplicate
+ * manager keeps all items in memory and decides on duplicates on its own - the
+ * store is only informed about changes and read once upon startup.
+ * Implementations must be thread-safe. They may persist changes
+ * asynchronously, as long as they are applied in the order of the calls.
+ *
+ * @author Philip Helger
+ */
+public interface IAS4DuplicateStore
+{
+  /**
+   * @return All persisted items. Called once upon startup. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  ICommonsList <IAS4DuplicateItem> getAllItems ();
+
+  /**
+   * Persist a new item.
+   *
+   * @param aItem
+   *        The new item. Never <code>null</code>. The message ID is not yet
+   *        contained.
+   */
+  void onItemAdded (@Nonnull AS4DuplicateItem aItem);
+
+  /**
+   * Remove persisted items.
+   *
+   * @param aMessageIDs
+   *        The IDs of the items to be removed. Never <code>null</code>.
+   */
+  void onItemsRemoved (@Nonnull ICommonsList <String> aMessageIDs);
+
+  /**
+   * Remove all persisted items.
+   */
+  void onAllItemsRemoved ();
+}
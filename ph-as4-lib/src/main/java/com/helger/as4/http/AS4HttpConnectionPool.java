@@ -0,0 +1,339 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.http;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.timing.StopWatch;
+import com.helger.httpclient.HttpClientFactory;
+
+/**
+ * A long-living HTTP client with a pooled connection manager. Connections to
+ * the same route are kept alive and reused, so that e.g. the TLS handshake is
+ * only performed once per connection and not once per message. Idle and
+ * expired connections are evicted in the background.<br>
+ * The configuration of the passed {@link HttpClientFactory} (SSL context,
+ * proxy, retries, timeouts etc.) is applied once upon construction. Later
+ * changes to the factory have no effect on this pool.<br>
+ * Connection leasing is recorded in the {@link StatisticsManager}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4HttpConnectionPool implements AutoCloseable
+{
+  public static final int DEFAULT_MAX_TOTAL = 200;
+  public static final int DEFAULT_MAX_PER_ROUTE = 20;
+  public static final long DEFAULT_KEEP_ALIVE_MS = 60 * CGlobal.MILLISECONDS_PER_SECOND;
+  public static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * CGlobal.MILLISECONDS_PER_SECOND;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4HttpConnectionPool.class);
+  private static final IMutableStatisticsHandlerTimer s_aStatsLeaseTimer = StatisticsManager.getTimerHandler (AS4HttpConnectionPool.class.getName () +
+                                                                                                               "$lease");
+  private static final IMutableStatisticsHandlerCounter s_aStatsLeaseTimeout = StatisticsManager.getCounterHandler (AS4HttpConnectionPool.class.getName () +
+                                                                                                                    "$lease-timeout");
+
+  private static final SimpleReadWriteLock s_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("s_aRWLock")
+  private static AS4HttpConnectionPool s_aDefaultInstance;
+
+  /**
+   * Connection manager that records the time spent waiting for a connection
+   * lease.
+   */
+  private static final class StatsConnectionManager extends PoolingHttpClientConnectionManager
+  {
+    StatsConnectionManager (@Nonnull final Registry <ConnectionSocketFactory> aRegistry)
+    {
+      super (aRegistry);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection (final HttpRoute aRoute, final Object aState)
+    {
+      final ConnectionRequest aRequest = super.requestConnection (aRoute, aState);
+      return new ConnectionRequest ()
+      {
+        public HttpClientConnection get (final long nTimeout,
+                                         final TimeUnit eUnit) throws InterruptedException,
+                                                               ExecutionException,
+                                                               ConnectionPoolTimeoutException
+        {
+          final StopWatch aSW = StopWatch.createdStarted ();
+          try
+          {
+            final HttpClientConnection ret = aRequest.get (nTimeout, eUnit);
+            s_aStatsLeaseTimer.addTime (aSW.stopAndGetMillis ());
+            return ret;
+          }
+          catch (final ConnectionPoolTimeoutException ex)
+          {
+            s_aStatsLeaseTimeout.increment ();
+            throw ex;
+          }
+        }
+
+        public boolean cancel ()
+        {
+          return aRequest.cancel ();
+        }
+      };
+    }
+  }
+
+  private final StatsConnectionManager m_aConnMgr;
+  private final CloseableHttpClient m_aHttpClient;
+
+  /**
+   * Constructor using the default pool settings.
+   *
+   * @param aHttpClientFactory
+   *        The HTTP client factory to take the configuration from. May not be
+   *        <code>null</code>.
+   */
+  public AS4HttpConnectionPool (@Nonnull final HttpClientFactory aHttpClientFactory)
+  {
+    this (aHttpClientFactory, DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE, DEFAULT_KEEP_ALIVE_MS, DEFAULT_IDLE_TIMEOUT_MS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aHttpClientFactory
+   *        The HTTP client factory to take the configuration from. May not be
+   *        <code>null</code>.
+   * @param nMaxTotal
+   *        Maximum number of connections in total. Must be &gt; 0.
+   * @param nMaxPerRoute
+   *        Maximum number of connections per route (target host). Must be &gt;
+   *        0.
+   * @param nKeepAliveMS
+   *        Maximum time in milliseconds a connection is kept alive, if the
+   *        server does not send a shorter keep-alive timeout. Must be &gt; 0.
+   * @param nIdleTimeoutMS
+   *        Time in milliseconds after which idle connections are closed. Must
+   *        be &gt; 0.
+   */
+  public AS4HttpConnectionPool (@Nonnull final HttpClientFactory aHttpClientFactory,
+                                @Nonnegative final int nMaxTotal,
+                                @Nonnegative final int nMaxPerRoute,
+                                @Nonnegative final long nKeepAliveMS,
+                                @Nonnegative final long nIdleTimeoutMS)
+  {
+    ValueEnforcer.notNull (aHttpClientFactory, "HttpClientFactory");
+    ValueEnforcer.isGT0 (nMaxTotal, "MaxTotal");
+    ValueEnforcer.isGT0 (nMaxPerRoute, "MaxPerRoute");
+    ValueEnforcer.isGT0 (nKeepAliveMS, "KeepAliveMS");
+    ValueEnforcer.isGT0 (nIdleTimeoutMS, "IdleTimeoutMS");
+
+    LayeredConnectionSocketFactory aSSLFactory = aHttpClientFactory.createSSLFactory ();
+    if (aSSLFactory == null)
+      aSSLFactory = SSLConnectionSocketFactory.getSocketFactory ();
+    final Registry <ConnectionSocketFactory> aRegistry = RegistryBuilder.<ConnectionSocketFactory> create ()
+                                                                        .register ("http",
+                                                                                   PlainConnectionSocketFactory.getSocketFactory ())
+                                                                        .register ("https", aSSLFactory)
+                                                                        .build ();
+    m_aConnMgr = new StatsConnectionManager (aRegistry);
+    m_aConnMgr.setMaxTotal (nMaxTotal);
+    m_aConnMgr.setDefaultMaxPerRoute (nMaxPerRoute);
+    // Check stale connections before reusing them
+    m_aConnMgr.setValidateAfterInactivity (1000);
+
+    // Use the server provided keep-alive but not longer than configured
+    final ConnectionKeepAliveStrategy aKeepAlive = (aResponse, aContext) -> {
+      final long nServerMS = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration (aResponse, aContext);
+      return nServerMS > 0 ? Math.min (nServerMS, nKeepAliveMS) : nKeepAliveMS;
+    };
+
+    m_aHttpClient = aHttpClientFactory.createHttpClientBuilder ()
+                                      .setConnectionManager (m_aConnMgr)
+                                      .setKeepAliveStrategy (aKeepAlive)
+                                      .evictExpiredConnections ()
+                                      .evictIdleConnections (nIdleTimeoutMS, TimeUnit.MILLISECONDS)
+                                      .build ();
+  }
+
+  /**
+   * @return The shared HTTP client. Never <code>null</code>. Must NOT be closed
+   *         by the caller.
+   */
+  @Nonnull
+  public final CloseableHttpClient getHttpClient ()
+  {
+    return m_aHttpClient;
+  }
+
+  /**
+   * @param nMaxPerRoute
+   *        The new maximum number of connections for all routes without a
+   *        specific limit. Must be &gt; 0.
+   */
+  public final void setDefaultMaxPerRoute (@Nonnegative final int nMaxPerRoute)
+  {
+    ValueEnforcer.isGT0 (nMaxPerRoute, "MaxPerRoute");
+    m_aConnMgr.setDefaultMaxPerRoute (nMaxPerRoute);
+  }
+
+  /**
+   * Set a specific connection limit for a single route, e.g. for a partner
+   * that only accepts a limited number of parallel connections.
+   *
+   * @param aRoute
+   *        The route to limit. May not be <code>null</code>.
+   * @param nMaxPerRoute
+   *        The maximum number of connections for the route. Must be &gt; 0.
+   */
+  public final void setMaxPerRoute (@Nonnull final HttpRoute aRoute, @Nonnegative final int nMaxPerRoute)
+  {
+    ValueEnforcer.notNull (aRoute, "Route");
+    ValueEnforcer.isGT0 (nMaxPerRoute, "MaxPerRoute");
+    m_aConnMgr.setMaxPerRoute (aRoute, nMaxPerRoute);
+  }
+
+  /**
+   * @return The current pool statistics over all routes. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final PoolStats getTotalStats ()
+  {
+    return m_aConnMgr.getTotalStats ();
+  }
+
+  /**
+   * @param aRoute
+   *        The route to query. May not be <code>null</code>.
+   * @return The current pool statistics of the provided route. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final PoolStats getStats (@Nonnull final HttpRoute aRoute)
+  {
+    ValueEnforcer.notNull (aRoute, "Route");
+    return m_aConnMgr.getStats (aRoute);
+  }
+
+  /**
+   * @return The statistics handler recording the connection lease times in
+   *         milliseconds. Shared by all pools. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IMutableStatisticsHandlerTimer getLeaseTimerStatistics ()
+  {
+    return s_aStatsLeaseTimer;
+  }
+
+  /**
+   * @return The statistics handler counting the connection lease timeouts.
+   *         Shared by all pools. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IMutableStatisticsHandlerCounter getLeaseTimeoutStatistics ()
+  {
+    return s_aStatsLeaseTimeout;
+  }
+
+  /**
+   * Close the HTTP client and all pooled connections.
+   */
+  public void close ()
+  {
+    StreamHelper.close (m_aHttpClient);
+    m_aConnMgr.shutdown ();
+  }
+
+  /**
+   * @return The default pool that is shared by all {@link HttpClientFactory}
+   *         users that don't have a custom configuration. Created on demand.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4HttpConnectionPool getDefaultInstance ()
+  {
+    AS4HttpConnectionPool ret = s_aRWLock.readLocked ( () -> s_aDefaultInstance);
+    if (ret == null)
+    {
+      ret = s_aRWLock.writeLocked ( () -> {
+        if (s_aDefaultInstance == null)
+          s_aDefaultInstance = new AS4HttpConnectionPool (new HttpClientFactory ().setRetries (3));
+        return s_aDefaultInstance;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Set a new default pool. The previous default pool (if any) is closed.
+   *
+   * @param aPool
+   *        The new default pool. May be <code>null</code> in which case a new
+   *        default pool is created upon next usage.
+   */
+  public static void setDefaultInstance (@Nullable final AS4HttpConnectionPool aPool)
+  {
+    final AS4HttpConnectionPool aOld = s_aRWLock.writeLocked ( () -> {
+      final AS4HttpConnectionPool ret = s_aDefaultInstance;
+      s_aDefaultInstance = aPool;
+      return ret;
+    });
+    if (aOld != null && aOld != aPool)
+    {
+      LOGGER.info ("Closing previous default AS4 HTTP connection pool");
+      aOld.close ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("TotalStats", m_aConnMgr.getTotalStats ()).getToString ();
+  }
+}
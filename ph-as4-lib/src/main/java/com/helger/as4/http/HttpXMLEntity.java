@@ -16,26 +16,173 @@
  */
 package com.helger.as4.http;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import javax.annotation.Nonnull;
 
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.w3c.dom.Node;
 
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4.util.AS4XMLHelper;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.ToStringGenerator;
 
 /**
- * Special HttpClient HTTP POST entity that contains a DOM Node as a serialized
- * String.
+ * Special HttpClient HTTP POST entity that contains a DOM Node. The node is
+ * serialized directly onto the output stream every time the entity is written,
+ * so no intermediate String is created. By default the exact content length
+ * is precomputed, because some AS4 gateways reject chunked requests - this
+ * serializes the node an additional time without keeping the bytes. Sending
+ * with an unknown content length (chunked transfer) must be explicitly
+ * enabled.
  *
  * @author Philip Helger
  */
-public class HttpXMLEntity extends StringEntity
+public class HttpXMLEntity extends AbstractHttpEntity
 {
+  /**
+   * Output stream that only counts the bytes written.
+   */
+  private static final class CountingNullOutputStream extends OutputStream
+  {
+    private long m_nCount = 0;
+
+    @Override
+    public void write (final int b)
+    {
+      m_nCount++;
+    }
+
+    @Override
+    public void write (final byte [] aBuf, final int nOfs, final int nLen)
+    {
+      m_nCount += nLen;
+    }
+  }
+
+  /** By default a Content-Length header is sent */
+  public static final boolean DEFAULT_PRECOMPUTE_CONTENT_LENGTH = true;
+
+  private final Node m_aNode;
+  private final boolean m_bPrecomputeContentLength;
+  // Lazily determined content length, -1 if not yet calculated
+  private volatile long m_nContentLength = -1;
+
   public HttpXMLEntity (@Nonnull final Node aNode, @Nonnull final ESOAPVersion eSoapVersion)
   {
-    super (AS4XMLHelper.serializeXML (aNode), AS4XMLHelper.XWS.getCharset ());
+    this (aNode, eSoapVersion, DEFAULT_PRECOMPUTE_CONTENT_LENGTH);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aNode
+   *        The node to be sent. May not be <code>null</code>. Must not be
+   *        modified after the entity was created.
+   * @param eSoapVersion
+   *        SOAP version to use for the content type. May not be
+   *        <code>null</code>.
+   * @param bPrecomputeContentLength
+   *        <code>true</code> to determine the exact content length before
+   *        sending, <code>false</code> to send with an unknown content length
+   *        (chunked). See {@link #DEFAULT_PRECOMPUTE_CONTENT_LENGTH}.
+   */
+  public HttpXMLEntity (@Nonnull final Node aNode,
+                        @Nonnull final ESOAPVersion eSoapVersion,
+                        final boolean bPrecomputeContentLength)
+  {
+    ValueEnforcer.notNull (aNode, "Node");
+    ValueEnforcer.notNull (eSoapVersion, "SoapVersion");
+    m_aNode = aNode;
+    m_bPrecomputeContentLength = bPrecomputeContentLength;
     // Required for AS4.NET
     setContentType (eSoapVersion.getMimeType ().getAsString ());
   }
+
+  /**
+   * @return The node passed in the constructor. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Node getNode ()
+  {
+    return m_aNode;
+  }
+
+  /**
+   * @return <code>true</code> if the content length is calculated before
+   *         sending, <code>false</code> if not.
+   */
+  public final boolean isPrecomputeContentLength ()
+  {
+    return m_bPrecomputeContentLength;
+  }
+
+  public boolean isRepeatable ()
+  {
+    // The node can be serialized again and again
+    return true;
+  }
+
+  public long getContentLength ()
+  {
+    if (!m_bPrecomputeContentLength)
+    {
+      // length unknown - negative number
+      return -1;
+    }
+
+    long ret = m_nContentLength;
+    if (ret < 0)
+    {
+      final CountingNullOutputStream aCOS = new CountingNullOutputStream ();
+      AS4XMLHelper.serializeXML (m_aNode, aCOS);
+      ret = aCOS.m_nCount;
+      m_nContentLength = ret;
+    }
+    return ret;
+  }
+
+  public boolean isStreaming ()
+  {
+    // Self contained
+    return false;
+  }
+
+  @Nonnull
+  public InputStream getContent () throws IOException
+  {
+    // Not used for sending - a buffer is required here
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      AS4XMLHelper.serializeXML (m_aNode, aBAOS);
+      return new NonBlockingByteArrayInputStream (aBAOS.toByteArray ());
+    }
+  }
+
+  public void writeTo (@Nonnull final OutputStream aOS) throws IOException
+  {
+    ValueEnforcer.notNull (aOS, "OutputStream");
+    try
+    {
+      AS4XMLHelper.serializeXML (m_aNode, aOS);
+    }
+    catch (final IllegalStateException ex)
+    {
+      throw new IOException ("Error writing XML node", ex);
+    }
+    aOS.flush ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return ToStringGenerator.getDerived (super.toString ())
+                            .append ("PrecomputeContentLength", m_bPrecomputeContentLength)
+                            .getToString ();
+  }
 }
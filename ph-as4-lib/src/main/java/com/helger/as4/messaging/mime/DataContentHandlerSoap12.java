@@ -23,12 +23,11 @@ import javax.activation.ActivationDataFlavor;
 import javax.activation.DataSource;
 import javax.annotation.Nonnull;
 import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import com.helger.as4.util.AS4XMLHelper;
 import com.helger.commons.annotation.ReturnsMutableObject;
 import com.helger.commons.mime.CMimeType;
 import com.sun.mail.handlers.text_plain;
@@ -71,18 +70,17 @@ public class DataContentHandlerSoap12 extends text_plain
   {
     try
     {
-      final Transformer transformer = TransformerFactory.newInstance ().newTransformer ();
       final StreamResult result = new StreamResult (os);
       if (obj instanceof DataSource)
       {
         // Streaming transform applies only to
         // javax.xml.transform.StreamSource
-        transformer.transform (new StreamSource (((DataSource) obj).getInputStream ()), result);
+        AS4XMLHelper.transform (new StreamSource (((DataSource) obj).getInputStream ()), result);
       }
       else
         if (obj instanceof Source)
         {
-          transformer.transform ((Source) obj, result);
+          AS4XMLHelper.transform ((Source) obj, result);
         }
         else
         {
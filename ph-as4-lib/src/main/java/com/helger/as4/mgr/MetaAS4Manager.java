@@ -16,18 +16,31 @@
  */
 package com.helger.as4.mgr;
 
+import java.io.Closeable;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.as4.duplicate.AS4DuplicateBinaryLogStore;
 import com.helger.as4.duplicate.AS4DuplicateManager;
+import com.helger.as4.duplicate.EAS4DuplicateStoreType;
 import com.helger.as4.model.mpc.MPCManager;
 import com.helger.as4.model.pmode.PModeManager;
+import com.helger.as4.mpcqueue.AS4MPCQueue;
+import com.helger.as4.mpcqueue.AS4MPCQueueFileStore;
+import com.helger.as4.mpcqueue.AS4MPCQueueMemoryStore;
+import com.helger.as4.mpcqueue.EAS4MPCQueueStoreType;
+import com.helger.as4.outbox.AS4Outbox;
 import com.helger.as4.profile.AS4ProfileManager;
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.UsedViaReflection;
 import com.helger.commons.exception.InitializationException;
+import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.lang.ClassHelper;
+import com.helger.photon.basic.app.io.WebFileIO;
 import com.helger.scope.IScope;
 import com.helger.scope.singleton.AbstractGlobalSingleton;
 
@@ -35,20 +48,133 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
 {
   private static final String MPC_XML = "as4-mpc.xml";
   private static final String PMODE_XML = "as4-pmode.xml";
-  private static final String INCOMING_DUPLICATE_XML = "as4-duplicate-incoming.xml";
+  private static final String OUTBOX_LOG = "as4-outbox.bin";
+
+  /** The outbox must be enabled explicitly */
+  public static final boolean DEFAULT_OUTBOX_ENABLED = false;
 
   private static final Logger LOGGER = LoggerFactory.getLogger (MetaAS4Manager.class);
 
+  private static volatile EAS4DuplicateStoreType s_eIncomingDuplicateStoreType = EAS4DuplicateStoreType.DEFAULT;
+  private static volatile EAS4MPCQueueStoreType s_eMPCQueueStoreType = EAS4MPCQueueStoreType.DEFAULT;
+  private static volatile boolean s_bOutboxEnabled = DEFAULT_OUTBOX_ENABLED;
+
   private MPCManager m_aMPCMgr;
   private PModeManager m_aPModeMgr;
   private AS4ProfileManager m_aProfileMgr;
   private AS4DuplicateManager m_aIncomingDuplicateMgr;
+  private AS4Outbox m_aOutbox;
+  private AS4MPCQueue m_aMPCQueue;
 
   @Deprecated
   @UsedViaReflection
   public MetaAS4Manager ()
   {}
 
+  /**
+   * @return The persistence backend used for incoming duplicate detection.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public static EAS4DuplicateStoreType getIncomingDuplicateStoreType ()
+  {
+    return s_eIncomingDuplicateStoreType;
+  }
+
+  /**
+   * Set the persistence backend used for incoming duplicate detection. This
+   * must be called before the first call to {@link #getInstance()} to take
+   * effect.
+   *
+   * @param eStoreType
+   *        The store type to use. May not be <code>null</code>.
+   */
+  public static void setIncomingDuplicateStoreType (@Nonnull final EAS4DuplicateStoreType eStoreType)
+  {
+    ValueEnforcer.notNull (eStoreType, "StoreType");
+    if (isGlobalSingletonInstantiated (MetaAS4Manager.class))
+      LOGGER.warn ("Changing the duplicate store type after instantiation has no effect");
+    s_eIncomingDuplicateStoreType = eStoreType;
+  }
+
+  @Nonnull
+  private static AS4DuplicateManager _createIncomingDuplicateMgr () throws Exception
+  {
+    final EAS4DuplicateStoreType eStoreType = s_eIncomingDuplicateStoreType;
+    switch (eStoreType)
+    {
+      case BINARY_LOG:
+        return new AS4DuplicateManager (new AS4DuplicateBinaryLogStore (WebFileIO.getDataIO ()
+                                                                                 .getFile (eStoreType.getIncomingFilename ())));
+      case XML:
+      default:
+        return new AS4DuplicateManager (eStoreType.getIncomingFilename ());
+    }
+  }
+
+  /**
+   * @return The persistence backend used for the MPC queues. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static EAS4MPCQueueStoreType getMPCQueueStoreType ()
+  {
+    return s_eMPCQueueStoreType;
+  }
+
+  /**
+   * Set the persistence backend used for the MPC queues. This must be called
+   * before the first call to {@link #getInstance()} to take effect.
+   *
+   * @param eStoreType
+   *        The store type to use. May not be <code>null</code>.
+   */
+  public static void setMPCQueueStoreType (@Nonnull final EAS4MPCQueueStoreType eStoreType)
+  {
+    ValueEnforcer.notNull (eStoreType, "StoreType");
+    if (isGlobalSingletonInstantiated (MetaAS4Manager.class))
+      LOGGER.warn ("Changing the MPC queue store type after instantiation has no effect");
+    s_eMPCQueueStoreType = eStoreType;
+  }
+
+  @Nonnull
+  private static AS4MPCQueue _createMPCQueue ()
+  {
+    final EAS4MPCQueueStoreType eStoreType = s_eMPCQueueStoreType;
+    switch (eStoreType)
+    {
+      case MEMORY:
+        return new AS4MPCQueue (new AS4MPCQueueMemoryStore ());
+      case FILE:
+      default:
+        return new AS4MPCQueue (new AS4MPCQueueFileStore (WebFileIO.getDataIO ()
+                                                                   .getFile (EAS4MPCQueueStoreType.FILE_DIRECTORY)));
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the persistent outbox is created.
+   */
+  public static boolean isOutboxEnabled ()
+  {
+    return s_bOutboxEnabled;
+  }
+
+  /**
+   * Enable or disable the persistent outbox, including its log file and
+   * threads. This must be called before the first call to
+   * {@link #getInstance()} to take effect.
+   *
+   * @param bEnabled
+   *        <code>true</code> to enable the outbox.
+   */
+  public static void setOutboxEnabled (final boolean bEnabled)
+  {
+    if (isGlobalSingletonInstantiated (MetaAS4Manager.class))
+      LOGGER.warn ("Changing the outbox state after instantiation has no effect");
+    s_bOutboxEnabled = bEnabled;
+  }
+
   private void _initCallbacks ()
   {}
 
@@ -61,7 +187,10 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
       m_aMPCMgr = new MPCManager (MPC_XML);
       m_aPModeMgr = new PModeManager (PMODE_XML);
       m_aProfileMgr = new AS4ProfileManager ();
-      m_aIncomingDuplicateMgr = new AS4DuplicateManager (INCOMING_DUPLICATE_XML);
+      m_aIncomingDuplicateMgr = _createIncomingDuplicateMgr ();
+      if (s_bOutboxEnabled)
+        m_aOutbox = new AS4Outbox (WebFileIO.getDataIO ().getFile (OUTBOX_LOG));
+      m_aMPCQueue = _createMPCQueue ();
 
       _initCallbacks ();
 
@@ -78,7 +207,14 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
 
   @Override
   protected void onBeforeDestroy (@Nonnull final IScope aScopeToBeDestroyed) throws Exception
-  {}
+  {
+    if (m_aMPCQueue != null)
+      m_aMPCQueue.close ();
+    if (m_aOutbox != null)
+      m_aOutbox.close ();
+    if (m_aIncomingDuplicateMgr != null && m_aIncomingDuplicateMgr.getStore () instanceof Closeable)
+      StreamHelper.close ((Closeable) m_aIncomingDuplicateMgr.getStore ());
+  }
 
   @Nonnull
   public static MetaAS4Manager getInstance ()
@@ -109,4 +245,20 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
   {
     return getInstance ().m_aIncomingDuplicateMgr;
   }
+
+  /**
+   * @return The persistent outbox or <code>null</code> if it is not enabled.
+   * @see #setOutboxEnabled(boolean)
+   */
+  @Nullable
+  public static AS4Outbox getOutbox ()
+  {
+    return getInstance ().m_aOutbox;
+  }
+
+  @Nonnull
+  public static AS4MPCQueue getMPCQueue ()
+  {
+    return getInstance ().m_aMPCQueue;
+  }
 }
@@ -31,6 +31,7 @@ import com.helger.commons.string.ToStringGenerator;
 import com.helger.commons.type.ObjectType;
 import com.helger.photon.security.object.StubObject;
 import com.helger.tenancy.AbstractBusinessObject;
+import com.helger.xml.microdom.convert.MicroTypeConverter;
 
 /**
  * Default implementation of {@link IPMode}
@@ -161,6 +162,61 @@ public class PMode extends AbstractBusinessObject implements IPMode
     setReceptionAwareness (aReceptionAwareness);
   }
 
+  @Nullable
+  private static <T> T _getDeepCopy (@Nullable final T aValue, @Nonnull final Class <T> aClass)
+  {
+    // The micro type converters know all nested objects
+    return MicroTypeConverter.convertToNative (MicroTypeConverter.convertToMicroElement (aValue, "copy"), aClass);
+  }
+
+  /**
+   * Copy constructor used for copy-on-write updates. The mutable parts (legs,
+   * payload service and reception awareness) are deep copied, so that later
+   * modifications of the source objects have no effect on this PMode.
+   *
+   * @param aBase
+   *        The PMode to take the ID and the business object data from. May not
+   *        be <code>null</code>.
+   * @param aValues
+   *        The PMode to take all PMode specific values from. May not be
+   *        <code>null</code>.
+   */
+  PMode (@Nonnull final PMode aBase, @Nonnull final IPMode aValues)
+  {
+    super (aBase);
+    setInitiator (aValues.getInitiator ());
+    setResponder (aValues.getResponder ());
+    setAgreement (aValues.getAgreement ());
+    setMEP (aValues.getMEP ());
+    setMEPBinding (aValues.getMEPBinding ());
+    setLeg1 (_getDeepCopy (aValues.getLeg1 (), PModeLeg.class));
+    setLeg2 (_getDeepCopy (aValues.getLeg2 (), PModeLeg.class));
+    setPayloadService (_getDeepCopy (aValues.getPayloadService (), PModePayloadService.class));
+    setReceptionAwareness (_getDeepCopy (aValues.getReceptionAwareness (), PModeReceptionAwareness.class));
+  }
+
+  /**
+   * Compare all PMode specific values (but not the ID and the business object
+   * data) with the provided PMode.
+   *
+   * @param aValues
+   *        The PMode to compare to. May not be <code>null</code>.
+   * @return <code>true</code> if an update with the provided values would not
+   *         change anything.
+   */
+  boolean hasSameValues (@Nonnull final IPMode aValues)
+  {
+    return EqualsHelper.equals (m_aInitiator, aValues.getInitiator ()) &&
+           EqualsHelper.equals (m_aResponder, aValues.getResponder ()) &&
+           EqualsHelper.equals (m_sAgreement, aValues.getAgreement ()) &&
+           EqualsHelper.equals (m_eMEP, aValues.getMEP ()) &&
+           EqualsHelper.equals (m_eMEPBinding, aValues.getMEPBinding ()) &&
+           EqualsHelper.equals (m_aLeg1, aValues.getLeg1 ()) &&
+           EqualsHelper.equals (m_aLeg2, aValues.getLeg2 ()) &&
+           EqualsHelper.equals (m_aPayloadService, aValues.getPayloadService ()) &&
+           EqualsHelper.equals (m_aPModeReceptionAwareness, aValues.getReceptionAwareness ());
+  }
+
   @Nonnull
   public ObjectType getObjectType ()
   {
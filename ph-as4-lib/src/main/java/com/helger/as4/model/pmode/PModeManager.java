@@ -16,10 +16,15 @@
  */
 package com.helger.as4.model.pmode;
 
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.slf4j.Logger;
@@ -29,9 +34,15 @@ import com.helger.as4.model.pmode.leg.PModeLeg;
 import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
 import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
 import com.helger.commons.equals.EqualsHelper;
 import com.helger.commons.functional.IPredicate;
+import com.helger.commons.hashcode.HashCodeGenerator;
 import com.helger.commons.state.EChange;
 import com.helger.commons.state.ESuccess;
 import com.helger.commons.string.StringHelper;
@@ -41,18 +52,172 @@ import com.helger.photon.basic.audit.AuditHelper;
 import com.helger.photon.security.object.BusinessObjectHelper;
 
 /**
- * Persisting manager for {@link PMode} objects.
+ * Persisting manager for {@link PMode} objects.<br>
+ * All read accesses are served from an immutable snapshot that is replaced
+ * atomically upon each modification, so reading requires no locking. Updates
+ * are performed copy-on-write: the existing {@link PMode} object is replaced by
+ * a new one, so that readers never see a partially updated PMode. Only marking
+ * a PMode as deleted modifies the existing object. Besides the
+ * ID, PModes can be looked up in constant time by service and action, by
+ * initiator and responder ID as well as by agreement reference.
  *
  * @author Philip Helger
  */
 @ThreadSafe
 public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
 {
+  /**
+   * A secondary index from a key to all PModes having this key, in insertion
+   * order.
+   *
+   * @param <K>
+   *        Key type
+   */
+  @NotThreadSafe
+  private static final class PModeIndex <K>
+  {
+    private final ICommonsMap <K, ICommonsOrderedMap <String, IPMode>> m_aMap = new CommonsHashMap <> ();
+
+    void add (@Nonnull final K aKey, @Nonnull final IPMode aPMode)
+    {
+      m_aMap.computeIfAbsent (aKey, k -> new CommonsLinkedHashMap <> ()).put (aPMode.getID (), aPMode);
+    }
+
+    @Nullable
+    IPMode getFirst (@Nonnull final K aKey)
+    {
+      final ICommonsOrderedMap <String, IPMode> aPModes = m_aMap.get (aKey);
+      return aPModes == null ? null : aPModes.getFirstValue ();
+    }
+
+    @Nonnull
+    @ReturnsMutableCopy
+    ICommonsList <IPMode> getAll (@Nonnull final K aKey)
+    {
+      final ICommonsOrderedMap <String, IPMode> aPModes = m_aMap.get (aKey);
+      return aPModes == null ? new CommonsArrayList <> () : aPModes.copyOfValues ();
+    }
+  }
+
+  /**
+   * Index key consisting of two strings that may be <code>null</code>.
+   */
+  @Immutable
+  private static final class StringPairKey
+  {
+    private final String m_sFirst;
+    private final String m_sSecond;
+
+    StringPairKey (@Nullable final String sFirst, @Nullable final String sSecond)
+    {
+      m_sFirst = sFirst;
+      m_sSecond = sSecond;
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final StringPairKey rhs = (StringPairKey) o;
+      return EqualsHelper.equals (m_sFirst, rhs.m_sFirst) && EqualsHelper.equals (m_sSecond, rhs.m_sSecond);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return new HashCodeGenerator (this).append (m_sFirst).append (m_sSecond).getHashCode ();
+    }
+  }
+
+  /**
+   * An immutable view on all PModes at a certain point in time. Never modified
+   * after construction.
+   */
+  @Immutable
+  private static final class PModeSnapshot
+  {
+    private final ICommonsOrderedMap <String, IPMode> m_aByID = new CommonsLinkedHashMap <> ();
+    private final PModeIndex <StringPairKey> m_aServiceActionIndex = new PModeIndex <> ();
+    private final PModeIndex <StringPairKey> m_aPartyIndex = new PModeIndex <> ();
+    private final PModeIndex <String> m_aAgreementIndex = new PModeIndex <> ();
+
+    PModeSnapshot (@Nonnull final Iterable <? extends IPMode> aPModes)
+    {
+      for (final IPMode aPMode : aPModes)
+      {
+        m_aByID.put (aPMode.getID (), aPMode);
+
+        final PModeLeg aLeg = aPMode.getLeg1 ();
+        final PModeLegBusinessInformation aBI = aLeg == null ? null : aLeg.getBusinessInfo ();
+        if (aBI != null)
+          m_aServiceActionIndex.add (new StringPairKey (aBI.getService (), aBI.getAction ()), aPMode);
+        m_aPartyIndex.add (new StringPairKey (aPMode.getInitiatorID (), aPMode.getResponderID ()), aPMode);
+        if (aPMode.hasAgreement ())
+          m_aAgreementIndex.add (aPMode.getAgreement (), aPMode);
+      }
+    }
+  }
+
   private static final Logger LOGGER = LoggerFactory.getLogger (PModeManager.class);
 
+  // Creation date time may be null for PModes read from old files
+  private static final Comparator <IPMode> SNAPSHOT_ORDER = Comparator.comparing (IPMode::getCreationDateTime,
+                                                                                  Comparator.nullsFirst (Comparator.naturalOrder ()))
+                                                                      .thenComparing (IPMode::getID);
+
+  private final AtomicReference <PModeSnapshot> m_aSnapshot = new AtomicReference <> ();
+  private final AtomicLong m_aSnapshotVersion = new AtomicLong (0);
+  // The last snapshot version published by a modification of each thread
+  private final ThreadLocal <Long> m_aThreadSnapshotVersion = new ThreadLocal <> ();
+
   public PModeManager (@Nullable final String sFilename) throws DAOException
   {
     super (PMode.class, sFilename);
+    // Publish everything that was read
+    m_aRWLock.writeLocked (this::_publishSnapshot);
+  }
+
+  /**
+   * Create a new snapshot from the current content. Must be called inside the
+   * write lock after each modification.
+   */
+  private void _publishSnapshot ()
+  {
+    // Sort by creation time so that "first" is deterministic
+    final ICommonsList <IPMode> aAll = getAll ();
+    aAll.sort (SNAPSHOT_ORDER);
+    m_aSnapshot.set (new PModeSnapshot (aAll));
+    m_aThreadSnapshotVersion.set (Long.valueOf (m_aSnapshotVersion.incrementAndGet ()));
+  }
+
+  /**
+   * @return A number that changes whenever PModes are created, updated or
+   *         deleted. Updates that don't change anything leave it untouched.
+   *         Can be used to invalidate derived caches.
+   */
+  public long getSnapshotVersion ()
+  {
+    return m_aSnapshotVersion.get ();
+  }
+
+  /**
+   * @return The snapshot version that was published by the last modification
+   *         performed in the calling thread or 0 if the calling thread never
+   *         modified PModes. Used to recognize own modifications.
+   */
+  public long getSnapshotVersionOfCurrentThread ()
+  {
+    final Long aVersion = m_aThreadSnapshotVersion.get ();
+    return aVersion == null ? 0 : aVersion.longValue ();
+  }
+
+  @Nonnull
+  private PModeSnapshot _getSnapshot ()
+  {
+    return m_aSnapshot.get ();
   }
 
   @Nonnull
@@ -65,6 +230,7 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
 
     m_aRWLock.writeLocked ( () -> {
       internalCreateItem (aPMode);
+      _publishSnapshot ();
     });
     AuditHelper.onAuditCreateSuccess (PMode.OT, aPMode.getID ());
     LOGGER.info ("Created PMode with ID '" + aPMode.getID () + "'");
@@ -76,39 +242,40 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
   public EChange updatePMode (@Nonnull final IPMode aPMode)
   {
     ValueEnforcer.notNull (aPMode, "PMode");
-    final PMode aRealPMode = getOfID (aPMode.getID ());
-    if (aRealPMode == null)
-    {
-      AuditHelper.onAuditModifyFailure (PMode.OT, aPMode.getID (), "no-such-id");
-      return EChange.UNCHANGED;
-    }
-    if (aRealPMode.isDeleted ())
-    {
-      AuditHelper.onAuditModifyFailure (PMode.OT, aPMode.getID (), "already-deleted");
-      return EChange.UNCHANGED;
-    }
 
     m_aRWLock.writeLock ().lock ();
     try
     {
-      aRealPMode.setInitiator (aPMode.getInitiator ());
-      aRealPMode.setResponder (aPMode.getResponder ());
-      aRealPMode.setAgreement (aPMode.getAgreement ());
-      aRealPMode.setMEP (aPMode.getMEP ());
-      aRealPMode.setMEPBinding (aPMode.getMEPBinding ());
-      aRealPMode.setLeg1 (aPMode.getLeg1 ());
-      aRealPMode.setLeg2 (aPMode.getLeg2 ());
-      aRealPMode.setPayloadService (aPMode.getPayloadService ());
-      aRealPMode.setReceptionAwareness (aPMode.getReceptionAwareness ());
-
-      BusinessObjectHelper.setLastModificationNow (aRealPMode);
-      internalUpdateItem (aRealPMode);
+      // Read and check inside the lock so that a concurrent deletion is not
+      // undone
+      final PMode aRealPMode = getOfID (aPMode.getID ());
+      if (aRealPMode == null)
+      {
+        AuditHelper.onAuditModifyFailure (PMode.OT, aPMode.getID (), "no-such-id");
+        return EChange.UNCHANGED;
+      }
+      if (aRealPMode.isDeleted ())
+      {
+        AuditHelper.onAuditModifyFailure (PMode.OT, aPMode.getID (), "already-deleted");
+        return EChange.UNCHANGED;
+      }
+      if (aRealPMode.hasSameValues (aPMode))
+      {
+        // Nothing to do - don't invalidate caches depending on the version
+        return EChange.UNCHANGED;
+      }
+
+      // Don't modify the existing object, as it may be in use by readers
+      final PMode aNewPMode = new PMode (aRealPMode, aPMode);
+      BusinessObjectHelper.setLastModificationNow (aNewPMode);
+      internalUpdateItem (aNewPMode);
+      _publishSnapshot ();
     }
     finally
     {
       m_aRWLock.writeLock ().unlock ();
     }
-    AuditHelper.onAuditModifySuccess (PMode.OT, "all", aRealPMode.getID ());
+    AuditHelper.onAuditModifySuccess (PMode.OT, "all", aPMode.getID ());
     LOGGER.info ("Updated PMode with ID '" + aPMode.getID () + "'");
 
     return EChange.CHANGED;
@@ -117,29 +284,31 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
   @Nonnull
   public EChange markPModeDeleted (@Nullable final String sPModeID)
   {
-    final PMode aDeletedPMode = getOfID (sPModeID);
-    if (aDeletedPMode == null)
-    {
-      AuditHelper.onAuditDeleteFailure (PMode.OT, "no-such-object-id", sPModeID);
-      return EChange.UNCHANGED;
-    }
-
     m_aRWLock.writeLock ().lock ();
     try
     {
+      final PMode aDeletedPMode = getOfID (sPModeID);
+      if (aDeletedPMode == null)
+      {
+        AuditHelper.onAuditDeleteFailure (PMode.OT, "no-such-object-id", sPModeID);
+        return EChange.UNCHANGED;
+      }
+
+      // The deletion flag is the only thing modified in place
       if (BusinessObjectHelper.setDeletionNow (aDeletedPMode).isUnchanged ())
       {
         AuditHelper.onAuditDeleteFailure (PMode.OT, "already-deleted", sPModeID);
         return EChange.UNCHANGED;
       }
       internalMarkItemDeleted (aDeletedPMode);
+      _publishSnapshot ();
     }
     finally
     {
       m_aRWLock.writeLock ().unlock ();
     }
     AuditHelper.onAuditDeleteSuccess (PMode.OT, sPModeID);
-    LOGGER.info ("Marked PMode with ID '" + aDeletedPMode.getID () + "' as deleted");
+    LOGGER.info ("Marked PMode with ID '" + sPModeID + "' as deleted");
 
     return EChange.CHANGED;
   }
@@ -158,6 +327,7 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
     try
     {
       internalDeleteItem (sPModeID);
+      _publishSnapshot ();
     }
     finally
     {
@@ -176,59 +346,107 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
     return p -> p.getID ().equals (sID) && p.hasInitiatorID (sInitiatorID) && p.hasResponderID (sResponderID);
   }
 
+  /**
+   * Get the first PMode whose first leg has the provided service and action.
+   *
+   * @param sService
+   *        Service to search. May be <code>null</code>.
+   * @param sAction
+   *        Action to search. May be <code>null</code>.
+   * @return <code>null</code> if no such PMode exists.
+   */
   @Nullable
   public IPMode getPModeOfServiceAndAction (@Nullable final String sService, @Nullable final String sAction)
   {
-    return findFirst (x -> {
-      final PModeLeg aLeg = x.getLeg1 ();
-      if (aLeg != null)
-      {
-        final PModeLegBusinessInformation aBI = aLeg.getBusinessInfo ();
-        if (aBI != null)
-        {
-          return EqualsHelper.equals (aBI.getService (), sService) && EqualsHelper.equals (aBI.getAction (), sAction);
-        }
-      }
-      return false;
-    });
+    return _getSnapshot ().m_aServiceActionIndex.getFirst (new StringPairKey (sService, sAction));
+  }
+
+  /**
+   * Get the first PMode with the provided initiator and responder ID.
+   *
+   * @param sInitiatorID
+   *        Initiator ID to search. May be <code>null</code>.
+   * @param sResponderID
+   *        Responder ID to search. May be <code>null</code>.
+   * @return <code>null</code> if no such PMode exists.
+   */
+  @Nullable
+  public IPMode getPModeOfInitiatorAndResponder (@Nullable final String sInitiatorID,
+                                                 @Nullable final String sResponderID)
+  {
+    return _getSnapshot ().m_aPartyIndex.getFirst (new StringPairKey (sInitiatorID, sResponderID));
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <IPMode> getAllPModesOfInitiatorAndResponder (@Nullable final String sInitiatorID,
+                                                                    @Nullable final String sResponderID)
+  {
+    return _getSnapshot ().m_aPartyIndex.getAll (new StringPairKey (sInitiatorID, sResponderID));
+  }
+
+  /**
+   * Get the first PMode with the provided agreement reference.
+   *
+   * @param sAgreement
+   *        Agreement to search. May be <code>null</code>.
+   * @return <code>null</code> if no such PMode exists.
+   */
+  @Nullable
+  public IPMode getPModeOfAgreement (@Nullable final String sAgreement)
+  {
+    if (StringHelper.hasNoText (sAgreement))
+      return null;
+    return _getSnapshot ().m_aAgreementIndex.getFirst (sAgreement);
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <IPMode> getAllPModesOfAgreement (@Nullable final String sAgreement)
+  {
+    if (StringHelper.hasNoText (sAgreement))
+      return new CommonsArrayList <> ();
+    return _getSnapshot ().m_aAgreementIndex.getAll (sAgreement);
   }
 
   @Nonnull
   public IPMode createOrUpdatePMode (@Nonnull final PMode aPMode)
   {
-    PMode ret = (PMode) findFirst (getPModeFilter (aPMode.getID (),
-                                                   aPMode.getInitiatorID (),
-                                                   aPMode.getResponderID ()));
-    if (ret == null)
-    {
-      createPMode (aPMode);
-      ret = aPMode;
-    }
-    else
+    // IDs are unique, so no need to scan all PModes
+    final IPMode aExisting = getPModeOfID (aPMode.getID ());
+    if (aExisting != null &&
+        getPModeFilter (aPMode.getID (), aPMode.getInitiatorID (), aPMode.getResponderID ()).test (aExisting))
     {
       updatePMode (aPMode);
+      // Updates create a new object
+      final IPMode ret = getPModeOfID (aPMode.getID ());
+      return ret != null ? ret : aExisting;
     }
-    return ret;
+
+    createPMode (aPMode);
+    return aPMode;
   }
 
   @Nonnull
   @ReturnsMutableCopy
   public ICommonsList <IPMode> getAllPModes ()
   {
-    return getAll ();
+    return _getSnapshot ().m_aByID.copyOfValues ();
   }
 
   @Nonnull
   @ReturnsMutableCopy
   public ICommonsList <IPMode> getAllPModes (@Nonnull final Predicate <? super IPMode> aFilter)
   {
-    return getAll (aFilter);
+    return _getSnapshot ().m_aByID.copyOfValues (aFilter);
   }
 
   @Nullable
   public IPMode getPModeOfID (@Nullable final String sID)
   {
-    return getOfID (sID);
+    if (StringHelper.hasNoText (sID))
+      return null;
+    return _getSnapshot ().m_aByID.get (sID);
   }
 
   @Nonnull
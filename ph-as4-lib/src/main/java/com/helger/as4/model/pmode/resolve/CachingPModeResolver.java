@@ -0,0 +1,304 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.model.pmode.resolve;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.pmode.IPMode;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.map.LRUMap;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCache;
+import com.helger.commons.statistics.IStatisticsHandlerCache;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * An {@link IPModeResolver} that caches the results of another resolver. The
+ * number of entries is limited (least recently used entries are dropped first)
+ * and each entry expires after a configurable time. The whole cache is
+ * invalidated as soon as the {@link com.helger.as4.model.pmode.PModeManager}
+ * is modified - except if the wrapped resolver itself persisted the resolved
+ * PMode (e.g. a template). Failed resolutions are not cached. Hits and misses
+ * are recorded in the {@link StatisticsManager}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class CachingPModeResolver implements IPModeResolver
+{
+  public static final int DEFAULT_MAX_SIZE = 1000;
+  public static final long DEFAULT_TTL_MS = TimeUnit.MINUTES.toMillis (5);
+
+  private static final IMutableStatisticsHandlerCache s_aStatsCache = StatisticsManager.getCacheHandler (CachingPModeResolver.class.getName ());
+
+  @Immutable
+  private static final class Key
+  {
+    private final String m_sPModeID;
+    private final String m_sService;
+    private final String m_sAction;
+    private final String m_sInitiatorID;
+    private final String m_sResponderID;
+    private final String m_sAddress;
+
+    Key (@Nullable final String sPModeID,
+         @Nullable final String sService,
+         @Nullable final String sAction,
+         @Nullable final String sInitiatorID,
+         @Nullable final String sResponderID,
+         @Nullable final String sAddress)
+    {
+      m_sPModeID = sPModeID;
+      m_sService = sService;
+      m_sAction = sAction;
+      m_sInitiatorID = sInitiatorID;
+      m_sResponderID = sResponderID;
+      m_sAddress = sAddress;
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final Key rhs = (Key) o;
+      return EqualsHelper.equals (m_sPModeID, rhs.m_sPModeID) &&
+             EqualsHelper.equals (m_sService, rhs.m_sService) &&
+             EqualsHelper.equals (m_sAction, rhs.m_sAction) &&
+             EqualsHelper.equals (m_sInitiatorID, rhs.m_sInitiatorID) &&
+             EqualsHelper.equals (m_sResponderID, rhs.m_sResponderID) &&
+             EqualsHelper.equals (m_sAddress, rhs.m_sAddress);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return new HashCodeGenerator (this).append (m_sPModeID)
+                                         .append (m_sService)
+                                         .append (m_sAction)
+                                         .append (m_sInitiatorID)
+                                         .append (m_sResponderID)
+                                         .append (m_sAddress)
+                                         .getHashCode ();
+    }
+  }
+
+  @Immutable
+  private static final class Entry
+  {
+    private final IPMode m_aPMode;
+    private final long m_nExpirationNanos;
+
+    Entry (@Nonnull final IPMode aPMode, final long nExpirationNanos)
+    {
+      m_aPMode = aPMode;
+      m_nExpirationNanos = nExpirationNanos;
+    }
+  }
+
+  private final IPModeResolver m_aResolver;
+  private final int m_nMaxSize;
+  private final long m_nTTLMillis;
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private final LRUMap <Key, Entry> m_aCache;
+  // The PModeManager version the cache content belongs to
+  @GuardedBy ("m_aLock")
+  private long m_nPModeVersion = -1;
+
+  public CachingPModeResolver (@Nonnull final IPModeResolver aResolver)
+  {
+    this (aResolver, DEFAULT_MAX_SIZE, DEFAULT_TTL_MS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aResolver
+   *        The resolver to be cached. May not be <code>null</code>.
+   * @param nMaxSize
+   *        The maximum number of cached entries. Must be &gt; 0.
+   * @param nTTLMillis
+   *        The time in milliseconds after which an entry expires. Must be &gt;
+   *        0.
+   */
+  public CachingPModeResolver (@Nonnull final IPModeResolver aResolver,
+                               @Nonnegative final int nMaxSize,
+                               @Nonnegative final long nTTLMillis)
+  {
+    ValueEnforcer.notNull (aResolver, "Resolver");
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    ValueEnforcer.isGT0 (nTTLMillis, "TTLMillis");
+    m_aResolver = aResolver;
+    m_nMaxSize = nMaxSize;
+    m_nTTLMillis = nTTLMillis;
+    m_aCache = new LRUMap <> (nMaxSize);
+  }
+
+  /**
+   * @return The resolver whose results are cached. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IPModeResolver getResolver ()
+  {
+    return m_aResolver;
+  }
+
+  @Nonnegative
+  public final int getMaxSize ()
+  {
+    return m_nMaxSize;
+  }
+
+  @Nonnegative
+  public final long getTTLMillis ()
+  {
+    return m_nTTLMillis;
+  }
+
+  /**
+   * @return The current PModeManager version. Overridable for testing.
+   */
+  protected long getCurrentPModeVersion ()
+  {
+    return MetaAS4Manager.getPModeMgr ().getSnapshotVersion ();
+  }
+
+  /**
+   * @return The PModeManager version created by the last modification of the
+   *         calling thread. Overridable for testing.
+   */
+  protected long getPModeVersionOfCurrentThread ()
+  {
+    return MetaAS4Manager.getPModeMgr ().getSnapshotVersionOfCurrentThread ();
+  }
+
+  @Nullable
+  public IPMode getPModeOfID (@Nullable final String sPModeID,
+                              @Nonnull final String sService,
+                              @Nonnull final String sAction,
+                              @Nonnull @Nonempty final String sInitiatorID,
+                              @Nonnull @Nonempty final String sResponderID,
+                              @Nullable final String sAddress)
+  {
+    final Key aKey = new Key (sPModeID, sService, sAction, sInitiatorID, sResponderID, sAddress);
+    final long nVersion = getCurrentPModeVersion ();
+    final Entry aEntry = m_aLock.locked ( () -> {
+      if (nVersion != m_nPModeVersion)
+      {
+        // PModes were modified
+        m_aCache.clear ();
+        return null;
+      }
+      final Entry ret = m_aCache.get (aKey);
+      if (ret != null && System.nanoTime () - ret.m_nExpirationNanos > 0)
+      {
+        m_aCache.remove (aKey);
+        return null;
+      }
+      return ret;
+    });
+    if (aEntry != null)
+    {
+      s_aStatsCache.cacheHit ();
+      return aEntry.m_aPMode;
+    }
+
+    s_aStatsCache.cacheMiss ();
+    final IPMode ret = m_aResolver.getPModeOfID (sPModeID, sService, sAction, sInitiatorID, sResponderID, sAddress);
+
+    if (ret == null)
+    {
+      // Don't cache failures - the PMode may be created any time
+      return null;
+    }
+
+    final long nNewVersion = getCurrentPModeVersion ();
+    if (nNewVersion != nVersion)
+    {
+      // PModes were modified while resolving. If the only modification was
+      // made by the resolver itself (e.g. persisting a template) the result
+      // is still valid for the new version - otherwise it may already be
+      // outdated
+      if (nNewVersion != nVersion + 1 || getPModeVersionOfCurrentThread () != nNewVersion)
+        return ret;
+    }
+
+    final Entry aNewEntry = new Entry (ret, System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (m_nTTLMillis));
+    m_aLock.locked ( () -> {
+      if (nNewVersion < m_nPModeVersion)
+      {
+        // Another thread already cached a newer version
+        return;
+      }
+      if (nNewVersion > m_nPModeVersion)
+      {
+        m_aCache.clear ();
+        m_nPModeVersion = nNewVersion;
+      }
+      m_aCache.put (aKey, aNewEntry);
+    });
+    return ret;
+  }
+
+  /**
+   * Remove all cached entries.
+   */
+  public void clearCache ()
+  {
+    m_aLock.locked (m_aCache::clear);
+  }
+
+  @Nonnegative
+  public int getCacheSize ()
+  {
+    return m_aLock.locked (m_aCache::size);
+  }
+
+  /**
+   * @return The hit and miss statistics of all instances. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCache getCacheStatistics ()
+  {
+    return s_aStatsCache;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Resolver", m_aResolver)
+                                       .append ("MaxSize", m_nMaxSize)
+                                       .append ("TTLMillis", m_nTTLMillis)
+                                       .getToString ();
+  }
+}
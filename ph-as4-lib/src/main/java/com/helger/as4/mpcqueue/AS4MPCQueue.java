@@ -0,0 +1,914 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.mpcqueue;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.CAS4;
+import com.helger.as4lib.ebms3header.Ebms3UserMessage;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.CommonsTreeMap;
+import com.helger.commons.collection.impl.CommonsTreeSet;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsNavigableMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.collection.impl.ICommonsSortedSet;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.state.EChange;
+import com.helger.commons.statistics.IMutableStatisticsHandlerKeyedCounter;
+import com.helger.commons.statistics.IStatisticsHandlerKeyedCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Per-MPC queue of user messages that are waiting to be pulled. Messages are
+ * returned in FIFO order per MPC. A dequeued message becomes invisible for the
+ * visibility timeout and must be acknowledged (usually when the receipt of the
+ * pulling party arrives) within that time - otherwise it becomes visible again
+ * and is returned by the next pull request on that MPC. With a visibility
+ * timeout of 0 a message is removed as soon as it is dequeued.<br>
+ * All entries are kept in memory. The provided {@link IAS4MPCQueueStore}
+ * decides whether queued messages survive a restart. The store is never
+ * invoked while the queue lock is held. The visibility state is not persisted,
+ * so all persisted messages are visible again after a restart.
+ * <br>
+ * Pull requests may be parked with {@link #dequeueAsync(String, long)} until a
+ * message is enqueued on the MPC or the maximum wait time expired. Parked
+ * requests don't occupy a thread - they are completed by the thread that
+ * enqueues the message or by a single timer thread.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4MPCQueue implements AutoCloseable
+{
+  public static final long DEFAULT_VISIBILITY_TIMEOUT_MS = TimeUnit.MINUTES.toMillis (5);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4MPCQueue.class);
+
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsEnqueued = StatisticsManager.getKeyedCounterHandler (AS4MPCQueue.class.getName () +
+                                                                                                                         "$enqueued");
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsDequeued = StatisticsManager.getKeyedCounterHandler (AS4MPCQueue.class.getName () +
+                                                                                                                         "$dequeued");
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsAcknowledged = StatisticsManager.getKeyedCounterHandler (AS4MPCQueue.class.getName () +
+                                                                                                                             "$acknowledged");
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsRedelivered = StatisticsManager.getKeyedCounterHandler (AS4MPCQueue.class.getName () +
+                                                                                                                            "$redelivered");
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsWaitTimeout = StatisticsManager.getKeyedCounterHandler (AS4MPCQueue.class.getName () +
+                                                                                                                            "$waittimeout");
+
+  /**
+   * A dequeued entry that is waiting for its acknowledgement.
+   *
+   * @author Philip Helger
+   */
+  private static final class InFlight
+  {
+    private final AS4MPCQueueEntry m_aEntry;
+    private final String m_sPullerID;
+    private final long m_nVisibleAgainMillis;
+
+    InFlight (@Nonnull final AS4MPCQueueEntry aEntry,
+              @Nullable final String sPullerID,
+              final long nVisibleAgainMillis)
+    {
+      m_aEntry = aEntry;
+      m_sPullerID = sPullerID;
+      m_nVisibleAgainMillis = nVisibleAgainMillis;
+    }
+  }
+
+  /**
+   * A parked dequeue request.
+   *
+   * @author Philip Helger
+   */
+  private static final class Waiter
+  {
+    private final CompletableFuture <AS4MPCQueueEntry> m_aFuture;
+    private final String m_sPullerID;
+    // The timer task that completes the request when the wait time expired
+    private ScheduledFuture <?> m_aTimeout;
+
+    Waiter (@Nonnull final CompletableFuture <AS4MPCQueueEntry> aFuture, @Nullable final String sPullerID)
+    {
+      m_aFuture = aFuture;
+      m_sPullerID = sPullerID;
+    }
+
+    void cancelTimeout ()
+    {
+      if (m_aTimeout != null)
+        m_aTimeout.cancel (false);
+    }
+  }
+
+  /**
+   * The state of a single MPC.
+   *
+   * @author Philip Helger
+   */
+  private static final class MPCState
+  {
+    // Visible entries in FIFO order
+    private final ICommonsNavigableMap <Long, AS4MPCQueueEntry> m_aVisible = new CommonsTreeMap <> ();
+    // Invisible entries by message ID
+    private final ICommonsOrderedMap <String, InFlight> m_aInFlight = new CommonsLinkedHashMap <> ();
+    // Parked dequeue requests in FIFO order
+    private final ICommonsList <Waiter> m_aWaiters = new CommonsArrayList <> ();
+
+    private void restoreExpired (@Nonnull final String sMPCID, final long nNowMillis)
+    {
+      final Iterator <InFlight> it = m_aInFlight.values ().iterator ();
+      while (it.hasNext ())
+      {
+        final InFlight aInFlight = it.next ();
+        if (aInFlight.m_nVisibleAgainMillis <= nNowMillis)
+        {
+          it.remove ();
+          m_aVisible.put (Long.valueOf (aInFlight.m_aEntry.getSequence ()), aInFlight.m_aEntry);
+          s_aStatsRedelivered.increment (sMPCID);
+          LOGGER.info ("Message '" +
+                       aInFlight.m_aEntry.getMessageID () +
+                       "' on MPC '" +
+                       sMPCID +
+                       "' was not acknowledged in time and is visible again");
+        }
+      }
+    }
+  }
+
+  private final IAS4MPCQueueStore m_aStore;
+  private volatile long m_nVisibilityTimeoutMS;
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private final ICommonsMap <String, MPCState> m_aMPCs = new CommonsHashMap <> ();
+  // All contained entries by message ID, including the ones that are still
+  // being persisted
+  @GuardedBy ("m_aLock")
+  private final ICommonsMap <String, AS4MPCQueueEntry> m_aEntries = new CommonsHashMap <> ();
+  @GuardedBy ("m_aLock")
+  private long m_nNextSequence = 1;
+  // Created on demand for the first parked request
+  @GuardedBy ("m_aLock")
+  private ScheduledExecutorService m_aWaitTimer;
+
+  public AS4MPCQueue (@Nonnull final IAS4MPCQueueStore aStore)
+  {
+    this (aStore, DEFAULT_VISIBILITY_TIMEOUT_MS);
+  }
+
+  /**
+   * Constructor. All entries of the store are immediately visible.
+   *
+   * @param aStore
+   *        The persistent store to use. May not be <code>null</code>.
+   * @param nVisibilityTimeoutMS
+   *        The time a dequeued message stays invisible until it is returned
+   *        again. Must be &ge; 0.
+   */
+  public AS4MPCQueue (@Nonnull final IAS4MPCQueueStore aStore, @Nonnegative final long nVisibilityTimeoutMS)
+  {
+    ValueEnforcer.notNull (aStore, "Store");
+    ValueEnforcer.isGE0 (nVisibilityTimeoutMS, "VisibilityTimeoutMS");
+    m_aStore = aStore;
+    m_nVisibilityTimeoutMS = nVisibilityTimeoutMS;
+
+    final ICommonsList <AS4MPCQueueEntry> aEntries = aStore.getAllEntries ();
+    for (final AS4MPCQueueEntry aEntry : aEntries)
+    {
+      _getOrCreateMPCState (aEntry.getMPCID ()).m_aVisible.put (Long.valueOf (aEntry.getSequence ()), aEntry);
+      m_aEntries.put (aEntry.getMessageID (), aEntry);
+      m_nNextSequence = Math.max (m_nNextSequence, aEntry.getSequence () + 1);
+    }
+  }
+
+  @Nonnull
+  @Nonempty
+  private static String _getEffectiveMPCID (@Nullable final String sMPCID)
+  {
+    return StringHelper.hasNoText (sMPCID) ? CAS4.DEFAULT_MPC_ID : sMPCID;
+  }
+
+  @GuardedBy ("m_aLock")
+  @Nonnull
+  private MPCState _getOrCreateMPCState (@Nonnull final String sMPCID)
+  {
+    return m_aMPCs.computeIfAbsent (sMPCID, k -> new MPCState ());
+  }
+
+  /**
+   * @return The persistent store used. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IAS4MPCQueueStore getStore ()
+  {
+    return m_aStore;
+  }
+
+  /**
+   * @return The time in milliseconds a dequeued message stays invisible.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public final long getVisibilityTimeoutMS ()
+  {
+    return m_nVisibilityTimeoutMS;
+  }
+
+  /**
+   * Set the visibility timeout for messages dequeued in the future.
+   *
+   * @param nVisibilityTimeoutMS
+   *        The time a dequeued message stays invisible until it is returned
+   *        again. 0 means that a message is removed as soon as it is dequeued.
+   *        Must be &ge; 0.
+   */
+  public final void setVisibilityTimeoutMS (@Nonnegative final long nVisibilityTimeoutMS)
+  {
+    ValueEnforcer.isGE0 (nVisibilityTimeoutMS, "VisibilityTimeoutMS");
+    m_nVisibilityTimeoutMS = nVisibilityTimeoutMS;
+  }
+
+  /**
+   * Add a user message to the end of the queue of an MPC.
+   *
+   * @param sMPCID
+   *        The ID of the MPC. May be <code>null</code> to use the default MPC.
+   * @param aUserMessage
+   *        The user message to be pulled. May not be <code>null</code> and
+   *        must have a message ID.
+   * @return {@link EChange#UNCHANGED} if a message with the same ID is already
+   *         queued.
+   */
+  @Nonnull
+  public EChange enqueue (@Nullable final String sMPCID, @Nonnull final Ebms3UserMessage aUserMessage)
+  {
+    final String sEffectiveMPCID = _getEffectiveMPCID (sMPCID);
+    final long nNowMillis = System.currentTimeMillis ();
+    final AS4MPCQueueEntry aEntry = m_aLock.locked ( () -> {
+      final AS4MPCQueueEntry ret = new AS4MPCQueueEntry (m_nNextSequence,
+                                                         sEffectiveMPCID,
+                                                         nNowMillis,
+                                                         aUserMessage);
+      if (m_aEntries.containsKey (ret.getMessageID ()))
+        return null;
+      // Reserve the message ID - the entry becomes visible once it is persisted
+      m_nNextSequence++;
+      m_aEntries.put (ret.getMessageID (), ret);
+      _getOrCreateMPCState (sEffectiveMPCID);
+      return ret;
+    });
+    if (aEntry == null)
+    {
+      LOGGER.warn ("Message '" +
+                   aUserMessage.getMessageInfo ().getMessageId () +
+                   "' is already contained in an MPC queue");
+      return EChange.UNCHANGED;
+    }
+
+    // Persist outside of the lock
+    try
+    {
+      m_aStore.onEntryAdded (aEntry);
+    }
+    catch (final RuntimeException ex)
+    {
+      m_aLock.locked ( () -> {
+        m_aEntries.remove (aEntry.getMessageID (), aEntry);
+      });
+      throw ex;
+    }
+
+    final ICommonsList <Runnable> aAfterUnlock = new CommonsArrayList <> ();
+    final boolean bStillReserved = m_aLock.locked ( () -> {
+      // May have been acknowledged while it was persisted
+      if (m_aEntries.get (aEntry.getMessageID ()) != aEntry)
+        return false;
+      final MPCState aState = m_aMPCs.get (sEffectiveMPCID);
+      aState.m_aVisible.put (Long.valueOf (aEntry.getSequence ()), aEntry);
+      _serveWaiters (aState, sEffectiveMPCID, System.currentTimeMillis (), aAfterUnlock);
+      return true;
+    });
+    if (!bStillReserved)
+    {
+      m_aStore.onEntryRemoved (aEntry);
+      return EChange.UNCHANGED;
+    }
+    s_aStatsEnqueued.increment (sEffectiveMPCID);
+    aAfterUnlock.forEach (Runnable::run);
+    return EChange.CHANGED;
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _remove (@Nonnull final AS4MPCQueueEntry aEntry, @Nonnull final ICommonsList <Runnable> aAfterUnlock)
+  {
+    m_aEntries.remove (aEntry.getMessageID ());
+    aAfterUnlock.add ( () -> m_aStore.onEntryRemoved (aEntry));
+  }
+
+  /**
+   * Get the oldest visible message of an MPC. Unless the visibility timeout is
+   * 0, the message stays in the queue but is invisible until it is
+   * acknowledged or the visibility timeout expired.
+   *
+   * @param sMPCID
+   *        The ID of the MPC. May be <code>null</code> to use the default MPC.
+   * @return <code>null</code> if no message is visible on the MPC.
+   * @see #acknowledge(String)
+   */
+  @GuardedBy ("m_aLock")
+  @Nullable
+  private AS4MPCQueueEntry _takeFirstVisible (@Nonnull final MPCState aState,
+                                              @Nonnull final String sMPCID,
+                                              @Nullable final String sPullerID,
+                                              final long nNowMillis,
+                                              @Nonnull final ICommonsList <Runnable> aAfterUnlock)
+  {
+    aState.restoreExpired (sMPCID, nNowMillis);
+    final Map.Entry <Long, AS4MPCQueueEntry> aFirst = aState.m_aVisible.pollFirstEntry ();
+    if (aFirst == null)
+      return null;
+    final AS4MPCQueueEntry ret = aFirst.getValue ();
+    final long nVisibilityTimeoutMS = m_nVisibilityTimeoutMS;
+    if (nVisibilityTimeoutMS == 0)
+      _remove (ret, aAfterUnlock);
+    else
+      aState.m_aInFlight.put (ret.getMessageID (), new InFlight (ret, sPullerID, nNowMillis + nVisibilityTimeoutMS));
+    return ret;
+  }
+
+  /**
+   * Hand visible entries to parked requests. The futures are completed by the
+   * caller after the lock was released, so that no dependent action runs
+   * inside the lock.
+   */
+  @GuardedBy ("m_aLock")
+  private void _serveWaiters (@Nonnull final MPCState aState,
+                              @Nonnull final String sMPCID,
+                              final long nNowMillis,
+                              @Nonnull final ICommonsList <Runnable> aAfterUnlock)
+  {
+    // Skip requests that were cancelled in the meantime
+    aState.m_aWaiters.removeIf (x -> {
+      if (!x.m_aFuture.isDone ())
+        return false;
+      x.cancelTimeout ();
+      return true;
+    });
+    while (aState.m_aWaiters.isNotEmpty ())
+    {
+      final Waiter aWaiter = aState.m_aWaiters.getFirst ();
+      final AS4MPCQueueEntry aEntry = _takeFirstVisible (aState,
+                                                         sMPCID,
+                                                         aWaiter.m_sPullerID,
+                                                         nNowMillis,
+                                                         aAfterUnlock);
+      if (aEntry == null)
+        break;
+      aState.m_aWaiters.removeFirst ();
+      // The timer must not keep the served request alive
+      aWaiter.cancelTimeout ();
+      aAfterUnlock.add ( () -> _completeWaiter (aWaiter.m_aFuture, aEntry));
+    }
+  }
+
+  private void _completeWaiter (@Nonnull final CompletableFuture <AS4MPCQueueEntry> aWaiter,
+                                @Nonnull final AS4MPCQueueEntry aEntry)
+  {
+    if (aWaiter.complete (aEntry))
+      s_aStatsDequeued.increment (aEntry.getMPCID ());
+    else
+    {
+      // Cancelled between selection and completion - give the message back
+      if (release (aEntry.getMessageID ()).isUnchanged ())
+        enqueue (aEntry.getMPCID (), aEntry.getUserMessage ());
+    }
+  }
+
+  /**
+   * Get the oldest visible message of an MPC. Unless the visibility timeout is
+   * 0, the message stays in the queue but is invisible until it is
+   * acknowledged or the visibility timeout expired.
+   *
+   * @param sMPCID
+   *        The ID of the MPC. May be <code>null</code> to use the default MPC.
+   * @return <code>null</code> if no message is visible on the MPC.
+   * @see #acknowledge(String)
+   */
+  @Nullable
+  public AS4MPCQueueEntry dequeue (@Nullable final String sMPCID)
+  {
+    return dequeue (sMPCID, null);
+  }
+
+  /**
+   * Get the oldest visible message of an MPC on behalf of a certain pulling
+   * party. The message can only be acknowledged by the same party with
+   * {@link #acknowledgePulled(String, String)}.
+   *
+   * @param sMPCID
+   *        The ID of the MPC. May be <code>null</code> to use the default MPC.
+   * @param sPullerID
+   *        The ID of the authorized pulling party. May be <code>null</code> if
+   *        the pull request was not authenticated.
+   * @return <code>null</code> if no message is visible on the MPC.
+   */
+  @Nullable
+  public AS4MPCQueueEntry dequeue (@Nullable final String sMPCID, @Nullable final String sPullerID)
+  {
+    final String sEffectiveMPCID = _getEffectiveMPCID (sMPCID);
+    final long nNowMillis = System.currentTimeMillis ();
+    final ICommonsList <Runnable> aAfterUnlock = new CommonsArrayList <> ();
+    final AS4MPCQueueEntry ret = m_aLock.locked ( () -> {
+      final MPCState aState = m_aMPCs.get (sEffectiveMPCID);
+      return aState == null ? null
+                            : _takeFirstVisible (aState, sEffectiveMPCID, sPullerID, nNowMillis, aAfterUnlock);
+    });
+    aAfterUnlock.forEach (Runnable::run);
+    if (ret != null)
+      s_aStatsDequeued.increment (sEffectiveMPCID);
+    return ret;
+  }
+
+  @GuardedBy ("m_aLock")
+  @Nonnull
+  private ScheduledExecutorService _getOrCreateWaitTimer ()
+  {
+    if (m_aWaitTimer == null)
+    {
+      final ScheduledThreadPoolExecutor aTimer = new ScheduledThreadPoolExecutor (1,
+                                                                                 new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                                                  .setNamingPattern ("as4-mpc-wait-%d")
+                                                                                                                  .build ());
+      // Served requests cancel their timeout - drop it from the queue
+      aTimer.setRemoveOnCancelPolicy (true);
+      m_aWaitTimer = aTimer;
+    }
+    return m_aWaitTimer;
+  }
+
+  /**
+   * Get the oldest visible message of an MPC like {@link #dequeue(String)}. If
+   * the MPC is empty, the request is parked until a message is enqueued or the
+   * maximum wait time expired. Parked requests are served in FIFO order.
+   * Cancelling the returned future removes the parked request.
+   *
+   * @param sMPCID
+   *        The ID of the MPC. May be <code>null</code> to use the default MPC.
+   * @param nMaxWaitMS
+   *        The maximum time to wait for a message. 0 means not to wait at all.
+   *        Must be &ge; 0.
+   * @return A future that is completed with the message or with
+   *         <code>null</code> if no message arrived in time. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public CompletableFuture <AS4MPCQueueEntry> dequeueAsync (@Nullable final String sMPCID,
+                                                           @Nonnegative final long nMaxWaitMS)
+  {
+    return dequeueAsync (sMPCID, null, nMaxWaitMS);
+  }
+
+  /**
+   * Get the oldest visible message of an MPC on behalf of a certain pulling
+   * party like {@link #dequeueAsync(String, long)}. The message can only be
+   * acknowledged by the same party with
+   * {@link #acknowledgePulled(String, String)}.
+   *
+   * @param sMPCID
+   *        The ID of the MPC. May be <code>null</code> to use the default MPC.
+   * @param sPullerID
+   *        The ID of the authorized pulling party. May be <code>null</code> if
+   *        the pull request was not authenticated.
+   * @param nMaxWaitMS
+   *        The maximum time to wait for a message. 0 means not to wait at all.
+   *        Must be &ge; 0.
+   * @return A future that is completed with the message or with
+   *         <code>null</code> if no message arrived in time. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public CompletableFuture <AS4MPCQueueEntry> dequeueAsync (@Nullable final String sMPCID,
+                                                           @Nullable final String sPullerID,
+                                                           @Nonnegative final long nMaxWaitMS)
+  {
+    ValueEnforcer.isGE0 (nMaxWaitMS, "MaxWaitMS");
+    final String sEffectiveMPCID = _getEffectiveMPCID (sMPCID);
+    final long nNowMillis = System.currentTimeMillis ();
+    final CompletableFuture <AS4MPCQueueEntry> ret = new CompletableFuture <> ();
+    final ICommonsList <Runnable> aAfterUnlock = new CommonsArrayList <> ();
+    final AS4MPCQueueEntry aEntry = m_aLock.locked ( () -> {
+      final MPCState aState = _getOrCreateMPCState (sEffectiveMPCID);
+      final AS4MPCQueueEntry aFirst = _takeFirstVisible (aState,
+                                                         sEffectiveMPCID,
+                                                         sPullerID,
+                                                         nNowMillis,
+                                                         aAfterUnlock);
+      if (aFirst == null && nMaxWaitMS > 0)
+      {
+        final Waiter aWaiter = new Waiter (ret, sPullerID);
+        aState.m_aWaiters.add (aWaiter);
+        aWaiter.m_aTimeout = _getOrCreateWaitTimer ().schedule ( () -> _onWaitTimeout (sEffectiveMPCID, aWaiter),
+                                                                 nMaxWaitMS,
+                                                                 TimeUnit.MILLISECONDS);
+      }
+      return aFirst;
+    });
+    aAfterUnlock.forEach (Runnable::run);
+    if (aEntry != null)
+    {
+      s_aStatsDequeued.increment (sEffectiveMPCID);
+      ret.complete (aEntry);
+    }
+    else
+      if (nMaxWaitMS == 0)
+        ret.complete (null);
+    return ret;
+  }
+
+  private void _onWaitTimeout (@Nonnull final String sMPCID, @Nonnull final Waiter aWaiter)
+  {
+    final long nNowMillis = System.currentTimeMillis ();
+    final boolean [] aRemoved = { false };
+    final ICommonsList <Runnable> aAfterUnlock = new CommonsArrayList <> ();
+    final AS4MPCQueueEntry aEntry = m_aLock.locked ( () -> {
+      // Only complete it if it was not served in the meantime
+      final MPCState aState = m_aMPCs.get (sMPCID);
+      if (aState == null || !aState.m_aWaiters.remove (aWaiter))
+        return null;
+      aRemoved[0] = true;
+      if (aWaiter.m_aFuture.isDone ())
+      {
+        // Cancelled in the meantime
+        return null;
+      }
+      // Messages whose visibility expired while waiting are not announced by
+      // an enqueue - check for them a last time
+      return _takeFirstVisible (aState, sMPCID, aWaiter.m_sPullerID, nNowMillis, aAfterUnlock);
+    });
+    aAfterUnlock.forEach (Runnable::run);
+    if (aEntry != null)
+      _completeWaiter (aWaiter.m_aFuture, aEntry);
+    else
+      if (aRemoved[0] && aWaiter.m_aFuture.complete (null))
+        s_aStatsWaitTimeout.increment (sMPCID);
+  }
+
+  /**
+   * @param sMPCID
+   *        The ID of the MPC. May be <code>null</code> to use the default MPC.
+   * @return The number of requests that are parked on the MPC.
+   */
+  @Nonnegative
+  public int getWaitingCount (@Nullable final String sMPCID)
+  {
+    final String sEffectiveMPCID = _getEffectiveMPCID (sMPCID);
+    return m_aLock.locked ( () -> {
+      final MPCState aState = m_aMPCs.get (sEffectiveMPCID);
+      return aState == null ? 0 : aState.m_aWaiters.size ();
+    });
+  }
+
+  /**
+   * Acknowledge a dequeued message, so that it is finally removed from the
+   * queue. Acknowledging a message that was not yet dequeued removes it as
+   * well. This is meant for administrative purposes - receipts of pulling
+   * parties should use {@link #acknowledgePulled(String, String)}.
+   *
+   * @param sMessageID
+   *        The ID of the user message. May be <code>null</code>.
+   * @return {@link EChange#CHANGED} if the message was contained.
+   */
+  @Nonnull
+  public EChange acknowledge (@Nullable final String sMessageID)
+  {
+    if (sMessageID == null)
+      return EChange.UNCHANGED;
+    final ICommonsList <Runnable> aAfterUnlock = new CommonsArrayList <> ();
+    final AS4MPCQueueEntry aEntry = m_aLock.locked ( () -> {
+      final AS4MPCQueueEntry ret = m_aEntries.get (sMessageID);
+      if (ret != null)
+      {
+        final MPCState aState = m_aMPCs.get (ret.getMPCID ());
+        aState.m_aInFlight.remove (sMessageID);
+        aState.m_aVisible.remove (Long.valueOf (ret.getSequence ()));
+        _remove (ret, aAfterUnlock);
+      }
+      return ret;
+    });
+    return _onAcknowledged (aEntry, aAfterUnlock);
+  }
+
+  /**
+   * Acknowledge a message that is currently in flight, because the receipt of
+   * the pulling party arrived. Messages that are not in flight or that were
+   * pulled by a different party are not touched.
+   *
+   * @param sMessageID
+   *        The ID of the user message. May be <code>null</code>.
+   * @param sPullerID
+   *        The ID of the party that sent the receipt. Must match the ID that
+   *        was provided when the message was dequeued. May be
+   *        <code>null</code>.
+   * @return {@link EChange#CHANGED} if the message was acknowledged.
+   * @see #dequeue(String, String)
+   * @see #dequeueAsync(String, String, long)
+   */
+  @Nonnull
+  public EChange acknowledgePulled (@Nullable final String sMessageID, @Nullable final String sPullerID)
+  {
+    if (sMessageID == null)
+      return EChange.UNCHANGED;
+    final ICommonsList <Runnable> aAfterUnlock = new CommonsArrayList <> ();
+    final AS4MPCQueueEntry aEntry = m_aLock.locked ( () -> {
+      final AS4MPCQueueEntry ret = m_aEntries.get (sMessageID);
+      if (ret == null)
+        return null;
+      final MPCState aState = m_aMPCs.get (ret.getMPCID ());
+      final InFlight aInFlight = aState.m_aInFlight.get (sMessageID);
+      if (aInFlight == null || !EqualsHelper.equals (aInFlight.m_sPullerID, sPullerID))
+      {
+        LOGGER.warn ("Ignoring receipt for message '" +
+                     sMessageID +
+                     "' on MPC '" +
+                     ret.getMPCID () +
+                     "' because it was not pulled by '" +
+                     sPullerID +
+                     "'");
+        return null;
+      }
+      aState.m_aInFlight.remove (sMessageID);
+      _remove (ret, aAfterUnlock);
+      return ret;
+    });
+    return _onAcknowledged (aEntry, aAfterUnlock);
+  }
+
+  @Nonnull
+  private EChange _onAcknowledged (@Nullable final AS4MPCQueueEntry aEntry,
+                                   @Nonnull final ICommonsList <Runnable> aAfterUnlock)
+  {
+    aAfterUnlock.forEach (Runnable::run);
+    if (aEntry == null)
+      return EChange.UNCHANGED;
+    s_aStatsAcknowledged.increment (aEntry.getMPCID ());
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Acknowledged message '" + aEntry.getMessageID () + "' on MPC '" + aEntry.getMPCID () + "'");
+    return EChange.CHANGED;
+  }
+
+  /**
+   * Make a dequeued message visible again immediately, e.g. because it could
+   * not be delivered to the pulling party.
+   *
+   * @param sMessageID
+   *        The ID of the user message. May be <code>null</code>.
+   * @return {@link EChange#CHANGED} if the message was invisible.
+   */
+  @Nonnull
+  public EChange release (@Nullable final String sMessageID)
+  {
+    if (sMessageID == null)
+      return EChange.UNCHANGED;
+    final long nNowMillis = System.currentTimeMillis ();
+    final ICommonsList <Runnable> aAfterUnlock = new CommonsArrayList <> ();
+    final EChange ret = m_aLock.locked ( () -> {
+      final AS4MPCQueueEntry aEntry = m_aEntries.get (sMessageID);
+      if (aEntry == null)
+        return EChange.UNCHANGED;
+      final MPCState aState = m_aMPCs.get (aEntry.getMPCID ());
+      if (aState.m_aInFlight.remove (sMessageID) == null)
+        return EChange.UNCHANGED;
+      aState.m_aVisible.put (Long.valueOf (aEntry.getSequence ()), aEntry);
+      _serveWaiters (aState, aEntry.getMPCID (), nNowMillis, aAfterUnlock);
+      return EChange.CHANGED;
+    });
+    aAfterUnlock.forEach (Runnable::run);
+    return ret;
+  }
+
+  /**
+   * @param sMessageID
+   *        The ID of the user message. May be <code>null</code>.
+   * @return <code>true</code> if the message is queued, no matter if it is
+   *         visible or not.
+   */
+  public boolean containsMessage (@Nullable final String sMessageID)
+  {
+    return m_aLock.locked ( () -> m_aEntries.containsKey (sMessageID));
+  }
+
+  /**
+   * @return The IDs of all MPCs that were used so far. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsSortedSet <String> getAllMPCIDs ()
+  {
+    return m_aLock.locked ( () -> new CommonsTreeSet <> (m_aMPCs.keySet ()));
+  }
+
+  /**
+   * @param sMPCID
+   *        The ID of the MPC. May be <code>null</code> to use the default MPC.
+   * @return The number of messages that can be dequeued right now.
+   */
+  @Nonnegative
+  public int getVisibleCount (@Nullable final String sMPCID)
+  {
+    final String sEffectiveMPCID = _getEffectiveMPCID (sMPCID);
+    final long nNowMillis = System.currentTimeMillis ();
+    return m_aLock.locked ( () -> {
+      final MPCState aState = m_aMPCs.get (sEffectiveMPCID);
+      if (aState == null)
+        return 0;
+      aState.restoreExpired (sEffectiveMPCID, nNowMillis);
+      return aState.m_aVisible.size ();
+    });
+  }
+
+  /**
+   * @param sMPCID
+   *        The ID of the MPC. May be <code>null</code> to use the default MPC.
+   * @return The number of messages that were dequeued but not yet
+   *         acknowledged.
+   */
+  @Nonnegative
+  public int getInFlightCount (@Nullable final String sMPCID)
+  {
+    final String sEffectiveMPCID = _getEffectiveMPCID (sMPCID);
+    final long nNowMillis = System.currentTimeMillis ();
+    return m_aLock.locked ( () -> {
+      final MPCState aState = m_aMPCs.get (sEffectiveMPCID);
+      if (aState == null)
+        return 0;
+      aState.restoreExpired (sEffectiveMPCID, nNowMillis);
+      return aState.m_aInFlight.size ();
+    });
+  }
+
+  /**
+   * @param sMPCID
+   *        The ID of the MPC. May be <code>null</code> to use the default MPC.
+   * @return The number of messages in the queue, visible or not.
+   */
+  @Nonnegative
+  public int getDepth (@Nullable final String sMPCID)
+  {
+    final String sEffectiveMPCID = _getEffectiveMPCID (sMPCID);
+    return m_aLock.locked ( () -> {
+      final MPCState aState = m_aMPCs.get (sEffectiveMPCID);
+      return aState == null ? 0 : aState.m_aVisible.size () + aState.m_aInFlight.size ();
+    });
+  }
+
+  /**
+   * @param sMPCID
+   *        The ID of the MPC. May be <code>null</code> to use the default MPC.
+   * @return The milliseconds the oldest message in the queue (visible or not)
+   *         is already waiting or 0 if the queue is empty.
+   */
+  @Nonnegative
+  public long getOldestMessageAgeMillis (@Nullable final String sMPCID)
+  {
+    final String sEffectiveMPCID = _getEffectiveMPCID (sMPCID);
+    final long nNowMillis = System.currentTimeMillis ();
+    return m_aLock.locked ( () -> {
+      final MPCState aState = m_aMPCs.get (sEffectiveMPCID);
+      if (aState == null)
+        return 0;
+      long nOldest = nNowMillis;
+      if (aState.m_aVisible.isNotEmpty ())
+        nOldest = Math.min (nOldest, aState.m_aVisible.firstEntry ().getValue ().getEnqueueMillis ());
+      for (final InFlight aInFlight : aState.m_aInFlight.values ())
+        nOldest = Math.min (nOldest, aInFlight.m_aEntry.getEnqueueMillis ());
+      return nNowMillis - nOldest;
+    });
+  }
+
+  /**
+   * @return The total number of messages in all MPC queues.
+   */
+  @Nonnegative
+  public int getTotalDepth ()
+  {
+    return m_aLock.locked (m_aEntries::size);
+  }
+
+  /**
+   * @return The statistics handler counting enqueued messages per MPC ID.
+   */
+  @Nonnull
+  public static IStatisticsHandlerKeyedCounter getEnqueuedStatistics ()
+  {
+    return s_aStatsEnqueued;
+  }
+
+  /**
+   * @return The statistics handler counting dequeued messages per MPC ID.
+   */
+  @Nonnull
+  public static IStatisticsHandlerKeyedCounter getDequeuedStatistics ()
+  {
+    return s_aStatsDequeued;
+  }
+
+  /**
+   * @return The statistics handler counting acknowledged messages per MPC ID.
+   */
+  @Nonnull
+  public static IStatisticsHandlerKeyedCounter getAcknowledgedStatistics ()
+  {
+    return s_aStatsAcknowledged;
+  }
+
+  /**
+   * @return The statistics handler counting messages per MPC ID that became
+   *         visible again because the visibility timeout expired.
+   */
+  @Nonnull
+  public static IStatisticsHandlerKeyedCounter getRedeliveredStatistics ()
+  {
+    return s_aStatsRedelivered;
+  }
+
+  /**
+   * @return The statistics handler counting parked requests per MPC ID that
+   *         expired without a message.
+   */
+  @Nonnull
+  public static IStatisticsHandlerKeyedCounter getWaitTimeoutStatistics ()
+  {
+    return s_aStatsWaitTimeout;
+  }
+
+  /**
+   * Stop the timer and complete all parked requests with <code>null</code>.
+   * Queued messages are not affected.
+   */
+  public void close ()
+  {
+    final ICommonsList <Waiter> aWaiters = new CommonsArrayList <> ();
+    final ScheduledExecutorService aWaitTimer = m_aLock.locked ( () -> {
+      for (final MPCState aState : m_aMPCs.values ())
+      {
+        aWaiters.addAll (aState.m_aWaiters);
+        aState.m_aWaiters.clear ();
+      }
+      final ScheduledExecutorService ret = m_aWaitTimer;
+      m_aWaitTimer = null;
+      return ret;
+    });
+    if (aWaitTimer != null)
+      aWaitTimer.shutdownNow ();
+    for (final Waiter aWaiter : aWaiters)
+      aWaiter.m_aFuture.complete (null);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Store", m_aStore)
+                                       .append ("VisibilityTimeoutMS", m_nVisibilityTimeoutMS)
+                                       .getToString ();
+  }
+}
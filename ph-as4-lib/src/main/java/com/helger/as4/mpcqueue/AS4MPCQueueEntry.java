@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.mpcqueue;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.as4lib.ebms3header.Ebms3UserMessage;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A single user message that is waiting in an {@link AS4MPCQueue} to be pulled.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public class AS4MPCQueueEntry
+{
+  private final long m_nSequence;
+  private final String m_sMPCID;
+  private final String m_sMessageID;
+  private final long m_nEnqueueMillis;
+  private final Ebms3UserMessage m_aUserMessage;
+
+  public AS4MPCQueueEntry (final long nSequence,
+                           @Nonnull @Nonempty final String sMPCID,
+                           final long nEnqueueMillis,
+                           @Nonnull final Ebms3UserMessage aUserMessage)
+  {
+    ValueEnforcer.notEmpty (sMPCID, "MPCID");
+    ValueEnforcer.notNull (aUserMessage, "UserMessage");
+    ValueEnforcer.notNull (aUserMessage.getMessageInfo (), "UserMessage.MessageInfo");
+    ValueEnforcer.notEmpty (aUserMessage.getMessageInfo ().getMessageId (), "UserMessage.MessageInfo.MessageId");
+    m_nSequence = nSequence;
+    m_sMPCID = sMPCID;
+    m_sMessageID = aUserMessage.getMessageInfo ().getMessageId ();
+    m_nEnqueueMillis = nEnqueueMillis;
+    m_aUserMessage = aUserMessage.clone ();
+  }
+
+  /**
+   * @return The sequence number that defines the FIFO order within the queue.
+   */
+  public final long getSequence ()
+  {
+    return m_nSequence;
+  }
+
+  /**
+   * @return The ID of the MPC the message was enqueued to. Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getMPCID ()
+  {
+    return m_sMPCID;
+  }
+
+  /**
+   * @return The ebMS message ID of the user message. Neither <code>null</code>
+   *         nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * @return The epoch milliseconds when the message was enqueued.
+   */
+  public final long getEnqueueMillis ()
+  {
+    return m_nEnqueueMillis;
+  }
+
+  /**
+   * @param nNowMillis
+   *        The current epoch milliseconds.
+   * @return The milliseconds the message is already waiting. Always &ge; 0.
+   */
+  @Nonnegative
+  public final long getAgeMillis (final long nNowMillis)
+  {
+    return Math.max (nNowMillis - m_nEnqueueMillis, 0);
+  }
+
+  /**
+   * @return A copy of the user message to be returned to the pulling party.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public final Ebms3UserMessage getUserMessage ()
+  {
+    return m_aUserMessage.clone ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Sequence", m_nSequence)
+                                       .append ("MPCID", m_sMPCID)
+                                       .append ("MessageID", m_sMessageID)
+                                       .append ("EnqueueMillis", m_nEnqueueMillis)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.mpcqueue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.marshaller.Ebms3ReaderBuilder;
+import com.helger.as4.marshaller.Ebms3WriterBuilder;
+import com.helger.as4.util.AS4IOHelper;
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.resource.inmemory.ReadableResourceByteArray;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Store of the {@link AS4MPCQueue} that writes every queued message into a
+ * separate file of a directory. A file is written completely into a temporary
+ * file, synced to disk and then atomically renamed, so that a crash never
+ * leaves a partially written message behind and a message that was accepted
+ * is not lost. Acknowledged messages are deleted.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4MPCQueueFileStore implements IAS4MPCQueueStore
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4MPCQueueFileStore.class);
+
+  // File header and version
+  private static final int MAGIC = 0x41533451;
+  private static final int VERSION = 1;
+
+  private static final String FILE_EXT = ".msg";
+  private static final String TMP_FILE_EXT = ".tmp";
+
+  private final File m_aDirectory;
+
+  /**
+   * Constructor
+   *
+   * @param aDirectory
+   *        The directory to store the messages in. May not be
+   *        <code>null</code>. Is created if it does not exist.
+   */
+  public AS4MPCQueueFileStore (@Nonnull final File aDirectory)
+  {
+    ValueEnforcer.notNull (aDirectory, "Directory");
+    m_aDirectory = aDirectory;
+    AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (aDirectory);
+  }
+
+  /**
+   * @return The directory the messages are stored in. Never <code>null</code>.
+   */
+  @Nonnull
+  public final File getDirectory ()
+  {
+    return m_aDirectory;
+  }
+
+  @Nonnull
+  private File _getFile (@Nonnull final AS4MPCQueueEntry aEntry)
+  {
+    // Fixed length so that the files sort in FIFO order
+    return new File (m_aDirectory, String.format (Locale.US, "%020d", Long.valueOf (aEntry.getSequence ())) + FILE_EXT);
+  }
+
+  @Nonnull
+  private static AS4MPCQueueEntry _readEntry (@Nonnull final File aFile) throws IOException
+  {
+    try (final DataInputStream aDIS = new DataInputStream (new BufferedInputStream (new FileInputStream (aFile))))
+    {
+      if (aDIS.readInt () != MAGIC)
+        throw new IOException ("Not an MPC queue file");
+      final int nVersion = aDIS.readInt ();
+      if (nVersion != VERSION)
+        throw new IOException ("Unsupported MPC queue file version " + nVersion);
+      final long nSequence = aDIS.readLong ();
+      final long nEnqueueMillis = aDIS.readLong ();
+      final String sMPCID = aDIS.readUTF ();
+      final byte [] aXML = new byte [aDIS.readInt ()];
+      aDIS.readFully (aXML);
+
+      final Ebms3Messaging aMessaging = Ebms3ReaderBuilder.ebms3Messaging ()
+                                                          .read (new ReadableResourceByteArray (aXML));
+      if (aMessaging == null || !aMessaging.hasUserMessageEntries ())
+        throw new IOException ("MPC queue file contains no user message");
+      return new AS4MPCQueueEntry (nSequence, sMPCID, nEnqueueMillis, aMessaging.getUserMessageAtIndex (0));
+    }
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4MPCQueueEntry> getAllEntries ()
+  {
+    final ICommonsList <AS4MPCQueueEntry> ret = new CommonsArrayList <> ();
+    final File [] aFiles = m_aDirectory.listFiles ();
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+      {
+        final String sName = aFile.getName ();
+        if (sName.endsWith (TMP_FILE_EXT))
+        {
+          // Left over from a crash while writing
+          AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+        }
+        else
+          if (sName.endsWith (FILE_EXT))
+          {
+            try
+            {
+              ret.add (_readEntry (aFile));
+            }
+            catch (final IOException | RuntimeException ex)
+            {
+              LOGGER.error ("Failed to read MPC queue file " + aFile.getAbsolutePath () + " - ignoring it", ex);
+            }
+          }
+      }
+    LOGGER.info ("Read " + ret.size () + " queued MPC messages from " + m_aDirectory.getAbsolutePath ());
+    return ret;
+  }
+
+  public void onEntryAdded (@Nonnull final AS4MPCQueueEntry aEntry)
+  {
+    final Ebms3Messaging aMessaging = new Ebms3Messaging ();
+    aMessaging.addUserMessage (aEntry.getUserMessage ());
+    final String sXML = Ebms3WriterBuilder.ebms3Messaging ().getAsString (aMessaging);
+    if (sXML == null)
+      throw new IllegalStateException ("Failed to serialize user message '" + aEntry.getMessageID () + "'");
+    final byte [] aXML = sXML.getBytes (StandardCharsets.UTF_8);
+
+    final File aFile = _getFile (aEntry);
+    final File aTmpFile = new File (aFile.getParentFile (), aFile.getName () + TMP_FILE_EXT);
+    try
+    {
+      try (final FileOutputStream aFOS = new FileOutputStream (aTmpFile);
+          final DataOutputStream aDOS = new DataOutputStream (new BufferedOutputStream (aFOS)))
+      {
+        aDOS.writeInt (MAGIC);
+        aDOS.writeInt (VERSION);
+        aDOS.writeLong (aEntry.getSequence ());
+        aDOS.writeLong (aEntry.getEnqueueMillis ());
+        aDOS.writeUTF (aEntry.getMPCID ());
+        aDOS.writeInt (aXML.length);
+        aDOS.write (aXML);
+        aDOS.flush ();
+        aFOS.getFD ().sync ();
+      }
+      Files.move (aTmpFile.toPath (),
+                  aFile.toPath (),
+                  StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+      _syncDirectory ();
+    }
+    catch (final IOException ex)
+    {
+      AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aTmpFile);
+      throw new UncheckedIOException ("Failed to write MPC queue file " + aFile.getAbsolutePath (), ex);
+    }
+  }
+
+  /**
+   * Make the rename durable. Not all platforms support syncing a directory, so
+   * failures are only logged.
+   */
+  private void _syncDirectory ()
+  {
+    try (final FileChannel aChannel = FileChannel.open (m_aDirectory.toPath (), StandardOpenOption.READ))
+    {
+      aChannel.force (true);
+    }
+    catch (final IOException ex)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Failed to sync MPC queue directory " + m_aDirectory.getAbsolutePath (), ex);
+    }
+  }
+
+  public void onEntryRemoved (@Nonnull final AS4MPCQueueEntry aEntry)
+  {
+    final File aFile = _getFile (aEntry);
+    if (AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile).isFailure ())
+      LOGGER.warn ("Failed to delete MPC queue file " + aFile.getAbsolutePath ());
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Directory", m_aDirectory).getToString ();
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.mpcqueue;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Store of the {@link AS4MPCQueue} that does not persist anything. All queued
+ * messages are lost upon shutdown.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public class AS4MPCQueueMemoryStore implements IAS4MPCQueueStore
+{
+  public AS4MPCQueueMemoryStore ()
+  {}
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4MPCQueueEntry> getAllEntries ()
+  {
+    return new CommonsArrayList <> ();
+  }
+
+  public void onEntryAdded (@Nonnull final AS4MPCQueueEntry aEntry)
+  {}
+
+  public void onEntryRemoved (@Nonnull final AS4MPCQueueEntry aEntry)
+  {}
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).getToString ();
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.mpcqueue;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines the available persistence backends for the {@link AS4MPCQueue}.
+ *
+ * @author Philip Helger
+ */
+public enum EAS4MPCQueueStoreType implements IHasID <String>
+{
+  /** Nothing is persisted - see {@link AS4MPCQueueMemoryStore} */
+  MEMORY ("memory"),
+  /** One file per message - see {@link AS4MPCQueueFileStore} */
+  FILE ("file");
+
+  /** Pulling is optional, so nothing is written to disk by default */
+  public static final EAS4MPCQueueStoreType DEFAULT = MEMORY;
+
+  /** The data path relative directory used by {@link #FILE} */
+  public static final String FILE_DIRECTORY = "as4-mpc-queue";
+
+  private final String m_sID;
+
+  private EAS4MPCQueueStoreType (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS4MPCQueueStoreType getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4MPCQueueStoreType.class, sID);
+  }
+
+  @Nullable
+  public static EAS4MPCQueueStoreType getFromIDOrDefault (@Nullable final String sID,
+                                                          @Nullable final EAS4MPCQueueStoreType eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EAS4MPCQueueStoreType.class, sID, eDefault);
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.mpcqueue;
+
+import javax.annotation.Nonnull;
+
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * Persistence backend of the {@link AS4MPCQueue}. The queue keeps all entries
+ * in memory and handles ordering and visibility on its own - the store is only
+ * informed about new and finally removed entries and read once upon startup.
+ * The queue never invokes the store while holding its lock, so implementations
+ * may perform blocking I/O but must be thread-safe.
+ *
+ * @author Philip Helger
+ */
+public interface IAS4MPCQueueStore
+{
+  /**
+   * @return All persisted entries in arbitrary order. Called once upon
+   *         startup. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  ICommonsList <AS4MPCQueueEntry> getAllEntries ();
+
+  /**
+   * Persist a new entry. The entry only becomes visible in the queue after
+   * this method returned, so it must not return before the entry is durable.
+   *
+   * @param aEntry
+   *        The new entry. Never <code>null</code>.
+   */
+  void onEntryAdded (@Nonnull AS4MPCQueueEntry aEntry);
+
+  /**
+   * Remove a persisted entry, because it was acknowledged.
+   *
+   * @param aEntry
+   *        The entry to be removed. Never <code>null</code>.
+   */
+  void onEntryRemoved (@Nonnull AS4MPCQueueEntry aEntry);
+}
@@ -0,0 +1,554 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.HttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.client.AS4AsyncSendExecutor;
+import com.helger.as4.client.BasicHttpPoster;
+import com.helger.as4.http.AS4HttpDebug;
+import com.helger.as4.model.pmode.PModeReceptionAwareness;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.state.EChange;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.httpclient.response.ResponseHandlerXml;
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * Durable outbox for outgoing AS4 messages. Every message is persisted in an
+ * {@link AS4OutboxLogStore} before it is transmitted and stays there until it
+ * is done. Only the metadata of pending messages is kept in memory. Failed
+ * transmissions are retried according to the {@link PModeReceptionAwareness}
+ * of the P-Mode, with an exponential backoff based on the retry interval. If
+ * reception awareness is enabled, a message is also retransmitted if no
+ * receipt was correlated within the backoff interval.
+ * A message is done if
+ * <ul>
+ * <li>a receipt referencing it was received synchronously or via
+ * {@link #onReceiptReceived(String)},</li>
+ * <li>it was transmitted successfully and no receipt is expected or</li>
+ * <li>all attempts are used up.</li>
+ * </ul>
+ * The number of parallel transmissions per destination URL is limited by an
+ * {@link AS4AsyncSendExecutor}. Pending messages are picked up again after a
+ * restart.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4Outbox implements AutoCloseable
+{
+  public static final int DEFAULT_THREAD_COUNT = 8;
+  public static final int DEFAULT_MAX_IN_FLIGHT_PER_DESTINATION = 4;
+  public static final long DEFAULT_MAX_BACKOFF_MS = TimeUnit.HOURS.toMillis (1);
+  public static final long DEFAULT_POLL_INTERVAL_MS = 1_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4Outbox.class);
+
+  private static final IMutableStatisticsHandlerCounter s_aStatsSent = StatisticsManager.getCounterHandler (AS4Outbox.class.getName () +
+                                                                                                           "$sent");
+  private static final IMutableStatisticsHandlerCounter s_aStatsFailed = StatisticsManager.getCounterHandler (AS4Outbox.class.getName () +
+                                                                                                             "$failed");
+  private static final IMutableStatisticsHandlerCounter s_aStatsCompleted = StatisticsManager.getCounterHandler (AS4Outbox.class.getName () +
+                                                                                                                "$completed");
+  private static final IMutableStatisticsHandlerCounter s_aStatsExpired = StatisticsManager.getCounterHandler (AS4Outbox.class.getName () +
+                                                                                                              "$expired");
+
+  private final AS4OutboxLogStore m_aStore;
+  private final long m_nMaxBackoffMS;
+  private final AS4AsyncSendExecutor m_aSendExecutor;
+  private final ScheduledExecutorService m_aScheduler;
+  private volatile IAS4OutboxTransport m_aTransport = AS4Outbox::_sendViaBasicHttpPoster;
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private final ICommonsOrderedMap <String, AS4OutboxItem> m_aItems = new CommonsLinkedHashMap <> ();
+
+  public AS4Outbox (@Nonnull final File aFile)
+  {
+    this (new AS4OutboxLogStore (aFile),
+          DEFAULT_THREAD_COUNT,
+          DEFAULT_MAX_IN_FLIGHT_PER_DESTINATION,
+          DEFAULT_MAX_BACKOFF_MS,
+          DEFAULT_POLL_INTERVAL_MS);
+  }
+
+  /**
+   * Constructor. All pending items of the store are scheduled for
+   * transmission.
+   *
+   * @param aStore
+   *        The persistent store to use. May not be <code>null</code>. Is closed
+   *        together with this outbox.
+   * @param nThreadCount
+   *        The number of threads used for transmissions. Must be &gt; 0.
+   * @param nMaxInFlightPerDestination
+   *        The maximum number of parallel transmissions to the same URL. Must
+   *        be &gt; 0.
+   * @param nMaxBackoffMS
+   *        The maximum time between two transmissions of the same message. Must
+   *        be &gt; 0.
+   * @param nPollIntervalMS
+   *        The interval in which due messages are checked. Must be &gt; 0.
+   */
+  public AS4Outbox (@Nonnull final AS4OutboxLogStore aStore,
+                    @Nonnegative final int nThreadCount,
+                    @Nonnegative final int nMaxInFlightPerDestination,
+                    @Nonnegative final long nMaxBackoffMS,
+                    @Nonnegative final long nPollIntervalMS)
+  {
+    ValueEnforcer.notNull (aStore, "Store");
+    ValueEnforcer.isGT0 (nMaxBackoffMS, "MaxBackoffMS");
+    ValueEnforcer.isGT0 (nPollIntervalMS, "PollIntervalMS");
+    m_aStore = aStore;
+    m_nMaxBackoffMS = nMaxBackoffMS;
+    m_aSendExecutor = new AS4AsyncSendExecutor (nThreadCount, nMaxInFlightPerDestination);
+
+    for (final AS4OutboxItem aItem : aStore.getAllItems ())
+      m_aItems.put (aItem.getEntry ().getMessageID (), aItem);
+
+    m_aScheduler = Executors.newSingleThreadScheduledExecutor (new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                                .setNamingPattern ("as4-outbox-%d")
+                                                                                                .build ());
+    m_aScheduler.scheduleWithFixedDelay (this::_processDueItems, 0, nPollIntervalMS, TimeUnit.MILLISECONDS);
+  }
+
+  @Nullable
+  private static Document _sendViaBasicHttpPoster (@Nonnull final String sURL,
+                                                   @Nonnull final HttpEntity aHttpEntity) throws Exception
+  {
+    return new BasicHttpPoster ().sendGenericMessage (sURL, aHttpEntity, new ResponseHandlerXml ());
+  }
+
+  /**
+   * @return The transport used for all transmissions. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IAS4OutboxTransport getTransport ()
+  {
+    return m_aTransport;
+  }
+
+  /**
+   * Set the transport to be used. By default a {@link BasicHttpPoster} with the
+   * shared connection pool is used.
+   *
+   * @param aTransport
+   *        The transport to be used. May not be <code>null</code>.
+   */
+  public final void setTransport (@Nonnull final IAS4OutboxTransport aTransport)
+  {
+    ValueEnforcer.notNull (aTransport, "Transport");
+    m_aTransport = aTransport;
+  }
+
+  /**
+   * Get the delay after the provided transmission attempt. The retry interval
+   * is doubled with every attempt.
+   *
+   * @param nRetryIntervalMS
+   *        The base retry interval from the P-Mode. Must be &ge; 0.
+   * @param nAttempt
+   *        The 1-based number of the transmission attempt.
+   * @param nMaxBackoffMS
+   *        The upper bound of the result. Must be &ge; 0.
+   * @return The delay in milliseconds, between 0 and the maximum backoff.
+   */
+  @Nonnegative
+  public static long getBackoffMS (@Nonnegative final int nRetryIntervalMS,
+                                   @Nonnegative final int nAttempt,
+                                   @Nonnegative final long nMaxBackoffMS)
+  {
+    final int nShift = Math.max (nAttempt - 1, 0);
+    if (nShift >= Long.SIZE - 1 || nRetryIntervalMS > (nMaxBackoffMS >> nShift))
+      return nMaxBackoffMS;
+    return Math.min ((long) nRetryIntervalMS << nShift, nMaxBackoffMS);
+  }
+
+  /**
+   * Check if the provided SOAP document contains a receipt for the provided
+   * message ID.
+   *
+   * @param aDoc
+   *        The response document. May be <code>null</code>.
+   * @param sMessageID
+   *        The ID of the sent message. May not be <code>null</code>.
+   * @return <code>true</code> if a matching receipt is contained.
+   */
+  public static boolean containsReceiptFor (@Nullable final Document aDoc, @Nonnull final String sMessageID)
+  {
+    if (aDoc == null)
+      return false;
+    final NodeList aSignals = aDoc.getElementsByTagNameNS (CAS4.EBMS_NS, "SignalMessage");
+    for (int i = 0; i < aSignals.getLength (); ++i)
+    {
+      final Element aSignal = (Element) aSignals.item (i);
+      if (aSignal.getElementsByTagNameNS (CAS4.EBMS_NS, "Receipt").getLength () > 0)
+      {
+        final NodeList aRefs = aSignal.getElementsByTagNameNS (CAS4.EBMS_NS, "RefToMessageId");
+        for (int j = 0; j < aRefs.getLength (); ++j)
+          if (sMessageID.equals (aRefs.item (j).getTextContent ().trim ()))
+            return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Add a new message to the outbox. The message is persisted and the first
+   * transmission is started immediately.
+   *
+   * @param aEntry
+   *        The message to send. May not be <code>null</code>.
+   * @return {@link EChange#UNCHANGED} if a message with the same ID is already
+   *         pending.
+   */
+  @Nonnull
+  public EChange submit (@Nonnull final AS4OutboxEntry aEntry)
+  {
+    ValueEnforcer.notNull (aEntry, "Entry");
+    ValueEnforcer.isTrue (aEntry.hasPayload (), "Entry must contain the payload");
+
+    final String sMessageID = aEntry.getMessageID ();
+    // Only the metadata is kept in memory
+    final AS4OutboxItem aItem = new AS4OutboxItem (aEntry.getWithoutPayload (), 0, 0);
+    final boolean bAdded = m_aLock.locked ( () -> {
+      if (m_aItems.containsKey (sMessageID))
+        return false;
+      // In flight, so that it is not picked up before it is persisted
+      m_aItems.put (sMessageID, aItem);
+      _startAttempt (aItem);
+      return true;
+    });
+    if (!bAdded)
+    {
+      LOGGER.warn ("Message '" + sMessageID + "' is already contained in the outbox");
+      return EChange.UNCHANGED;
+    }
+
+    // Persist outside of the lock
+    try
+    {
+      m_aStore.onItemAdded (aEntry);
+      _persistAttempt (aItem);
+    }
+    catch (final RuntimeException ex)
+    {
+      m_aLock.locked ( () -> {
+        m_aItems.remove (sMessageID);
+      });
+      throw ex;
+    }
+    _transmit (aItem, aEntry.getPayload ());
+    return EChange.CHANGED;
+  }
+
+  /**
+   * Add a new message to the outbox.
+   *
+   * @param sMessageID
+   *        The ebMS message ID. May neither be <code>null</code> nor empty.
+   * @param sPModeID
+   *        The ID of the P-Mode used. May be <code>null</code>.
+   * @param sURL
+   *        The destination URL. May neither be <code>null</code> nor empty.
+   * @param aHttpEntity
+   *        The entity to be sent. May not be <code>null</code>.
+   * @param aReceptionAwareness
+   *        The reception awareness of the P-Mode. May be <code>null</code> in
+   *        which case the message is sent only once.
+   * @param bReceiptExpected
+   *        <code>true</code> if the partner answers this message with a
+   *        receipt.
+   * @return {@link EChange#UNCHANGED} if a message with the same ID is already
+   *         pending.
+   * @throws IOException
+   *         In case the entity cannot be serialized
+   * @see AS4OutboxEntry#create(String, String, String, HttpEntity,
+   *      PModeReceptionAwareness, boolean)
+   */
+  @Nonnull
+  public EChange submit (@Nonnull @Nonempty final String sMessageID,
+                         @Nullable final String sPModeID,
+                         @Nonnull @Nonempty final String sURL,
+                         @Nonnull final HttpEntity aHttpEntity,
+                         @Nullable final PModeReceptionAwareness aReceptionAwareness,
+                         final boolean bReceiptExpected) throws IOException
+  {
+    return submit (AS4OutboxEntry.create (sMessageID,
+                                          sPModeID,
+                                          sURL,
+                                          aHttpEntity,
+                                          aReceptionAwareness,
+                                          bReceiptExpected));
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _startAttempt (@Nonnull final AS4OutboxItem aItem)
+  {
+    final AS4OutboxEntry aEntry = aItem.getEntry ();
+    final int nAttempts = aItem.getAttempts () + 1;
+    final long nNextAttemptMillis = System.currentTimeMillis () +
+                                    getBackoffMS (aEntry.getRetryIntervalMS (), nAttempts, m_nMaxBackoffMS);
+    aItem.setAttempt (nAttempts, nNextAttemptMillis);
+    aItem.setInFlight (true);
+  }
+
+  private void _persistAttempt (@Nonnull final AS4OutboxItem aItem)
+  {
+    // Persist before sending, so that a crash doesn't lead to an additional
+    // attempt. The item is in flight, so the values cannot change.
+    final int nAttempts;
+    final long nNextAttemptMillis;
+    m_aLock.lock ();
+    try
+    {
+      nAttempts = aItem.getAttempts ();
+      nNextAttemptMillis = aItem.getNextAttemptMillis ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    m_aStore.onItemAttempt (aItem.getEntry ().getMessageID (), nAttempts, nNextAttemptMillis);
+  }
+
+  /**
+   * Transmit the provided item.
+   *
+   * @param aItem
+   *        The item to transmit. May not be <code>null</code>.
+   * @param aPayload
+   *        The payload if it is still in memory. May be <code>null</code> in
+   *        which case it is read from the store.
+   */
+  private void _transmit (@Nonnull final AS4OutboxItem aItem, @Nullable final byte [] aPayload)
+  {
+    final AS4OutboxEntry aEntry = aItem.getEntry ();
+    final IAS4OutboxTransport aTransport = m_aTransport;
+    m_aSendExecutor.submit (aEntry.getURL (), () -> {
+      byte [] aEffectivePayload = aPayload;
+      if (aEffectivePayload == null)
+      {
+        aEffectivePayload = m_aStore.readPayload (aEntry.getMessageID ());
+        if (aEffectivePayload == null)
+          throw new IllegalStateException ("The payload of message '" + aEntry.getMessageID () + "' is not stored");
+      }
+      return aTransport.sendMessage (aEntry.getURL (), aEntry.getAsHttpEntity (aEffectivePayload));
+    }).whenComplete ( (aResponse, t) -> _onTransmissionFinished (aItem, aResponse, t));
+  }
+
+  private void _onTransmissionFinished (@Nonnull final AS4OutboxItem aItem,
+                                        @Nullable final Document aResponse,
+                                        @Nullable final Throwable t)
+  {
+    final AS4OutboxEntry aEntry = aItem.getEntry ();
+    final String sMessageID = aEntry.getMessageID ();
+    if (t != null)
+    {
+      s_aStatsFailed.increment ();
+      LOGGER.warn ("Attempt " +
+                   aItem.getAttempts () +
+                   "/" +
+                   aEntry.getMaxAttempts () +
+                   " to send message '" +
+                   sMessageID +
+                   "' to '" +
+                   aEntry.getURL () +
+                   "' failed: " +
+                   t.getMessage ());
+    }
+    else
+    {
+      s_aStatsSent.increment ();
+      AS4HttpDebug.debug ( () -> "SEND-RESPONSE [outbox] received: " +
+                                 (aResponse == null ? "null"
+                                                    : XMLWriter.getNodeAsString (aResponse,
+                                                                                 AS4HttpDebug.getDebugXMLWriterSettings ())));
+    }
+
+    final boolean bDone = t == null && (!aEntry.isAwaitReceipt () || containsReceiptFor (aResponse, sMessageID));
+    final boolean bRemoved = m_aLock.locked ( () -> {
+      aItem.setInFlight (false);
+      // May have been removed in the meantime because of a receipt
+      return bDone && m_aItems.remove (sMessageID, aItem);
+    });
+    if (bRemoved)
+    {
+      m_aStore.onItemRemoved (sMessageID);
+      s_aStatsCompleted.increment ();
+    }
+  }
+
+  private void _processDueItems ()
+  {
+    try
+    {
+      final long nNow = System.currentTimeMillis ();
+      final ICommonsList <AS4OutboxItem> aDue = new CommonsArrayList <> ();
+      final ICommonsList <AS4OutboxItem> aExpired = new CommonsArrayList <> ();
+      m_aLock.locked ( () -> {
+        for (final AS4OutboxItem aItem : m_aItems.values ())
+          if (!aItem.isInFlight () && aItem.getNextAttemptMillis () <= nNow)
+          {
+            if (aItem.isAllAttemptsUsed ())
+              aExpired.add (aItem);
+            else
+            {
+              _startAttempt (aItem);
+              aDue.add (aItem);
+            }
+          }
+        for (final AS4OutboxItem aItem : aExpired)
+          m_aItems.remove (aItem.getEntry ().getMessageID ());
+      });
+
+      // Store I/O happens outside of the lock
+      for (final AS4OutboxItem aItem : aExpired)
+      {
+        m_aStore.onItemRemoved (aItem.getEntry ().getMessageID ());
+        s_aStatsExpired.increment ();
+        LOGGER.error ("Giving up on message '" +
+                      aItem.getEntry ().getMessageID () +
+                      "' to '" +
+                      aItem.getEntry ().getURL () +
+                      "' after " +
+                      aItem.getAttempts () +
+                      " attempt(s)");
+      }
+      for (final AS4OutboxItem aItem : aDue)
+      {
+        LOGGER.info ("Retrying message '" +
+                     aItem.getEntry ().getMessageID () +
+                     "' (attempt " +
+                     aItem.getAttempts () +
+                     "/" +
+                     aItem.getEntry ().getMaxAttempts () +
+                     ")");
+        try
+        {
+          _persistAttempt (aItem);
+        }
+        catch (final RuntimeException ex)
+        {
+          // Try again with the next attempt
+          LOGGER.error ("Failed to persist the attempt of message '" + aItem.getEntry ().getMessageID () + "'", ex);
+          m_aLock.locked ( () -> {
+            aItem.setInFlight (false);
+          });
+          continue;
+        }
+        _transmit (aItem, null);
+      }
+    }
+    catch (final Throwable t)
+    {
+      // Never stop the scheduler
+      LOGGER.error ("Error processing the outbox", t);
+    }
+  }
+
+  /**
+   * Notify the outbox that a receipt for a sent message was received. No
+   * further transmissions of that message happen.
+   *
+   * @param sRefToMessageID
+   *        The ID of the message the receipt refers to. May be
+   *        <code>null</code>.
+   * @return {@link EChange#CHANGED} if a pending message was found.
+   */
+  @Nonnull
+  public EChange onReceiptReceived (@Nullable final String sRefToMessageID)
+  {
+    if (sRefToMessageID == null)
+      return EChange.UNCHANGED;
+    final EChange eChange = m_aLock.locked ( () -> EChange.valueOf (m_aItems.remove (sRefToMessageID) != null));
+    if (eChange.isChanged ())
+    {
+      m_aStore.onItemRemoved (sRefToMessageID);
+      s_aStatsCompleted.increment ();
+      LOGGER.info ("Received receipt for outbox message '" + sRefToMessageID + "'");
+    }
+    return eChange;
+  }
+
+  /**
+   * @param sMessageID
+   *        The message ID to check. May be <code>null</code>.
+   * @return <code>true</code> if the message is still pending.
+   */
+  public boolean isPending (@Nullable final String sMessageID)
+  {
+    return m_aLock.locked ( () -> m_aItems.containsKey (sMessageID));
+  }
+
+  /**
+   * @return The number of pending messages.
+   */
+  @Nonnegative
+  public int getPendingCount ()
+  {
+    return m_aLock.locked (m_aItems::size);
+  }
+
+  /**
+   * Stop scheduling retries and wait until all running transmissions are
+   * finished. Pending messages stay in the store.
+   */
+  public void close ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aScheduler);
+    m_aSendExecutor.close ();
+    m_aStore.close ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Store", m_aStore)
+                                       .append ("MaxBackoffMS", m_nMaxBackoffMS)
+                                       .append ("SendExecutor", m_aSendExecutor)
+                                       .getToString ();
+  }
+}
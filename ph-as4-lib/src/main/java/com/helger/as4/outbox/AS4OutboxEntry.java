@@ -0,0 +1,325 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.outbox;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+import com.helger.as4.http.HttpMimeMessageEntity;
+import com.helger.as4.model.pmode.PModeReceptionAwareness;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableObject;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A single message in the {@link AS4Outbox}. It contains the serialized
+ * message as well as the retry settings derived from the P-Mode reception
+ * awareness at the time the message was added. Once the message is persisted,
+ * only the {@link AS4OutboxLogStore} contains the serialized message and the
+ * entry in memory consists of the metadata only.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public class AS4OutboxEntry
+{
+  private final LocalDateTime m_aCreationDT;
+  private final String m_sMessageID;
+  private final String m_sPModeID;
+  private final String m_sURL;
+  private final boolean m_bMime;
+  private final String m_sContentType;
+  // null if only the store contains the payload
+  private final byte [] m_aPayload;
+  private final int m_nMaxAttempts;
+  private final int m_nRetryIntervalMS;
+  private final boolean m_bAwaitReceipt;
+
+  /**
+   * Constructor
+   *
+   * @param aCreationDT
+   *        Creation date time. May not be <code>null</code>.
+   * @param sMessageID
+   *        The ebMS message ID. May neither be <code>null</code> nor empty.
+   * @param sPModeID
+   *        The ID of the P-Mode used. May be <code>null</code>.
+   * @param sURL
+   *        The destination URL. May neither be <code>null</code> nor empty.
+   * @param bMime
+   *        <code>true</code> if the payload is a MIME message including the
+   *        MIME headers, <code>false</code> if it is a plain SOAP message.
+   * @param sContentType
+   *        The content type of a non-MIME payload. May be <code>null</code>.
+   * @param aPayload
+   *        The serialized message. May be <code>null</code> if the message is
+   *        only contained in the {@link AS4OutboxLogStore}.
+   * @param nMaxAttempts
+   *        The maximum number of transmissions including the first one. Must
+   *        be &gt; 0.
+   * @param nRetryIntervalMS
+   *        The base interval between two transmissions. Must be &ge; 0.
+   * @param bAwaitReceipt
+   *        <code>true</code> if the message is only done once a receipt was
+   *        received, <code>false</code> if a successful transmission is
+   *        sufficient.
+   */
+  public AS4OutboxEntry (@Nonnull final LocalDateTime aCreationDT,
+                         @Nonnull @Nonempty final String sMessageID,
+                         @Nullable final String sPModeID,
+                         @Nonnull @Nonempty final String sURL,
+                         final boolean bMime,
+                         @Nullable final String sContentType,
+                         @Nullable final byte [] aPayload,
+                         @Nonnegative final int nMaxAttempts,
+                         @Nonnegative final int nRetryIntervalMS,
+                         final boolean bAwaitReceipt)
+  {
+    m_aCreationDT = ValueEnforcer.notNull (aCreationDT, "CreationDT");
+    m_sMessageID = ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    m_sPModeID = sPModeID;
+    m_sURL = ValueEnforcer.notEmpty (sURL, "URL");
+    m_bMime = bMime;
+    m_sContentType = sContentType;
+    m_aPayload = aPayload;
+    m_nMaxAttempts = ValueEnforcer.isGT0 (nMaxAttempts, "MaxAttempts");
+    m_nRetryIntervalMS = ValueEnforcer.isGE0 (nRetryIntervalMS, "RetryIntervalMS");
+    m_bAwaitReceipt = bAwaitReceipt;
+  }
+
+  @Nonnull
+  public final LocalDateTime getCreationDateTime ()
+  {
+    return m_aCreationDT;
+  }
+
+  @Nonnull
+  @Nonempty
+  public final String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  @Nullable
+  public final String getPModeID ()
+  {
+    return m_sPModeID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public final String getURL ()
+  {
+    return m_sURL;
+  }
+
+  public final boolean isMime ()
+  {
+    return m_bMime;
+  }
+
+  @Nullable
+  public final String getContentType ()
+  {
+    return m_sContentType;
+  }
+
+  /**
+   * @return <code>true</code> if the serialized message is contained in this
+   *         object.
+   */
+  public final boolean hasPayload ()
+  {
+    return m_aPayload != null;
+  }
+
+  /**
+   * @return The serialized message. May be <code>null</code> if it is only
+   *         contained in the {@link AS4OutboxLogStore}. Don't modify.
+   */
+  @Nullable
+  @ReturnsMutableObject ("speed")
+  public final byte [] getPayload ()
+  {
+    return m_aPayload;
+  }
+
+  /**
+   * @return An entry with the same metadata but without the serialized
+   *         message. Never <code>null</code>.
+   */
+  @Nonnull
+  public AS4OutboxEntry getWithoutPayload ()
+  {
+    if (m_aPayload == null)
+      return this;
+    return new AS4OutboxEntry (m_aCreationDT,
+                               m_sMessageID,
+                               m_sPModeID,
+                               m_sURL,
+                               m_bMime,
+                               m_sContentType,
+                               null,
+                               m_nMaxAttempts,
+                               m_nRetryIntervalMS,
+                               m_bAwaitReceipt);
+  }
+
+  /**
+   * @return The maximum number of transmissions including the first one.
+   *         Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getMaxAttempts ()
+  {
+    return m_nMaxAttempts;
+  }
+
+  @Nonnegative
+  public final int getRetryIntervalMS ()
+  {
+    return m_nRetryIntervalMS;
+  }
+
+  public final boolean isAwaitReceipt ()
+  {
+    return m_bAwaitReceipt;
+  }
+
+  /**
+   * Create a new HTTP entity to transmit this message.
+   *
+   * @param aPayload
+   *        The serialized message, either from this object or from the
+   *        {@link AS4OutboxLogStore}. May not be <code>null</code>.
+   * @return A new HTTP entity to transmit this message. Never
+   *         <code>null</code>.
+   * @throws MessagingException
+   *         If the stored MIME message cannot be parsed
+   */
+  @Nonnull
+  public HttpEntity getAsHttpEntity (@Nonnull final byte [] aPayload) throws MessagingException
+  {
+    ValueEnforcer.notNull (aPayload, "Payload");
+    if (m_bMime)
+    {
+      // The MIME headers are part of the payload and are moved to the HTTP
+      // headers by the sender
+      return new HttpMimeMessageEntity (new MimeMessage (null, new NonBlockingByteArrayInputStream (aPayload)));
+    }
+    final ByteArrayEntity ret = new ByteArrayEntity (aPayload);
+    if (m_sContentType != null)
+      ret.setContentType (m_sContentType);
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("CreationDT", m_aCreationDT)
+                                       .append ("MessageID", m_sMessageID)
+                                       .appendIfNotNull ("PModeID", m_sPModeID)
+                                       .append ("URL", m_sURL)
+                                       .append ("Mime", m_bMime)
+                                       .appendIfNotNull ("ContentType", m_sContentType)
+                                       .append ("PayloadLength", m_aPayload == null ? -1 : m_aPayload.length)
+                                       .append ("MaxAttempts", m_nMaxAttempts)
+                                       .append ("RetryIntervalMS", m_nRetryIntervalMS)
+                                       .append ("AwaitReceipt", m_bAwaitReceipt)
+                                       .getToString ();
+  }
+
+  /**
+   * Create a new outbox entry from an HTTP entity that was not yet sent.
+   *
+   * @param sMessageID
+   *        The ebMS message ID. May neither be <code>null</code> nor empty.
+   * @param sPModeID
+   *        The ID of the P-Mode used. May be <code>null</code>.
+   * @param sURL
+   *        The destination URL. May neither be <code>null</code> nor empty.
+   * @param aHttpEntity
+   *        The entity to be sent. May not be <code>null</code>. The entity is
+   *        consumed by this method.
+   * @param aReceptionAwareness
+   *        The reception awareness of the P-Mode. May be <code>null</code> in
+   *        which case the message is sent only once.
+   * @param bReceiptExpected
+   *        <code>true</code> if the partner answers this message with a
+   *        receipt (user messages), <code>false</code> otherwise (signal
+   *        messages).
+   * @return The new entry. Never <code>null</code>.
+   * @throws IOException
+   *         In case the entity cannot be serialized
+   */
+  @Nonnull
+  public static AS4OutboxEntry create (@Nonnull @Nonempty final String sMessageID,
+                                       @Nullable final String sPModeID,
+                                       @Nonnull @Nonempty final String sURL,
+                                       @Nonnull final HttpEntity aHttpEntity,
+                                       @Nullable final PModeReceptionAwareness aReceptionAwareness,
+                                       final boolean bReceiptExpected) throws IOException
+  {
+    ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
+
+    final boolean bMime = aHttpEntity instanceof HttpMimeMessageEntity;
+    final Header aContentType = aHttpEntity.getContentType ();
+    final byte [] aPayload;
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      aHttpEntity.writeTo (aBAOS);
+      aPayload = aBAOS.toByteArray ();
+    }
+
+    int nMaxAttempts = 1;
+    int nRetryIntervalMS = PModeReceptionAwareness.DEFAULT_RETRY_INTERVAL_MS;
+    boolean bAwaitReceipt = false;
+    if (aReceptionAwareness != null)
+    {
+      if (aReceptionAwareness.isRetry ())
+        nMaxAttempts += aReceptionAwareness.getMaxRetries ();
+      nRetryIntervalMS = aReceptionAwareness.getRetryIntervalMS ();
+      bAwaitReceipt = bReceiptExpected && aReceptionAwareness.isReceptionAwareness ();
+    }
+
+    return new AS4OutboxEntry (PDTFactory.getCurrentLocalDateTime (),
+                               sMessageID,
+                               sPModeID,
+                               sURL,
+                               bMime,
+                               aContentType == null ? null : aContentType.getValue (),
+                               aPayload,
+                               nMaxAttempts,
+                               nRetryIntervalMS,
+                               bAwaitReceipt);
+  }
+}
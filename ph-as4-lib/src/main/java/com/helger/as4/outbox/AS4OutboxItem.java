@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.outbox;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The retry state of a single {@link AS4OutboxEntry}.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public class AS4OutboxItem
+{
+  private final AS4OutboxEntry m_aEntry;
+  private int m_nAttempts;
+  private long m_nNextAttemptMillis;
+  // Not persisted
+  private boolean m_bInFlight = false;
+
+  public AS4OutboxItem (@Nonnull final AS4OutboxEntry aEntry,
+                        @Nonnegative final int nAttempts,
+                        final long nNextAttemptMillis)
+  {
+    m_aEntry = ValueEnforcer.notNull (aEntry, "Entry");
+    m_nAttempts = ValueEnforcer.isGE0 (nAttempts, "Attempts");
+    m_nNextAttemptMillis = nNextAttemptMillis;
+  }
+
+  @Nonnull
+  public final AS4OutboxEntry getEntry ()
+  {
+    return m_aEntry;
+  }
+
+  /**
+   * @return The number of transmissions started so far.
+   */
+  @Nonnegative
+  public final int getAttempts ()
+  {
+    return m_nAttempts;
+  }
+
+  /**
+   * @return The epoch milliseconds at which the next transmission is due (or
+   *         at which the item expires if all attempts are used up).
+   */
+  public final long getNextAttemptMillis ()
+  {
+    return m_nNextAttemptMillis;
+  }
+
+  final void setAttempt (@Nonnegative final int nAttempts, final long nNextAttemptMillis)
+  {
+    m_nAttempts = nAttempts;
+    m_nNextAttemptMillis = nNextAttemptMillis;
+  }
+
+  public final boolean isInFlight ()
+  {
+    return m_bInFlight;
+  }
+
+  final void setInFlight (final boolean bInFlight)
+  {
+    m_bInFlight = bInFlight;
+  }
+
+  /**
+   * @return <code>true</code> if no further transmission is allowed.
+   */
+  public final boolean isAllAttemptsUsed ()
+  {
+    return m_nAttempts >= m_aEntry.getMaxAttempts ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Entry", m_aEntry)
+                                       .append ("Attempts", m_nAttempts)
+                                       .append ("NextAttemptMillis", m_nNextAttemptMillis)
+                                       .append ("InFlight", m_bInFlight)
+                                       .getToString ();
+  }
+}
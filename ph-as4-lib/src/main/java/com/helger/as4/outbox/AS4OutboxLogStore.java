@@ -0,0 +1,419 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.outbox;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.util.AbstractAS4AppendLog;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+
+/**
+ * Persistent store of the {@link AS4Outbox} based on an append-only binary log
+ * file. A new message is written once including its payload; afterwards only
+ * small records for each transmission attempt and the final removal are
+ * appended. Only the position of each payload is kept in memory - the payload
+ * itself is read from the log upon transmission. Once the log contains more
+ * obsolete than live records, it is compacted in the background. See
+ * {@link AbstractAS4AppendLog} for details.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4OutboxLogStore extends AbstractAS4AppendLog <AS4OutboxLogStore.ReplayState>
+{
+  public static final int DEFAULT_MIN_COMPACTION_RECORDS = 1_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4OutboxLogStore.class);
+
+  // File header and version
+  private static final int MAGIC = 0x4153344F;
+  private static final int VERSION = 1;
+
+  // Record types
+  private static final byte RECORD_ADD = 1;
+  private static final byte RECORD_ATTEMPT = 2;
+  private static final byte RECORD_REMOVE = 3;
+
+  // Buffer size for copying payloads during compaction
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The position of a payload in the log file.
+   */
+  @Immutable
+  private static final class PayloadLocation
+  {
+    private final long m_nOffset;
+    private final int m_nLength;
+
+    PayloadLocation (@Nonnegative final long nOffset, @Nonnegative final int nLength)
+    {
+      m_nOffset = nOffset;
+      m_nLength = nLength;
+    }
+
+    @Nonnull
+    PayloadLocation getShifted (final long nShift)
+    {
+      return new PayloadLocation (m_nOffset + nShift, m_nLength);
+    }
+  }
+
+  /**
+   * A channel of the log together with the payload position that is valid for
+   * it.
+   */
+  private static final class PayloadReader implements Closeable
+  {
+    private final FileChannel m_aFC;
+    private final PayloadLocation m_aLocation;
+
+    PayloadReader (@Nonnull final FileChannel aFC, @Nonnull final PayloadLocation aLocation)
+    {
+      m_aFC = aFC;
+      m_aLocation = aLocation;
+    }
+
+    @Nonnull
+    byte [] read () throws IOException
+    {
+      final ByteBuffer aBB = ByteBuffer.allocate (m_aLocation.m_nLength);
+      _readFully (m_aFC, m_aLocation.m_nOffset, aBB);
+      return aBB.array ();
+    }
+
+    public void close () throws IOException
+    {
+      m_aFC.close ();
+    }
+  }
+
+  /**
+   * The result of replaying the log.
+   */
+  static final class ReplayState
+  {
+    private final ICommonsOrderedMap <String, AS4OutboxItem> m_aItems = new CommonsLinkedHashMap <> ();
+    // Payload positions in the replayed log
+    private final ICommonsMap <String, PayloadLocation> m_aPayloads = new CommonsHashMap <> ();
+    // Payload positions in the compacted log
+    private final ICommonsMap <String, PayloadLocation> m_aCompactedPayloads = new CommonsHashMap <> ();
+  }
+
+  // Message ID to payload position in the current log. Only accessed while
+  // appends are blocked.
+  private ICommonsMap <String, PayloadLocation> m_aPayloads = new CommonsHashMap <> ();
+
+  public AS4OutboxLogStore (@Nonnull final File aFile)
+  {
+    this (aFile, DEFAULT_MIN_COMPACTION_RECORDS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aFile
+   *        The log file to use. May not be <code>null</code>. Is created if it
+   *        does not exist.
+   * @param nMinCompactionRecords
+   *        The minimum number of obsolete records before a compaction is
+   *        considered. Must be &ge; 0.
+   */
+  public AS4OutboxLogStore (@Nonnull final File aFile, @Nonnegative final int nMinCompactionRecords)
+  {
+    super (aFile, "outbox log", MAGIC, VERSION, nMinCompactionRecords);
+  }
+
+  private static void _readFully (@Nonnull final FileChannel aFC,
+                                  final long nPosition,
+                                  @Nonnull final ByteBuffer aBB) throws IOException
+  {
+    long nPos = nPosition;
+    while (aBB.hasRemaining ())
+    {
+      final int nRead = aFC.read (aBB, nPos);
+      if (nRead < 0)
+        throw new EOFException ("Outbox log ends within a payload");
+      nPos += nRead;
+    }
+  }
+
+  private static void _writeAddHeader (@Nonnull final LogWriter aWriter,
+                                       @Nonnull final AS4OutboxEntry aEntry,
+                                       @Nonnegative final int nPayloadLength) throws IOException
+  {
+    final LocalDateTime aDT = aEntry.getCreationDateTime ();
+    aWriter.writeByte (RECORD_ADD);
+    aWriter.writeLong (aDT.toEpochSecond (ZoneOffset.UTC));
+    aWriter.writeInt (aDT.getNano ());
+    aWriter.writeString (aEntry.getMessageID ());
+    aWriter.writeString (aEntry.getPModeID ());
+    aWriter.writeString (aEntry.getURL ());
+    aWriter.writeBoolean (aEntry.isMime ());
+    aWriter.writeString (aEntry.getContentType ());
+    aWriter.writeInt (aEntry.getMaxAttempts ());
+    aWriter.writeInt (aEntry.getRetryIntervalMS ());
+    aWriter.writeBoolean (aEntry.isAwaitReceipt ());
+    aWriter.writeInt (nPayloadLength);
+  }
+
+  private static void _writeAttempt (@Nonnull final LogWriter aWriter,
+                                     @Nonnull final String sMessageID,
+                                     final int nAttempts,
+                                     final long nNextAttemptMillis) throws IOException
+  {
+    aWriter.writeByte (RECORD_ATTEMPT);
+    aWriter.writeString (sMessageID);
+    aWriter.writeInt (nAttempts);
+    aWriter.writeLong (nNextAttemptMillis);
+  }
+
+  @Override
+  @Nonnull
+  protected ReplayState createReplayState ()
+  {
+    return new ReplayState ();
+  }
+
+  @Override
+  protected void replayRecord (@Nonnull final ReplayState aState,
+                               final byte nType,
+                               @Nonnull final LogReader aReader) throws IOException
+  {
+    switch (nType)
+    {
+      case RECORD_ADD:
+      {
+        final long nEpochSecond = aReader.readLong ();
+        final int nNano = aReader.readInt ();
+        final String sMessageID = aReader.readString ();
+        final String sPModeID = aReader.readString ();
+        final String sURL = aReader.readString ();
+        final boolean bMime = aReader.readBoolean ();
+        final String sContentType = aReader.readString ();
+        final int nMaxAttempts = aReader.readInt ();
+        final int nRetryIntervalMS = aReader.readInt ();
+        final boolean bAwaitReceipt = aReader.readBoolean ();
+        final int nPayloadLength = aReader.readInt ();
+        if (nPayloadLength < 0)
+          throw new IOException ("Invalid payload length " + nPayloadLength + " in outbox log");
+        final long nPayloadOffset = aReader.getPosition ();
+        // The payload stays on disk
+        aReader.skipFully (nPayloadLength);
+        final AS4OutboxEntry aEntry = new AS4OutboxEntry (LocalDateTime.ofEpochSecond (nEpochSecond,
+                                                                                       nNano,
+                                                                                       ZoneOffset.UTC),
+                                                          sMessageID,
+                                                          sPModeID,
+                                                          sURL,
+                                                          bMime,
+                                                          sContentType,
+                                                          null,
+                                                          nMaxAttempts,
+                                                          nRetryIntervalMS,
+                                                          bAwaitReceipt);
+        // Due immediately
+        aState.m_aItems.put (sMessageID, new AS4OutboxItem (aEntry, 0, 0));
+        aState.m_aPayloads.put (sMessageID, new PayloadLocation (nPayloadOffset, nPayloadLength));
+        break;
+      }
+      case RECORD_ATTEMPT:
+      {
+        final String sMessageID = aReader.readString ();
+        final int nAttempts = aReader.readInt ();
+        final long nNextAttemptMillis = aReader.readLong ();
+        final AS4OutboxItem aItem = aState.m_aItems.get (sMessageID);
+        if (aItem != null)
+          aItem.setAttempt (nAttempts, nNextAttemptMillis);
+        break;
+      }
+      case RECORD_REMOVE:
+      {
+        final String sMessageID = aReader.readString ();
+        aState.m_aItems.remove (sMessageID);
+        aState.m_aPayloads.remove (sMessageID);
+        break;
+      }
+      default:
+        throw new IOException ("Unsupported record type " + nType + " in outbox log");
+    }
+  }
+
+  @Override
+  protected int getLiveItemCount (@Nonnull final ReplayState aState)
+  {
+    return aState.m_aItems.size ();
+  }
+
+  @Override
+  protected void writeLiveRecords (@Nonnull final ReplayState aState,
+                                   @Nonnull final LogWriter aWriter) throws IOException
+  {
+    // Payloads are streamed from the old log
+    try (final FileChannel aFC = openForReading ())
+    {
+      final ByteBuffer aBB = ByteBuffer.allocate (COPY_BUFFER_SIZE);
+      for (final AS4OutboxItem aItem : aState.m_aItems.values ())
+      {
+        final AS4OutboxEntry aEntry = aItem.getEntry ();
+        final String sMessageID = aEntry.getMessageID ();
+        final PayloadLocation aLocation = aState.m_aPayloads.get (sMessageID);
+        _writeAddHeader (aWriter, aEntry, aLocation.m_nLength);
+        aState.m_aCompactedPayloads.put (sMessageID, new PayloadLocation (aWriter.getPosition (), aLocation.m_nLength));
+
+        long nPos = aLocation.m_nOffset;
+        int nRemaining = aLocation.m_nLength;
+        while (nRemaining > 0)
+        {
+          aBB.clear ();
+          aBB.limit (Math.min (nRemaining, aBB.capacity ()));
+          _readFully (aFC, nPos, aBB);
+          aWriter.write (aBB.array (), 0, aBB.limit ());
+          nPos += aBB.limit ();
+          nRemaining -= aBB.limit ();
+        }
+
+        if (aItem.getAttempts () > 0)
+          _writeAttempt (aWriter, sMessageID, aItem.getAttempts (), aItem.getNextAttemptMillis ());
+      }
+    }
+  }
+
+  @Override
+  protected void onReadAll (@Nonnull final ReplayState aState)
+  {
+    m_aPayloads = aState.m_aPayloads;
+  }
+
+  @Override
+  protected void onCompacted (@Nonnull final ReplayState aState, final long nCopiedFrom, final long nCopyShift)
+  {
+    final ICommonsMap <String, PayloadLocation> aPayloads = new CommonsHashMap <> ();
+    m_aPayloads.forEach ( (sMessageID, aLocation) -> {
+      if (aLocation.m_nOffset >= nCopiedFrom)
+      {
+        // Added during compaction
+        aPayloads.put (sMessageID, aLocation.getShifted (nCopyShift));
+      }
+      else
+      {
+        final PayloadLocation aCompacted = aState.m_aCompactedPayloads.get (sMessageID);
+        if (aCompacted != null)
+          aPayloads.put (sMessageID, aCompacted);
+      }
+    });
+    m_aPayloads = aPayloads;
+  }
+
+  /**
+   * Read all items that are still pending. The entries of the items don't
+   * contain the payload - use {@link #readPayload(String)} for that.
+   *
+   * @return The pending items in insertion order. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4OutboxItem> getAllItems ()
+  {
+    final ICommonsList <AS4OutboxItem> ret = new CommonsArrayList <> (readAll ().m_aItems.values ());
+    LOGGER.info ("Read " + ret.size () + " pending outbox items from " + getFile ().getAbsolutePath ());
+    return ret;
+  }
+
+  /**
+   * Read the payload of a pending item from the log. Appends are only blocked
+   * while the log is opened, not while reading.
+   *
+   * @param sMessageID
+   *        The message ID of the item. May be <code>null</code>.
+   * @return <code>null</code> if no such item is pending.
+   * @throws IOException
+   *         if the payload cannot be read
+   */
+  @Nullable
+  public byte [] readPayload (@Nullable final String sMessageID) throws IOException
+  {
+    try (final PayloadReader aReader = runLocked ( () -> {
+      final PayloadLocation aLocation = m_aPayloads.get (sMessageID);
+      return aLocation == null ? null : new PayloadReader (openForReading (), aLocation);
+    }))
+    {
+      return aReader == null ? null : aReader.read ();
+    }
+  }
+
+  /**
+   * Persist a new item.
+   *
+   * @param aEntry
+   *        The entry to add. May not be <code>null</code> and must contain the
+   *        payload.
+   */
+  public void onItemAdded (@Nonnull final AS4OutboxEntry aEntry)
+  {
+    ValueEnforcer.notNull (aEntry, "Entry");
+    ValueEnforcer.isTrue (aEntry.hasPayload (), "Entry must contain the payload");
+
+    final String sMessageID = aEntry.getMessageID ();
+    final byte [] aPayload = aEntry.getPayload ();
+    append (aWriter -> {
+      _writeAddHeader (aWriter, aEntry, aPayload.length);
+      final long nPayloadOffset = aWriter.getPosition ();
+      aWriter.write (aPayload);
+      m_aPayloads.put (sMessageID, new PayloadLocation (nPayloadOffset, aPayload.length));
+    }, 1, 0);
+  }
+
+  public void onItemAttempt (@Nonnull final String sMessageID, final int nAttempts, final long nNextAttemptMillis)
+  {
+    // Supersedes the previous attempt record
+    append (aWriter -> _writeAttempt (aWriter, sMessageID, nAttempts, nNextAttemptMillis), 0, 1);
+  }
+
+  public void onItemRemoved (@Nonnull final String sMessageID)
+  {
+    // The removal kills an add record and is a dead record itself
+    append (aWriter -> {
+      aWriter.writeByte (RECORD_REMOVE);
+      aWriter.writeString (sMessageID);
+      m_aPayloads.remove (sMessageID);
+    }, -1, 2);
+  }
+}
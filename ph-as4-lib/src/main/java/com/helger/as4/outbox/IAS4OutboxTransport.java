@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.outbox;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.http.HttpEntity;
+import org.w3c.dom.Document;
+
+import com.helger.commons.annotation.Nonempty;
+
+/**
+ * Transport used by the {@link AS4Outbox} to transmit a single message.
+ *
+ * @author Philip Helger
+ */
+@FunctionalInterface
+public interface IAS4OutboxTransport
+{
+  /**
+   * Send a message synchronously.
+   *
+   * @param sURL
+   *        Destination URL. Neither <code>null</code> nor empty.
+   * @param aHttpEntity
+   *        The entity to send. Never <code>null</code>.
+   * @return The SOAP response of the partner. May be <code>null</code>.
+   * @throws Exception
+   *         In case the message could not be delivered
+   */
+  @Nullable
+  Document sendMessage (@Nonnull @Nonempty String sURL, @Nonnull HttpEntity aHttpEntity) throws Exception;
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Default implementation of {@link IAS4AttachmentSpillPolicy} with three
+ * limits:
+ * <ul>
+ * <li>the maximum number of bytes a single attachment may keep in memory</li>
+ * <li>the maximum number of bytes all attachments of a single request may keep
+ * in memory</li>
+ * <li>the maximum number of bytes all concurrent requests together may keep in
+ * memory</li>
+ * </ul>
+ * The global limit is only effective, if the same instance is shared by all
+ * resource managers.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4AttachmentSpillPolicy implements IAS4AttachmentSpillPolicy
+{
+  public static final long DEFAULT_MAX_BYTES_PER_ATTACHMENT = 64 * CGlobal.BYTES_PER_KILOBYTE;
+  public static final long DEFAULT_MAX_BYTES_PER_REQUEST = CGlobal.BYTES_PER_MEGABYTE;
+  public static final long DEFAULT_MAX_BYTES_GLOBAL = 64 * CGlobal.BYTES_PER_MEGABYTE;
+
+  /** The default instance using the default limits */
+  public static final AS4AttachmentSpillPolicy DEFAULT_INSTANCE = new AS4AttachmentSpillPolicy (DEFAULT_MAX_BYTES_PER_ATTACHMENT,
+                                                                                                DEFAULT_MAX_BYTES_PER_REQUEST,
+                                                                                                DEFAULT_MAX_BYTES_GLOBAL);
+
+  private final long m_nMaxBytesPerAttachment;
+  private final long m_nMaxBytesPerRequest;
+  private final long m_nMaxBytesGlobal;
+  private final AtomicLong m_aGlobalBytes = new AtomicLong (0);
+
+  /**
+   * Constructor
+   *
+   * @param nMaxBytesPerAttachment
+   *        Maximum bytes per attachment kept in memory. Use 0 to always spill
+   *        to disk.
+   * @param nMaxBytesPerRequest
+   *        Maximum bytes per request kept in memory.
+   * @param nMaxBytesGlobal
+   *        Maximum bytes kept in memory across all concurrent requests.
+   */
+  public AS4AttachmentSpillPolicy (@Nonnegative final long nMaxBytesPerAttachment,
+                                   @Nonnegative final long nMaxBytesPerRequest,
+                                   @Nonnegative final long nMaxBytesGlobal)
+  {
+    ValueEnforcer.isGE0 (nMaxBytesPerAttachment, "MaxBytesPerAttachment");
+    ValueEnforcer.isGE0 (nMaxBytesPerRequest, "MaxBytesPerRequest");
+    ValueEnforcer.isGE0 (nMaxBytesGlobal, "MaxBytesGlobal");
+    m_nMaxBytesPerAttachment = nMaxBytesPerAttachment;
+    m_nMaxBytesPerRequest = nMaxBytesPerRequest;
+    m_nMaxBytesGlobal = nMaxBytesGlobal;
+  }
+
+  @Nonnegative
+  public final long getMaxBytesPerAttachment ()
+  {
+    return m_nMaxBytesPerAttachment;
+  }
+
+  @Nonnegative
+  public final long getMaxBytesPerRequest ()
+  {
+    return m_nMaxBytesPerRequest;
+  }
+
+  @Nonnegative
+  public final long getMaxBytesGlobal ()
+  {
+    return m_nMaxBytesGlobal;
+  }
+
+  /**
+   * @return The number of bytes currently reserved across all requests using
+   *         this policy.
+   */
+  @Nonnegative
+  public final long getGlobalReservedBytes ()
+  {
+    return m_aGlobalBytes.get ();
+  }
+
+  public boolean tryReserve (@Nonnegative final long nRequestBytes,
+                             @Nonnegative final long nAttachmentBytes,
+                             @Nonnegative final long nBytes)
+  {
+    if (nAttachmentBytes + nBytes > m_nMaxBytesPerAttachment)
+      return false;
+    if (nRequestBytes + nBytes > m_nMaxBytesPerRequest)
+      return false;
+
+    while (true)
+    {
+      final long nCurrent = m_aGlobalBytes.get ();
+      if (nCurrent + nBytes > m_nMaxBytesGlobal)
+        return false;
+      if (m_aGlobalBytes.compareAndSet (nCurrent, nCurrent + nBytes))
+        return true;
+    }
+  }
+
+  public void release (@Nonnegative final long nBytes)
+  {
+    m_aGlobalBytes.addAndGet (-nBytes);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxBytesPerAttachment", m_nMaxBytesPerAttachment)
+                                       .append ("MaxBytesPerRequest", m_nMaxBytesPerRequest)
+                                       .append ("MaxBytesGlobal", m_nMaxBytesGlobal)
+                                       .append ("GlobalBytes", m_aGlobalBytes.get ())
+                                       .getToString ();
+  }
+}
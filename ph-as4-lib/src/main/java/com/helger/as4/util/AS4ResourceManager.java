@@ -19,17 +19,23 @@ package com.helger.as4.util;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.WillClose;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.commons.CGlobal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.file.FileIOError;
 import com.helger.commons.io.stream.StreamHelper;
 
@@ -41,9 +47,38 @@ public class AS4ResourceManager implements Closeable
   private final AtomicBoolean m_aInClose = new AtomicBoolean (false);
   private final ICommonsList <File> m_aTempFiles = new CommonsArrayList<> ();
   private final ICommonsList <Closeable> m_aCloseables = new CommonsArrayList<> ();
+  private final IAS4AttachmentSpillPolicy m_aSpillPolicy;
+  private final AtomicLong m_aInMemoryBytes = new AtomicLong (0);
 
   public AS4ResourceManager ()
-  {}
+  {
+    this (AS4AttachmentSpillPolicy.DEFAULT_INSTANCE);
+  }
+
+  public AS4ResourceManager (@Nonnull final IAS4AttachmentSpillPolicy aSpillPolicy)
+  {
+    m_aSpillPolicy = ValueEnforcer.notNull (aSpillPolicy, "SpillPolicy");
+  }
+
+  /**
+   * @return The spill policy used to decide whether content may be kept in
+   *         memory. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IAS4AttachmentSpillPolicy getSpillPolicy ()
+  {
+    return m_aSpillPolicy;
+  }
+
+  /**
+   * @return The number of bytes currently kept in memory by this resource
+   *         manager.
+   */
+  @Nonnegative
+  public final long getInMemoryBytes ()
+  {
+    return m_aInMemoryBytes.get ();
+  }
 
   @Nonnull
   public File createTempFile () throws IOException
@@ -65,13 +100,80 @@ public class AS4ResourceManager implements Closeable
     if (m_aInClose.get ())
       throw new IllegalStateException ("ResourceManager is already closing/closed!");
 
-    m_aCloseables.add (aCloseable);
+    // May be called from multiple threads, e.g. for parallel attachment handling
+    m_aRWLock.writeLocked ( () -> m_aCloseables.add (aCloseable));
+  }
+
+  /**
+   * Adjust the number of bytes kept in memory. Only to be used by
+   * {@link AS4SpillingBuffer} after a successful reservation at the spill
+   * policy.
+   *
+   * @param nBytes
+   *        The number of bytes reserved. Negative to undo a reservation.
+   */
+  void onInMemoryBytesReserved (final long nBytes)
+  {
+    m_aInMemoryBytes.addAndGet (nBytes);
+  }
+
+  /**
+   * Create a new buffer for content that is pushed in chunks. The memory/disk
+   * handling is identical to {@link #readIntoMemoryOrTempFile(InputStream)}.
+   *
+   * @return A new buffer. Never <code>null</code>.
+   */
+  @Nonnull
+  public AS4SpillingBuffer createSpillingBuffer ()
+  {
+    if (m_aInClose.get ())
+      throw new IllegalStateException ("ResourceManager is already closing/closed!");
+    return new AS4SpillingBuffer (this);
+  }
+
+  /**
+   * Read the passed stream completely. The content starts in a heap buffer and
+   * is spilled to a temporary file as soon as the spill policy no longer
+   * allows to keep it in memory. Memory that stays reserved is released when
+   * this resource manager is closed.
+   *
+   * @param aIS
+   *        The stream to read. May not be <code>null</code>. Is closed
+   *        afterwards.
+   * @return A stream provider that can be read multiple times. Never
+   *         <code>null</code>.
+   * @throws IOException
+   *         In case reading or writing fails
+   */
+  @Nonnull
+  public IHasInputStream readIntoMemoryOrTempFile (@Nonnull @WillClose final InputStream aIS) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+
+    try
+    {
+      final AS4SpillingBuffer aSpillingBuffer = createSpillingBuffer ();
+      final byte [] aBuffer = new byte [16 * CGlobal.BYTES_PER_KILOBYTE];
+      int nRead;
+      while ((nRead = aIS.read (aBuffer)) >= 0)
+        aSpillingBuffer.write (aBuffer, 0, nRead);
+      return aSpillingBuffer.close ();
+    }
+    finally
+    {
+      StreamHelper.close (aIS);
+    }
   }
 
   public void close ()
   {
     m_aInClose.set (true);
 
+    // Release all memory reserved by this resource manager
+    final long nInMemoryBytes = m_aInMemoryBytes.getAndSet (0);
+    if (nInMemoryBytes > 0)
+      m_aSpillPolicy.release (nInMemoryBytes);
+
     // Close all closeables before deleting files, because the closables might
     // be the files to be deleted :)
     final ICommonsList <Closeable> aCloseables = m_aRWLock.writeLocked ( () -> {
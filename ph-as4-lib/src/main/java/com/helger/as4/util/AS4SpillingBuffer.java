@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Buffer for content that is pushed in chunks, e.g. by a non-blocking read.
+ * The content starts in a heap buffer and is spilled to a temporary file of
+ * the owning {@link AS4ResourceManager} as soon as its spill policy no longer
+ * allows to keep it in memory. Use
+ * {@link AS4ResourceManager#createSpillingBuffer()} to create instances.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public class AS4SpillingBuffer
+{
+  private final AS4ResourceManager m_aResMgr;
+  private NonBlockingByteArrayOutputStream m_aBAOS = new NonBlockingByteArrayOutputStream ();
+  private File m_aTempFile;
+  private OutputStream m_aFileOS;
+  private long m_nSize = 0;
+  private boolean m_bClosed = false;
+
+  AS4SpillingBuffer (@Nonnull final AS4ResourceManager aResMgr)
+  {
+    m_aResMgr = ValueEnforcer.notNull (aResMgr, "ResMgr");
+  }
+
+  /**
+   * @return The number of bytes written so far. Always &ge; 0.
+   */
+  @Nonnegative
+  public final long getSize ()
+  {
+    return m_nSize;
+  }
+
+  /**
+   * @return <code>true</code> if the content was spilled to a temporary file.
+   */
+  public final boolean isSpilled ()
+  {
+    return m_aTempFile != null;
+  }
+
+  /**
+   * Append content to the buffer.
+   *
+   * @param aBuf
+   *        The source buffer. May not be <code>null</code>.
+   * @param nOfs
+   *        Offset into the source buffer. Must be &ge; 0.
+   * @param nLen
+   *        Number of bytes to append. Must be &ge; 0.
+   * @throws IOException
+   *         In case spilling to disk fails
+   */
+  public void write (@Nonnull final byte [] aBuf,
+                     @Nonnegative final int nOfs,
+                     @Nonnegative final int nLen) throws IOException
+  {
+    ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+    if (m_bClosed)
+      throw new IllegalStateException ("Buffer is already closed");
+    if (nLen == 0)
+      return;
+
+    if (m_aFileOS == null)
+    {
+      final IAS4AttachmentSpillPolicy aSpillPolicy = m_aResMgr.getSpillPolicy ();
+      if (aSpillPolicy.tryReserve (m_aResMgr.getInMemoryBytes (), m_aBAOS.size (), nLen))
+      {
+        m_aResMgr.onInMemoryBytesReserved (nLen);
+        m_aBAOS.write (aBuf, nOfs, nLen);
+        m_nSize += nLen;
+        return;
+      }
+
+      // Threshold crossed - release what was reserved so far and spill
+      final long nReserved = m_aBAOS.size ();
+      m_aResMgr.onInMemoryBytesReserved (-nReserved);
+      aSpillPolicy.release (nReserved);
+
+      m_aTempFile = m_aResMgr.createTempFile ();
+      m_aFileOS = FileHelper.getBufferedOutputStream (m_aTempFile);
+      if (m_aFileOS == null)
+        throw new IOException ("Failed to open " + m_aTempFile.getAbsolutePath () + " for writing");
+      m_aBAOS.writeTo (m_aFileOS);
+      m_aBAOS = null;
+    }
+    m_aFileOS.write (aBuf, nOfs, nLen);
+    m_nSize += nLen;
+  }
+
+  /**
+   * Finish writing. No more content may be appended afterwards.
+   *
+   * @return A stream provider for the buffered content that can be read
+   *         multiple times. Never <code>null</code>.
+   * @throws IOException
+   *         In case closing the temporary file fails
+   */
+  @Nonnull
+  public IHasInputStream close () throws IOException
+  {
+    m_bClosed = true;
+    if (m_aFileOS != null)
+    {
+      m_aFileOS.close ();
+      m_aFileOS = null;
+    }
+    if (m_aTempFile != null)
+    {
+      final File aTempFile = m_aTempFile;
+      return HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile));
+    }
+    final byte [] aBytes = m_aBAOS.toByteArray ();
+    return HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aBytes));
+  }
+
+  /**
+   * Discard the content, e.g. because reading failed. The temporary file (if
+   * any) is deleted when the resource manager is closed.
+   */
+  public void discard ()
+  {
+    m_bClosed = true;
+    StreamHelper.close (m_aFileOS);
+    m_aFileOS = null;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Size", m_nSize)
+                                       .appendIfNotNull ("TempFile", m_aTempFile)
+                                       .append ("Closed", m_bClosed)
+                                       .getToString ();
+  }
+}
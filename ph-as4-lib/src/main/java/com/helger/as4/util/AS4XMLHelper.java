@@ -16,11 +16,18 @@
  */
 package com.helger.as4.util;
 
+import java.io.OutputStream;
 import java.util.Locale;
 import java.util.Map;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -50,9 +57,69 @@ public final class AS4XMLHelper
     XWS.setIndent (EXMLSerializeIndent.NONE);
   }
 
+  // Factory lookup goes through the service loader - do it only once.
+  // TransformerFactory itself is not thread-safe.
+  private static final TransformerFactory s_aTF = TransformerFactory.newInstance ();
+
+  // Transformers are not thread-safe but can be reused after reset
+  private static final ThreadLocal <Transformer> s_aTransformer = ThreadLocal.withInitial (AS4XMLHelper::_createTransformer);
+
   private AS4XMLHelper ()
   {}
 
+  @Nonnull
+  private static Transformer _createTransformer ()
+  {
+    try
+    {
+      synchronized (s_aTF)
+      {
+        return s_aTF.newTransformer ();
+      }
+    }
+    catch (final TransformerConfigurationException ex)
+    {
+      throw new IllegalStateException ("Failed to create XML identity transformer", ex);
+    }
+  }
+
+  private static void _transform (@Nonnull final Source aSource,
+                                  @Nonnull final Result aResult,
+                                  @Nullable final String sEncoding) throws TransformerException
+  {
+    final Transformer aTransformer = s_aTransformer.get ();
+    try
+    {
+      if (sEncoding != null)
+        aTransformer.setOutputProperty (OutputKeys.ENCODING, sEncoding);
+      aTransformer.transform (aSource, aResult);
+    }
+    finally
+    {
+      // Back to the initial state for the next usage on this thread
+      aTransformer.reset ();
+    }
+  }
+
+  /**
+   * Run the identity transformation from the passed source to the passed
+   * result, using the cached transformer of the current thread.
+   *
+   * @param aSource
+   *        Source to read from. May not be <code>null</code>.
+   * @param aResult
+   *        Result to write to. May not be <code>null</code>.
+   * @throws TransformerException
+   *         In case of error
+   */
+  public static void transform (@Nonnull final Source aSource,
+                                @Nonnull final Result aResult) throws TransformerException
+  {
+    ValueEnforcer.notNull (aSource, "Source");
+    ValueEnforcer.notNull (aResult, "Result");
+    _transform (aSource, aResult, null);
+  }
+
   @Nonnull
   private static String _serializePh (@Nonnull final Node aNode)
   {
@@ -64,9 +131,8 @@ public final class AS4XMLHelper
   {
     try
     {
-      final Transformer aTransformer = TransformerFactory.newInstance ().newTransformer ();
       final NonBlockingStringWriter aSW = new NonBlockingStringWriter ();
-      aTransformer.transform (new DOMSource (aNode), new StreamResult (aSW));
+      _transform (new DOMSource (aNode), new StreamResult (aSW), null);
       return aSW.getAsString ();
     }
     catch (final TransformerException ex)
@@ -82,6 +148,32 @@ public final class AS4XMLHelper
     return true ? _serializeRT (aNode) : _serializePh (aNode);
   }
 
+  /**
+   * Serialize the passed node directly to the passed output stream without an
+   * intermediate String. The charset used is the one of {@link #XWS}.
+   *
+   * @param aNode
+   *        The node to serialize. May not be <code>null</code>.
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>. Is not
+   *        closed.
+   */
+  public static void serializeXML (@Nonnull final Node aNode, @Nonnull @WillNotClose final OutputStream aOS)
+  {
+    ValueEnforcer.notNull (aNode, "Node");
+    ValueEnforcer.notNull (aOS, "OutputStream");
+
+    try
+    {
+      // Use runtime serialization otherwise XMLDsig signature wont work
+      _transform (new DOMSource (aNode), new StreamResult (aOS), XWS.getCharset ().name ());
+    }
+    catch (final TransformerException ex)
+    {
+      throw new IllegalStateException ("Failed to serialize XML", ex);
+    }
+  }
+
   /**
    * Get all attributes of the passed element as a map with a lowercase
    * attribute name.
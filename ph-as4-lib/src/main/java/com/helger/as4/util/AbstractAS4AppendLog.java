@@ -0,0 +1,767 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.OverrideOnDemand;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.functional.IThrowingSupplier;
+import com.helger.commons.io.stream.CountingInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Base class for an append-only binary log file. Every change is appended as a
+ * small record, so no full rewrite is necessary upon changes. The log is always
+ * read sequentially. An incomplete record at the end of the file (e.g. after a
+ * crash) is ignored and truncated.<br>
+ * Once the log contains more dead than live records, it is compacted on a
+ * background thread: the live records are written into a temporary file
+ * without blocking appends. Afterwards the records appended in the meantime
+ * are copied over, the temporary file is synced to disk and atomically
+ * replaces the log.
+ *
+ * @author Philip Helger
+ * @param <STATETYPE>
+ *        The type of the state that is created by replaying the log.
+ */
+@ThreadSafe
+public abstract class AbstractAS4AppendLog <STATETYPE> implements Closeable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AbstractAS4AppendLog.class);
+
+  /**
+   * Output stream that knows the position in the log file.
+   */
+  private static final class PositionOutputStream extends FilterOutputStream
+  {
+    private long m_nPosition;
+
+    PositionOutputStream (@Nonnull final OutputStream aOS, @Nonnegative final long nPosition)
+    {
+      super (aOS);
+      m_nPosition = nPosition;
+    }
+
+    @Override
+    public void write (final int b) throws IOException
+    {
+      out.write (b);
+      m_nPosition++;
+    }
+
+    @Override
+    public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      out.write (aBuf, nOfs, nLen);
+      m_nPosition += nLen;
+    }
+  }
+
+  /**
+   * Writes records to the log.
+   */
+  public static final class LogWriter extends DataOutputStream
+  {
+    private final FileOutputStream m_aFOS;
+    private final PositionOutputStream m_aPOS;
+
+    private LogWriter (@Nonnull final FileOutputStream aFOS,
+                       @Nonnull final PositionOutputStream aPOS)
+    {
+      super (aPOS);
+      m_aFOS = aFOS;
+      m_aPOS = aPOS;
+    }
+
+    LogWriter (@Nonnull final FileOutputStream aFOS, @Nonnegative final long nPosition)
+    {
+      this (aFOS, new PositionOutputStream (new BufferedOutputStream (aFOS), nPosition));
+    }
+
+    /**
+     * @return The position in the log file at which the next byte is written.
+     */
+    @Nonnegative
+    public long getPosition ()
+    {
+      return m_aPOS.m_nPosition;
+    }
+
+    /**
+     * Write a nullable string as UTF-8 bytes with a preceding length.
+     *
+     * @param s
+     *        The string to write. May be <code>null</code>.
+     * @throws IOException
+     *         on write error
+     */
+    public void writeString (@Nullable final String s) throws IOException
+    {
+      if (s == null)
+        writeInt (-1);
+      else
+      {
+        final byte [] aBytes = s.getBytes (StandardCharsets.UTF_8);
+        writeInt (aBytes.length);
+        write (aBytes);
+      }
+    }
+
+    void sync () throws IOException
+    {
+      flush ();
+      m_aFOS.getChannel ().force (true);
+    }
+  }
+
+  /**
+   * Reads records from the log.
+   */
+  public static final class LogReader extends DataInputStream
+  {
+    private final CountingInputStream m_aCIS;
+
+    private LogReader (@Nonnull final CountingInputStream aCIS)
+    {
+      super (aCIS);
+      m_aCIS = aCIS;
+    }
+
+    LogReader (@Nonnull final File aFile) throws IOException
+    {
+      this (new CountingInputStream (new BufferedInputStream (new FileInputStream (aFile))));
+    }
+
+    /**
+     * @return The position in the log file of the next byte to be read.
+     */
+    @Nonnegative
+    public long getPosition ()
+    {
+      return m_aCIS.getBytesRead ();
+    }
+
+    /**
+     * @return A string written with {@link LogWriter#writeString(String)}. May
+     *         be <code>null</code>.
+     * @throws IOException
+     *         on read error or if the end of the log is reached
+     */
+    @Nullable
+    public String readString () throws IOException
+    {
+      final int nLen = readInt ();
+      if (nLen < -1)
+        throw new IOException ("Invalid string length " + nLen);
+      if (nLen == -1)
+        return null;
+      final byte [] aBytes = new byte [nLen];
+      readFully (aBytes);
+      return new String (aBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Skip exactly the provided number of bytes.
+     *
+     * @param nBytes
+     *        Number of bytes to skip. Must be &ge; 0.
+     * @throws IOException
+     *         on read error or if the end of the log is reached
+     */
+    public void skipFully (@Nonnegative final long nBytes) throws IOException
+    {
+      long nRemaining = nBytes;
+      while (nRemaining > 0)
+      {
+        final long nSkipped = skip (nRemaining);
+        if (nSkipped <= 0)
+        {
+          // skip may return 0 before EOF - read a single byte to be sure
+          if (read () < 0)
+            throw new EOFException ();
+          nRemaining--;
+        }
+        else
+          nRemaining -= nSkipped;
+      }
+    }
+  }
+
+  /**
+   * Writes records to the log.
+   */
+  @FunctionalInterface
+  protected interface IRecordWriter
+  {
+    void writeRecords (@Nonnull @WillNotClose LogWriter aWriter) throws IOException;
+  }
+
+  private final File m_aFile;
+  private final String m_sLogName;
+  private final int m_nMagic;
+  private final int m_nVersion;
+  private final int m_nMinCompactionRecords;
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private LogWriter m_aWriter;
+  // Number of live items
+  @GuardedBy ("m_aLock")
+  private long m_nLiveItems;
+  // Number of records that don't contribute to the live items
+  @GuardedBy ("m_aLock")
+  private long m_nDeadRecords;
+  // Changed whenever the log is replaced other than by compaction
+  @GuardedBy ("m_aLock")
+  private int m_nGeneration;
+  private final SimpleLock m_aCompactionLock = new SimpleLock ();
+  private final AtomicBoolean m_aCompactionScheduled = new AtomicBoolean (false);
+  private final ExecutorService m_aCompactionES = Executors.newSingleThreadExecutor (new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                                                    .setNamingPattern ("as4-log-compaction-%d")
+                                                                                                                    .build ());
+
+  /**
+   * Constructor
+   *
+   * @param aFile
+   *        The log file to use. May not be <code>null</code>. Is created if it
+   *        does not exist.
+   * @param sLogName
+   *        The name of the log used in messages. May neither be
+   *        <code>null</code> nor empty.
+   * @param nMagic
+   *        The magic number at the beginning of the file.
+   * @param nVersion
+   *        The file format version.
+   * @param nMinCompactionRecords
+   *        The minimum number of dead records before a compaction is
+   *        considered. Must be &ge; 0.
+   */
+  protected AbstractAS4AppendLog (@Nonnull final File aFile,
+                                  @Nonnull @Nonempty final String sLogName,
+                                  final int nMagic,
+                                  final int nVersion,
+                                  @Nonnegative final int nMinCompactionRecords)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    ValueEnforcer.notEmpty (sLogName, "LogName");
+    ValueEnforcer.isGE0 (nMinCompactionRecords, "MinCompactionRecords");
+    m_aFile = aFile;
+    m_sLogName = sLogName;
+    m_nMagic = nMagic;
+    m_nVersion = nVersion;
+    m_nMinCompactionRecords = nMinCompactionRecords;
+  }
+
+  /**
+   * @return The log file. Never <code>null</code>.
+   */
+  @Nonnull
+  public final File getFile ()
+  {
+    return m_aFile;
+  }
+
+  /**
+   * @return The minimum number of dead records before a compaction is
+   *         considered. Always &ge; 0.
+   */
+  @Nonnegative
+  public final int getMinCompactionRecords ()
+  {
+    return m_nMinCompactionRecords;
+  }
+
+  /**
+   * @return A new empty state to replay the log into. Never <code>null</code>.
+   */
+  @Nonnull
+  protected abstract STATETYPE createReplayState ();
+
+  /**
+   * Replay a single record.
+   *
+   * @param aState
+   *        The state to apply the record to. Never <code>null</code>.
+   * @param nType
+   *        The record type as written by the implementation.
+   * @param aReader
+   *        The reader positioned directly after the record type. Never
+   *        <code>null</code>.
+   * @throws IOException
+   *         on read error, on an unknown record type or if the end of the log
+   *         is reached within the record.
+   */
+  protected abstract void replayRecord (@Nonnull STATETYPE aState,
+                                        byte nType,
+                                        @Nonnull LogReader aReader) throws IOException;
+
+  /**
+   * @param aState
+   *        The replayed state. Never <code>null</code>.
+   * @return The number of live items in the provided state.
+   */
+  @Nonnegative
+  protected abstract int getLiveItemCount (@Nonnull STATETYPE aState);
+
+  /**
+   * Write all live items of the provided state during compaction. This is
+   * called while appends to the log are possible.
+   *
+   * @param aState
+   *        The replayed state. Never <code>null</code>.
+   * @param aWriter
+   *        The writer of the compacted log. Never <code>null</code>.
+   * @throws IOException
+   *         on write error
+   */
+  protected abstract void writeLiveRecords (@Nonnull STATETYPE aState,
+                                            @Nonnull LogWriter aWriter) throws IOException;
+
+  /**
+   * Called after a compaction replaced the log, while appends are blocked.
+   * Positions of records appended during the compaction are shifted by the
+   * provided amount, positions of the records written by
+   * {@link #writeLiveRecords(Object, LogWriter)} are the ones at the time of
+   * writing.
+   *
+   * @param aState
+   *        The state passed to {@link #writeLiveRecords(Object, LogWriter)}.
+   *        Never <code>null</code>.
+   * @param nCopiedFrom
+   *        The position in the old log from which on records were copied.
+   * @param nCopyShift
+   *        The difference between the new and the old position of the copied
+   *        records.
+   */
+  @OverrideOnDemand
+  protected void onCompacted (@Nonnull final STATETYPE aState, final long nCopiedFrom, final long nCopyShift)
+  {}
+
+  /**
+   * Called after the complete log was read by {@link #readAll()}, while
+   * appends are blocked.
+   *
+   * @param aState
+   *        The replayed state. Never <code>null</code>.
+   */
+  @OverrideOnDemand
+  protected void onReadAll (@Nonnull final STATETYPE aState)
+  {}
+
+  /**
+   * Run the provided supplier while appends are blocked. This is required to
+   * access data that is modified in record writers,
+   * {@link #onReadAll(Object)} or
+   * {@link #onCompacted(Object, long, long)}.
+   *
+   * @param aSupplier
+   *        The supplier to run. May not be <code>null</code>.
+   * @return The result of the supplier.
+   * @throws IOException
+   *         if the supplier throws it
+   * @param <T>
+   *        Return type
+   */
+  protected final <T> T runLocked (@Nonnull final IThrowingSupplier <? extends T, IOException> aSupplier) throws IOException
+  {
+    return m_aLock.lockedThrowing (aSupplier);
+  }
+
+  /**
+   * Open a new read-only channel of the log file. If this is called from
+   * within {@link #runLocked(IThrowingSupplier)}, the positions of all records
+   * appended so far are valid for the returned channel - even if the log is
+   * compacted afterwards.
+   *
+   * @return The new channel. Never <code>null</code>. Must be closed by the
+   *         caller.
+   * @throws IOException
+   *         if the log cannot be opened
+   */
+  @Nonnull
+  protected final FileChannel openForReading () throws IOException
+  {
+    return FileChannel.open (m_aFile.toPath (), StandardOpenOption.READ);
+  }
+
+  @GuardedBy ("m_aLock")
+  @Nonnull
+  private LogWriter _getWriter () throws IOException
+  {
+    LogWriter ret = m_aWriter;
+    if (ret == null)
+    {
+      ret = _openForAppend (m_aFile);
+      m_aWriter = ret;
+    }
+    return ret;
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _closeWriter ()
+  {
+    StreamHelper.close (m_aWriter);
+    m_aWriter = null;
+  }
+
+  @Nonnull
+  private LogWriter _openForAppend (@Nonnull final File aFile) throws IOException
+  {
+    final long nLength = aFile.exists () ? aFile.length () : 0;
+    final LogWriter ret = new LogWriter (new FileOutputStream (aFile, true), nLength);
+    if (nLength == 0)
+    {
+      ret.writeInt (m_nMagic);
+      ret.writeInt (m_nVersion);
+      ret.flush ();
+    }
+    return ret;
+  }
+
+  /**
+   * Replay the log sequentially.
+   *
+   * @return The length of the valid part of the log and the number of records
+   */
+  @Nonnull
+  private long [] _replay (@Nonnull final STATETYPE aState, final long nMaxLength) throws IOException
+  {
+    long nValidLength = 0;
+    long nRecords = 0;
+    try (final LogReader aReader = new LogReader (m_aFile))
+    {
+      try
+      {
+        if (aReader.readInt () != m_nMagic)
+          throw new IOException ("The file " + m_aFile.getAbsolutePath () + " is not a " + m_sLogName);
+        final int nVersion = aReader.readInt ();
+        if (nVersion != m_nVersion)
+          throw new IOException ("Unsupported " + m_sLogName + " version " + nVersion + " in " + m_aFile.getAbsolutePath ());
+        nValidLength = aReader.getPosition ();
+
+        while (nValidLength < nMaxLength)
+        {
+          final int nType = aReader.read ();
+          if (nType < 0)
+            break;
+          replayRecord (aState, (byte) nType, aReader);
+          nRecords++;
+          nValidLength = aReader.getPosition ();
+        }
+      }
+      catch (final EOFException ex)
+      {
+        LOGGER.warn ("The " +
+                     m_sLogName +
+                     " " +
+                     m_aFile.getAbsolutePath () +
+                     " ends with an incomplete record - ignoring the last " +
+                     (m_aFile.length () - nValidLength) +
+                     " bytes");
+      }
+    }
+    return new long [] { nValidLength, nRecords };
+  }
+
+  /**
+   * Read the complete log. Afterwards new records may be appended.
+   *
+   * @return The replayed state. Never <code>null</code>.
+   * @throws UncheckedIOException
+   *         if the log cannot be read
+   */
+  @Nonnull
+  protected final STATETYPE readAll ()
+  {
+    return m_aLock.locked ( () -> {
+      try
+      {
+        _closeWriter ();
+        m_nGeneration++;
+        final STATETYPE ret = createReplayState ();
+        m_nLiveItems = 0;
+        m_nDeadRecords = 0;
+        if (m_aFile.exists () && m_aFile.length () > 0)
+        {
+          final long [] aResult = _replay (ret, Long.MAX_VALUE);
+          if (aResult[0] < m_aFile.length ())
+          {
+            // Cut off the incomplete record so that new records can be
+            // appended
+            try (final FileChannel aFC = FileChannel.open (m_aFile.toPath (), StandardOpenOption.WRITE))
+            {
+              aFC.truncate (aResult[0]);
+            }
+          }
+          m_nLiveItems = getLiveItemCount (ret);
+          m_nDeadRecords = aResult[1] - m_nLiveItems;
+        }
+        _getWriter ();
+        onReadAll (ret);
+        return ret;
+      }
+      catch (final IOException ex)
+      {
+        throw new UncheckedIOException ("Failed to read " + m_sLogName + " " + m_aFile.getAbsolutePath (), ex);
+      }
+    });
+  }
+
+  /**
+   * Append records to the log. The records are flushed to the file system
+   * before this method returns.
+   *
+   * @param aRecordWriter
+   *        The writer of the records. It is invoked while appends are blocked.
+   *        May not be <code>null</code>.
+   * @param nLiveItemDelta
+   *        The change of the number of live items.
+   * @param nDeadRecordDelta
+   *        The change of the number of dead records.
+   * @throws UncheckedIOException
+   *         if the records cannot be written
+   */
+  protected final void append (@Nonnull final IRecordWriter aRecordWriter,
+                               final long nLiveItemDelta,
+                               final long nDeadRecordDelta)
+  {
+    m_aLock.locked ( () -> {
+      try
+      {
+        final LogWriter aWriter = _getWriter ();
+        aRecordWriter.writeRecords (aWriter);
+        aWriter.flush ();
+      }
+      catch (final IOException ex)
+      {
+        throw new UncheckedIOException ("Failed to write to " + m_sLogName + " " + m_aFile.getAbsolutePath (), ex);
+      }
+      m_nLiveItems += nLiveItemDelta;
+      m_nDeadRecords += nDeadRecordDelta;
+      _scheduleCompactionIfNecessary ();
+    });
+  }
+
+  /**
+   * Remove all records from the log.
+   */
+  protected final void clear ()
+  {
+    m_aLock.locked ( () -> {
+      // Start with an empty file
+      _closeWriter ();
+      m_nGeneration++;
+      AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (m_aFile);
+      try
+      {
+        _getWriter ();
+      }
+      catch (final IOException ex)
+      {
+        throw new UncheckedIOException ("Failed to create " + m_sLogName + " " + m_aFile.getAbsolutePath (), ex);
+      }
+      m_nLiveItems = 0;
+      m_nDeadRecords = 0;
+    });
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _scheduleCompactionIfNecessary ()
+  {
+    if (m_nDeadRecords >= m_nMinCompactionRecords &&
+        m_nDeadRecords > m_nLiveItems &&
+        !m_aCompactionScheduled.getAndSet (true))
+    {
+      try
+      {
+        m_aCompactionES.execute ( () -> {
+          // Allow scheduling the next compaction
+          m_aCompactionScheduled.set (false);
+          compact ();
+        });
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        // Closed - the log is compacted after the next start
+        m_aCompactionScheduled.set (false);
+      }
+    }
+  }
+
+  /**
+   * Rewrite the log so that it only contains the live items. This happens
+   * automatically in the background if the log contains more dead than live
+   * records, but may also be triggered explicitly. Appends are only blocked
+   * while the records appended during the compaction are copied.
+   */
+  public final void compact ()
+  {
+    m_aCompactionLock.locked ( () -> {
+      final File aTmpFile = new File (m_aFile.getParentFile (), m_aFile.getName () + ".tmp");
+      try
+      {
+        _compact (aTmpFile);
+      }
+      catch (final IOException ex)
+      {
+        // Continue with the uncompacted log
+        LOGGER.error ("Failed to compact " + m_sLogName + " " + m_aFile.getAbsolutePath (), ex);
+      }
+      finally
+      {
+        AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aTmpFile);
+      }
+    });
+  }
+
+  private void _compact (@Nonnull final File aTmpFile) throws IOException
+  {
+    // Take a consistent snapshot
+    final long nSnapshotLength;
+    final long nSnapshotDeadRecords;
+    final int nSnapshotGeneration;
+    m_aLock.lock ();
+    try
+    {
+      nSnapshotLength = _getWriter ().getPosition ();
+      nSnapshotDeadRecords = m_nDeadRecords;
+      nSnapshotGeneration = m_nGeneration;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+
+    // Rewrite the live items without blocking appends
+    final STATETYPE aState = createReplayState ();
+    _replay (aState, nSnapshotLength);
+    AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aTmpFile);
+    try (final LogWriter aTmpWriter = _openForAppend (aTmpFile))
+    {
+      writeLiveRecords (aState, aTmpWriter);
+      aTmpWriter.flush ();
+      final long nLiveLength = aTmpWriter.getPosition ();
+
+      m_aLock.lock ();
+      try
+      {
+        if (m_nGeneration != nSnapshotGeneration)
+        {
+          LOGGER.info ("The " + m_sLogName + " " + m_aFile.getAbsolutePath () + " was replaced during compaction");
+          return;
+        }
+
+        // Copy all records appended in the meantime
+        final long nEndLength = _getWriter ().getPosition ();
+        try (final FileChannel aSrcFC = FileChannel.open (m_aFile.toPath (), StandardOpenOption.READ))
+        {
+          final FileChannel aDstFC = aTmpWriter.m_aFOS.getChannel ();
+          long nPos = nSnapshotLength;
+          while (nPos < nEndLength)
+            nPos += aSrcFC.transferTo (nPos, nEndLength - nPos, aDstFC);
+        }
+
+        // Make sure the content is on disk before replacing the log
+        aTmpWriter.sync ();
+        aTmpWriter.close ();
+        _closeWriter ();
+        Files.move (aTmpFile.toPath (),
+                    m_aFile.toPath (),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        m_nDeadRecords = Math.max (m_nDeadRecords - nSnapshotDeadRecords, 0);
+        onCompacted (aState, nSnapshotLength, nLiveLength - nSnapshotLength);
+        LOGGER.info ("Compacted " +
+                     m_sLogName +
+                     " " +
+                     m_aFile.getAbsolutePath () +
+                     " to " +
+                     getLiveItemCount (aState) +
+                     " items");
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+    }
+  }
+
+  /**
+   * @return The number of records in the log that don't belong to live items.
+   */
+  @Nonnegative
+  public final long getDeadRecordCount ()
+  {
+    return m_aLock.locked ( () -> m_nDeadRecords);
+  }
+
+  /**
+   * Wait for a running compaction and close the log file.
+   */
+  public void close ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aCompactionES);
+    m_aLock.locked ( () -> {
+      _closeWriter ();
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("File", m_aFile)
+                                       .append ("MinCompactionRecords", m_nMinCompactionRecords)
+                                       .getToString ();
+  }
+}
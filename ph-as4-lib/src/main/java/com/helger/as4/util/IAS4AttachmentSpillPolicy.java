@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import javax.annotation.Nonnegative;
+
+/**
+ * Policy that decides whether content (e.g. incoming attachments) may be kept
+ * in memory or must be spilled to disk. Content always starts in a heap
+ * buffer and memory is reserved chunk by chunk. As soon as a reservation
+ * fails, the content is written to a temporary file instead.
+ *
+ * @author Philip Helger
+ */
+public interface IAS4AttachmentSpillPolicy
+{
+  /**
+   * Try to reserve additional heap memory for a single piece of content.
+   *
+   * @param nRequestBytes
+   *        The number of bytes already kept in memory by the current request
+   *        (resource manager). Must be &ge; 0.
+   * @param nAttachmentBytes
+   *        The number of bytes already kept in memory for the current piece of
+   *        content. Must be &ge; 0.
+   * @param nBytes
+   *        The number of additional bytes to reserve. Must be &ge; 0.
+   * @return <code>true</code> if the memory was reserved and the content may
+   *         stay in memory, <code>false</code> if the content must be spilled
+   *         to disk.
+   */
+  boolean tryReserve (@Nonnegative long nRequestBytes, @Nonnegative long nAttachmentBytes, @Nonnegative long nBytes);
+
+  /**
+   * Release memory that was previously reserved via
+   * {@link #tryReserve(long, long, long)}.
+   *
+   * @param nBytes
+   *        The number of bytes to release. Must be &ge; 0.
+   */
+  void release (@Nonnegative long nBytes);
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.mail.internet.InternetHeaders;
+import javax.security.auth.callback.Callback;
+
+import org.apache.wss4j.common.ext.Attachment;
+import org.apache.wss4j.common.ext.AttachmentResultCallback;
+import org.junit.Test;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link WSS4JAttachmentCallbackHandler}.
+ *
+ * @author Philip Helger
+ */
+public final class WSS4JAttachmentCallbackHandlerTest
+{
+  private static final int COUNT = 20;
+
+  @Nonnull
+  private static byte [] _getPayload (final int nIndex, final boolean bDecrypted)
+  {
+    return ((bDecrypted ? "decrypted" : "encrypted") + " content of attachment " + nIndex).getBytes (StandardCharsets.UTF_8);
+  }
+
+  @Nonnull
+  private static ICommonsList <WSS4JAttachment> _createIncoming (@Nonnull final AS4ResourceManager aResMgr) throws Exception
+  {
+    final ICommonsList <WSS4JAttachment> ret = new CommonsArrayList <> ();
+    for (int i = 0; i < COUNT; ++i)
+    {
+      final InternetHeaders aHeaders = new InternetHeaders ();
+      aHeaders.addHeader (CHttpHeader.CONTENT_TYPE, "application/octet-stream");
+      aHeaders.addHeader (CHttpHeader.CONTENT_ID, "<id" + i + ">");
+      ret.add (WSS4JAttachment.createIncomingFileAttachment (new NonBlockingByteArrayInputStream (_getPayload (i,
+                                                                                                              false)),
+                                                             aHeaders,
+                                                             aResMgr));
+    }
+    return ret;
+  }
+
+  @Nonnull
+  private static AttachmentResultCallback _createResult (@Nonnull final String sID,
+                                                         @Nonnull final InputStream aIS)
+  {
+    // Emulates a decrypted attachment of WSS4J
+    final Attachment aAttachment = new Attachment ();
+    aAttachment.setId (sID);
+    aAttachment.setMimeType ("application/octet-stream");
+    aAttachment.setSourceStream (aIS);
+
+    final AttachmentResultCallback ret = new AttachmentResultCallback ();
+    ret.setAttachmentId (sID);
+    ret.setAttachment (aAttachment);
+    return ret;
+  }
+
+  private static void _testPersistAll (@Nullable final ExecutorService aES) throws Exception
+  {
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final WSS4JAttachmentCallbackHandler aHandler = new WSS4JAttachmentCallbackHandler (_createIncoming (aResMgr),
+                                                                                          aResMgr,
+                                                                                          aES);
+      // Only every second attachment is "encrypted"
+      for (int i = 0; i < COUNT; i += 2)
+        aHandler.handle (new Callback [] { _createResult ("id" + i,
+                                                          new NonBlockingByteArrayInputStream (_getPayload (i,
+                                                                                                            true))) });
+      aHandler.persistAllResponseAttachments ();
+
+      final ICommonsList <WSS4JAttachment> aResponseAttachments = aHandler.getAllResponseAttachments ();
+      assertEquals (COUNT, aResponseAttachments.size ());
+      for (int i = 0; i < COUNT; ++i)
+      {
+        final WSS4JAttachment aAttachment = aResponseAttachments.get (i);
+        assertEquals ("id" + i, aAttachment.getId ());
+        final byte [] aExpected = _getPayload (i, i % 2 == 0);
+        // Must be readable more than once
+        assertArrayEquals (aExpected, StreamHelper.getAllBytes (aAttachment.getSourceStream ()));
+        assertArrayEquals (aExpected, StreamHelper.getAllBytes (aAttachment.getSourceStream ()));
+      }
+    }
+  }
+
+  @Test
+  public void testPersistAllSequential () throws Exception
+  {
+    _testPersistAll (null);
+  }
+
+  @Test
+  public void testPersistAllParallel () throws Exception
+  {
+    final ExecutorService aES = Executors.newFixedThreadPool (4);
+    try
+    {
+      _testPersistAll (aES);
+    }
+    finally
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+    }
+  }
+
+  @Test
+  public void testPersistAllFailure () throws Exception
+  {
+    final ExecutorService aES = Executors.newFixedThreadPool (4);
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final WSS4JAttachmentCallbackHandler aHandler = new WSS4JAttachmentCallbackHandler (_createIncoming (aResMgr),
+                                                                                          aResMgr,
+                                                                                          aES);
+      // E.g. decryption failed
+      aHandler.handle (new Callback [] { _createResult ("id1", new InputStream ()
+      {
+        @Override
+        public int read () throws IOException
+        {
+          throw new IOException ("Simulated decryption error");
+        }
+      }) });
+
+      try
+      {
+        aHandler.persistAllResponseAttachments ();
+        fail ();
+      }
+      catch (final IOException ex)
+      {
+        // expected
+      }
+      aHandler.waitForPendingPersistence ();
+    }
+    finally
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.mail.internet.InternetHeaders;
+
+import org.junit.Test;
+
+import com.helger.as4.util.AS4AttachmentSpillPolicy;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.CGlobal;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link WSS4JAttachment}.
+ *
+ * @author Philip Helger
+ */
+public final class WSS4JAttachmentTest
+{
+  private static void _testIncoming (final byte [] aPayload, final boolean bBase64) throws Exception
+  {
+    final InternetHeaders aHeaders = new InternetHeaders ();
+    aHeaders.addHeader (CHttpHeader.CONTENT_TYPE, "application/octet-stream");
+    aHeaders.addHeader (CHttpHeader.CONTENT_ID, "<id123>");
+    if (bBase64)
+      aHeaders.addHeader (CHttpHeader.CONTENT_TRANSFER_ENCODING, "base64");
+    final byte [] aRaw = bBase64 ? Base64.getMimeEncoder ().encode (aPayload) : aPayload;
+
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final WSS4JAttachment aAttachment = WSS4JAttachment.createIncomingFileAttachment (new NonBlockingByteArrayInputStream (aRaw),
+                                                                                        aHeaders,
+                                                                                        aResMgr);
+      assertEquals ("id123", aAttachment.getId ());
+      assertEquals ("application/octet-stream", aAttachment.getMimeType ());
+      // Must be readable more than once
+      assertArrayEquals (aPayload, StreamHelper.getAllBytes (aAttachment.getSourceStream ()));
+      assertArrayEquals (aPayload, StreamHelper.getAllBytes (aAttachment.getSourceStream ()));
+    }
+  }
+
+  @Test
+  public void testCreateIncomingSmall () throws Exception
+  {
+    final byte [] aPayload = "<?xml version='1.0'?><root />".getBytes (StandardCharsets.UTF_8);
+    _testIncoming (aPayload, false);
+    _testIncoming (aPayload, true);
+  }
+
+  @Test
+  public void testCreateIncomingLarge () throws Exception
+  {
+    final byte [] aPayload = new byte [200 * CGlobal.BYTES_PER_KILOBYTE + 17];
+    for (int i = 0; i < aPayload.length; ++i)
+      aPayload[i] = (byte) i;
+    _testIncoming (aPayload, false);
+    _testIncoming (aPayload, true);
+  }
+
+  @Test
+  public void testSpillPolicy () throws Exception
+  {
+    final byte [] aSmall = new byte [10 * CGlobal.BYTES_PER_KILOBYTE];
+    final AS4AttachmentSpillPolicy aPolicy = new AS4AttachmentSpillPolicy (16 * CGlobal.BYTES_PER_KILOBYTE,
+                                                                           25 * CGlobal.BYTES_PER_KILOBYTE,
+                                                                           CGlobal.BYTES_PER_MEGABYTE);
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager (aPolicy))
+    {
+      // Both in memory
+      aResMgr.readIntoMemoryOrTempFile (new NonBlockingByteArrayInputStream (aSmall));
+      aResMgr.readIntoMemoryOrTempFile (new NonBlockingByteArrayInputStream (aSmall));
+      assertEquals (2 * aSmall.length, aResMgr.getInMemoryBytes ());
+      assertEquals (2 * aSmall.length, aPolicy.getGlobalReservedBytes ());
+
+      // Request budget exceeded - spilled
+      assertArrayEquals (aSmall,
+                         StreamHelper.getAllBytes (aResMgr.readIntoMemoryOrTempFile (new NonBlockingByteArrayInputStream (aSmall))
+                                                          .getInputStream ()));
+      assertEquals (2 * aSmall.length, aResMgr.getInMemoryBytes ());
+
+      // Attachment threshold exceeded - spilled
+      aResMgr.readIntoMemoryOrTempFile (new NonBlockingByteArrayInputStream (new byte [20 *
+                                                                                           CGlobal.BYTES_PER_KILOBYTE]));
+      assertEquals (2 * aSmall.length, aResMgr.getInMemoryBytes ());
+    }
+    // Everything released
+    assertEquals (0, aPolicy.getGlobalReservedBytes ());
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * Test class for class {@link AS4AsyncSendExecutor}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncSendExecutorTest
+{
+  @Test
+  public void testWindowPerEndpoint () throws Exception
+  {
+    try (final AS4AsyncSendExecutor aExecutor = new AS4AsyncSendExecutor (8, 2))
+    {
+      final CountDownLatch aRelease = new CountDownLatch (1);
+      final AtomicInteger aMaxParallel = new AtomicInteger (0);
+      final AtomicInteger aParallel = new AtomicInteger (0);
+
+      final ICommonsList <CompletableFuture <Integer>> aFutures = new CommonsArrayList <> ();
+      for (int i = 0; i < 10; ++i)
+      {
+        final int nIndex = i;
+        aFutures.add (aExecutor.submit ("http://a", () -> {
+          aMaxParallel.accumulateAndGet (aParallel.incrementAndGet (), Math::max);
+          aRelease.await ();
+          aParallel.decrementAndGet ();
+          return Integer.valueOf (nIndex);
+        }));
+      }
+      // Other endpoints are not affected
+      final CompletableFuture <String> aOther = aExecutor.submit ("http://b", () -> "b");
+      assertEquals ("b", aOther.get (10, TimeUnit.SECONDS));
+
+      // Submitting never blocks - all but the window are queued
+      assertEquals (2, aExecutor.getInFlightCount ("http://a"));
+      assertEquals (8, aExecutor.getQueuedCount ("http://a"));
+
+      aRelease.countDown ();
+      for (int i = 0; i < 10; ++i)
+        assertEquals (i, aFutures.get (i).get (10, TimeUnit.SECONDS).intValue ());
+      assertTrue (aMaxParallel.get () <= 2);
+      assertEquals (0, aExecutor.getInFlightCount ("http://a"));
+    }
+  }
+
+  @Test
+  public void testException () throws Exception
+  {
+    try (final AS4AsyncSendExecutor aExecutor = new AS4AsyncSendExecutor (1, 1))
+    {
+      final CompletableFuture <String> aFuture = aExecutor.submit ("http://a", () -> {
+        throw new IllegalStateException ("oops");
+      });
+      try
+      {
+        aFuture.get (10, TimeUnit.SECONDS);
+      }
+      catch (final ExecutionException ex)
+      {
+        assertTrue (ex.getCause () instanceof IllegalStateException);
+      }
+      assertTrue (aFuture.isCompletedExceptionally ());
+      // Slot was released
+      assertEquals ("ok", aExecutor.submit ("http://a", () -> "ok").get (10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testCloseWaitsForQueued () throws Exception
+  {
+    final AtomicInteger aDone = new AtomicInteger (0);
+    final ICommonsList <CompletableFuture <String>> aFutures = new CommonsArrayList <> ();
+    try (final AS4AsyncSendExecutor aExecutor = new AS4AsyncSendExecutor (2, 1))
+    {
+      for (int i = 0; i < 5; ++i)
+        aFutures.add (aExecutor.submit ("http://a", () -> {
+          Thread.sleep (10);
+          aDone.incrementAndGet ();
+          return "ok";
+        }));
+    }
+    // close returns only after all queued transmissions were executed
+    assertEquals (5, aDone.get ());
+    for (final CompletableFuture <String> aFuture : aFutures)
+      assertTrue (aFuture.isDone ());
+  }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AS4ReceiptCorrelationIndex}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4ReceiptCorrelationIndexTest
+{
+  @Test
+  public void testCorrelate ()
+  {
+    final AS4ReceiptCorrelationIndex aIndex = new AS4ReceiptCorrelationIndex ();
+    final AS4PendingReceipt aPending = aIndex.register ("m1", "http://localhost/as4");
+    aIndex.register ("m2", null);
+    assertEquals (2, aIndex.getPendingCount ());
+    assertSame (aPending, aIndex.getPendingReceipt ("m1"));
+
+    final long nRoundTrips = AS4ReceiptCorrelationIndex.getRoundTripStatistics ().getInvocationCount ();
+    assertSame (aPending, aIndex.onReceiptReceived ("m1"));
+    assertEquals (nRoundTrips + 1, AS4ReceiptCorrelationIndex.getRoundTripStatistics ().getInvocationCount ());
+    assertEquals (1, aIndex.getPendingCount ());
+
+    // Second receipt for the same message
+    final long nUnknown = AS4ReceiptCorrelationIndex.getUnknownReceiptStatistics ().getCount ();
+    assertNull (aIndex.onReceiptReceived ("m1"));
+    assertNull (aIndex.onReceiptReceived (null));
+    assertEquals (nUnknown + 2, AS4ReceiptCorrelationIndex.getUnknownReceiptStatistics ().getCount ());
+
+    assertNotNull (aIndex.unregister ("m2"));
+    assertEquals (0, aIndex.getPendingCount ());
+  }
+
+  @Test
+  public void testExpiry () throws Exception
+  {
+    final AS4ReceiptCorrelationIndex aIndex = new AS4ReceiptCorrelationIndex (10);
+    aIndex.register ("m1", null);
+    Thread.sleep (20);
+
+    final long nExpired = AS4ReceiptCorrelationIndex.getExpiredStatistics ().getCount ();
+    assertEquals (1, aIndex.removeExpired ());
+    assertEquals (nExpired + 1, AS4ReceiptCorrelationIndex.getExpiredStatistics ().getCount ());
+    assertEquals (0, aIndex.getPendingCount ());
+    assertEquals (0, aIndex.removeExpired ());
+    aIndex.close ();
+  }
+
+  @Test
+  public void testScheduledSweep () throws Exception
+  {
+    try (final AS4ReceiptCorrelationIndex aIndex = new AS4ReceiptCorrelationIndex (10))
+    {
+      assertEquals (10, aIndex.getSweepIntervalMS ());
+      aIndex.register ("m1", null);
+      // Removed in the background without any further access
+      for (int i = 0; i < 500 && aIndex.getPendingCount () > 0; ++i)
+        Thread.sleep (10);
+      assertEquals (0, aIndex.getPendingCount ());
+    }
+  }
+}
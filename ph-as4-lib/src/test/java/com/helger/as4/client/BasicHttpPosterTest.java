@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.junit.Test;
+
+import com.helger.as4.http.AS4HttpConnectionPool;
+import com.helger.httpclient.HttpClientFactory;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link BasicHttpPoster}.
+ *
+ * @author Philip Helger
+ */
+public final class BasicHttpPosterTest
+{
+  @Test
+  public void testEffectivePool ()
+  {
+    final BasicHttpPoster aPoster1 = new BasicHttpPoster ();
+    final BasicHttpPoster aPoster2 = new BasicHttpPoster ();
+
+    // Getter has no side effect
+    assertNull (aPoster1.getHttpClientFactory ());
+    assertNull (aPoster1.getHttpClientFactory ());
+    assertSame (AS4HttpConnectionPool.getDefaultInstance (), aPoster1.getEffectiveConnectionPool ());
+    assertSame (aPoster1.getEffectiveConnectionPool (), aPoster2.getEffectiveConnectionPool ());
+
+    // Custom factory - no pool
+    final HttpClientFactory aFactory = new HttpClientFactory ();
+    aPoster2.setHttpClientFactory (aFactory);
+    assertSame (aFactory, aPoster2.getHttpClientFactory ());
+    assertNull (aPoster2.getEffectiveConnectionPool ());
+
+    // Explicit pool has precedence
+    try (final AS4HttpConnectionPool aPool = new AS4HttpConnectionPool (aFactory))
+    {
+      aPoster2.setConnectionPool (aPool);
+      assertSame (aPool, aPoster2.getEffectiveConnectionPool ());
+      aPoster2.setConnectionPool (null);
+      assertNull (aPoster2.getEffectiveConnectionPool ());
+    }
+  }
+
+  @Test
+  public void testConnectionsAreSharedAcrossPosters () throws Exception
+  {
+    final HttpServer aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+    aServer.createContext ("/as4", aExchange -> {
+      final byte [] aBytes = "ok".getBytes (StandardCharsets.UTF_8);
+      aExchange.sendResponseHeaders (200, aBytes.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (aBytes);
+      }
+    });
+    aServer.start ();
+    final AS4HttpConnectionPool aPool = new AS4HttpConnectionPool (new HttpClientFactory ());
+    AS4HttpConnectionPool.setDefaultInstance (aPool);
+    try
+    {
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      for (int i = 0; i < 3; ++i)
+      {
+        // A new poster per message, as done by the clients
+        final String sResponse = new BasicHttpPoster ().sendGenericMessage (sURL,
+                                                                             new StringEntity ("<x/>"),
+                                                                             new BasicResponseHandler ());
+        assertNotNull (sResponse);
+        assertEquals ("ok", sResponse);
+      }
+
+      // All messages were sent over the same kept-alive connection
+      assertEquals (0, aPool.getTotalStats ().getLeased ());
+      assertEquals (1, aPool.getTotalStats ().getAvailable ());
+    }
+    finally
+    {
+      // Closes the pool
+      AS4HttpConnectionPool.setDefaultInstance (null);
+      aServer.stop (0);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnull;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.resource.ClassPathResource;
+
+/**
+ * Test class for class {@link AS4CryptoFactory}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4CryptoFactoryTest
+{
+  private static final String PASSWORD = "test";
+
+  @Nonnull
+  private static X509Certificate _readCert () throws Exception
+  {
+    try (final InputStream aIS = new ClassPathResource ("certs/trustcache-valid.pem").getInputStream ())
+    {
+      return (X509Certificate) CertificateFactory.getInstance ("X.509").generateCertificate (aIS);
+    }
+  }
+
+  @Test
+  public void testTrustStoreChange () throws Exception
+  {
+    final X509Certificate aCert = _readCert ();
+    final File aKeyStoreFile = File.createTempFile ("as4-crypto-", ".jks");
+    try
+    {
+      final KeyStore aKeyStore = KeyStore.getInstance ("JKS");
+      aKeyStore.load (null, null);
+      aKeyStore.setCertificateEntry ("partner", aCert);
+      try (final OutputStream aOS = FileHelper.getOutputStream (aKeyStoreFile))
+      {
+        aKeyStore.store (aOS, PASSWORD.toCharArray ());
+      }
+
+      final ICommonsMap <String, String> aProps = new CommonsHashMap <> ();
+      aProps.put ("org.apache.wss4j.crypto.provider", "org.apache.wss4j.common.crypto.Merlin");
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.file", aKeyStoreFile.getAbsolutePath ());
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.password", PASSWORD);
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.type", "jks");
+      final AS4CryptoFactory aCryptoFactory = new AS4CryptoFactory (aProps);
+      aCryptoFactory.setTrustStoreCheckIntervalMS (0);
+
+      // Crypto was not yet created
+      assertFalse (aCryptoFactory.checkForTrustStoreChange ());
+
+      final Crypto aCrypto = aCryptoFactory.getCrypto ();
+      final AS4TrustDecisionCache aCache = aCryptoFactory.getTrustDecisionCache ();
+      final X509Certificate [] aCerts = { aCert };
+      aCache.onTrusted (aCerts, aCache.getGeneration ());
+      assertEquals (1, aCache.getCacheSize ());
+
+      // Unchanged
+      assertFalse (aCryptoFactory.checkForTrustStoreChange ());
+      assertSame (aCrypto, aCryptoFactory.getCrypto ());
+      assertTrue (aCache.isTrusted (aCerts));
+
+      // Modified
+      assertTrue (aKeyStoreFile.setLastModified (aKeyStoreFile.lastModified () + 10_000));
+      assertTrue (aCryptoFactory.checkForTrustStoreChange ());
+      assertEquals (0, aCache.getCacheSize ());
+      assertFalse (aCache.isTrusted (aCerts));
+      assertNotSame (aCrypto, aCryptoFactory.getCrypto ());
+      assertFalse (aCryptoFactory.checkForTrustStoreChange ());
+    }
+    finally
+    {
+      FileOperations.deleteFileIfExisting (aKeyStoreFile);
+    }
+  }
+
+  @Test
+  public void testCheckInterval () throws Exception
+  {
+    final AS4CryptoFactory aCryptoFactory = new AS4CryptoFactory (new CommonsHashMap <> ());
+    assertEquals (AS4CryptoFactory.DEFAULT_TRUST_STORE_CHECK_INTERVAL_MS,
+                  aCryptoFactory.getTrustStoreCheckIntervalMS ());
+    aCryptoFactory.setTrustStoreCheckIntervalMS (0);
+    assertEquals (0, aCryptoFactory.getTrustStoreCheckIntervalMS ());
+  }
+}
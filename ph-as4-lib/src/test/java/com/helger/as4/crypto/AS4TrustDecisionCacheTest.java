@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.io.resource.ClassPathResource;
+
+/**
+ * Test class for class {@link AS4TrustDecisionCache}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4TrustDecisionCacheTest
+{
+  @Nonnull
+  private static X509Certificate _readCert (@Nonnull final String sPath) throws Exception
+  {
+    try (final InputStream aIS = new ClassPathResource (sPath).getInputStream ())
+    {
+      return (X509Certificate) CertificateFactory.getInstance ("X.509").generateCertificate (aIS);
+    }
+  }
+
+  @Test
+  public void testFingerprint () throws Exception
+  {
+    final X509Certificate aCert = _readCert ("certs/trustcache-valid.pem");
+    final X509Certificate aExpired = _readCert ("certs/trustcache-expired.pem");
+
+    assertNull (AS4TrustDecisionCache.getFingerprint (null));
+    assertNull (AS4TrustDecisionCache.getFingerprint (new X509Certificate [0]));
+    assertNull (AS4TrustDecisionCache.getFingerprint (new X509Certificate [] { null }));
+
+    final String sFP = AS4TrustDecisionCache.getFingerprint (new X509Certificate [] { aCert });
+    assertNotNull (sFP);
+    assertEquals (64, sFP.length ());
+    assertEquals (sFP, AS4TrustDecisionCache.getFingerprint (new X509Certificate [] { aCert }));
+    assertNotEquals (sFP, AS4TrustDecisionCache.getFingerprint (new X509Certificate [] { aExpired }));
+    assertNotEquals (sFP, AS4TrustDecisionCache.getFingerprint (new X509Certificate [] { aCert, aExpired }));
+  }
+
+  @Test
+  public void testBasic () throws Exception
+  {
+    final X509Certificate [] aCerts = { _readCert ("certs/trustcache-valid.pem") };
+    final AS4TrustDecisionCache aCache = new AS4TrustDecisionCache ();
+    assertFalse (aCache.isTrusted (aCerts));
+    assertFalse (aCache.isTrusted (null));
+
+    aCache.onTrusted (aCerts, aCache.getGeneration ());
+    assertTrue (aCache.isTrusted (aCerts));
+    assertEquals (1, aCache.getCacheSize ());
+
+    // Nothing to cache
+    aCache.onTrusted (null, aCache.getGeneration ());
+    assertEquals (1, aCache.getCacheSize ());
+
+    // Trust store changed
+    aCache.invalidate ();
+    assertFalse (aCache.isTrusted (aCerts));
+    assertEquals (0, aCache.getCacheSize ());
+  }
+
+  @Test
+  public void testDecisionBeforeInvalidation () throws Exception
+  {
+    final X509Certificate [] aCerts = { _readCert ("certs/trustcache-valid.pem") };
+    final AS4TrustDecisionCache aCache = new AS4TrustDecisionCache ();
+
+    final long nGeneration = aCache.getGeneration ();
+    // Trust store changes while the decision is made
+    aCache.invalidate ();
+    aCache.onTrusted (aCerts, nGeneration);
+    assertFalse (aCache.isTrusted (aCerts));
+    assertEquals (0, aCache.getCacheSize ());
+  }
+
+  @Test
+  public void testExpiration () throws Exception
+  {
+    final X509Certificate [] aCerts = { _readCert ("certs/trustcache-valid.pem") };
+    final X509Certificate [] aExpiredCerts = { _readCert ("certs/trustcache-expired.pem") };
+
+    // notAfter is in the past
+    AS4TrustDecisionCache aCache = new AS4TrustDecisionCache ();
+    aCache.onTrusted (aExpiredCerts, aCache.getGeneration ());
+    assertFalse (aCache.isTrusted (aExpiredCerts));
+
+    // The expired certificate limits the whole chain
+    aCache.onTrusted (new X509Certificate [] { aCerts[0], aExpiredCerts[0] }, aCache.getGeneration ());
+    assertFalse (aCache.isTrusted (new X509Certificate [] { aCerts[0], aExpiredCerts[0] }));
+
+    // TTL
+    aCache = new AS4TrustDecisionCache (10, 1);
+    aCache.onTrusted (aCerts, aCache.getGeneration ());
+    Thread.sleep (10);
+    assertFalse (aCache.isTrusted (aCerts));
+  }
+
+  @Test
+  public void testMaxSize () throws Exception
+  {
+    final X509Certificate [] aCerts = { _readCert ("certs/trustcache-valid.pem") };
+    final X509Certificate [] aCerts2 = { aCerts[0], aCerts[0] };
+    final AS4TrustDecisionCache aCache = new AS4TrustDecisionCache ().setMaxSize (1);
+    assertEquals (1, aCache.getMaxSize ());
+
+    aCache.onTrusted (aCerts, aCache.getGeneration ());
+    aCache.onTrusted (aCerts2, aCache.getGeneration ());
+    assertEquals (1, aCache.getCacheSize ());
+    assertFalse (aCache.isTrusted (aCerts));
+    assertTrue (aCache.isTrusted (aCerts2));
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.time.LocalDateTime;
+
+import org.junit.Test;
+
+import com.helger.as4.util.AS4IOHelper;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.datetime.PDTFactory;
+
+/**
+ * Test class for class {@link AS4DuplicateBinaryLogStore}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4DuplicateBinaryLogStoreTest
+{
+  @Test
+  public void testRoundTrip () throws Exception
+  {
+    final File aFile = new File ("target/duplicate-roundtrip.bin");
+    AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+
+    final LocalDateTime aNow = PDTFactory.getCurrentLocalDateTime ();
+    try (final AS4DuplicateBinaryLogStore aStore = new AS4DuplicateBinaryLogStore (aFile))
+    {
+      assertTrue (aStore.getAllItems ().isEmpty ());
+      aStore.onItemAdded (new AS4DuplicateItem (aNow, "a", "profile", "pmode"));
+      aStore.onItemAdded (new AS4DuplicateItem (aNow, "b", null, null));
+      aStore.onItemAdded (new AS4DuplicateItem (aNow, "c\u00e4", "profile", null));
+      aStore.onItemsRemoved (new CommonsArrayList <> ("b"));
+    }
+
+    try (final AS4DuplicateBinaryLogStore aStore = new AS4DuplicateBinaryLogStore (aFile))
+    {
+      final ICommonsList <IAS4DuplicateItem> aItems = aStore.getAllItems ();
+      assertEquals (2, aItems.size ());
+      assertEquals ("a", aItems.get (0).getMessageID ());
+      assertEquals ("profile", aItems.get (0).getProfileID ());
+      assertEquals ("pmode", aItems.get (0).getPModeID ());
+      assertEquals (aNow, aItems.get (0).getDateTime ());
+      assertEquals ("c\u00e4", aItems.get (1).getMessageID ());
+      assertEquals (null, aItems.get (1).getPModeID ());
+
+      aStore.onAllItemsRemoved ();
+      assertTrue (aStore.getAllItems ().isEmpty ());
+    }
+  }
+
+  @Test
+  public void testCompaction () throws Exception
+  {
+    final File aFile = new File ("target/duplicate-compaction.bin");
+    AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+
+    final LocalDateTime aNow = PDTFactory.getCurrentLocalDateTime ();
+    final long nSizeBefore;
+    try (final AS4DuplicateBinaryLogStore aStore = new AS4DuplicateBinaryLogStore (aFile, 10))
+    {
+      aStore.getAllItems ();
+      for (int i = 0; i < 20; ++i)
+        aStore.onItemAdded (new AS4DuplicateItem (aNow, "id" + i, null, null));
+      nSizeBefore = aFile.length ();
+
+      final ICommonsList <String> aRemoved = new CommonsArrayList <> ();
+      for (int i = 0; i < 15; ++i)
+        aRemoved.add ("id" + i);
+      aStore.onItemsRemoved (aRemoved);
+      // Compaction happens in the background - close waits for it
+    }
+
+    assertTrue (aFile.length () < nSizeBefore);
+    try (final AS4DuplicateBinaryLogStore aStore = new AS4DuplicateBinaryLogStore (aFile, 10))
+    {
+      assertEquals (5, aStore.getAllItems ().size ());
+      assertEquals (0, aStore.getDeadRecordCount ());
+
+      // Explicit compaction keeps later records
+      aStore.onItemsRemoved (new CommonsArrayList <> ("id15"));
+      aStore.compact ();
+      assertEquals (0, aStore.getDeadRecordCount ());
+      aStore.onItemAdded (new AS4DuplicateItem (aNow, "id20", null, null));
+      final ICommonsList <IAS4DuplicateItem> aItems = aStore.getAllItems ();
+      assertEquals (5, aItems.size ());
+      assertEquals ("id16", aItems.getFirst ().getMessageID ());
+      assertEquals ("id20", aItems.getLast ().getMessageID ());
+    }
+  }
+
+  @Test
+  public void testIncompleteRecord () throws Exception
+  {
+    final File aFile = new File ("target/duplicate-incomplete.bin");
+    AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+
+    final LocalDateTime aNow = PDTFactory.getCurrentLocalDateTime ();
+    try (final AS4DuplicateBinaryLogStore aStore = new AS4DuplicateBinaryLogStore (aFile))
+    {
+      aStore.onItemAdded (new AS4DuplicateItem (aNow, "a", null, null));
+      aStore.onItemAdded (new AS4DuplicateItem (aNow, "b", null, null));
+    }
+
+    // Simulate a crash while writing the last record
+    try (final RandomAccessFile aRAF = new RandomAccessFile (aFile, "rw"))
+    {
+      aRAF.setLength (aRAF.length () - 3);
+    }
+
+    try (final AS4DuplicateBinaryLogStore aStore = new AS4DuplicateBinaryLogStore (aFile))
+    {
+      assertEquals (1, aStore.getAllItems ().size ());
+      aStore.onItemAdded (new AS4DuplicateItem (aNow, "c", null, null));
+      assertEquals (2, aStore.getAllItems ().size ());
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.state.EContinue;
+
+/**
+ * Test class for class {@link AS4DuplicateManager}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4DuplicateManagerTest
+{
+  private static final class MockStore implements IAS4DuplicateStore
+  {
+    private final ICommonsMap <String, IAS4DuplicateItem> m_aMap = new CommonsLinkedHashMap <> ();
+
+    @Nonnull
+    public synchronized ICommonsList <IAS4DuplicateItem> getAllItems ()
+    {
+      return m_aMap.copyOfValues ();
+    }
+
+    public synchronized void onItemAdded (@Nonnull final AS4DuplicateItem aItem)
+    {
+      m_aMap.put (aItem.getMessageID (), aItem);
+    }
+
+    public synchronized void onItemsRemoved (@Nonnull final ICommonsList <String> aMessageIDs)
+    {
+      aMessageIDs.forEach (m_aMap::remove);
+    }
+
+    public synchronized void onAllItemsRemoved ()
+    {
+      m_aMap.clear ();
+    }
+  }
+
+  @Test
+  public void testBasic ()
+  {
+    final MockStore aStore = new MockStore ();
+    final AS4DuplicateManager aMgr = new AS4DuplicateManager (aStore);
+    assertTrue (aMgr.isEmpty ());
+
+    // No ID - no check
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck (null, null, null));
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("", null, null));
+    assertTrue (aMgr.isEmpty ());
+
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("a", "profile", "pmode"));
+    assertEquals (EContinue.BREAK, aMgr.registerAndCheck ("a", "profile", "pmode"));
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("b", null, null));
+    assertEquals (2, aMgr.size ());
+    assertTrue (aMgr.containsWithID ("a"));
+    assertNotNull (aMgr.findFirst (x -> x.getMessageID ().equals ("b")));
+    assertEquals (2, aStore.getAllItems ().size ());
+
+    // Reload from store
+    final AS4DuplicateManager aMgr2 = new AS4DuplicateManager (aStore);
+    assertEquals (2, aMgr2.size ());
+    assertEquals (EContinue.BREAK, aMgr2.registerAndCheck ("b", null, null));
+
+    // Evict
+    assertTrue (aMgr.evictAllItemsBefore (PDTFactory.getCurrentLocalDateTime ().minusMinutes (1)).isEmpty ());
+    assertEquals (2, aMgr.evictAllItemsBefore (PDTFactory.getCurrentLocalDateTime ().plusMinutes (1)).size ());
+    assertTrue (aMgr.isEmpty ());
+    assertTrue (aStore.getAllItems ().isEmpty ());
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("a", "profile", "pmode"));
+
+    assertTrue (aMgr.clearCache ().isChanged ());
+    assertFalse (aMgr.containsWithID ("a"));
+    assertTrue (aStore.getAllItems ().isEmpty ());
+  }
+
+  @Test
+  public void testTimeBuckets ()
+  {
+    final MockStore aStore = new MockStore ();
+    final LocalDateTime aNow = PDTFactory.getCurrentLocalDateTime ();
+    // Items from the past, one bucket per minute
+    for (int i = 0; i < 10; ++i)
+      aStore.onItemAdded (new AS4DuplicateItem (aNow.minusMinutes (i + 1), "old" + i, null, null));
+
+    final AS4DuplicateManager aMgr = new AS4DuplicateManager (aStore, 60);
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("new", null, null));
+    assertEquals (11, aMgr.size ());
+    assertTrue (aMgr.getBucketCount () >= 10);
+
+    // Everything older than 5 minutes and 30 seconds
+    final ICommonsList <String> aEvicted = aMgr.evictAllItemsBefore (aNow.minusMinutes (5).minusSeconds (30));
+    // Bucket granularity: at least the 4 items older than 6 minutes
+    assertTrue (aEvicted.size () >= 4);
+    assertTrue (aEvicted.size () <= 5);
+    assertTrue (aEvicted.contains ("old9"));
+    assertFalse (aEvicted.contains ("old3"));
+    assertEquals (EContinue.BREAK, aMgr.registerAndCheck ("old3", null, null));
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("old9", null, null));
+    assertEquals (11 - aEvicted.size (), aStore.getAllItems ().size () - 1);
+  }
+
+  @Test
+  public void testUnregister ()
+  {
+    final MockStore aStore = new MockStore ();
+    final AS4DuplicateManager aMgr = new AS4DuplicateManager (aStore);
+    assertTrue (aMgr.registerAndCheck ("a", null, null).isContinue ());
+    assertTrue (aMgr.unregister ("a").isChanged ());
+    assertFalse (aMgr.unregister ("a").isChanged ());
+    assertTrue (aStore.getAllItems ().isEmpty ());
+
+    // Can be registered again
+    assertTrue (aMgr.registerAndCheck ("a", null, null).isContinue ());
+    assertTrue (aMgr.registerAndCheck ("a", null, null).isBreak ());
+    assertEquals (1, aMgr.size ());
+  }
+
+  @Test
+  public void testConcurrentRegistration () throws Exception
+  {
+    final AS4DuplicateManager aMgr = new AS4DuplicateManager (new MockStore ());
+    final AtomicInteger aContinueCount = new AtomicInteger (0);
+    final ExecutorService aES = Executors.newFixedThreadPool (8);
+    for (int i = 0; i < 8; ++i)
+      aES.submit ( () -> {
+        for (int j = 0; j < 1000; ++j)
+          if (aMgr.registerAndCheck ("id" + j, null, null).isContinue ())
+            aContinueCount.incrementAndGet ();
+      });
+    aES.shutdown ();
+    assertTrue (aES.awaitTermination (1, TimeUnit.MINUTES));
+
+    // Each ID may pass exactly once
+    assertEquals (1000, aContinueCount.get ());
+    assertEquals (1000, aMgr.size ());
+  }
+}
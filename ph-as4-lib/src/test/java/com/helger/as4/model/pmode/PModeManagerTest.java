@@ -16,7 +16,13 @@
  */
 package com.helger.as4.model.pmode;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -24,6 +30,10 @@ import org.junit.rules.TestRule;
 
 import com.helger.as4.AS4TestRule;
 import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.EMEP;
+import com.helger.as4.model.EMEPBinding;
+import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
 
 /**
  * Test class for class {@link PModeManager}.
@@ -41,4 +51,84 @@ public final class PModeManagerTest
     final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
     assertNotNull (aPModeMgr);
   }
+
+  @Test
+  public void testIndexes ()
+  {
+    final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
+    final PMode aPMode = new PMode ( (i, r) -> "pmode-index-test",
+                                     PModeParty.createSimple ("idx-initiator", "Role"),
+                                     PModeParty.createSimple ("idx-responder", "Role"),
+                                     "idx-agreement",
+                                     EMEP.ONE_WAY,
+                                     EMEPBinding.PUSH,
+                                     new PModeLeg (null,
+                                                   new PModeLegBusinessInformation ("idx-service", "idx-action", null, null),
+                                                   null,
+                                                   null,
+                                                   null),
+                                     null,
+                                     null,
+                                     null);
+    aPModeMgr.createPMode (aPMode);
+    try
+    {
+      assertSame (aPMode, aPModeMgr.getPModeOfServiceAndAction ("idx-service", "idx-action"));
+      assertNull (aPModeMgr.getPModeOfServiceAndAction ("idx-service", "other-action"));
+      assertSame (aPMode, aPModeMgr.getPModeOfInitiatorAndResponder ("idx-initiator", "idx-responder"));
+      assertEquals (1, aPModeMgr.getAllPModesOfInitiatorAndResponder ("idx-initiator", "idx-responder").size ());
+      assertSame (aPMode, aPModeMgr.getPModeOfAgreement ("idx-agreement"));
+
+      // Update changes the index keys
+      final PMode aUpdate = new PMode ( (i, r) -> "pmode-index-test",
+                                        PModeParty.createSimple ("idx-initiator", "Role"),
+                                        PModeParty.createSimple ("idx-responder", "Role"),
+                                        "idx-agreement2",
+                                        EMEP.ONE_WAY,
+                                        EMEPBinding.PUSH,
+                                        new PModeLeg (null,
+                                                      new PModeLegBusinessInformation ("idx-service",
+                                                                                       "idx-action2",
+                                                                                       null,
+                                                                                       null),
+                                                      null,
+                                                      null,
+                                                      null),
+                                        null,
+                                        null,
+                                        null);
+      aPModeMgr.updatePMode (aUpdate);
+      assertNull (aPModeMgr.getPModeOfServiceAndAction ("idx-service", "idx-action"));
+      final IPMode aUpdated = aPModeMgr.getPModeOfServiceAndAction ("idx-service", "idx-action2");
+      assertNotNull (aUpdated);
+      assertSame (aUpdated, aPModeMgr.getPModeOfID (aPMode.getID ()));
+      assertNull (aPModeMgr.getPModeOfAgreement ("idx-agreement"));
+      assertSame (aUpdated, aPModeMgr.getPModeOfAgreement ("idx-agreement2"));
+
+      // Copy-on-write: the previous object is unchanged
+      assertNotSame (aPMode, aUpdated);
+      assertEquals ("idx-agreement", aPMode.getAgreement ());
+      assertEquals (aPMode.getCreationDateTime (), aUpdated.getCreationDateTime ());
+
+      // The legs are copied as well
+      assertNotSame (aUpdate.getLeg1 (), aUpdated.getLeg1 ());
+      aUpdate.getLeg1 ().getBusinessInfo ().setAction ("idx-action3");
+      assertEquals ("idx-action2", aUpdated.getLeg1 ().getBusinessInfo ().getAction ());
+
+      // Marking as deleted doesn't modify the published object
+      assertTrue (aPModeMgr.markPModeDeleted (aPMode.getID ()).isChanged ());
+      assertFalse (aUpdated.isDeleted ());
+      final IPMode aDeleted = aPModeMgr.getPModeOfID (aPMode.getID ());
+      assertNotNull (aDeleted);
+      assertTrue (aDeleted.isDeleted ());
+      assertTrue (aPModeMgr.markPModeDeleted (aPMode.getID ()).isUnchanged ());
+    }
+    finally
+    {
+      aPModeMgr.deletePMode (aPMode.getID ());
+    }
+    assertNull (aPModeMgr.getPModeOfServiceAndAction ("idx-service", "idx-action2"));
+    assertNull (aPModeMgr.getPModeOfInitiatorAndResponder ("idx-initiator", "idx-responder"));
+    assertNull (aPModeMgr.getPModeOfAgreement ("idx-agreement2"));
+  }
 }
@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.model.pmode.resolve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.as4.AS4TestRule;
+import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.EMEP;
+import com.helger.as4.model.EMEPBinding;
+import com.helger.as4.model.pmode.DefaultPMode;
+import com.helger.as4.model.pmode.IPMode;
+import com.helger.as4.model.pmode.PMode;
+import com.helger.as4.model.pmode.PModeManager;
+import com.helger.as4.model.pmode.PModeParty;
+import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
+
+/**
+ * Test class for class {@link CachingPModeResolver}.
+ *
+ * @author Philip Helger
+ */
+public final class CachingPModeResolverTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  private static final IPMode PMODE = new PMode ( (i, r) -> "pmode-cache-test",
+                                                  PModeParty.createSimple ("initiator", "Role"),
+                                                  PModeParty.createSimple ("responder", "Role"),
+                                                  "agreement",
+                                                  EMEP.ONE_WAY,
+                                                  EMEPBinding.PUSH,
+                                                  new PModeLeg (null,
+                                                                new PModeLegBusinessInformation ("s", "a", null, null),
+                                                                null,
+                                                                null,
+                                                                null),
+                                                  null,
+                                                  null,
+                                                  null);
+
+  private static final class MockResolver extends CachingPModeResolver
+  {
+    private final AtomicLong m_aVersion = new AtomicLong (0);
+
+    MockResolver (final IPModeResolver aResolver, final int nMaxSize, final long nTTLMillis)
+    {
+      super (aResolver, nMaxSize, nTTLMillis);
+    }
+
+    @Override
+    protected long getCurrentPModeVersion ()
+    {
+      return m_aVersion.get ();
+    }
+  }
+
+  @Test
+  public void testBasic ()
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final MockResolver aResolver = new MockResolver ( (id, s, a, i, r, addr) -> {
+      aCalls.incrementAndGet ();
+      return PMODE;
+    }, 2, 60_000);
+
+    assertSame (PMODE, aResolver.getPModeOfID (null, "s", "a", "i", "r", null));
+    assertEquals (1, aCalls.get ());
+    assertSame (PMODE, aResolver.getPModeOfID (null, "s", "a", "i", "r", null));
+    assertEquals (1, aCalls.get ());
+    assertEquals (1, aResolver.getCacheSize ());
+
+    // Different key
+    aResolver.getPModeOfID (null, "s", "a2", "i", "r", null);
+    assertEquals (2, aCalls.get ());
+
+    // Size is limited
+    aResolver.getPModeOfID (null, "s", "a3", "i", "r", null);
+    assertEquals (3, aCalls.get ());
+    assertEquals (2, aResolver.getCacheSize ());
+
+    // PModes changed
+    aResolver.m_aVersion.incrementAndGet ();
+    aResolver.getPModeOfID (null, "s", "a3", "i", "r", null);
+    assertEquals (4, aCalls.get ());
+    assertEquals (1, aResolver.getCacheSize ());
+  }
+
+  @Test
+  public void testExpiration () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final MockResolver aResolver = new MockResolver ( (id, s, a, i, r, addr) -> {
+      aCalls.incrementAndGet ();
+      return PMODE;
+    }, 10, 1);
+
+    aResolver.getPModeOfID ("id", "s", "a", "i", "r", null);
+    Thread.sleep (10);
+    aResolver.getPModeOfID ("id", "s", "a", "i", "r", null);
+    assertEquals (2, aCalls.get ());
+  }
+
+  @Test
+  public void testFailuresAreNotCached ()
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final MockResolver aResolver = new MockResolver ( (id, s, a, i, r, addr) -> {
+      aCalls.incrementAndGet ();
+      return null;
+    }, 10, 60_000);
+
+    assertNull (aResolver.getPModeOfID (null, "s", "a", "i", "r", null));
+    assertNull (aResolver.getPModeOfID (null, "s", "a", "i", "r", null));
+    assertEquals (2, aCalls.get ());
+    assertEquals (0, aResolver.getCacheSize ());
+  }
+
+  @Test
+  public void testModifiedWhileResolving ()
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final AtomicLong aVersion = new AtomicLong (0);
+    final CachingPModeResolver aResolver = new CachingPModeResolver ( (id, s, a, i, r, addr) -> {
+      // Simulate another thread that modifies a PMode
+      if (aCalls.incrementAndGet () == 1)
+        aVersion.incrementAndGet ();
+      return PMODE;
+    }, 10, 60_000)
+    {
+      @Override
+      protected long getCurrentPModeVersion ()
+      {
+        return aVersion.get ();
+      }
+
+      @Override
+      protected long getPModeVersionOfCurrentThread ()
+      {
+        return 0;
+      }
+    };
+
+    // Result of an outdated version is not cached
+    assertSame (PMODE, aResolver.getPModeOfID (null, "s", "a", "i", "r", null));
+    assertEquals (0, aResolver.getCacheSize ());
+
+    assertSame (PMODE, aResolver.getPModeOfID (null, "s", "a", "i", "r", null));
+    assertEquals (1, aResolver.getCacheSize ());
+    assertSame (PMODE, aResolver.getPModeOfID (null, "s", "a", "i", "r", null));
+    assertEquals (2, aCalls.get ());
+  }
+
+  @Test
+  public void testPersistedByResolver ()
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final AtomicLong aVersion = new AtomicLong (0);
+    final AtomicLong aOwnVersion = new AtomicLong (0);
+    final CachingPModeResolver aResolver = new CachingPModeResolver ( (id, s, a, i, r, addr) -> {
+      // Simulate a resolver that creates a PMode
+      aCalls.incrementAndGet ();
+      aOwnVersion.set (aVersion.incrementAndGet ());
+      return PMODE;
+    }, 10, 60_000)
+    {
+      @Override
+      protected long getCurrentPModeVersion ()
+      {
+        return aVersion.get ();
+      }
+
+      @Override
+      protected long getPModeVersionOfCurrentThread ()
+      {
+        return aOwnVersion.get ();
+      }
+    };
+
+    // The own modification does not prevent caching
+    assertSame (PMODE, aResolver.getPModeOfID (null, "s", "a", "i", "r", null));
+    assertEquals (1, aResolver.getCacheSize ());
+    assertSame (PMODE, aResolver.getPModeOfID (null, "s", "a", "i", "r", null));
+    assertEquals (1, aCalls.get ());
+  }
+
+  @Test
+  public void testTemplatePersistingResolver ()
+  {
+    final String sInitiatorID = "cache-initiator";
+    final String sResponderID = "cache-responder";
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final CachingPModeResolver aResolver = new CachingPModeResolver ( (id, s, a, i, r, addr) -> {
+      aCalls.incrementAndGet ();
+      // Creates or updates the PMode upon each call
+      return DefaultPMode.getOrCreateDefaultPMode (i, r, addr, true);
+    }, 10, 60_000);
+
+    final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
+    final IPMode aPMode = aResolver.getPModeOfID (null, "s", "a", sInitiatorID, sResponderID, null);
+    assertNotNull (aPMode);
+    try
+    {
+      assertEquals (1, aCalls.get ());
+
+      // Second lookup is a cache hit
+      final int nHits = CachingPModeResolver.getCacheStatistics ().getHits ();
+      assertSame (aPMode, aResolver.getPModeOfID (null, "s", "a", sInitiatorID, sResponderID, null));
+      assertEquals (1, aCalls.get ());
+      assertEquals (nHits + 1, CachingPModeResolver.getCacheStatistics ().getHits ());
+
+      // Persisting the same template again does not invalidate the cache
+      final long nVersion = aPModeMgr.getSnapshotVersion ();
+      DefaultPMode.getOrCreateDefaultPMode (sInitiatorID, sResponderID, null, true);
+      assertEquals (nVersion, aPModeMgr.getSnapshotVersion ());
+      assertSame (aPMode, aResolver.getPModeOfID (null, "s", "a", sInitiatorID, sResponderID, null));
+      assertEquals (1, aCalls.get ());
+    }
+    finally
+    {
+      aPModeMgr.deletePMode (aPMode.getID ());
+    }
+  }
+}
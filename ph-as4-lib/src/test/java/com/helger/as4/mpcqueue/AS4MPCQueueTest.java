@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.mpcqueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.messaging.domain.MessageHelperMethods;
+import com.helger.as4.util.AS4IOHelper;
+import com.helger.as4lib.ebms3header.Ebms3UserMessage;
+import com.helger.commons.concurrent.ThreadHelper;
+
+/**
+ * Test class for class {@link AS4MPCQueue}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4MPCQueueTest
+{
+  private static final String MPC_ID = "urn:test:mpc";
+
+  @Nonnull
+  private static Ebms3UserMessage _createUserMessage (@Nonnull final String sMessageID)
+  {
+    final Ebms3UserMessage ret = new Ebms3UserMessage ();
+    ret.setMessageInfo (MessageHelperMethods.createEbms3MessageInfo (sMessageID, null));
+    ret.setPartyInfo (MessageHelperMethods.createEbms3PartyInfo ("fromrole", "from", "torole", "to"));
+    ret.setCollaborationInfo (MessageHelperMethods.createEbms3CollaborationInfo (null,
+                                                                                 null,
+                                                                                 null,
+                                                                                 "service",
+                                                                                 "action",
+                                                                                 "conversation"));
+    return ret;
+  }
+
+  @Test
+  public void testFIFO ()
+  {
+    final AS4MPCQueue aQueue = new AS4MPCQueue (new AS4MPCQueueMemoryStore ());
+    assertNull (aQueue.dequeue (MPC_ID));
+    assertEquals (0, aQueue.getDepth (MPC_ID));
+    assertEquals (0, aQueue.getOldestMessageAgeMillis (MPC_ID));
+
+    assertTrue (aQueue.enqueue (MPC_ID, _createUserMessage ("a")).isChanged ());
+    assertTrue (aQueue.enqueue (MPC_ID, _createUserMessage ("b")).isChanged ());
+    assertTrue (aQueue.enqueue (null, _createUserMessage ("c")).isChanged ());
+    // Duplicate
+    assertFalse (aQueue.enqueue (MPC_ID, _createUserMessage ("a")).isChanged ());
+    assertEquals (2, aQueue.getDepth (MPC_ID));
+    assertEquals (1, aQueue.getDepth (CAS4.DEFAULT_MPC_ID));
+    assertEquals (3, aQueue.getTotalDepth ());
+    assertEquals (2, aQueue.getAllMPCIDs ().size ());
+
+    AS4MPCQueueEntry aEntry = aQueue.dequeue (MPC_ID);
+    assertNotNull (aEntry);
+    assertEquals ("a", aEntry.getMessageID ());
+    assertEquals ("a", aEntry.getUserMessage ().getMessageInfo ().getMessageId ());
+    assertEquals (1, aQueue.getVisibleCount (MPC_ID));
+    assertEquals (1, aQueue.getInFlightCount (MPC_ID));
+    assertEquals (2, aQueue.getDepth (MPC_ID));
+
+    aEntry = aQueue.dequeue (MPC_ID);
+    assertNotNull (aEntry);
+    assertEquals ("b", aEntry.getMessageID ());
+    assertNull (aQueue.dequeue (MPC_ID));
+
+    assertTrue (aQueue.acknowledge ("a").isChanged ());
+    assertFalse (aQueue.acknowledge ("a").isChanged ());
+    assertTrue (aQueue.acknowledge ("b").isChanged ());
+    assertEquals (0, aQueue.getDepth (MPC_ID));
+
+    aEntry = aQueue.dequeue (CAS4.DEFAULT_MPC_ID);
+    assertNotNull (aEntry);
+    assertEquals ("c", aEntry.getMessageID ());
+  }
+
+  @Test
+  public void testVisibilityTimeout ()
+  {
+    final AS4MPCQueue aQueue = new AS4MPCQueue (new AS4MPCQueueMemoryStore (), 50);
+    aQueue.enqueue (MPC_ID, _createUserMessage ("a"));
+    aQueue.enqueue (MPC_ID, _createUserMessage ("b"));
+
+    assertEquals ("a", aQueue.dequeue (MPC_ID).getMessageID ());
+    ThreadHelper.sleep (100);
+
+    // Not acknowledged in time - visible again at the front
+    assertEquals (2, aQueue.getVisibleCount (MPC_ID));
+    assertEquals ("a", aQueue.dequeue (MPC_ID).getMessageID ());
+
+    // Release explicitly
+    assertTrue (aQueue.release ("a").isChanged ());
+    assertFalse (aQueue.release ("a").isChanged ());
+    assertEquals ("a", aQueue.dequeue (MPC_ID).getMessageID ());
+    assertTrue (aQueue.acknowledge ("a").isChanged ());
+    assertEquals ("b", aQueue.dequeue (MPC_ID).getMessageID ());
+  }
+
+  @Test
+  public void testNoVisibilityTimeout ()
+  {
+    final AS4MPCQueue aQueue = new AS4MPCQueue (new AS4MPCQueueMemoryStore (), 0);
+    aQueue.enqueue (MPC_ID, _createUserMessage ("a"));
+    assertEquals ("a", aQueue.dequeue (MPC_ID).getMessageID ());
+    assertEquals (0, aQueue.getDepth (MPC_ID));
+    assertFalse (aQueue.containsMessage ("a"));
+  }
+
+  @Test
+  public void testDequeueAsync () throws Exception
+  {
+    try (final AS4MPCQueue aQueue = new AS4MPCQueue (new AS4MPCQueueMemoryStore ()))
+    {
+      // Immediately available
+      aQueue.enqueue (MPC_ID, _createUserMessage ("a"));
+      CompletableFuture <AS4MPCQueueEntry> aFuture = aQueue.dequeueAsync (MPC_ID, 0);
+      assertTrue (aFuture.isDone ());
+      assertEquals ("a", aFuture.get ().getMessageID ());
+
+      // Not waiting
+      aFuture = aQueue.dequeueAsync (MPC_ID, 0);
+      assertTrue (aFuture.isDone ());
+      assertNull (aFuture.get ());
+
+      // Parked until a message arrives
+      final CompletableFuture <AS4MPCQueueEntry> aFuture1 = aQueue.dequeueAsync (MPC_ID, 60_000);
+      final CompletableFuture <AS4MPCQueueEntry> aFuture2 = aQueue.dequeueAsync (MPC_ID, 60_000);
+      assertFalse (aFuture1.isDone ());
+      assertEquals (2, aQueue.getWaitingCount (MPC_ID));
+      aQueue.enqueue (MPC_ID, _createUserMessage ("b"));
+      assertTrue (aFuture1.isDone ());
+      assertEquals ("b", aFuture1.get ().getMessageID ());
+      assertFalse (aFuture2.isDone ());
+      assertEquals (1, aQueue.getInFlightCount (MPC_ID));
+
+      // Cancelled waiters are skipped
+      aFuture2.cancel (false);
+      final CompletableFuture <AS4MPCQueueEntry> aFuture3 = aQueue.dequeueAsync (MPC_ID, 60_000);
+      aQueue.enqueue (MPC_ID, _createUserMessage ("c"));
+      assertEquals ("c", aFuture3.get ().getMessageID ());
+      assertEquals (0, aQueue.getWaitingCount (MPC_ID));
+
+      // Timeout
+      aFuture = aQueue.dequeueAsync (MPC_ID, 50);
+      assertNull (aFuture.get (10, TimeUnit.SECONDS));
+      assertEquals (0, aQueue.getWaitingCount (MPC_ID));
+
+      // A message that becomes visible again while waiting is served at the
+      // latest when the wait time expired
+      aQueue.setVisibilityTimeoutMS (500);
+      aQueue.enqueue (MPC_ID, _createUserMessage ("d"));
+      assertEquals ("d", aQueue.dequeue (MPC_ID).getMessageID ());
+      aFuture = aQueue.dequeueAsync (MPC_ID, 1_000);
+      assertFalse (aFuture.isDone ());
+      assertEquals ("d", aFuture.get (10, TimeUnit.SECONDS).getMessageID ());
+      aQueue.acknowledge ("d");
+
+      // Closing completes all parked requests
+      aFuture = aQueue.dequeueAsync (MPC_ID, 60_000);
+      aQueue.close ();
+      assertTrue (aFuture.isDone ());
+      assertNull (aFuture.get ());
+    }
+  }
+
+  @Test
+  public void testAcknowledgePulled () throws Exception
+  {
+    try (final AS4MPCQueue aQueue = new AS4MPCQueue (new AS4MPCQueueMemoryStore ()))
+    {
+      aQueue.enqueue (MPC_ID, _createUserMessage ("a"));
+      aQueue.enqueue (MPC_ID, _createUserMessage ("b"));
+      assertEquals ("a", aQueue.dequeue (MPC_ID, "p1").getMessageID ());
+
+      // Pulled by someone else
+      assertFalse (aQueue.acknowledgePulled ("a", "p2").isChanged ());
+      assertFalse (aQueue.acknowledgePulled ("a", null).isChanged ());
+      // Not pulled at all
+      assertFalse (aQueue.acknowledgePulled ("b", "p1").isChanged ());
+      assertFalse (aQueue.acknowledgePulled ("x", "p1").isChanged ());
+      assertEquals (2, aQueue.getDepth (MPC_ID));
+
+      assertTrue (aQueue.acknowledgePulled ("a", "p1").isChanged ());
+      assertFalse (aQueue.acknowledgePulled ("a", "p1").isChanged ());
+      assertEquals (1, aQueue.getDepth (MPC_ID));
+
+      // Parked requests remember the pulling party as well
+      assertEquals ("b", aQueue.dequeue (MPC_ID, null).getMessageID ());
+      final CompletableFuture <AS4MPCQueueEntry> aFuture = aQueue.dequeueAsync (MPC_ID, "p3", 60_000);
+      aQueue.enqueue (MPC_ID, _createUserMessage ("c"));
+      assertEquals ("c", aFuture.get (10, TimeUnit.SECONDS).getMessageID ());
+      assertFalse (aQueue.acknowledgePulled ("c", null).isChanged ());
+      assertTrue (aQueue.acknowledgePulled ("c", "p3").isChanged ());
+      assertTrue (aQueue.acknowledgePulled ("b", null).isChanged ());
+      assertEquals (0, aQueue.getDepth (MPC_ID));
+    }
+  }
+
+  @Test (timeout = 10_000)
+  public void testStoreOutsideOfLock () throws Exception
+  {
+    final CountDownLatch aWriting = new CountDownLatch (1);
+    final CountDownLatch aProceed = new CountDownLatch (1);
+    final AS4MPCQueue aQueue = new AS4MPCQueue (new AS4MPCQueueMemoryStore ()
+    {
+      @Override
+      public void onEntryAdded (@Nonnull final AS4MPCQueueEntry aEntry)
+      {
+        aWriting.countDown ();
+        try
+        {
+          aProceed.await ();
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+        }
+      }
+    });
+    final Thread aThread = new Thread ( () -> aQueue.enqueue (MPC_ID, _createUserMessage ("a")));
+    aThread.start ();
+    aWriting.await ();
+
+    // The queue is usable while the message is written
+    assertTrue (aQueue.containsMessage ("a"));
+    assertEquals (0, aQueue.getVisibleCount (MPC_ID));
+    assertNull (aQueue.dequeue (MPC_ID));
+    // Duplicates are still detected
+    assertFalse (aQueue.enqueue (MPC_ID, _createUserMessage ("a")).isChanged ());
+
+    aProceed.countDown ();
+    aThread.join ();
+    assertEquals ("a", aQueue.dequeue (MPC_ID).getMessageID ());
+  }
+
+  @Test
+  public void testFileStore ()
+  {
+    final File aDir = new File ("target/mpc-queue");
+    AS4IOHelper.getFileOperationManager ().deleteDirRecursiveIfExisting (aDir);
+
+    AS4MPCQueue aQueue = new AS4MPCQueue (new AS4MPCQueueFileStore (aDir));
+    aQueue.enqueue (MPC_ID, _createUserMessage ("a"));
+    aQueue.enqueue (MPC_ID, _createUserMessage ("b"));
+    aQueue.enqueue (MPC_ID, _createUserMessage ("c"));
+    assertEquals ("a", aQueue.dequeue (MPC_ID).getMessageID ());
+    assertEquals ("b", aQueue.dequeue (MPC_ID).getMessageID ());
+    aQueue.acknowledge ("b");
+
+    // Simulate a restart - "a" was not acknowledged
+    aQueue = new AS4MPCQueue (new AS4MPCQueueFileStore (aDir));
+    assertEquals (2, aQueue.getDepth (MPC_ID));
+    final AS4MPCQueueEntry aEntry = aQueue.dequeue (MPC_ID);
+    assertEquals ("a", aEntry.getMessageID ());
+    assertEquals ("to", aEntry.getUserMessage ().getPartyInfo ().getTo ().getPartyIdAtIndex (0).getValue ());
+    assertEquals ("c", aQueue.dequeue (MPC_ID).getMessageID ());
+
+    // New messages are appended after the existing ones
+    aQueue.enqueue (MPC_ID, _createUserMessage ("d"));
+    aQueue.release ("c");
+    assertEquals ("c", aQueue.dequeue (MPC_ID).getMessageID ());
+    assertEquals ("d", aQueue.dequeue (MPC_ID).getMessageID ());
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.outbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.time.LocalDateTime;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.as4.util.AS4IOHelper;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.datetime.PDTFactory;
+
+/**
+ * Test class for class {@link AS4OutboxLogStore}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutboxLogStoreTest
+{
+  @Test
+  public void testRoundTrip () throws Exception
+  {
+    final File aFile = new File ("target/outbox-roundtrip.bin");
+    AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+
+    final LocalDateTime aNow = PDTFactory.getCurrentLocalDateTime ();
+    try (final AS4OutboxLogStore aStore = new AS4OutboxLogStore (aFile))
+    {
+      assertTrue (aStore.getAllItems ().isEmpty ());
+      aStore.onItemAdded (new AS4OutboxEntry (aNow,
+                                              "a",
+                                              "pmode",
+                                              "http://localhost/as4",
+                                              false,
+                                              "application/soap+xml",
+                                              new byte [] { 1, 2, 3 },
+                                              3,
+                                              1000,
+                                              true));
+      aStore.onItemAdded (new AS4OutboxEntry (aNow,
+                                              "b",
+                                              null,
+                                              "http://localhost/as4",
+                                              true,
+                                              null,
+                                              new byte [0],
+                                              1,
+                                              0,
+                                              false));
+      aStore.onItemAttempt ("a", 1, 4711);
+      aStore.onItemAttempt ("a", 2, 4712);
+      aStore.onItemRemoved ("b");
+    }
+
+    try (final AS4OutboxLogStore aStore = new AS4OutboxLogStore (aFile))
+    {
+      final ICommonsList <AS4OutboxItem> aItems = aStore.getAllItems ();
+      assertEquals (1, aItems.size ());
+      final AS4OutboxItem aItem = aItems.getFirst ();
+      assertEquals (2, aItem.getAttempts ());
+      assertEquals (4712, aItem.getNextAttemptMillis ());
+      assertFalse (aItem.isInFlight ());
+
+      final AS4OutboxEntry aEntry = aItem.getEntry ();
+      assertEquals (aNow, aEntry.getCreationDateTime ());
+      assertEquals ("a", aEntry.getMessageID ());
+      assertEquals ("pmode", aEntry.getPModeID ());
+      assertEquals ("http://localhost/as4", aEntry.getURL ());
+      assertFalse (aEntry.isMime ());
+      assertEquals ("application/soap+xml", aEntry.getContentType ());
+      // The payload is only read on demand
+      assertFalse (aEntry.hasPayload ());
+      assertArrayEquals (new byte [] { 1, 2, 3 }, aStore.readPayload ("a"));
+      assertNull (aStore.readPayload ("b"));
+      assertEquals (3, aEntry.getMaxAttempts ());
+      assertEquals (1000, aEntry.getRetryIntervalMS ());
+      assertTrue (aEntry.isAwaitReceipt ());
+    }
+  }
+
+  @Nonnull
+  private static AS4OutboxEntry _createEntry (@Nonnull final String sMessageID, final int nPayloadLength)
+  {
+    final byte [] aPayload = new byte [nPayloadLength];
+    for (int i = 0; i < nPayloadLength; ++i)
+      aPayload[i] = (byte) (sMessageID.hashCode () + i);
+    return new AS4OutboxEntry (PDTFactory.getCurrentLocalDateTime (),
+                               sMessageID,
+                               null,
+                               "http://localhost/as4",
+                               false,
+                               null,
+                               aPayload,
+                               2,
+                               0,
+                               false);
+  }
+
+  @Test
+  public void testCompaction () throws Exception
+  {
+    final File aFile = new File ("target/outbox-compaction.bin");
+    AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+
+    long nSizeBefore;
+    try (final AS4OutboxLogStore aStore = new AS4OutboxLogStore (aFile, 10))
+    {
+      aStore.getAllItems ();
+      for (int i = 0; i < 10; ++i)
+        aStore.onItemAdded (_createEntry ("id" + i, 100));
+      nSizeBefore = aFile.length ();
+      for (int i = 0; i < 8; ++i)
+        aStore.onItemRemoved ("id" + i);
+      // Compaction happens in the background and is awaited upon close
+    }
+    assertTrue (aFile.length () < nSizeBefore);
+
+    try (final AS4OutboxLogStore aStore = new AS4OutboxLogStore (aFile, 10))
+    {
+      assertEquals (2, aStore.getAllItems ().size ());
+      assertArrayEquals (_createEntry ("id8", 100).getPayload (), aStore.readPayload ("id8"));
+      assertArrayEquals (_createEntry ("id9", 100).getPayload (), aStore.readPayload ("id9"));
+    }
+  }
+
+  @Test
+  public void testPayloadsAfterCompaction () throws Exception
+  {
+    final File aFile = new File ("target/outbox-compaction-payload.bin");
+    AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+
+    try (final AS4OutboxLogStore aStore = new AS4OutboxLogStore (aFile, Integer.MAX_VALUE))
+    {
+      aStore.getAllItems ();
+      // Payloads larger than the copy buffer
+      for (int i = 0; i < 5; ++i)
+        aStore.onItemAdded (_createEntry ("id" + i, 100_000 + i));
+      aStore.onItemAttempt ("id4", 1, 4711);
+      for (int i = 0; i < 3; ++i)
+        aStore.onItemRemoved ("id" + i);
+
+      aStore.compact ();
+      assertEquals (0, aStore.getDeadRecordCount ());
+      aStore.onItemAdded (_createEntry ("id5", 10));
+
+      // Positions were adjusted to the compacted log
+      assertNull (aStore.readPayload ("id0"));
+      assertArrayEquals (_createEntry ("id3", 100_003).getPayload (), aStore.readPayload ("id3"));
+      assertArrayEquals (_createEntry ("id4", 100_004).getPayload (), aStore.readPayload ("id4"));
+      assertArrayEquals (_createEntry ("id5", 10).getPayload (), aStore.readPayload ("id5"));
+    }
+
+    try (final AS4OutboxLogStore aStore = new AS4OutboxLogStore (aFile))
+    {
+      final ICommonsList <AS4OutboxItem> aItems = aStore.getAllItems ();
+      assertEquals (3, aItems.size ());
+      assertEquals (1, aItems.get (1).getAttempts ());
+      assertEquals (4711, aItems.get (1).getNextAttemptMillis ());
+      assertArrayEquals (_createEntry ("id4", 100_004).getPayload (), aStore.readPayload ("id4"));
+      assertArrayEquals (_createEntry ("id5", 10).getPayload (), aStore.readPayload ("id5"));
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.outbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.util.AS4IOHelper;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.state.EChange;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link AS4Outbox}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutboxTest
+{
+  @Test
+  public void testGetBackoffMS ()
+  {
+    assertEquals (1000, AS4Outbox.getBackoffMS (1000, 1, 60_000));
+    assertEquals (2000, AS4Outbox.getBackoffMS (1000, 2, 60_000));
+    assertEquals (8000, AS4Outbox.getBackoffMS (1000, 4, 60_000));
+    assertEquals (60_000, AS4Outbox.getBackoffMS (1000, 10, 60_000));
+    assertEquals (60_000, AS4Outbox.getBackoffMS (1000, 100, 60_000));
+    assertEquals (0, AS4Outbox.getBackoffMS (0, 5, 60_000));
+  }
+
+  @Test
+  public void testContainsReceiptFor ()
+  {
+    final Document aDoc = DOMReader.readXMLDOM ("<Messaging xmlns='" +
+                                                CAS4.EBMS_NS +
+                                                "'><SignalMessage><MessageInfo><MessageId>r1</MessageId>" +
+                                                "<RefToMessageId>m1</RefToMessageId></MessageInfo>" +
+                                                "<Receipt /></SignalMessage></Messaging>");
+    assertTrue (AS4Outbox.containsReceiptFor (aDoc, "m1"));
+    assertFalse (AS4Outbox.containsReceiptFor (aDoc, "m2"));
+    assertFalse (AS4Outbox.containsReceiptFor (null, "m1"));
+  }
+
+  private static void _waitUntilEmpty (final AS4Outbox aOutbox) throws InterruptedException
+  {
+    for (int i = 0; i < 500 && aOutbox.getPendingCount () > 0; ++i)
+      Thread.sleep (10);
+  }
+
+  @Test
+  public void testRetry () throws Exception
+  {
+    final File aFile = new File ("target/outbox-retry.bin");
+    AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final byte [] aPayload = { 1, 2, 3, 4 };
+    try (final AS4Outbox aOutbox = new AS4Outbox (new AS4OutboxLogStore (aFile), 2, 1, 100, 10))
+    {
+      aOutbox.setTransport ( (sURL, aHttpEntity) -> {
+        // The retry reads the payload from the store
+        assertArrayEquals (aPayload, EntityUtils.toByteArray (aHttpEntity));
+        if (aCalls.incrementAndGet () == 1)
+          throw new IOException ("Simulated connection error");
+        return null;
+      });
+
+      assertEquals (EChange.CHANGED,
+                    aOutbox.submit (new AS4OutboxEntry (PDTFactory.getCurrentLocalDateTime (),
+                                                        "m1",
+                                                        null,
+                                                        "http://localhost/as4",
+                                                        false,
+                                                        null,
+                                                        aPayload,
+                                                        3,
+                                                        10,
+                                                        false)));
+      _waitUntilEmpty (aOutbox);
+      assertEquals (0, aOutbox.getPendingCount ());
+      assertEquals (2, aCalls.get ());
+    }
+  }
+
+  @Test
+  public void testStopOnReceipt () throws Exception
+  {
+    final File aFile = new File ("target/outbox-receipt.bin");
+    AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    try (final AS4Outbox aOutbox = new AS4Outbox (new AS4OutboxLogStore (aFile), 2, 1, 60_000, 10))
+    {
+      aOutbox.setTransport ( (sURL, aHttpEntity) -> {
+        aCalls.incrementAndGet ();
+        return null;
+      });
+
+      aOutbox.submit (new AS4OutboxEntry (PDTFactory.getCurrentLocalDateTime (),
+                                          "m1",
+                                          null,
+                                          "http://localhost/as4",
+                                          false,
+                                          null,
+                                          new byte [0],
+                                          5,
+                                          60_000,
+                                          true));
+      // Waiting for the receipt
+      Thread.sleep (100);
+      assertTrue (aOutbox.isPending ("m1"));
+      assertEquals (1, aCalls.get ());
+
+      assertEquals (EChange.CHANGED, aOutbox.onReceiptReceived ("m1"));
+      assertFalse (aOutbox.isPending ("m1"));
+      assertEquals (EChange.UNCHANGED, aOutbox.onReceiptReceived ("m1"));
+    }
+
+    // Nothing left after a restart
+    try (final AS4OutboxLogStore aStore = new AS4OutboxLogStore (aFile))
+    {
+      assertTrue (aStore.getAllItems ().isEmpty ());
+    }
+  }
+}
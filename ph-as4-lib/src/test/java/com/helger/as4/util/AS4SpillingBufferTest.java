@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link AS4SpillingBuffer}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4SpillingBufferTest
+{
+  @Nonnull
+  private static byte [] _createBytes (final int nLen)
+  {
+    final byte [] ret = new byte [nLen];
+    for (int i = 0; i < nLen; ++i)
+      ret[i] = (byte) i;
+    return ret;
+  }
+
+  @Test
+  public void testInMemory () throws Exception
+  {
+    final AS4AttachmentSpillPolicy aPolicy = new AS4AttachmentSpillPolicy (100, 1000, 10000);
+    final byte [] aData = _createBytes (80);
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager (aPolicy))
+    {
+      final AS4SpillingBuffer aBuffer = aResMgr.createSpillingBuffer ();
+      aBuffer.write (aData, 0, 30);
+      aBuffer.write (aData, 30, 50);
+      aBuffer.write (aData, 0, 0);
+      assertEquals (80, aBuffer.getSize ());
+      assertFalse (aBuffer.isSpilled ());
+      assertEquals (80, aResMgr.getInMemoryBytes ());
+      assertEquals (80, aPolicy.getGlobalReservedBytes ());
+
+      final IHasInputStream aContent = aBuffer.close ();
+      // Can be read multiple times
+      assertArrayEquals (aData, StreamHelper.getAllBytes (aContent));
+      assertArrayEquals (aData, StreamHelper.getAllBytes (aContent));
+    }
+    // Memory is released with the resource manager
+    assertEquals (0, aPolicy.getGlobalReservedBytes ());
+  }
+
+  @Test
+  public void testSpilled () throws Exception
+  {
+    final AS4AttachmentSpillPolicy aPolicy = new AS4AttachmentSpillPolicy (100, 1000, 10000);
+    final byte [] aData = _createBytes (250);
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager (aPolicy))
+    {
+      final AS4SpillingBuffer aBuffer = aResMgr.createSpillingBuffer ();
+      aBuffer.write (aData, 0, 60);
+      assertFalse (aBuffer.isSpilled ());
+      assertEquals (60, aPolicy.getGlobalReservedBytes ());
+
+      // Crosses the per attachment limit
+      aBuffer.write (aData, 60, 60);
+      assertTrue (aBuffer.isSpilled ());
+      assertEquals (0, aResMgr.getInMemoryBytes ());
+      assertEquals (0, aPolicy.getGlobalReservedBytes ());
+
+      aBuffer.write (aData, 120, 130);
+      assertEquals (250, aBuffer.getSize ());
+      assertArrayEquals (aData, StreamHelper.getAllBytes (aBuffer.close ()));
+    }
+  }
+
+  @Test
+  public void testAlwaysSpill () throws Exception
+  {
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager (new AS4AttachmentSpillPolicy (0, 1000, 10000)))
+    {
+      final byte [] aData = _createBytes (10);
+      final AS4SpillingBuffer aBuffer = aResMgr.createSpillingBuffer ();
+      aBuffer.write (aData, 0, aData.length);
+      assertTrue (aBuffer.isSpilled ());
+      assertArrayEquals (aData, StreamHelper.getAllBytes (aBuffer.close ()));
+    }
+  }
+
+  @Test
+  public void testClosed () throws Exception
+  {
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final AS4SpillingBuffer aBuffer = aResMgr.createSpillingBuffer ();
+      aBuffer.write (new byte [] { 1, 2, 3 }, 0, 3);
+      aBuffer.discard ();
+      try
+      {
+        aBuffer.write (new byte [] { 4 }, 0, 1);
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        // expected
+      }
+    }
+  }
+}
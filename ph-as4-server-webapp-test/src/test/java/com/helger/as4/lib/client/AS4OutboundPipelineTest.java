@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.lib.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.helger.as4.AS4TestConstants;
+import com.helger.as4.CAS4;
+import com.helger.as4.client.AS4ClientUserMessage;
+import com.helger.as4.client.AS4OutboundPipeline;
+import com.helger.as4.client.AS4ReceiptCorrelationIndex;
+import com.helger.as4.client.AbstractAS4Client.SentMessage;
+import com.helger.as4.http.AS4HttpConnectionPool;
+import com.helger.as4.messaging.domain.MessageHelperMethods;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.httpclient.HttpClientFactory;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link AS4OutboundPipeline}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutboundPipelineTest
+{
+  private static final AtomicInteger s_aReceived = new AtomicInteger (0);
+  private static HttpServer s_aServer;
+  private static String s_sURL;
+  private static AS4ResourceManager s_aResMgr;
+
+  @BeforeClass
+  public static void startServer () throws Exception
+  {
+    s_aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+    s_aServer.createContext ("/as4", aExchange -> {
+      try (final InputStream aIS = aExchange.getRequestBody ())
+      {
+        StreamHelper.getAllBytes (aIS);
+      }
+      s_aReceived.incrementAndGet ();
+      final byte [] aBytes = "ok".getBytes (StandardCharsets.UTF_8);
+      aExchange.sendResponseHeaders (200, aBytes.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (aBytes);
+      }
+    });
+    s_aServer.start ();
+    s_sURL = "http://localhost:" + s_aServer.getAddress ().getPort () + "/as4";
+    s_aResMgr = new AS4ResourceManager ();
+  }
+
+  @AfterClass
+  public static void shutDownServer ()
+  {
+    s_aResMgr.close ();
+    s_aServer.stop (0);
+  }
+
+  @Nonnull
+  private static AS4ClientUserMessage _createClient ()
+  {
+    final AS4ClientUserMessage aClient = new AS4ClientUserMessage (s_aResMgr);
+    aClient.setSOAPVersion (ESOAPVersion.SOAP_12);
+    aClient.setAction ("AnAction");
+    aClient.setServiceType ("MyServiceType");
+    aClient.setServiceValue ("OrderPaper");
+    aClient.setConversationID (MessageHelperMethods.createRandomConversationID ());
+    aClient.setAgreementRefValue ("urn:as4:agreements:so-that-we-have-a-non-empty-value");
+    aClient.setFromRole (CAS4.DEFAULT_ROLE);
+    aClient.setFromPartyID ("MyPartyIDforSending");
+    aClient.setToRole (CAS4.DEFAULT_ROLE);
+    aClient.setToPartyID ("MyPartyIDforReceving");
+    aClient.ebms3Properties ().setAll (AS4TestConstants.getEBMSProperties ());
+    return aClient;
+  }
+
+  @Test
+  public void testSendMessages () throws Exception
+  {
+    final int nReceived = s_aReceived.get ();
+    try (final AS4OutboundPipeline aPipeline = new AS4OutboundPipeline (1, 1, 1, 2, 2);
+        final AS4ReceiptCorrelationIndex aIndex = new AS4ReceiptCorrelationIndex ())
+    {
+      final AS4ClientUserMessage aClient = _createClient ();
+      aClient.setReceiptCorrelationIndex (aIndex);
+      final ICommonsList <CompletableFuture <SentMessage <String>>> aFutures = new CommonsArrayList <> ();
+      // More messages than the queues can hold
+      for (int i = 0; i < 10; ++i)
+        aFutures.add (aPipeline.sendMessage (aClient, s_sURL, new BasicResponseHandler ()));
+
+      for (final CompletableFuture <SentMessage <String>> aFuture : aFutures)
+      {
+        final SentMessage <String> aSent = aFuture.get (30, TimeUnit.SECONDS);
+        assertNotNull (aSent.getMessageID ());
+        assertEquals ("ok", aSent.getResponse ());
+        // The response is no receipt
+        assertNotNull (aIndex.getPendingReceipt (aSent.getMessageID ()));
+      }
+      assertEquals (10, aIndex.getPendingCount ());
+    }
+    assertEquals (nReceived + 10, s_aReceived.get ());
+  }
+
+  @Test
+  public void testClientMayBeModifiedAfterSubmit () throws Exception
+  {
+    final AS4HttpConnectionPool aPool = new AS4HttpConnectionPool (new HttpClientFactory ());
+    final AS4HttpConnectionPool aClosedPool = new AS4HttpConnectionPool (new HttpClientFactory ());
+    aClosedPool.close ();
+    try (final AS4OutboundPipeline aPipeline = new AS4OutboundPipeline (1, 1, 1, 1, 1))
+    {
+      final AS4ClientUserMessage aClient = _createClient ();
+      aClient.setConnectionPool (aPool);
+      final CompletableFuture <SentMessage <String>> aFuture = aPipeline.sendMessage (aClient,
+                                                                                       s_sURL,
+                                                                                       new BasicResponseHandler ());
+      // Must not influence the already submitted message
+      aClient.setConnectionPool (aClosedPool);
+      assertSame (aClosedPool, aClient.getConnectionPool ());
+
+      assertEquals ("ok", aFuture.get (30, TimeUnit.SECONDS).getResponse ());
+      assertEquals (1, aPool.getTotalStats ().getAvailable ());
+    }
+    finally
+    {
+      aPool.close ();
+    }
+  }
+
+  @Test
+  public void testBuildError () throws Exception
+  {
+    try (final AS4OutboundPipeline aPipeline = new AS4OutboundPipeline (1, 1, 1, 1, 1))
+    {
+      // Mandatory attributes are missing
+      final CompletableFuture <SentMessage <String>> aFuture = aPipeline.sendMessage (new AS4ClientUserMessage (s_aResMgr),
+                                                                                       s_sURL,
+                                                                                       new BasicResponseHandler ());
+      try
+      {
+        aFuture.get (30, TimeUnit.SECONDS);
+        fail ();
+      }
+      catch (final ExecutionException ex)
+      {
+        assertTrue (ex.getCause () instanceof IllegalStateException);
+      }
+    }
+  }
+}
@@ -0,0 +1,388 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.util.AS4SpillingBuffer;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.http.EHttpMethod;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.http.EHttpVersion;
+import com.helger.web.scope.IRequestWebScope;
+import com.helger.web.scope.mgr.WebScopeManager;
+
+/**
+ * Processes a single request of the {@link AS4AsyncServlet}:
+ * <ol>
+ * <li>The request body is read without blocking into the resource manager of
+ * the {@link AS4Handler} (in memory or in a temporary file) on container
+ * threads.</li>
+ * <li>The AS4 processing happens on the executor of the servlet.</li>
+ * <li>The response body is written without blocking by the
+ * {@link AS4AsyncResponseWriter}.</li>
+ * </ol>
+ * Exactly one response is sent - either the regular one or an error response
+ * on timeout, read error or saturation.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class AS4AsyncRequestProcessor implements ReadListener, AsyncListener
+{
+  /** The maximum number of bytes read in one go */
+  public static final int CHUNK_SIZE = 16 * 1024;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncRequestProcessor.class);
+  private static final IMutableStatisticsHandlerCounter s_aStatsTimeout = StatisticsManager.getCounterHandler (AS4AsyncRequestProcessor.class.getName () +
+                                                                                                               "$timeout");
+  private static final IMutableStatisticsHandlerCounter s_aStatsRejected = StatisticsManager.getCounterHandler (AS4AsyncRequestProcessor.class.getName () +
+                                                                                                                "$rejected");
+
+  private final AsyncContext m_aAsyncCtx;
+  private final HttpServletRequest m_aHttpRequest;
+  private final HttpServletResponse m_aHttpResponse;
+  private final Executor m_aExecutor;
+  private final AS4Handler m_aHandler;
+  // Only accessed in the container callbacks, which are never concurrent
+  private final ServletInputStream m_aIS;
+  private final AS4SpillingBuffer m_aBuffer;
+  private final byte [] m_aReadBuf = new byte [CHUNK_SIZE];
+  // Set as soon as the response is claimed by one party
+  private final AtomicBoolean m_aResponded = new AtomicBoolean (false);
+  // The processing pipeline and the async context both hold the handler
+  private final AtomicInteger m_aHandlerRefs = new AtomicInteger (2);
+  private final AtomicBoolean m_aPipelineReleased = new AtomicBoolean (false);
+  private volatile boolean m_bReadFinished = false;
+  // The response body is streamed from the resource manager of the handler
+  private volatile boolean m_bWriting = false;
+
+  private AS4AsyncRequestProcessor (@Nonnull final AsyncContext aAsyncCtx,
+                                    @Nonnull final Executor aExecutor,
+                                    @Nonnull final AS4Handler aHandler) throws IOException
+  {
+    m_aAsyncCtx = aAsyncCtx;
+    m_aHttpRequest = (HttpServletRequest) aAsyncCtx.getRequest ();
+    m_aHttpResponse = (HttpServletResponse) aAsyncCtx.getResponse ();
+    m_aExecutor = aExecutor;
+    m_aHandler = aHandler;
+    m_aIS = m_aHttpRequest.getInputStream ();
+    m_aBuffer = m_aHandler.getResourceManager ().createSpillingBuffer ();
+  }
+
+  /**
+   * @return The number of requests that ran into the timeout since startup.
+   */
+  @Nonnegative
+  public static long getTimeoutCount ()
+  {
+    return s_aStatsTimeout.getCount ();
+  }
+
+  /**
+   * @return The number of requests rejected because the executor was
+   *         saturated since startup.
+   */
+  @Nonnegative
+  public static long getRejectedCount ()
+  {
+    return s_aStatsRejected.getCount ();
+  }
+
+  private void _releaseHandler ()
+  {
+    if (m_aHandlerRefs.decrementAndGet () == 0)
+      m_aHandler.close ();
+  }
+
+  private void _releasePipeline ()
+  {
+    if (m_aPipelineReleased.compareAndSet (false, true))
+      _releaseHandler ();
+  }
+
+  /**
+   * Send an error response and complete the request, if no response was sent
+   * so far.
+   *
+   * @param nStatusCode
+   *        HTTP status code to use
+   */
+  private void _respondError (final int nStatusCode)
+  {
+    if (m_aResponded.compareAndSet (false, true))
+    {
+      m_aHttpResponse.setStatus (nStatusCode);
+      m_aAsyncCtx.complete ();
+    }
+  }
+
+  public void onDataAvailable () throws IOException
+  {
+    int nRead;
+    // The container calls this method again, as soon as isReady turns true
+    while (m_aIS.isReady () && (nRead = m_aIS.read (m_aReadBuf)) != -1)
+      m_aBuffer.write (m_aReadBuf, 0, nRead);
+  }
+
+  public void onAllDataRead () throws IOException
+  {
+    m_bReadFinished = true;
+    final IHasInputStream aBody = m_aBuffer.close ();
+    try
+    {
+      m_aExecutor.execute ( () -> _process (aBody));
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      s_aStatsRejected.increment ();
+      LOGGER.warn ("AS4 async servlet executor is saturated - rejecting request");
+      _releasePipeline ();
+      _respondError (HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+  }
+
+  public void onError (@Nonnull final Throwable t)
+  {
+    LOGGER.warn ("Error reading AS4 request after " + m_aBuffer.getSize () + " bytes", t);
+    m_bReadFinished = true;
+    m_aBuffer.discard ();
+    _releasePipeline ();
+    _respondError (HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  @Nonnull
+  private CompletableFuture <Void> _handle (@Nonnull final IHasInputStream aBody,
+                                            @Nonnull final AS4Response aHttpResponse)
+  {
+    final IRequestWebScope aRequestScope = WebScopeManager.onRequestBegin (m_aHttpRequest, m_aHttpResponse);
+    try (final InputStream aIS = aBody.getInputStream ())
+    {
+      return m_aHandler.handleRequest (aRequestScope, aIS, aHttpResponse);
+    }
+    catch (final Throwable t)
+    {
+      final CompletableFuture <Void> ret = new CompletableFuture <> ();
+      ret.completeExceptionally (t);
+      return ret;
+    }
+    finally
+    {
+      WebScopeManager.onRequestEnd ();
+    }
+  }
+
+  private void _process (@Nonnull final IHasInputStream aBody)
+  {
+    if (m_aResponded.get ())
+    {
+      // Timed out while waiting in the queue
+      _releasePipeline ();
+      return;
+    }
+
+    EHttpVersion eHttpVersion = EHttpVersion.getFromNameOrNull (m_aHttpRequest.getProtocol ());
+    if (eHttpVersion == null)
+      eHttpVersion = EHttpVersion.HTTP_11;
+    final AS4Response aHttpResponse = new AS4Response (eHttpVersion, EHttpMethod.POST, m_aHttpRequest);
+
+    final CompletableFuture <Void> aFuture = _handle (aBody, aHttpResponse);
+    if (m_aResponded.get ())
+    {
+      // Timed out while processing - don't take a message for nobody
+      m_aHandler.cancelPendingPullReturn ();
+    }
+    if (aFuture.isDone ())
+      aFuture.whenComplete ( (x, t) -> _respond (aHttpResponse, t));
+    else
+    {
+      // Parked pull requests are completed by another thread, so get back to
+      // the executor for serializing the response
+      aFuture.whenComplete ( (x, t) -> {
+        try
+        {
+          m_aExecutor.execute ( () -> _respond (aHttpResponse, t));
+        }
+        catch (final RejectedExecutionException ex)
+        {
+          _respond (aHttpResponse, t);
+        }
+      });
+    }
+  }
+
+  private void _respond (@Nonnull final AS4Response aHttpResponse, @Nullable final Throwable t)
+  {
+    if (!m_aResponded.compareAndSet (false, true))
+    {
+      LOGGER.warn ("Discarding AS4 response because the request already timed out");
+      _releasePipeline ();
+      return;
+    }
+
+    IHasInputStream aBody = null;
+    try
+    {
+      if (t != null)
+        AS4XServletHandler.setResponseError (aHttpResponse, t);
+
+      // Status and headers go directly to the servlet response, the body is
+      // spilled to a temporary file if it is too large
+      final AS4BufferingResponseWrapper aResponseWrapper = new AS4BufferingResponseWrapper (m_aHttpResponse,
+                                                                                            m_aHandler.getResourceManager ());
+      aHttpResponse.applyToResponse (aResponseWrapper);
+      aBody = aResponseWrapper.getBufferedContent ();
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      LOGGER.error ("Error serializing AS4 response", ex);
+    }
+
+    if (aBody == null)
+    {
+      _releasePipeline ();
+      m_aHttpResponse.setStatus (HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      m_aAsyncCtx.complete ();
+      return;
+    }
+
+    try
+    {
+      // The handler is released in onComplete, when the body was written
+      m_bWriting = true;
+      AS4AsyncResponseWriter.start (m_aAsyncCtx, aBody);
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      LOGGER.error ("Error writing AS4 response", ex);
+      m_aAsyncCtx.complete ();
+    }
+  }
+
+  public void onStartAsync (@Nonnull final AsyncEvent aEvent)
+  {}
+
+  public void onTimeout (@Nonnull final AsyncEvent aEvent)
+  {
+    s_aStatsTimeout.increment ();
+    LOGGER.warn ("AS4 request timed out");
+    // A message must not be taken from the queue for this request anymore
+    m_aHandler.cancelPendingPullReturn ();
+    if (m_aResponded.get ())
+    {
+      // Abort writing
+      m_aAsyncCtx.complete ();
+    }
+    else
+      _respondError (HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+
+  public void onError (@Nonnull final AsyncEvent aEvent)
+  {
+    LOGGER.warn ("Error in asynchronous AS4 request", aEvent.getThrowable ());
+    m_aHandler.cancelPendingPullReturn ();
+    if (m_aResponded.get ())
+      m_aAsyncCtx.complete ();
+    else
+      _respondError (HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+  }
+
+  public void onComplete (@Nonnull final AsyncEvent aEvent)
+  {
+    // Reading and writing will not continue after completion
+    if (!m_bReadFinished || m_bWriting)
+      _releasePipeline ();
+    _releaseHandler ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Buffer", m_aBuffer)
+                                       .append ("Responded", m_aResponded.get ())
+                                       .getToString ();
+  }
+
+  /**
+   * Start processing the request of the provided asynchronous context.
+   *
+   * @param aAsyncCtx
+   *        The asynchronous context that was just started. May not be
+   *        <code>null</code>.
+   * @param aExecutor
+   *        The executor for the AS4 processing. May not be <code>null</code>.
+   * @throws IOException
+   *         In case the input stream cannot be retrieved
+   */
+  public static void start (@Nonnull final AsyncContext aAsyncCtx, @Nonnull final Executor aExecutor) throws IOException
+  {
+    start (aAsyncCtx, aExecutor, new AS4Handler ());
+  }
+
+  /**
+   * Start processing the request of the provided asynchronous context with
+   * the provided handler.
+   *
+   * @param aAsyncCtx
+   *        The asynchronous context that was just started. May not be
+   *        <code>null</code>.
+   * @param aExecutor
+   *        The executor for the AS4 processing. May not be <code>null</code>.
+   * @param aHandler
+   *        The handler to use. It is closed when the request is completed. May
+   *        not be <code>null</code>.
+   * @throws IOException
+   *         In case the input stream cannot be retrieved
+   */
+  static void start (@Nonnull final AsyncContext aAsyncCtx,
+                     @Nonnull final Executor aExecutor,
+                     @Nonnull final AS4Handler aHandler) throws IOException
+  {
+    ValueEnforcer.notNull (aAsyncCtx, "AsyncCtx");
+    ValueEnforcer.notNull (aExecutor, "Executor");
+    ValueEnforcer.notNull (aHandler, "Handler");
+
+    final AS4AsyncRequestProcessor aProcessor = new AS4AsyncRequestProcessor (aAsyncCtx, aExecutor, aHandler);
+    aAsyncCtx.addListener (aProcessor);
+    // Triggers the first call to onDataAvailable
+    aProcessor.m_aIS.setReadListener (aProcessor);
+  }
+}
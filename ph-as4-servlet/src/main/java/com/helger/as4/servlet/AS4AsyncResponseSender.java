@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.net.URI;
+import java.util.Locale;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+
+import com.helger.as4.client.BasicHttpPoster;
+import com.helger.as4.http.AS4HttpConnectionPool;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.statistics.IMutableStatisticsHandlerKeyedCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerKeyedTimer;
+import com.helger.commons.statistics.IStatisticsHandlerKeyedCounter;
+import com.helger.commons.statistics.IStatisticsHandlerKeyedTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.timing.StopWatch;
+
+/**
+ * Server-wide sender for asynchronous responses. All responses are sent via a
+ * shared {@link AS4HttpConnectionPool}, so connections to the same partner are
+ * reused. Connect and socket timeouts can be defined per destination host.
+ * The latency of each callback is recorded per destination host and as a
+ * histogram in the {@link StatisticsManager}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4AsyncResponseSender
+{
+  public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5_000;
+  public static final int DEFAULT_SOCKET_TIMEOUT_MS = 60_000;
+
+  // Upper bounds of the latency histogram buckets in milliseconds
+  private static final long [] LATENCY_BUCKETS_MS = { 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 30_000 };
+
+  private static final IMutableStatisticsHandlerKeyedTimer s_aStatsTimer = StatisticsManager.getKeyedTimerHandler (AS4AsyncResponseSender.class.getName () +
+                                                                                                                   "$latency");
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsHistogram = StatisticsManager.getKeyedCounterHandler (AS4AsyncResponseSender.class.getName () +
+                                                                                                                           "$histogram");
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsError = StatisticsManager.getKeyedCounterHandler (AS4AsyncResponseSender.class.getName () +
+                                                                                                                       "$error");
+
+  private final AS4HttpConnectionPool m_aConnectionPool;
+  private final int m_nConnectTimeoutMS;
+  private final int m_nSocketTimeoutMS;
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  // Host to request config
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, RequestConfig> m_aDestinationConfigs = new CommonsHashMap <> ();
+
+  public AS4AsyncResponseSender ()
+  {
+    this (null, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_SOCKET_TIMEOUT_MS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aConnectionPool
+   *        The connection pool to use. May be <code>null</code> to use
+   *        {@link AS4HttpConnectionPool#getDefaultInstance()}.
+   * @param nConnectTimeoutMS
+   *        Default connect timeout in milliseconds. Must be &ge; 0.
+   * @param nSocketTimeoutMS
+   *        Default socket (read) timeout in milliseconds. Must be &ge; 0.
+   */
+  public AS4AsyncResponseSender (@Nullable final AS4HttpConnectionPool aConnectionPool,
+                                 @Nonnegative final int nConnectTimeoutMS,
+                                 @Nonnegative final int nSocketTimeoutMS)
+  {
+    ValueEnforcer.isGE0 (nConnectTimeoutMS, "ConnectTimeoutMS");
+    ValueEnforcer.isGE0 (nSocketTimeoutMS, "SocketTimeoutMS");
+    m_aConnectionPool = aConnectionPool;
+    m_nConnectTimeoutMS = nConnectTimeoutMS;
+    m_nSocketTimeoutMS = nSocketTimeoutMS;
+  }
+
+  @Nonnull
+  private static RequestConfig _createRequestConfig (final int nConnectTimeoutMS, final int nSocketTimeoutMS)
+  {
+    return RequestConfig.custom ()
+                        .setConnectionRequestTimeout (nConnectTimeoutMS)
+                        .setConnectTimeout (nConnectTimeoutMS)
+                        .setSocketTimeout (nSocketTimeoutMS)
+                        .build ();
+  }
+
+  @Nonnegative
+  public final int getConnectTimeoutMS ()
+  {
+    return m_nConnectTimeoutMS;
+  }
+
+  @Nonnegative
+  public final int getSocketTimeoutMS ()
+  {
+    return m_nSocketTimeoutMS;
+  }
+
+  /**
+   * Define custom timeouts for a single destination host.
+   *
+   * @param sHost
+   *        The destination host name as used in the URL. May neither be
+   *        <code>null</code> nor empty.
+   * @param nConnectTimeoutMS
+   *        Connect timeout in milliseconds. Must be &ge; 0.
+   * @param nSocketTimeoutMS
+   *        Socket (read) timeout in milliseconds. Must be &ge; 0.
+   */
+  public void setDestinationTimeouts (@Nonnull @Nonempty final String sHost,
+                                      @Nonnegative final int nConnectTimeoutMS,
+                                      @Nonnegative final int nSocketTimeoutMS)
+  {
+    ValueEnforcer.notEmpty (sHost, "Host");
+    ValueEnforcer.isGE0 (nConnectTimeoutMS, "ConnectTimeoutMS");
+    ValueEnforcer.isGE0 (nSocketTimeoutMS, "SocketTimeoutMS");
+    final RequestConfig aConfig = _createRequestConfig (nConnectTimeoutMS, nSocketTimeoutMS);
+    m_aRWLock.writeLocked ( () -> m_aDestinationConfigs.put (sHost.toLowerCase (Locale.US), aConfig));
+  }
+
+  @Nonnull
+  private static String _getHost (@Nonnull final String sURL)
+  {
+    try
+    {
+      final String sHost = URI.create (sURL).getHost ();
+      if (StringHelper.hasText (sHost))
+        return sHost.toLowerCase (Locale.US);
+    }
+    catch (final IllegalArgumentException ex)
+    {
+      // Fall through
+    }
+    return "unknown";
+  }
+
+  @Nonnull
+  private static String _getBucketName (final long nMillis)
+  {
+    for (final long nBucket : LATENCY_BUCKETS_MS)
+      if (nMillis <= nBucket)
+        return "le-" + nBucket + "ms";
+    return "gt-" + LATENCY_BUCKETS_MS[LATENCY_BUCKETS_MS.length - 1] + "ms";
+  }
+
+  /**
+   * Send an asynchronous response.
+   *
+   * @param sURL
+   *        Destination URL. May neither be <code>null</code> nor empty.
+   * @param aHttpEntity
+   *        The entity to send. May not be <code>null</code>.
+   * @param aResponseHandler
+   *        The handler for the partner's response. May not be
+   *        <code>null</code>.
+   * @return The result of the response handler.
+   * @throws Exception
+   *         In case of error
+   * @param <T>
+   *        Response type
+   */
+  @Nullable
+  public <T> T sendGenericMessage (@Nonnull @Nonempty final String sURL,
+                                   @Nonnull final HttpEntity aHttpEntity,
+                                   @Nonnull final ResponseHandler <? extends T> aResponseHandler) throws Exception
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+
+    final String sHost = _getHost (sURL);
+    final RequestConfig aConfig = m_aRWLock.readLocked ( () -> {
+      final RequestConfig ret = m_aDestinationConfigs.get (sHost);
+      return ret != null ? ret : _createRequestConfig (m_nConnectTimeoutMS, m_nSocketTimeoutMS);
+    });
+
+    final BasicHttpPoster aPoster = new BasicHttpPoster ()
+    {
+      @Override
+      protected void customizeHttpPost (@Nonnull final HttpPost aPost)
+      {
+        aPost.setConfig (aConfig);
+      }
+    };
+    aPoster.setConnectionPool (m_aConnectionPool);
+
+    final StopWatch aSW = StopWatch.createdStarted ();
+    try
+    {
+      return aPoster.sendGenericMessage (sURL, aHttpEntity, aResponseHandler);
+    }
+    catch (final Exception ex)
+    {
+      s_aStatsError.increment (sHost);
+      throw ex;
+    }
+    finally
+    {
+      final long nMillis = aSW.stopAndGetMillis ();
+      s_aStatsTimer.addTime (sHost, nMillis);
+      s_aStatsHistogram.increment (_getBucketName (nMillis));
+    }
+  }
+
+  /**
+   * @return The latency of all sent responses per destination host. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerKeyedTimer getLatencyStatistics ()
+  {
+    return s_aStatsTimer;
+  }
+
+  /**
+   * @return The number of sent responses per latency bucket. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerKeyedCounter getLatencyHistogram ()
+  {
+    return s_aStatsHistogram;
+  }
+
+  /**
+   * @return The number of failed responses per destination host. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerKeyedCounter getErrorStatistics ()
+  {
+    return s_aStatsError;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("ConnectionPool", m_aConnectionPool)
+                                       .append ("ConnectTimeoutMS", m_nConnectTimeoutMS)
+                                       .append ("SocketTimeoutMS", m_nSocketTimeoutMS)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Writes a response body to the servlet output stream without blocking and
+ * completes the asynchronous request afterwards. The body is streamed in
+ * chunks of {@link #CHUNK_SIZE} bytes, so only one chunk is held in memory.
+ * The container calls {@link #onWritePossible()} again, when the client is
+ * ready to receive more data.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+final class AS4AsyncResponseWriter implements WriteListener
+{
+  /** The maximum number of bytes written in one go */
+  public static final int CHUNK_SIZE = 16 * 1024;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncResponseWriter.class);
+
+  private final AsyncContext m_aAsyncCtx;
+  private final ServletOutputStream m_aOS;
+  private final InputStream m_aIS;
+  private final byte [] m_aBuf = new byte [CHUNK_SIZE];
+  private long m_nWritten = 0;
+  private boolean m_bDone = false;
+
+  private AS4AsyncResponseWriter (@Nonnull final AsyncContext aAsyncCtx,
+                                  @Nonnull final ServletOutputStream aOS,
+                                  @Nonnull @WillCloseWhenClosed final InputStream aIS)
+  {
+    m_aAsyncCtx = aAsyncCtx;
+    m_aOS = aOS;
+    m_aIS = aIS;
+  }
+
+  private void _complete ()
+  {
+    if (!m_bDone)
+    {
+      m_bDone = true;
+      StreamHelper.close (m_aIS);
+      m_aAsyncCtx.complete ();
+    }
+  }
+
+  public void onWritePossible () throws IOException
+  {
+    // The container calls this method again, as soon as isReady turns true
+    while (!m_bDone && m_aOS.isReady ())
+    {
+      final int nRead = m_aIS.read (m_aBuf);
+      if (nRead < 0)
+        _complete ();
+      else
+      {
+        m_aOS.write (m_aBuf, 0, nRead);
+        m_nWritten += nRead;
+      }
+    }
+  }
+
+  public void onError (@Nonnull final Throwable t)
+  {
+    LOGGER.warn ("Error writing AS4 response after " + m_nWritten + " bytes", t);
+    _complete ();
+  }
+
+  /**
+   * Start writing the body. Status and headers must be set before.
+   *
+   * @param aAsyncCtx
+   *        The asynchronous context of the request. May not be
+   *        <code>null</code>.
+   * @param aBody
+   *        The body to be written. May be empty but not <code>null</code>.
+   * @throws IOException
+   *         In case the output stream cannot be retrieved or the body cannot
+   *         be opened
+   */
+  public static void start (@Nonnull final AsyncContext aAsyncCtx, @Nonnull final IHasInputStream aBody) throws IOException
+  {
+    ValueEnforcer.notNull (aAsyncCtx, "AsyncCtx");
+    ValueEnforcer.notNull (aBody, "Body");
+
+    final ServletOutputStream aOS = aAsyncCtx.getResponse ().getOutputStream ();
+    final InputStream aIS = aBody.getInputStream ();
+    if (aIS == null)
+      throw new IOException ("Failed to open the response body");
+    // Triggers the first call to onWritePossible
+    aOS.setWriteListener (new AS4AsyncResponseWriter (aAsyncCtx, aOS, aIS));
+  }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+
+/**
+ * Asynchronous AS4 receiving servlet. In contrast to {@link AS4Servlet}, the
+ * container thread is only used to start the request. The request body is read
+ * and the response body is written with non-blocking I/O, and the AS4
+ * processing (parsing, WS-Security, SPI invocation and response serialization)
+ * happens on a dedicated executor. So the number of concurrently processed
+ * requests is not limited by the container thread pool. Parked pull requests
+ * (see long polling) don't occupy any thread at all.<br>
+ * The executor is configured via
+ * {@link AS4ServerConfiguration#getAsyncServletThreadCount()},
+ * {@link AS4ServerConfiguration#getAsyncServletQueueCapacity()} and
+ * {@link AS4ServerConfiguration#getAsyncServletTimeoutMS()}. If the queue is
+ * full, HTTP 503 is returned.<br>
+ * Use a configuration like the following in your <code>WEB-INF/web.xm</code>
+ * file:
+ *
+ * <pre>
+&lt;servlet&gt;
+  &lt;servlet-name&gt;AS4Servlet&lt;/servlet-name&gt;
+  &lt;servlet-class&gt;com.helger.as4.servlet.AS4AsyncServlet&lt;/servlet-class&gt;
+  &lt;async-supported&gt;true&lt;/async-supported&gt;
+&lt;/servlet&gt;
+&lt;servlet-mapping&gt;
+  &lt;servlet-name&gt;AS4Servlet&lt;/servlet-name&gt;
+  &lt;url-pattern&gt;/as4&lt;/url-pattern&gt;
+&lt;/servlet-mapping&gt;
+ * </pre>
+ *
+ * All filters mapped to this servlet must be asynchronous as well.
+ *
+ * @author Philip Helger
+ */
+public class AS4AsyncServlet extends HttpServlet
+{
+  public static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime ().availableProcessors () * 2;
+  public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+  public static final long DEFAULT_TIMEOUT_MS = 5 * CGlobal.MILLISECONDS_PER_MINUTE;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncServlet.class);
+
+  private ExecutorService m_aES;
+  private long m_nTimeoutMS;
+
+  public AS4AsyncServlet ()
+  {}
+
+  @Override
+  public void init () throws ServletException
+  {
+    initExecutor (AS4ServerConfiguration.getAsyncServletThreadCount (),
+                  AS4ServerConfiguration.getAsyncServletQueueCapacity (),
+                  AS4ServerConfiguration.getAsyncServletTimeoutMS ());
+  }
+
+  /**
+   * Create the executor for the AS4 processing.
+   *
+   * @param nThreadCount
+   *        Number of processing threads. Must be &gt; 0.
+   * @param nQueueCapacity
+   *        Maximum number of requests waiting for processing. Must be &gt; 0.
+   * @param nTimeoutMS
+   *        Maximum milliseconds for a single request. Must be &ge; 0. 0 means
+   *        no timeout.
+   */
+  final void initExecutor (@Nonnegative final int nThreadCount,
+                           @Nonnegative final int nQueueCapacity,
+                           @Nonnegative final long nTimeoutMS)
+  {
+    ValueEnforcer.isGT0 (nThreadCount, "ThreadCount");
+    ValueEnforcer.isGT0 (nQueueCapacity, "QueueCapacity");
+    ValueEnforcer.isGE0 (nTimeoutMS, "TimeoutMS");
+
+    m_aES = new ThreadPoolExecutor (nThreadCount,
+                                    nThreadCount,
+                                    0,
+                                    TimeUnit.MILLISECONDS,
+                                    new ArrayBlockingQueue <> (nQueueCapacity),
+                                    new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                     .setNamingPattern ("as4-async-%d")
+                                                                     .build ());
+    m_nTimeoutMS = nTimeoutMS;
+    LOGGER.info ("AS4 async servlet started with " +
+                 nThreadCount +
+                 " threads, a queue capacity of " +
+                 nQueueCapacity +
+                 " and a timeout of " +
+                 m_nTimeoutMS +
+                 " ms");
+  }
+
+  @Override
+  public void destroy ()
+  {
+    if (m_aES != null)
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aES);
+      m_aES = null;
+    }
+  }
+
+  @Override
+  protected void doPost (final HttpServletRequest aHttpRequest,
+                         final HttpServletResponse aHttpResponse) throws ServletException, IOException
+  {
+    if (!aHttpRequest.isAsyncSupported ())
+      throw new ServletException ("Asynchronous processing is not enabled for " +
+                                  getServletName () +
+                                  " - add <async-supported>true</async-supported> to the servlet and all filters");
+
+    final AsyncContext aAsyncCtx = aHttpRequest.startAsync (aHttpRequest, aHttpResponse);
+    aAsyncCtx.setTimeout (m_nTimeoutMS);
+    AS4AsyncRequestProcessor.start (aAsyncCtx, m_aES);
+  }
+}
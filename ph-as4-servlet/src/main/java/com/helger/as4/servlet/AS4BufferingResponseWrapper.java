@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4SpillingBuffer;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.IHasInputStream;
+
+/**
+ * A response wrapper that passes status and headers to the wrapped response
+ * but collects the body in an {@link AS4SpillingBuffer} of the provided
+ * resource manager, so large responses end up in a temporary file instead of
+ * the heap. This allows to fill the response with the blocking
+ * {@link com.helger.servlet.response.UnifiedResponse} API and write the body
+ * afterwards in a non-blocking way via {@link AS4AsyncResponseWriter}.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+final class AS4BufferingResponseWrapper extends HttpServletResponseWrapper
+{
+  private final AS4ResourceManager m_aResMgr;
+  private AS4SpillingBuffer m_aBuffer;
+  private ServletOutputStream m_aOS;
+  private boolean m_bOSUsed = false;
+  private PrintWriter m_aWriter;
+
+  public AS4BufferingResponseWrapper (@Nonnull final HttpServletResponse aResponse,
+                                      @Nonnull final AS4ResourceManager aResMgr)
+  {
+    super (aResponse);
+    m_aResMgr = ValueEnforcer.notNull (aResMgr, "ResMgr");
+    m_aBuffer = aResMgr.createSpillingBuffer ();
+  }
+
+  @Nonnull
+  private ServletOutputStream _getOS ()
+  {
+    if (m_aOS == null)
+      m_aOS = new ServletOutputStream ()
+      {
+        @Override
+        public void write (final int b) throws IOException
+        {
+          m_aBuffer.write (new byte [] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+        {
+          m_aBuffer.write (aBuf, nOfs, nLen);
+        }
+
+        @Override
+        public boolean isReady ()
+        {
+          // Writing to the buffer never blocks
+          return true;
+        }
+
+        @Override
+        public void setWriteListener (@Nonnull final WriteListener aWriteListener)
+        {
+          ValueEnforcer.notNull (aWriteListener, "WriteListener");
+          // Always ready - so the listener may write everything right away
+          try
+          {
+            aWriteListener.onWritePossible ();
+          }
+          catch (final IOException | RuntimeException ex)
+          {
+            aWriteListener.onError (ex);
+          }
+        }
+      };
+    return m_aOS;
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream ()
+  {
+    if (m_aWriter != null)
+      throw new IllegalStateException ("getWriter() was already called");
+    m_bOSUsed = true;
+    return _getOS ();
+  }
+
+  @Override
+  public PrintWriter getWriter ()
+  {
+    if (m_bOSUsed)
+      throw new IllegalStateException ("getOutputStream() was already called");
+    if (m_aWriter == null)
+      m_aWriter = new PrintWriter (new OutputStreamWriter (_getOS (), Charset.forName (getCharacterEncoding ())));
+    return m_aWriter;
+  }
+
+  @Override
+  public void flushBuffer ()
+  {
+    // Nothing may be committed before the body is written asynchronously
+    if (m_aWriter != null)
+      m_aWriter.flush ();
+  }
+
+  private void _resetBody ()
+  {
+    // Pending characters of the writer are dropped as well
+    m_aWriter = null;
+    m_aBuffer.discard ();
+    m_aBuffer = m_aResMgr.createSpillingBuffer ();
+  }
+
+  @Override
+  public void resetBuffer ()
+  {
+    super.resetBuffer ();
+    _resetBody ();
+  }
+
+  @Override
+  public void reset ()
+  {
+    super.reset ();
+    _resetBody ();
+  }
+
+  /**
+   * Finish the body. Nothing may be written afterwards.
+   *
+   * @return A stream provider for all body bytes written so far. Never
+   *         <code>null</code>. If the body was spilled to a temporary file, it
+   *         lives as long as the resource manager passed in the constructor.
+   * @throws IOException
+   *         In case finishing the temporary file fails
+   */
+  @Nonnull
+  public IHasInputStream getBufferedContent () throws IOException
+  {
+    flushBuffer ();
+    if (m_aWriter != null && m_aWriter.checkError ())
+      throw new IOException ("Failed to write the response body");
+    return m_aBuffer.close ();
+  }
+}
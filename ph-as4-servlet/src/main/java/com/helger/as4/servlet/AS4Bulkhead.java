@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.callback.IThrowingRunnable;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A named partition of the {@link AS4WorkerPool}. It limits the number of
+ * concurrently running tasks and the number of waiting tasks, so that tasks of
+ * one bulkhead (e.g. one slow partner) cannot occupy all workers. Tasks
+ * exceeding the concurrency limit are queued and run by the worker of a
+ * previous task of the same bulkhead as soon as it finished. If the worker pool
+ * is saturated and runs a task in the calling thread, the queued tasks are
+ * handed back to the pool as soon as it has capacity again.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4Bulkhead
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4Bulkhead.class);
+
+  private final String m_sName;
+  private final int m_nMaxConcurrent;
+  private final int m_nMaxQueued;
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private int m_nInFlight = 0;
+  @GuardedBy ("m_aLock")
+  private final Queue <Runnable> m_aPending = new ArrayDeque <> ();
+  private final AtomicLong m_aRejectedCount = new AtomicLong (0);
+
+  /**
+   * Constructor
+   *
+   * @param sName
+   *        Bulkhead name. May neither be <code>null</code> nor empty.
+   * @param nMaxConcurrent
+   *        Maximum number of concurrently running tasks. Must be &gt; 0.
+   * @param nMaxQueued
+   *        Maximum number of tasks waiting for a free slot. Must be &ge; 0.
+   */
+  public AS4Bulkhead (@Nonnull @Nonempty final String sName,
+                      @Nonnegative final int nMaxConcurrent,
+                      @Nonnegative final int nMaxQueued)
+  {
+    ValueEnforcer.notEmpty (sName, "Name");
+    ValueEnforcer.isGT0 (nMaxConcurrent, "MaxConcurrent");
+    ValueEnforcer.isGE0 (nMaxQueued, "MaxQueued");
+    m_sName = sName;
+    m_nMaxConcurrent = nMaxConcurrent;
+    m_nMaxQueued = nMaxQueued;
+  }
+
+  @Nonnull
+  @Nonempty
+  public final String getName ()
+  {
+    return m_sName;
+  }
+
+  @Nonnegative
+  public final int getMaxConcurrent ()
+  {
+    return m_nMaxConcurrent;
+  }
+
+  @Nonnegative
+  public final int getMaxQueued ()
+  {
+    return m_nMaxQueued;
+  }
+
+  /**
+   * Free the slot of a finished task or hand it over to the next queued task.
+   *
+   * @return The next task to run in the same slot or <code>null</code> if the
+   *         slot was freed.
+   */
+  @Nullable
+  private Runnable _pollNextOrFreeSlot ()
+  {
+    return m_aLock.locked ( () -> {
+      final Runnable ret = m_aPending.poll ();
+      if (ret == null)
+      {
+        // Nothing queued - free the slot
+        m_nInFlight--;
+      }
+      return ret;
+    });
+  }
+
+  /**
+   * Run the provided task and afterwards all tasks queued in the meantime, in
+   * the current thread. This is a loop and not a recursion, so that a long
+   * queue cannot exhaust the stack.
+   *
+   * @param aFirstTask
+   *        The first task of the slot. May not be <code>null</code>.
+   */
+  private void _runSlot (@Nonnull final Runnable aFirstTask)
+  {
+    Runnable aTask = aFirstTask;
+    while (aTask != null)
+    {
+      aTask.run ();
+      aTask = _pollNextOrFreeSlot ();
+    }
+  }
+
+  /**
+   * Run the provided task in the calling thread, because the worker pool is
+   * saturated. Afterwards the slot is handed back to the pool, so that the
+   * caller does not process the whole queue. Only while the pool has no
+   * capacity, the queued tasks are run in the calling thread one by one.
+   *
+   * @param aFirstTask
+   *        The first task of the slot. May not be <code>null</code>.
+   */
+  private void _runSlotInCaller (@Nonnull final Runnable aFirstTask)
+  {
+    aFirstTask.run ();
+    Runnable aTask = _pollNextOrFreeSlot ();
+    while (aTask != null)
+    {
+      final Runnable aNextTask = aTask;
+      if (AS4WorkerPool.getInstance ().tryExecute ( () -> _runSlot (aNextTask)))
+        return;
+      aTask.run ();
+      aTask = _pollNextOrFreeSlot ();
+    }
+  }
+
+  /**
+   * Run the provided runnable asynchronously within the limits of this
+   * bulkhead.
+   *
+   * @param aRunnable
+   *        The runnable to execute. May not be <code>null</code>.
+   * @return The future that is completed after the runnable was executed.
+   *         Never <code>null</code>.
+   * @throws AS4WorkerPoolSaturatedException
+   *         If the bulkhead queue is full and the saturation policy of the
+   *         {@link AS4WorkerPool} is
+   *         {@link EAS4WorkerPoolSaturationPolicy#REJECT}.
+   */
+  @Nonnull
+  public CompletableFuture <Void> run (@Nonnull final IThrowingRunnable <? extends Throwable> aRunnable)
+  {
+    ValueEnforcer.notNull (aRunnable, "Runnable");
+
+    final CompletableFuture <Void> ret = new CompletableFuture <> ();
+    final Runnable aTask = () -> {
+      try
+      {
+        aRunnable.run ();
+      }
+      catch (final Throwable t)
+      {
+        LOGGER.error ("Error running AS4 runner in bulkhead '" + m_sName + "'", t);
+      }
+      finally
+      {
+        ret.complete (null);
+      }
+    };
+
+    // 0 = run now, 1 = queued, 2 = full
+    final int nAction = m_aLock.locked ( () -> {
+      if (m_nInFlight < m_nMaxConcurrent)
+      {
+        m_nInFlight++;
+        return 0;
+      }
+      if (m_aPending.size () < m_nMaxQueued)
+      {
+        m_aPending.add (aTask);
+        return 1;
+      }
+      return 2;
+    });
+
+    if (nAction == 0)
+    {
+      try
+      {
+        final Thread aCallingThread = Thread.currentThread ();
+        AS4WorkerPool.getInstance ().run ( () -> {
+          if (Thread.currentThread () == aCallingThread)
+          {
+            // The saturated pool runs the task in the calling thread
+            _runSlotInCaller (aTask);
+          }
+          else
+            _runSlot (aTask);
+        });
+      }
+      catch (final AS4WorkerPoolSaturatedException ex)
+      {
+        // Tasks queued in the meantime were already accepted - run them here
+        final Runnable aNext = _pollNextOrFreeSlot ();
+        if (aNext != null)
+          _runSlot (aNext);
+        throw ex;
+      }
+    }
+    else
+      if (nAction == 2)
+      {
+        m_aRejectedCount.incrementAndGet ();
+        if (AS4WorkerPool.getInstance ().getSaturationPolicy () == EAS4WorkerPoolSaturationPolicy.REJECT)
+          throw new AS4WorkerPoolSaturatedException ("AS4 bulkhead '" + m_sName + "' is saturated");
+
+        LOGGER.warn ("AS4 bulkhead '" + m_sName + "' is saturated - running task in the calling thread");
+        try
+        {
+          aRunnable.run ();
+        }
+        catch (final Throwable t)
+        {
+          LOGGER.error ("Error running AS4 runner in bulkhead '" + m_sName + "'", t);
+        }
+        ret.complete (null);
+      }
+    return ret;
+  }
+
+  /**
+   * @return The number of currently running tasks.
+   */
+  @Nonnegative
+  public int getInFlightCount ()
+  {
+    return m_aLock.locked ( () -> m_nInFlight);
+  }
+
+  /**
+   * @return The number of tasks waiting for a free slot.
+   */
+  @Nonnegative
+  public int getQueuedCount ()
+  {
+    return m_aLock.locked (m_aPending::size);
+  }
+
+  /**
+   * @return The number of tasks that exceeded the limits of this bulkhead.
+   */
+  @Nonnegative
+  public long getRejectedCount ()
+  {
+    return m_aRejectedCount.get ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Name", m_sName)
+                                       .append ("MaxConcurrent", m_nMaxConcurrent)
+                                       .append ("MaxQueued", m_nMaxQueued)
+                                       .getToString ();
+  }
+}
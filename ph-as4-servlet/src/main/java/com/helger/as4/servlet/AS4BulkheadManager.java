@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.model.pmode.IPMode;
+import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.annotation.UsedViaReflection;
+import com.helger.commons.callback.IThrowingRunnable;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.string.StringHelper;
+import com.helger.scope.singleton.AbstractGlobalSingleton;
+
+/**
+ * Manages the {@link AS4Bulkhead} objects for asynchronous processing. Each
+ * PMode or MPC (depending on {@link EAS4BulkheadKey}) gets its own bulkhead,
+ * so that a single misbehaving partner cannot exhaust the
+ * {@link AS4WorkerPool}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4BulkheadManager extends AbstractGlobalSingleton
+{
+  /** Half of the worker threads, so that no single bulkhead occupies all */
+  public static final int DEFAULT_MAX_CONCURRENT = Math.max (1, AS4WorkerPool.DEFAULT_THREAD_COUNT / 2);
+  public static final int DEFAULT_MAX_QUEUED = 100;
+
+  private static final SimpleReadWriteLock s_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("s_aRWLock")
+  private static EAS4BulkheadKey s_eKey = EAS4BulkheadKey.DEFAULT;
+  @GuardedBy ("s_aRWLock")
+  private static int s_nMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+  @GuardedBy ("s_aRWLock")
+  private static int s_nMaxQueued = DEFAULT_MAX_QUEUED;
+  // Bulkhead name to {max concurrent, max queued}
+  @GuardedBy ("s_aRWLock")
+  private static final ICommonsMap <String, int []> s_aCustomLimits = new CommonsHashMap <> ();
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, AS4Bulkhead> m_aBulkheads = new CommonsHashMap <> ();
+
+  @Deprecated
+  @UsedViaReflection
+  public AS4BulkheadManager ()
+  {}
+
+  @Nonnull
+  public static AS4BulkheadManager getInstance ()
+  {
+    return getGlobalSingleton (AS4BulkheadManager.class);
+  }
+
+  /**
+   * Define how tasks are assigned to bulkheads and the default limits of each
+   * bulkhead. Only affects bulkheads created afterwards.
+   *
+   * @param eKey
+   *        The bulkhead key to use. May not be <code>null</code>.
+   * @param nMaxConcurrent
+   *        Maximum number of concurrently running tasks per bulkhead. Must be
+   *        &gt; 0.
+   * @param nMaxQueued
+   *        Maximum number of waiting tasks per bulkhead. Must be &ge; 0.
+   */
+  public static void configure (@Nonnull final EAS4BulkheadKey eKey,
+                                @Nonnegative final int nMaxConcurrent,
+                                @Nonnegative final int nMaxQueued)
+  {
+    ValueEnforcer.notNull (eKey, "Key");
+    ValueEnforcer.isGT0 (nMaxConcurrent, "MaxConcurrent");
+    ValueEnforcer.isGE0 (nMaxQueued, "MaxQueued");
+    s_aRWLock.writeLocked ( () -> {
+      s_eKey = eKey;
+      s_nMaxConcurrent = nMaxConcurrent;
+      s_nMaxQueued = nMaxQueued;
+    });
+  }
+
+  /**
+   * Define custom limits for a single bulkhead. Only affects bulkheads created
+   * afterwards.
+   *
+   * @param sName
+   *        The bulkhead name - either a PMode ID or an MPC ID. May neither be
+   *        <code>null</code> nor empty.
+   * @param nMaxConcurrent
+   *        Maximum number of concurrently running tasks. Must be &gt; 0.
+   * @param nMaxQueued
+   *        Maximum number of waiting tasks. Must be &ge; 0.
+   */
+  public static void setCustomLimits (@Nonnull @Nonempty final String sName,
+                                      @Nonnegative final int nMaxConcurrent,
+                                      @Nonnegative final int nMaxQueued)
+  {
+    ValueEnforcer.notEmpty (sName, "Name");
+    ValueEnforcer.isGT0 (nMaxConcurrent, "MaxConcurrent");
+    ValueEnforcer.isGE0 (nMaxQueued, "MaxQueued");
+    s_aRWLock.writeLocked ( () -> s_aCustomLimits.put (sName, new int [] { nMaxConcurrent, nMaxQueued }));
+  }
+
+  @Nonnull
+  public static EAS4BulkheadKey getKey ()
+  {
+    return s_aRWLock.readLocked ( () -> s_eKey);
+  }
+
+  /**
+   * Determine the bulkhead name for the provided message.
+   *
+   * @param aPMode
+   *        The PMode of the message. May be <code>null</code>.
+   * @param sMPC
+   *        The MPC of the message. May be <code>null</code>.
+   * @return <code>null</code> if no bulkhead should be used.
+   */
+  @Nullable
+  public static String getBulkheadName (@Nullable final IPMode aPMode, @Nullable final String sMPC)
+  {
+    switch (getKey ())
+    {
+      case PMODE:
+        return aPMode == null ? null : aPMode.getID ();
+      case MPC:
+      {
+        if (StringHelper.hasText (sMPC))
+          return sMPC;
+        final PModeLeg aLeg = aPMode == null ? null : aPMode.getLeg1 ();
+        if (aLeg != null && aLeg.getBusinessInfo () != null && aLeg.getBusinessInfo ().hasMPCID ())
+          return aLeg.getBusinessInfo ().getMPCID ();
+        return CAS4.DEFAULT_MPC_ID;
+      }
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Get or create the bulkhead with the provided name.
+   *
+   * @param sName
+   *        Bulkhead name. May neither be <code>null</code> nor empty.
+   * @return The bulkhead. Never <code>null</code>.
+   */
+  @Nonnull
+  public AS4Bulkhead getOrCreateBulkhead (@Nonnull @Nonempty final String sName)
+  {
+    ValueEnforcer.notEmpty (sName, "Name");
+    final AS4Bulkhead ret = m_aRWLock.readLocked ( () -> m_aBulkheads.get (sName));
+    if (ret != null)
+      return ret;
+
+    return m_aRWLock.writeLocked ( () -> m_aBulkheads.computeIfAbsent (sName, k -> {
+      final int [] aLimits = s_aRWLock.readLocked ( () -> {
+        final int [] aCustom = s_aCustomLimits.get (k);
+        return aCustom != null ? aCustom : new int [] { s_nMaxConcurrent, s_nMaxQueued };
+      });
+      return new AS4Bulkhead (k, aLimits[0], aLimits[1]);
+    }));
+  }
+
+  /**
+   * Run the provided runnable asynchronously in the bulkhead determined by
+   * PMode and MPC.
+   *
+   * @param aPMode
+   *        The PMode of the message. May be <code>null</code>.
+   * @param sMPC
+   *        The MPC of the message. May be <code>null</code>.
+   * @param aRunnable
+   *        The runnable to execute. May not be <code>null</code>.
+   * @return The future. Never <code>null</code>.
+   * @throws AS4WorkerPoolSaturatedException
+   *         If the bulkhead or the worker pool is saturated and the saturation
+   *         policy is {@link EAS4WorkerPoolSaturationPolicy#REJECT}.
+   */
+  @Nonnull
+  public CompletableFuture <Void> run (@Nullable final IPMode aPMode,
+                                       @Nullable final String sMPC,
+                                       @Nonnull final IThrowingRunnable <? extends Throwable> aRunnable)
+  {
+    final String sName = getBulkheadName (aPMode, sMPC);
+    if (sName == null)
+      return AS4WorkerPool.getInstance ().run (aRunnable);
+    return getOrCreateBulkhead (sName).run (aRunnable);
+  }
+
+  /**
+   * @return All bulkheads created so far. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4Bulkhead> getAllBulkheads ()
+  {
+    return m_aRWLock.readLocked ( () -> m_aBulkheads.copyOfValues ());
+  }
+}
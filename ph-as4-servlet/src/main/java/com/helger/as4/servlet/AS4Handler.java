@@ -21,19 +21,23 @@ import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
 import javax.mail.Header;
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.namespace.QName;
@@ -50,7 +54,7 @@ import com.helger.as4.CAS4;
 import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.attachment.IIncomingAttachmentFactory;
 import com.helger.as4.attachment.WSS4JAttachment;
-import com.helger.as4.client.BasicHttpPoster;
+import com.helger.as4.client.AS4ReceiptCorrelationIndex;
 import com.helger.as4.crypto.AS4CryptoFactory;
 import com.helger.as4.error.EEbmsError;
 import com.helger.as4.http.AS4HttpDebug;
@@ -72,6 +76,8 @@ import com.helger.as4.model.pmode.leg.EPModeSendReceiptReplyPattern;
 import com.helger.as4.model.pmode.leg.PModeLeg;
 import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
 import com.helger.as4.model.pmode.leg.PModeLegSecurity;
+import com.helger.as4.mpcqueue.AS4MPCQueueEntry;
+import com.helger.as4.outbox.AS4Outbox;
 import com.helger.as4.profile.IAS4Profile;
 import com.helger.as4.profile.IAS4ProfileValidator;
 import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
@@ -90,6 +96,7 @@ import com.helger.as4lib.ebms3header.Ebms3CollaborationInfo;
 import com.helger.as4lib.ebms3header.Ebms3Error;
 import com.helger.as4lib.ebms3header.Ebms3MessageInfo;
 import com.helger.as4lib.ebms3header.Ebms3MessageProperties;
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
 import com.helger.as4lib.ebms3header.Ebms3PartInfo;
 import com.helger.as4lib.ebms3header.Ebms3PartyInfo;
 import com.helger.as4lib.ebms3header.Ebms3PayloadInfo;
@@ -107,14 +114,18 @@ import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.error.IError;
 import com.helger.commons.error.list.ErrorList;
+import com.helger.commons.http.CHttpHeader;
 import com.helger.commons.http.HttpHeaderMap;
 import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.EMimeContentType;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.mime.MimeType;
 import com.helger.commons.mime.MimeTypeParser;
+import com.helger.commons.state.EChange;
 import com.helger.commons.state.ISuccessIndicator;
 import com.helger.commons.string.StringHelper;
 import com.helger.httpclient.response.ResponseHandlerXml;
@@ -154,9 +165,13 @@ public final class AS4Handler implements AutoCloseable
 
     public void applyToResponse (@Nonnull final ESOAPVersion eSOAPVersion, @Nonnull final AS4Response aHttpResponse)
     {
-      final String sXML = AS4XMLHelper.serializeXML (m_aDoc);
-      aHttpResponse.setContentAndCharset (sXML, AS4XMLHelper.XWS.getCharset ())
-                   .setMimeType (eSOAPVersion.getMimeType ());
+      // Serialize directly to bytes without an intermediate String
+      try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+      {
+        AS4XMLHelper.serializeXML (m_aDoc, aBAOS);
+        aHttpResponse.setCharset (AS4XMLHelper.XWS.getCharset ());
+        aHttpResponse.setContent (aBAOS.toByteArray ()).setMimeType (eSOAPVersion.getMimeType ());
+      }
     }
 
     @Nonnull
@@ -212,14 +227,55 @@ public final class AS4Handler implements AutoCloseable
     }
   }
 
+  /**
+   * Response of a parked pull request. The contained future may be completed
+   * with <code>null</code> if no response should be sent.
+   */
+  private static final class AS4ResponseFactoryDeferred implements IAS4ResponseFactory
+  {
+    private final CompletableFuture <IAS4ResponseFactory> m_aFuture;
+
+    public AS4ResponseFactoryDeferred (@Nonnull final CompletableFuture <IAS4ResponseFactory> aFuture)
+    {
+      m_aFuture = aFuture;
+    }
+
+    @Nonnull
+    public CompletableFuture <IAS4ResponseFactory> getFuture ()
+    {
+      return m_aFuture;
+    }
+
+    @Nonnull
+    private IAS4ResponseFactory _getResult ()
+    {
+      final IAS4ResponseFactory ret = m_aFuture.join ();
+      if (ret == null)
+        throw new IllegalStateException ("Deferred response is empty");
+      return ret;
+    }
+
+    public void applyToResponse (@Nonnull final ESOAPVersion eSOAPVersion, @Nonnull final AS4Response aHttpResponse)
+    {
+      _getResult ().applyToResponse (eSOAPVersion, aHttpResponse);
+    }
+
+    @Nonnull
+    public HttpEntity getHttpEntity (@Nonnull final ESOAPVersion eSOAPVersion)
+    {
+      return _getResult ().getHttpEntity (eSOAPVersion);
+    }
+  }
+
   private static final Logger LOGGER = LoggerFactory.getLogger (AS4Handler.class);
   private static final IMimeType MT_MULTIPART_RELATED = EMimeContentType.MULTIPART.buildMimeType ("related");
 
   private static final AtomicBoolean s_aDebug = new AtomicBoolean (false);
 
-  private final AS4ResourceManager m_aResMgr = new AS4ResourceManager ();
+  private final AS4ResourceManager m_aResMgr = new AS4ResourceManager (AS4ServerSettings.getAttachmentSpillPolicy ());
   private Locale m_aLocale = CGlobal.DEFAULT_LOCALE;
-  private final AS4CryptoFactory m_aCryptoFactory = AS4CryptoFactory.DEFAULT_INSTANCE;
+  // The pull request that is parked because of long polling
+  private volatile CompletableFuture <AS4MPCQueueEntry> m_aPendingPullReturn;
 
   public AS4Handler ()
   {}
@@ -249,6 +305,36 @@ public final class AS4Handler implements AutoCloseable
     m_aResMgr.close ();
   }
 
+  void setPendingPullReturn (@Nonnull final CompletableFuture <AS4MPCQueueEntry> aPendingPullReturn)
+  {
+    m_aPendingPullReturn = aPendingPullReturn;
+  }
+
+  /**
+   * Cancel the pull request that is parked because of long polling, e.g. if
+   * the HTTP request timed out. Messages arriving afterwards are served to the
+   * next pull request instead.
+   *
+   * @return {@link EChange#CHANGED} if a parked pull request was cancelled.
+   */
+  @Nonnull
+  public EChange cancelPendingPullReturn ()
+  {
+    final CompletableFuture <AS4MPCQueueEntry> aPendingPullReturn = m_aPendingPullReturn;
+    return EChange.valueOf (aPendingPullReturn != null && aPendingPullReturn.cancel (false));
+  }
+
+  /**
+   * @return The resource manager that owns all temporary resources of this
+   *         handler. It is closed together with the handler. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public AS4ResourceManager getResourceManager ()
+  {
+    return m_aResMgr;
+  }
+
   @Nonnull
   public Locale getLocale ()
   {
@@ -416,6 +502,7 @@ public final class AS4Handler implements AutoCloseable
   {
     private boolean m_bSuccess = false;
     private Ebms3UserMessage m_aPullReturnUserMsg;
+    private CompletableFuture <AS4MPCQueueEntry> m_aPendingPullReturn;
     private String m_sAsyncResponseURL;
 
     public boolean isSuccess ()
@@ -444,6 +531,22 @@ public final class AS4Handler implements AutoCloseable
       return m_aPullReturnUserMsg != null;
     }
 
+    void setPendingPullReturn (@Nonnull final CompletableFuture <AS4MPCQueueEntry> aPendingPullReturn)
+    {
+      m_aPendingPullReturn = aPendingPullReturn;
+    }
+
+    @Nullable
+    public CompletableFuture <AS4MPCQueueEntry> getPendingPullReturn ()
+    {
+      return m_aPendingPullReturn;
+    }
+
+    public boolean hasPendingPullReturn ()
+    {
+      return m_aPendingPullReturn != null;
+    }
+
     void setAsyncResponseURL (@Nonnull final String sAsyncResponseURL)
     {
       m_sAsyncResponseURL = sAsyncResponseURL;
@@ -603,7 +706,9 @@ public final class AS4Handler implements AutoCloseable
             else
             {
               // Initial return user msg
-              if (aPullReturnUserMsg == null)
+              // Pull requests without a message are served from the MPC
+              // queue below
+              if (aPullReturnUserMsg == null && aSignalMessage.getPullRequest () == null)
               {
                 // No message contained in the MPC
                 final String sErrorMsg = "Invoked AS4 message processor SPI " +
@@ -620,7 +725,8 @@ public final class AS4Handler implements AutoCloseable
               }
 
               // We have something :)
-              aSPIResult.setPullReturnUserMsg (aPullReturnUserMsg);
+              if (aPullReturnUserMsg != null)
+                aSPIResult.setPullReturnUserMsg (aPullReturnUserMsg);
             }
           }
         }
@@ -646,10 +752,84 @@ public final class AS4Handler implements AutoCloseable
         throw new IllegalStateException ("Error processing incoming AS4 message with processor " + aProcessor, t);
       }
 
+    if (!bIsUserMessage && aSignalMessage.getPullRequest () != null && !aSPIResult.hasPullReturnUserMsg ())
+    {
+      // No SPI returned a message - use the built-in queue of the MPC
+      final String sMPCID = aSignalMessage.getPullRequest ().getMpc ();
+      final CompletableFuture <AS4MPCQueueEntry> aPullReturn = MetaAS4Manager.getMPCQueue ()
+                                                                            .dequeueAsync (sMPCID,
+                                                                                           _getPullerID (aState),
+                                                                                           AS4ServerSettings.getPullLongPollTimeoutMS ());
+      if (aPullReturn.isDone ())
+      {
+        final AS4MPCQueueEntry aEntry = aPullReturn.join ();
+        if (aEntry == null)
+        {
+          aErrorMessages.add (_createEmptyMPCError (sMessageID, sMPCID));
+          return;
+        }
+        aSPIResult.setPullReturnUserMsg (aEntry.getUserMessage ());
+      }
+      else
+      {
+        // Long polling - the response is created when a message arrives
+        if (isDebug ())
+          LOGGER.info ("Parking pull request '" + sMessageID + "' on MPC '" + sMPCID + "'");
+        aSPIResult.setPendingPullReturn (aPullReturn);
+        setPendingPullReturn (aPullReturn);
+      }
+    }
+
     // Remember success
     aSPIResult.setSuccess (true);
   }
 
+  @Nonnull
+  private Ebms3Error _createEmptyMPCError (@Nullable final String sMessageID, @Nullable final String sMPCID)
+  {
+    final String sErrorMsg = "No UserMessage contained in the MPC '" + sMPCID + "'";
+    LOGGER.warn (sErrorMsg);
+    return EEbmsError.EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL.getAsEbms3Error (m_aLocale, sMessageID, sErrorMsg);
+  }
+
+  /**
+   * @param aState
+   *        The state of the incoming message. May not be <code>null</code>.
+   * @return The ID of the sending party used to tie the receipt of a pulled
+   *         message to the pull request or <code>null</code> if the message
+   *         was not signed.
+   */
+  @Nullable
+  private static String _getPullerID (@Nonnull final IAS4MessageState aState)
+  {
+    final X509Certificate aCert = aState.isSoapSignatureChecked () ? aState.getUsedCertificate () : null;
+    if (aCert == null)
+      return null;
+    return aCert.getIssuerX500Principal ().getName () + "#" + aCert.getSerialNumber ().toString (16);
+  }
+
+  private static void _correlateReceipt (@Nonnull final AS4MessageState aState)
+  {
+    final Ebms3Messaging aMessaging = aState.getMessaging ();
+    if (aMessaging != null && aMessaging.hasSignalMessageEntries ())
+    {
+      final Ebms3SignalMessage aSignalMessage = aMessaging.getSignalMessageAtIndex (0);
+      if (aSignalMessage.getReceipt () != null && aSignalMessage.getMessageInfo () != null)
+      {
+        final String sRefToMessageID = aSignalMessage.getMessageInfo ().getRefToMessageId ();
+        aState.setCorrelatedOutgoingMessage (AS4ReceiptCorrelationIndex.getDefaultInstance ()
+                                                                       .onReceiptReceived (sRefToMessageID));
+        // Stop retransmitting the original message
+        final AS4Outbox aOutbox = MetaAS4Manager.getOutbox ();
+        if (aOutbox != null)
+          aOutbox.onReceiptReceived (sRefToMessageID);
+        // A pulled message was received - only the party that pulled it may
+        // acknowledge it
+        MetaAS4Manager.getMPCQueue ().acknowledgePulled (sRefToMessageID, _getPullerID (aState));
+      }
+    }
+  }
+
   @Nullable
   private IAS4ResponseFactory _handleSOAPMessage (@Nonnull final Document aSOAPDocument,
                                                   @Nonnull final ESOAPVersion eSOAPVersion,
@@ -680,6 +860,11 @@ public final class AS4Handler implements AutoCloseable
       // Handle all headers - the only place where the AS4MessageState values
       _processSOAPHeaderElements (aSOAPDocument, eSOAPVersion, aIncomingAttachments, aStateImpl, aErrorMessages);
 
+      // Link an incoming receipt to the original message before the SPIs are
+      // invoked
+      if (aErrorMessages.isEmpty ())
+        _correlateReceipt (aStateImpl);
+
       aState = aStateImpl;
     }
 
@@ -883,65 +1068,96 @@ public final class AS4Handler implements AutoCloseable
         final Node aFinalPayloadNode = aPayloadNode;
         final ICommonsList <WSS4JAttachment> aFinalDecryptedAttachments = aDecryptedAttachments;
 
-        AS4WorkerPool.getInstance ().run ( () -> {
-          final ICommonsList <Ebms3Error> aLocalErrorMessages = new CommonsArrayList <> ();
-          final ICommonsList <WSS4JAttachment> aLocalResponseAttachments = new CommonsArrayList <> ();
-          IAS4ResponseFactory aAsyncResponseFactory;
-
-          final SPIInvocationResult aAsyncSPIResult = new SPIInvocationResult ();
-          _invokeSPIs (aFinalUserMessage,
-                       aFinalSignalMessage,
-                       aFinalPayloadNode,
-                       aFinalDecryptedAttachments,
-                       aLocalErrorMessages,
-                       aLocalResponseAttachments,
-                       aPMode,
-                       aState,
-                       aAsyncSPIResult);
-          if (aAsyncSPIResult.isSuccess ())
-          {
-            // SPI processing succeeded
-            assert aLocalErrorMessages.isEmpty ();
+        final String sFinalMessageID = sMessageID;
+        try
+        {
+          // Isolate partners from each other
+          final String sMPC = aFinalUserMessage == null ? null : aFinalUserMessage.getMpc ();
+          AS4BulkheadManager.getInstance ().run (aPMode, sMPC, () -> {
+            final ICommonsList <Ebms3Error> aLocalErrorMessages = new CommonsArrayList <> ();
+            final ICommonsList <WSS4JAttachment> aLocalResponseAttachments = new CommonsArrayList <> ();
+            IAS4ResponseFactory aAsyncResponseFactory;
+            String sAsyncResponseMessageID;
+            boolean bReceiptExpected;
+
+            final SPIInvocationResult aAsyncSPIResult = new SPIInvocationResult ();
+            _invokeSPIs (aFinalUserMessage,
+                         aFinalSignalMessage,
+                         aFinalPayloadNode,
+                         aFinalDecryptedAttachments,
+                         aLocalErrorMessages,
+                         aLocalResponseAttachments,
+                         aPMode,
+                         aState,
+                         aAsyncSPIResult);
+            if (aAsyncSPIResult.isSuccess ())
+            {
+              // SPI processing succeeded
+              assert aLocalErrorMessages.isEmpty ();
 
-            // The response user message has no explicit payload.
-            // All data of the response user message is in the local attachments
-            final AS4UserMessage aResponseUserMsg = _createReversedUserMessage (eSOAPVersion,
-                                                                                aFinalUserMessage,
-                                                                                aLocalResponseAttachments);
+              // The response user message has no explicit payload.
+              // All data of the response user message is in the local attachments
+              final AS4UserMessage aResponseUserMsg = _createReversedUserMessage (eSOAPVersion,
+                                                                                  aFinalUserMessage,
+                                                                                  aLocalResponseAttachments);
+
+              // Send UserMessage or receipt
+              aAsyncResponseFactory = _createResponseUserMessage (aResponseAttachments,
+                                                                  aEffectiveLeg,
+                                                                  aResponseUserMsg.getAsSOAPDocument (),
+                                                                  aResponseUserMsg.getMessagingID ());
+              sAsyncResponseMessageID = aResponseUserMsg.getEbms3UserMessage ().getMessageInfo ().getMessageId ();
+              bReceiptExpected = true;
+            }
+            else
+            {
+              // SPI processing failed
+              // Send ErrorMessage
+              // Undefined - see https://github.com/phax/ph-as4/issues/4
+              final AS4ErrorMessage aResponseErrorMsg = AS4ErrorMessage.create (eSOAPVersion, aLocalErrorMessages);
+              aAsyncResponseFactory = new AS4ResponseFactoryXML (aResponseErrorMsg.getAsSOAPDocument ());
+              sAsyncResponseMessageID = aResponseErrorMsg.getEbms3SignalMessage ().getMessageInfo ().getMessageId ();
+              bReceiptExpected = false;
+            }
 
-            // Send UserMessage or receipt
-            aAsyncResponseFactory = _createResponseUserMessage (aResponseAttachments,
-                                                                aEffectiveLeg,
-                                                                aResponseUserMsg.getAsSOAPDocument (),
-                                                                aResponseUserMsg.getMessagingID ());
+            // where to send it back (must be determined by SPI!)
+            final String sAsyncResponseURL = aAsyncSPIResult.getAsyncResponseURL ();
+            if (StringHelper.hasNoText (sAsyncResponseURL))
+              throw new IllegalStateException ("No asynchronous response URL present!");
 
-          }
-          else
-          {
-            // SPI processing failed
-            // Send ErrorMessage
-            // Undefined - see https://github.com/phax/ph-as4/issues/4
-            final AS4ErrorMessage aResponseErrorMsg = AS4ErrorMessage.create (eSOAPVersion, aLocalErrorMessages);
-            aAsyncResponseFactory = new AS4ResponseFactoryXML (aResponseErrorMsg.getAsSOAPDocument ());
-          }
-
-          // where to send it back (must be determined by SPI!)
-          final String sAsyncResponseURL = aAsyncSPIResult.getAsyncResponseURL ();
-          if (StringHelper.hasNoText (sAsyncResponseURL))
-            throw new IllegalStateException ("No asynchronous response URL present!");
+            if (isDebug ())
+              LOGGER.info ("Responding asynchronous to: " + sAsyncResponseURL);
 
-          if (isDebug ())
-            LOGGER.info ("Responding asynchronous to: " + sAsyncResponseURL);
-
-          // invoke client with new document
-          final BasicHttpPoster aSender = new BasicHttpPoster ();
-          final Document aAsyncResponse = aSender.sendGenericMessage (sAsyncResponseURL,
-                                                                      aAsyncResponseFactory.getHttpEntity (eSOAPVersion),
-                                                                      new ResponseHandlerXml ());
-          AS4HttpDebug.debug ( () -> "SEND-RESPONSE [async sent] received: " +
-                                     XMLWriter.getNodeAsString (aAsyncResponse,
-                                                                AS4HttpDebug.getDebugXMLWriterSettings ()));
-        });
+            final AS4Outbox aOutbox = MetaAS4Manager.getOutbox ();
+            if (aOutbox != null)
+            {
+              // Persist and send - retries are handled by the outbox
+              aOutbox.submit (sAsyncResponseMessageID,
+                              aPMode.getID (),
+                              sAsyncResponseURL,
+                              aAsyncResponseFactory.getHttpEntity (eSOAPVersion),
+                              aPMode.getReceptionAwareness (),
+                              bReceiptExpected);
+            }
+            else
+            {
+              // invoke client with new document
+              final Document aAsyncResponse = AS4ServerSettings.getAsyncResponseSender ()
+                                                               .sendGenericMessage (sAsyncResponseURL,
+                                                                                    aAsyncResponseFactory.getHttpEntity (eSOAPVersion),
+                                                                                    new ResponseHandlerXml ());
+              AS4HttpDebug.debug ( () -> "SEND-RESPONSE [async sent] received: " +
+                                         XMLWriter.getNodeAsString (aAsyncResponse,
+                                                                    AS4HttpDebug.getDebugXMLWriterSettings ()));
+            }
+          });
+        }
+        catch (final AS4WorkerPoolSaturatedException ex)
+        {
+          // Message was not processed - allow the sender to retry
+          MetaAS4Manager.getIncomingDuplicateMgr ().unregister (sFinalMessageID);
+          throw ex;
+        }
       }
     }
 
@@ -975,10 +1191,28 @@ public final class AS4Handler implements AutoCloseable
             // Only get in here if pull is part of the EMEPBinding, if it is two
             // way, we need to check if the current application is currently in
             // the pull phase
+            final boolean bHasPullReturn = aSPIResult.hasPullReturnUserMsg () || aSPIResult.hasPendingPullReturn ();
             if (aPMode.getMEPBinding ().equals (EMEPBinding.PULL) ||
-                aPMode.getMEPBinding ().equals (EMEPBinding.PULL_PUSH) && aSPIResult.hasPullReturnUserMsg () ||
-                aPMode.getMEPBinding ().equals (EMEPBinding.PUSH_PULL) && aSPIResult.hasPullReturnUserMsg ())
+                aPMode.getMEPBinding ().equals (EMEPBinding.PULL_PUSH) && bHasPullReturn ||
+                aPMode.getMEPBinding ().equals (EMEPBinding.PUSH_PULL) && bHasPullReturn)
             {
+              if (aSPIResult.hasPendingPullReturn ())
+              {
+                final String sPullMessageID = aEbmsSignalMessage.getMessageInfo ().getMessageId ();
+                final String sMPCID = aEbmsSignalMessage.getPullRequest ().getMpc ();
+                final boolean bSendError = _isSendErrorAsResponse (aEffectiveLeg);
+                return new AS4ResponseFactoryDeferred (aSPIResult.getPendingPullReturn ().thenApply (aEntry -> {
+                  if (aEntry != null)
+                    return new AS4ResponseFactoryXML (new AS4UserMessage (eSOAPVersion,
+                                                                          aEntry.getUserMessage ()).getAsSOAPDocument ());
+                  // Nothing arrived in time
+                  final Ebms3Error aError = _createEmptyMPCError (sPullMessageID, sMPCID);
+                  return bSendError ? new AS4ResponseFactoryXML (AS4ErrorMessage.create (eSOAPVersion,
+                                                                                         new CommonsArrayList <> (aError))
+                                                                                .getAsSOAPDocument ())
+                                    : null;
+                }));
+              }
               return new AS4ResponseFactoryXML (new AS4UserMessage (eSOAPVersion,
                                                                     aSPIResult.getPullReturnUserMsg ()).getAsSOAPDocument ());
             }
@@ -1209,7 +1443,9 @@ public final class AS4Handler implements AutoCloseable
     if (aSecurity.getX509SignatureAlgorithm () != null && aSecurity.getX509SignatureHashFunction () != null)
     {
       final boolean bMustUnderstand = true;
-      return SignedMessageCreator.createSignedMessage (m_aCryptoFactory,
+      // The default crypto factory is only referenced when needed, so that
+      // messages without WS-Security don't require crypto properties
+      return SignedMessageCreator.createSignedMessage (AS4CryptoFactory.DEFAULT_INSTANCE,
                                                        aDocToBeSigned,
                                                        eSOAPVersion,
                                                        sMessagingID,
@@ -1245,7 +1481,7 @@ public final class AS4Handler implements AutoCloseable
     MimeMessage aMimeMsg = null;
     if (aLeg.getSecurity () != null && aLeg.getSecurity ().getX509EncryptionAlgorithm () != null)
     {
-      final EncryptionCreator aEncryptCreator = new EncryptionCreator (m_aCryptoFactory);
+      final EncryptionCreator aEncryptCreator = new EncryptionCreator (AS4CryptoFactory.DEFAULT_INSTANCE);
       aMimeMsg = aEncryptCreator.encryptMimeMessage (aLeg.getProtocol ().getSOAPVersion (),
                                                      aResponseDoc,
                                                      true,
@@ -1403,11 +1639,87 @@ public final class AS4Handler implements AutoCloseable
     return DOMReader.readXMLDOM (aRequestIS);
   }
 
-  public void handleRequest (@Nonnull final IRequestWebScopeWithoutResponse aRequestScope,
-                             @Nonnull final AS4Response aHttpResponse) throws BadRequestException,
-                                                                       IOException,
-                                                                       MessagingException,
-                                                                       WSSecurityException
+  /**
+   * Read the headers of the current MIME part. Must be called after the
+   * boundary was read and before the part content is read.
+   *
+   * @param aMulti
+   *        The multipart stream to read from. May not be <code>null</code>.
+   * @return The parsed headers. Never <code>null</code>.
+   * @throws IOException
+   *         In case reading fails
+   * @throws MessagingException
+   *         In case parsing fails
+   */
+  @Nonnull
+  private static InternetHeaders _readPartHeaders (@Nonnull final MultipartStream aMulti) throws IOException,
+                                                                                           MessagingException
+  {
+    final String sHeaders = aMulti.readHeaders ();
+    if (isDebug ())
+      LOGGER.info ("MIME part headers:\n" + sHeaders);
+    return new InternetHeaders (new NonBlockingByteArrayInputStream (sHeaders.getBytes (StandardCharsets.ISO_8859_1)));
+  }
+
+  /**
+   * Handle an incoming AS4 request and fill the response. The request body is
+   * read from the servlet request.
+   *
+   * @param aRequestScope
+   *        The request scope. May not be <code>null</code>.
+   * @param aHttpResponse
+   *        The response to be filled. May not be <code>null</code>.
+   * @return A future that is completed when the response is filled. It is
+   *         already completed, unless a pull request was parked because of long
+   *         polling. Never <code>null</code>.
+   * @throws BadRequestException
+   *         In case the request is malformed
+   * @throws IOException
+   *         In case reading the request fails
+   * @throws MessagingException
+   *         In case MIME handling fails
+   * @throws WSSecurityException
+   *         In case WS-Security handling fails
+   */
+  @Nonnull
+  public CompletableFuture <Void> handleRequest (@Nonnull final IRequestWebScopeWithoutResponse aRequestScope,
+                                                 @Nonnull final AS4Response aHttpResponse) throws BadRequestException,
+                                                                                           IOException,
+                                                                                           MessagingException,
+                                                                                           WSSecurityException
+  {
+    return handleRequest (aRequestScope, _getRequestIS (aRequestScope.getRequest ()), aHttpResponse);
+  }
+
+  /**
+   * Handle an incoming AS4 request and fill the response.
+   *
+   * @param aRequestScope
+   *        The request scope. May not be <code>null</code>.
+   * @param aRequestIS
+   *        The stream to read the request body from, e.g. if it was already
+   *        read asynchronously. May not be <code>null</code>.
+   * @param aHttpResponse
+   *        The response to be filled. May not be <code>null</code>.
+   * @return A future that is completed when the response is filled. It is
+   *         already completed, unless a pull request was parked because of long
+   *         polling. Never <code>null</code>.
+   * @throws BadRequestException
+   *         In case the request is malformed
+   * @throws IOException
+   *         In case reading the request fails
+   * @throws MessagingException
+   *         In case MIME handling fails
+   * @throws WSSecurityException
+   *         In case WS-Security handling fails
+   */
+  @Nonnull
+  public CompletableFuture <Void> handleRequest (@Nonnull final IRequestWebScopeWithoutResponse aRequestScope,
+                                                 @Nonnull @WillNotClose final InputStream aRequestIS,
+                                                 @Nonnull final AS4Response aHttpResponse) throws BadRequestException,
+                                                                                           IOException,
+                                                                                           MessagingException,
+                                                                                           WSSecurityException
   {
     AS4HttpDebug.debug ( () -> "RECEIVE-START at " + aRequestScope.getFullContextAndServletPath ());
 
@@ -1445,7 +1757,7 @@ public final class AS4Handler implements AutoCloseable
         LOGGER.info ("MIME Boundary = " + sBoundary);
 
       // PARSING MIME Message via MultiPartStream
-      final MultipartStream aMulti = new MultipartStream (_getRequestIS (aHttpServletRequest),
+      final MultipartStream aMulti = new MultipartStream (aRequestIS,
                                                           sBoundary.getBytes (StandardCharsets.ISO_8859_1),
                                                           (MultipartProgressNotifier) null);
       final IIncomingAttachmentFactory aIAF = AS4ServerSettings.getIncomingAttachmentFactory ();
@@ -1459,26 +1771,44 @@ public final class AS4Handler implements AutoCloseable
 
         if (isDebug ())
           LOGGER.info ("Found MIME part " + nIndex);
-        final MultipartItemInputStream aItemIS2 = aMulti.createInputStream ();
 
-        final MimeBodyPart aBodyPart = new MimeBodyPart (aItemIS2);
-        if (nIndex == 0)
+        // Parse the part headers ourselves, so that the part content itself
+        // can be streamed and is never buffered as a whole
+        final InternetHeaders aPartHeaders = _readPartHeaders (aMulti);
+        final MultipartItemInputStream aItemIS = aMulti.createInputStream ();
+        try
         {
-          // First MIME part -> SOAP document
-          final IMimeType aPlainPartMT = MimeTypeParser.parseMimeType (aBodyPart.getContentType ())
-                                                       .getCopyWithoutParameters ();
-
-          // Determine SOAP version from MIME part content type
-          eSOAPVersion = ArrayHelper.findFirst (ESOAPVersion.values (), x -> aPlainPartMT.equals (x.getMimeType ()));
+          if (nIndex == 0)
+          {
+            // First MIME part -> SOAP document
+            final String sPartContentType = aPartHeaders.getHeader (CHttpHeader.CONTENT_TYPE, null);
+            final MimeType aPartMT = sPartContentType == null ? null
+                                                              : MimeTypeParser.parseMimeType (sPartContentType);
+            if (aPartMT != null)
+            {
+              // Determine SOAP version from MIME part content type
+              final IMimeType aPlainPartMT = aPartMT.getCopyWithoutParameters ();
+              eSOAPVersion = ArrayHelper.findFirst (ESOAPVersion.values (),
+                                                    x -> aPlainPartMT.equals (x.getMimeType ()));
+            }
 
-          // Read SOAP document
-          aSOAPDocument = _readXML (aBodyPart.getInputStream ());
+            // Read SOAP document directly from the part stream
+            final String sPartCTE = aPartHeaders.getHeader (CHttpHeader.CONTENT_TRANSFER_ENCODING, null);
+            aSOAPDocument = _readXML (StringHelper.hasText (sPartCTE) ? MimeUtility.decode (aItemIS, sPartCTE.trim ())
+                                                                      : aItemIS);
+          }
+          else
+          {
+            // MIME Attachment (index is gt 0)
+            final WSS4JAttachment aAttachment = aIAF.createAttachment (aItemIS, aPartHeaders, m_aResMgr);
+            aIncomingAttachments.add (aAttachment);
+          }
         }
-        else
+        finally
         {
-          // MIME Attachment (index is gt 0)
-          final WSS4JAttachment aAttachment = aIAF.createAttachment (aBodyPart, m_aResMgr);
-          aIncomingAttachments.add (aAttachment);
+          // Skips all remaining bytes of the part, so that the next boundary
+          // can be read
+          aItemIS.close ();
         }
         nIndex++;
       }
@@ -1490,7 +1820,7 @@ public final class AS4Handler implements AutoCloseable
 
       // Expect plain SOAP - read whole request to DOM
       // Note: this may require a huge amount of memory for large requests
-      aSOAPDocument = _readXML (_getRequestIS (aHttpServletRequest));
+      aSOAPDocument = _readXML (aRequestIS);
 
       if (aSOAPDocument != null)
       {
@@ -1526,6 +1856,24 @@ public final class AS4Handler implements AutoCloseable
 
     // SOAP document and SOAP version are determined
     final IAS4ResponseFactory aResponder = _handleSOAPMessage (aSOAPDocument, eSOAPVersion, aIncomingAttachments);
+    if (aResponder instanceof AS4ResponseFactoryDeferred)
+    {
+      // Parked pull request - no thread is blocked until the response is
+      // available
+      final ESOAPVersion eFinalSOAPVersion = eSOAPVersion;
+      return ((AS4ResponseFactoryDeferred) aResponder).getFuture ()
+                                                      .thenAccept (x -> _applyResponse (x,
+                                                                                        eFinalSOAPVersion,
+                                                                                        aHttpResponse));
+    }
+    _applyResponse (aResponder, eSOAPVersion, aHttpResponse);
+    return CompletableFuture.completedFuture (null);
+  }
+
+  private static void _applyResponse (@Nullable final IAS4ResponseFactory aResponder,
+                                      @Nonnull final ESOAPVersion eSOAPVersion,
+                                      @Nonnull final AS4Response aHttpResponse)
+  {
     if (aResponder != null)
     {
       // Response present -> send back
@@ -29,6 +29,7 @@ import org.w3c.dom.Document;
 
 import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.attachment.WSS4JAttachment;
+import com.helger.as4.client.AS4PendingReceipt;
 import com.helger.as4.model.mpc.IMPC;
 import com.helger.as4.model.pmode.IPMode;
 import com.helger.as4.model.pmode.leg.PModeLeg;
@@ -67,6 +68,7 @@ public class AS4MessageState extends AttributeContainerAny <String> implements I
   private static final String KEY_EFFECTIVE_PMODE_LEG_NUMBER = "as4.pmode.effective.leg.number";
   private static final String KEY_SOAP_CHECKED_SIGNATURE = "as4.soap.signature.checked";
   private static final String KEY_SOAP_DECRYPTED = "as4.soap.decrypted";
+  private static final String KEY_CORRELATED_OUTGOING_MESSAGE = "as4.correlated.outgoing.message";
 
   private final LocalDateTime m_aReceiptDT;
   private final ESOAPVersion m_eSOAPVersion;
@@ -269,4 +271,15 @@ public class AS4MessageState extends AttributeContainerAny <String> implements I
   {
     return getAsBoolean (KEY_SOAP_DECRYPTED, false);
   }
+
+  public void setCorrelatedOutgoingMessage (@Nullable final AS4PendingReceipt aPendingReceipt)
+  {
+    putIn (KEY_CORRELATED_OUTGOING_MESSAGE, aPendingReceipt);
+  }
+
+  @Nullable
+  public AS4PendingReceipt getCorrelatedOutgoingMessage ()
+  {
+    return getCastedValue (KEY_CORRELATED_OUTGOING_MESSAGE);
+  }
 }
@@ -19,12 +19,21 @@ package com.helger.as4.servlet;
 import javax.annotation.concurrent.Immutable;
 import javax.xml.namespace.QName;
 
+import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.http.AS4HttpConnectionPool;
 import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.pmode.resolve.CachingPModeResolver;
+import com.helger.as4.model.pmode.resolve.IPModeResolver;
+import com.helger.as4.outbox.AS4Outbox;
 import com.helger.as4.servlet.mgr.AS4DuplicateCleanupJob;
 import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.as4.servlet.mgr.AS4ServerSettings;
 import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorExtractEbms3Messaging;
 import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorRegistry;
 import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorWSS4J;
+import com.helger.as4.util.AS4AttachmentSpillPolicy;
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.httpclient.response.ResponseHandlerXml;
 
 /**
  * This class contains the init method for the AS4Server. Registering alle
@@ -60,12 +69,83 @@ public final class AS4ServerInitializer
       aReg.registerHeaderElementProcessor (QNAME_MESSAGING, new SOAPHeaderElementProcessorExtractEbms3Messaging ());
     // WSS4J must be after Ebms3Messaging handler!
     if (!aReg.containsHeaderElementProcessor (QNAME_SECURITY))
-      aReg.registerHeaderElementProcessor (QNAME_SECURITY, new SOAPHeaderElementProcessorWSS4J ());
+      aReg.registerHeaderElementProcessor (QNAME_SECURITY,
+                                          new SOAPHeaderElementProcessorWSS4J (AS4ServerConfiguration.getAttachmentParallelism ()));
+
+    // Configure the memory limits for incoming attachments
+    AS4ServerSettings.setAttachmentSpillPolicy (new AS4AttachmentSpillPolicy (AS4ServerConfiguration.getIncomingAttachmentMaxMemoryBytesPerAttachment (),
+                                                                              AS4ServerConfiguration.getIncomingAttachmentMaxMemoryBytesPerRequest (),
+                                                                              AS4ServerConfiguration.getIncomingAttachmentMaxMemoryBytesGlobal ()));
+
+    // Cache trusted certificate chains of incoming signatures
+    final AS4CryptoFactory aCryptoFactory = AS4ServerSettings.getAS4CryptoFactory ();
+    aCryptoFactory.getTrustDecisionCache ()
+                  .setMaxSize (AS4ServerConfiguration.getTrustDecisionCacheMaxSize ())
+                  .setTTLMillis (AS4ServerConfiguration.getTrustDecisionCacheTTLMS ());
+    aCryptoFactory.setTrustStoreCheckIntervalMS (AS4ServerConfiguration.getTrustStoreCheckIntervalMS ());
+
+    // Cache PMode resolutions
+    final IPModeResolver aPModeResolver = AS4ServerSettings.getPModeResolver ();
+    final int nResolverCacheSize = AS4ServerConfiguration.getPModeResolverCacheMaxSize ();
+    if (nResolverCacheSize > 0 && !(aPModeResolver instanceof CachingPModeResolver))
+      AS4ServerSettings.setPModeResolver (new CachingPModeResolver (aPModeResolver,
+                                                                    nResolverCacheSize,
+                                                                    AS4ServerConfiguration.getPModeResolverCacheTTLMS ()));
+
+    // Shared pool for all outgoing HTTP connections
+    AS4HttpConnectionPool.setDefaultInstance (new AS4HttpConnectionPool (new HttpClientFactory ().setRetries (3),
+                                                                         AS4ServerConfiguration.getHttpPoolMaxTotal (),
+                                                                         AS4ServerConfiguration.getHttpPoolMaxPerRoute (),
+                                                                         AS4ServerConfiguration.getHttpPoolKeepAliveMS (),
+                                                                         AS4ServerConfiguration.getHttpPoolIdleTimeoutMS ()));
+
+    AS4ServerSettings.setPullLongPollTimeoutMS (AS4ServerConfiguration.getPullLongPollTimeoutMS ());
+
+    // Uses the shared pool from above
+    AS4ServerSettings.setAsyncResponseSender (new AS4AsyncResponseSender (null,
+                                                                          AS4ServerConfiguration.getAsyncResponseConnectTimeoutMS (),
+                                                                          AS4ServerConfiguration.getAsyncResponseSocketTimeoutMS ()));
+
+    // Must be set before the worker pool is used
+    AS4WorkerPool.configure (AS4ServerConfiguration.getWorkerPoolMode (),
+                             AS4ServerConfiguration.getWorkerPoolThreadCount (),
+                             AS4ServerConfiguration.getWorkerPoolMaxThreadCount ());
+    AS4WorkerPool.configureSaturation (AS4ServerConfiguration.getWorkerPoolQueueCapacity (),
+                                       AS4ServerConfiguration.getWorkerPoolSaturationPolicy ());
+    AS4BulkheadManager.configure (AS4ServerConfiguration.getBulkheadKey (),
+                                  AS4ServerConfiguration.getBulkheadMaxConcurrent (),
+                                  AS4ServerConfiguration.getBulkheadMaxQueued ());
+
+    // Must be set before the managers are initialized
+    MetaAS4Manager.setIncomingDuplicateStoreType (AS4ServerConfiguration.getIncomingDuplicateStoreType ());
+    MetaAS4Manager.setMPCQueueStoreType (AS4ServerConfiguration.getMPCQueueStoreType ());
+    MetaAS4Manager.setOutboxEnabled (AS4ServerConfiguration.isOutboxEnabled ());
 
     // Ensure all managers are initialized
     MetaAS4Manager.getInstance ();
 
+    MetaAS4Manager.getMPCQueue ().setVisibilityTimeoutMS (AS4ServerConfiguration.getMPCQueueVisibilityTimeoutMS ());
+
+    // Retransmissions use the same sender as the first transmission
+    final AS4Outbox aOutbox = MetaAS4Manager.getOutbox ();
+    if (aOutbox != null)
+      aOutbox.setTransport ( (sURL,
+                              aHttpEntity) -> AS4ServerSettings.getAsyncResponseSender ()
+                                                               .sendGenericMessage (sURL,
+                                                                                    aHttpEntity,
+                                                                                    new ResponseHandlerXml ()));
+
     // Schedule jobs
     AS4DuplicateCleanupJob.scheduleMe (AS4ServerConfiguration.getIncomingDuplicateDisposalMinutes ());
   }
+
+  /**
+   * Call this method in your AS4 server upon shutdown to release all resources
+   * allocated in {@link #initAS4Server()}.
+   */
+  public static void shutdownAS4Server ()
+  {
+    // Close all pooled HTTP connections
+    AS4HttpConnectionPool.setDefaultInstance (null);
+  }
 }
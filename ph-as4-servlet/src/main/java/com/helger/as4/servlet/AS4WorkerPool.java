@@ -16,42 +16,289 @@
  */
 package com.helger.as4.servlet;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.UsedViaReflection;
 import com.helger.commons.callback.IThrowingRunnable;
 import com.helger.commons.concurrent.BasicThreadFactory;
 import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerSize;
+import com.helger.commons.statistics.IStatisticsHandlerSize;
+import com.helger.commons.statistics.StatisticsManager;
 import com.helger.scope.IScope;
 import com.helger.scope.singleton.AbstractGlobalSingleton;
 
 /**
  * Asynchronous worker pool that handles stuff that runs in the background.
+ * The way tasks are executed is defined by {@link EAS4WorkerPoolMode} and must
+ * be configured before the first call to {@link #getInstance()}.<br>
+ * The number of waiting tasks is limited. If the limit is reached, the
+ * {@link EAS4WorkerPoolSaturationPolicy} decides whether the task is rejected
+ * or run in the calling thread. Rejections and failed tasks are recorded in
+ * the {@link StatisticsManager}, as well as the queue size and the number of
+ * active tasks sampled upon each submission.
  *
  * @author Philip Helger
  */
 public final class AS4WorkerPool extends AbstractGlobalSingleton
 {
+  public static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime ().availableProcessors () * 2;
+  public static final int DEFAULT_MAX_THREAD_COUNT = 256;
+  public static final long DEFAULT_KEEP_ALIVE_SECONDS = 60;
+  public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
   private static final Logger LOGGER = LoggerFactory.getLogger (AS4WorkerPool.class);
+  private static final IMutableStatisticsHandlerCounter s_aStatsRejected = StatisticsManager.getCounterHandler (AS4WorkerPool.class.getName () +
+                                                                                                                "$rejected");
+  private static final IMutableStatisticsHandlerCounter s_aStatsCallerRuns = StatisticsManager.getCounterHandler (AS4WorkerPool.class.getName () +
+                                                                                                                  "$caller-runs");
+  private static final IMutableStatisticsHandlerCounter s_aStatsFailed = StatisticsManager.getCounterHandler (AS4WorkerPool.class.getName () +
+                                                                                                              "$failed");
+  private static final IMutableStatisticsHandlerSize s_aStatsQueueSize = StatisticsManager.getSizeHandler (AS4WorkerPool.class.getName () +
+                                                                                                           "$queue-size");
+  private static final IMutableStatisticsHandlerSize s_aStatsActiveCount = StatisticsManager.getSizeHandler (AS4WorkerPool.class.getName () +
+                                                                                                             "$active-count");
+
+  private static volatile EAS4WorkerPoolMode s_eMode = EAS4WorkerPoolMode.DEFAULT;
+  private static volatile int s_nThreadCount = DEFAULT_THREAD_COUNT;
+  private static volatile int s_nMaxThreadCount = DEFAULT_MAX_THREAD_COUNT;
+  private static volatile int s_nQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+  private static volatile EAS4WorkerPoolSaturationPolicy s_eSaturationPolicy = EAS4WorkerPoolSaturationPolicy.DEFAULT;
 
+  private final EAS4WorkerPoolMode m_eMode;
+  private final EAS4WorkerPoolSaturationPolicy m_eSaturationPolicy;
+  private final int m_nQueueCapacity;
   private final ExecutorService m_aES;
+  // Only for virtual threads, as there is no queue
+  private final Semaphore m_aVirtualPermits;
+  private final AtomicLong m_aRejectedCount = new AtomicLong (0);
 
   @Deprecated
   @UsedViaReflection
   public AS4WorkerPool ()
   {
-    m_aES = Executors.newFixedThreadPool (Runtime.getRuntime ().availableProcessors () * 2,
-                                          new BasicThreadFactory.Builder ().setDaemon (true)
-                                                                           .setNamingPattern ("as4-worker-%d")
-                                                                           .build ());
+    final ThreadFactory aThreadFactory = new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                         .setNamingPattern ("as4-worker-%d")
+                                                                         .build ();
+    final int nQueueCapacity = s_nQueueCapacity;
+    EAS4WorkerPoolMode eMode = s_eMode;
+    ExecutorService aES = null;
+    if (eMode == EAS4WorkerPoolMode.VIRTUAL)
+    {
+      aES = _createVirtualThreadExecutor ();
+      if (aES == null)
+      {
+        LOGGER.warn ("Virtual threads are not supported by this Java runtime - using elastic mode instead");
+        eMode = EAS4WorkerPoolMode.ELASTIC;
+      }
+    }
+    if (eMode == EAS4WorkerPoolMode.ELASTIC)
+    {
+      // Grows up to the maximum and shrinks if idle
+      final ThreadPoolExecutor aTPE = new ThreadPoolExecutor (s_nMaxThreadCount,
+                                                              s_nMaxThreadCount,
+                                                              DEFAULT_KEEP_ALIVE_SECONDS,
+                                                              TimeUnit.SECONDS,
+                                                              new ArrayBlockingQueue <> (nQueueCapacity),
+                                                              aThreadFactory);
+      aTPE.allowCoreThreadTimeOut (true);
+      aES = aTPE;
+    }
+    else
+      if (aES == null)
+        aES = new ThreadPoolExecutor (s_nThreadCount,
+                                      s_nThreadCount,
+                                      0,
+                                      TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue <> (nQueueCapacity),
+                                      aThreadFactory);
+    m_eMode = eMode;
+    m_eSaturationPolicy = s_eSaturationPolicy;
+    m_nQueueCapacity = nQueueCapacity;
+    m_aES = aES;
+    m_aVirtualPermits = eMode == EAS4WorkerPoolMode.VIRTUAL ? new Semaphore (nQueueCapacity) : null;
+    LOGGER.info ("Global AS4 worker queue created in mode " +
+                 eMode +
+                 " with a capacity of " +
+                 nQueueCapacity +
+                 " and saturation policy " +
+                 m_eSaturationPolicy);
+  }
+
+  /**
+   * Create an executor that starts a new virtual thread for each task. This is
+   * done via reflection, so that this class can be used with older Java
+   * versions.
+   *
+   * @return <code>null</code> if virtual threads are not supported.
+   */
+  @Nullable
+  private static ExecutorService _createVirtualThreadExecutor ()
+  {
+    try
+    {
+      return (ExecutorService) Executors.class.getMethod ("newVirtualThreadPerTaskExecutor").invoke (null);
+    }
+    catch (final ReflectiveOperationException | RuntimeException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * @return The execution mode to be used upon instantiation. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static EAS4WorkerPoolMode getConfiguredMode ()
+  {
+    return s_eMode;
+  }
+
+  /**
+   * Define how tasks are executed. Must be called before the first call to
+   * {@link #getInstance()} to take effect.
+   *
+   * @param eMode
+   *        The mode to use. May not be <code>null</code>.
+   * @param nThreadCount
+   *        The number of threads in mode {@link EAS4WorkerPoolMode#FIXED}. Must
+   *        be &gt; 0.
+   * @param nMaxThreadCount
+   *        The maximum number of threads in mode
+   *        {@link EAS4WorkerPoolMode#ELASTIC}. Must be &gt; 0.
+   */
+  public static void configure (@Nonnull final EAS4WorkerPoolMode eMode,
+                                @Nonnegative final int nThreadCount,
+                                @Nonnegative final int nMaxThreadCount)
+  {
+    ValueEnforcer.notNull (eMode, "Mode");
+    ValueEnforcer.isGT0 (nThreadCount, "ThreadCount");
+    ValueEnforcer.isGT0 (nMaxThreadCount, "MaxThreadCount");
+    if (isGlobalSingletonInstantiated (AS4WorkerPool.class))
+      LOGGER.warn ("Changing the AS4 worker pool configuration after instantiation has no effect");
+    s_eMode = eMode;
+    s_nThreadCount = nThreadCount;
+    s_nMaxThreadCount = nMaxThreadCount;
+  }
+
+  /**
+   * Define the behaviour if the pool is saturated. Must be called before the
+   * first call to {@link #getInstance()} to take effect.
+   *
+   * @param nQueueCapacity
+   *        The maximum number of tasks waiting for execution. In mode
+   *        {@link EAS4WorkerPoolMode#VIRTUAL} this is the maximum number of
+   *        concurrently running tasks. Must be &gt; 0.
+   * @param eSaturationPolicy
+   *        What to do if the capacity is exceeded. May not be
+   *        <code>null</code>.
+   */
+  public static void configureSaturation (@Nonnegative final int nQueueCapacity,
+                                          @Nonnull final EAS4WorkerPoolSaturationPolicy eSaturationPolicy)
+  {
+    ValueEnforcer.isGT0 (nQueueCapacity, "QueueCapacity");
+    ValueEnforcer.notNull (eSaturationPolicy, "SaturationPolicy");
+    if (isGlobalSingletonInstantiated (AS4WorkerPool.class))
+      LOGGER.warn ("Changing the AS4 worker pool configuration after instantiation has no effect");
+    s_nQueueCapacity = nQueueCapacity;
+    s_eSaturationPolicy = eSaturationPolicy;
+  }
+
+  /**
+   * @return The effective execution mode of this pool. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public EAS4WorkerPoolMode getMode ()
+  {
+    return m_eMode;
+  }
+
+  @Nonnull
+  public EAS4WorkerPoolSaturationPolicy getSaturationPolicy ()
+  {
+    return m_eSaturationPolicy;
+  }
+
+  @Nonnegative
+  public int getQueueCapacity ()
+  {
+    return m_nQueueCapacity;
+  }
+
+  /**
+   * @return The number of tasks waiting for execution. Always 0 for virtual
+   *         threads.
+   */
+  @Nonnegative
+  public int getQueueSize ()
+  {
+    if (m_aES instanceof ThreadPoolExecutor)
+      return ((ThreadPoolExecutor) m_aES).getQueue ().size ();
+    return 0;
+  }
+
+  /**
+   * @return The approximate number of currently executing tasks.
+   */
+  @Nonnegative
+  public int getActiveCount ()
+  {
+    if (m_aES instanceof ThreadPoolExecutor)
+      return ((ThreadPoolExecutor) m_aES).getActiveCount ();
+    if (m_aVirtualPermits != null)
+      return m_nQueueCapacity - m_aVirtualPermits.availablePermits ();
+    return 0;
+  }
+
+  /**
+   * @return The number of tasks that could not be queued by this pool since
+   *         startup - independent of the saturation policy.
+   */
+  @Nonnegative
+  public long getRejectedCount ()
+  {
+    return m_aRejectedCount.get ();
+  }
+
+  /**
+   * @return The queue sizes sampled upon each submission of all instances.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerSize getQueueSizeStatistics ()
+  {
+    return s_aStatsQueueSize;
+  }
+
+  /**
+   * @return The numbers of active tasks sampled upon each submission of all
+   *         instances. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerSize getActiveCountStatistics ()
+  {
+    return s_aStatsActiveCount;
   }
 
   @Nonnull
@@ -68,6 +315,85 @@ public final class AS4WorkerPool extends AbstractGlobalSingleton
     LOGGER.info ("Global AS4 worker queue closed!");
   }
 
+  private void _onSaturated (@Nonnull final Runnable aTask)
+  {
+    m_aRejectedCount.incrementAndGet ();
+    if (m_eSaturationPolicy == EAS4WorkerPoolSaturationPolicy.CALLER_RUNS)
+    {
+      s_aStatsCallerRuns.increment ();
+      LOGGER.warn ("AS4 worker pool is saturated - running task in the calling thread");
+      aTask.run ();
+    }
+    else
+    {
+      s_aStatsRejected.increment ();
+      throw new AS4WorkerPoolSaturatedException ("AS4 worker pool is saturated (" +
+                                                 getActiveCount () +
+                                                 " active, " +
+                                                 getQueueSize () +
+                                                 " queued)");
+    }
+  }
+
+  /**
+   * Execute the provided task without applying the saturation policy.
+   *
+   * @param aTask
+   *        The task to execute. May not be <code>null</code>.
+   * @return <code>true</code> if the task was accepted, <code>false</code> if
+   *         the pool is saturated.
+   */
+  boolean tryExecute (@Nonnull final Runnable aTask)
+  {
+    final Semaphore aPermits = m_aVirtualPermits;
+    if (aPermits != null && !aPermits.tryAcquire ())
+      return false;
+
+    try
+    {
+      if (aPermits != null)
+        m_aES.execute ( () -> {
+          try
+          {
+            aTask.run ();
+          }
+          finally
+          {
+            aPermits.release ();
+          }
+        });
+      else
+        m_aES.execute (aTask);
+      s_aStatsQueueSize.addSize (getQueueSize ());
+      s_aStatsActiveCount.addSize (getActiveCount ());
+      return true;
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      if (aPermits != null)
+        aPermits.release ();
+      if (m_aES.isShutdown ())
+        throw ex;
+      return false;
+    }
+  }
+
+  private void _execute (@Nonnull final Runnable aTask)
+  {
+    if (!tryExecute (aTask))
+      _onSaturated (aTask);
+  }
+
+  /**
+   * Run the provided runnable asynchronously.
+   *
+   * @param aRunnable
+   *        The runnable to execute. May not be <code>null</code>.
+   * @return The future. Never <code>null</code>.
+   * @throws AS4WorkerPoolSaturatedException
+   *         If the pool is saturated and the saturation policy is
+   *         {@link EAS4WorkerPoolSaturationPolicy#REJECT}.
+   */
   @Nonnull
   public CompletableFuture <Void> run (@Nonnull final IThrowingRunnable <? extends Throwable> aRunnable)
   {
@@ -78,11 +404,24 @@ public final class AS4WorkerPool extends AbstractGlobalSingleton
       }
       catch (final Throwable t)
       {
+        s_aStatsFailed.increment ();
         LOGGER.error ("Error running AS4 runner " + aRunnable, t);
       }
-    }, m_aES);
+    }, this::_execute);
   }
 
+  /**
+   * Run the provided supplier asynchronously.
+   *
+   * @param aSupplier
+   *        The supplier to execute. May not be <code>null</code>.
+   * @return The future. Never <code>null</code>.
+   * @throws AS4WorkerPoolSaturatedException
+   *         If the pool is saturated and the saturation policy is
+   *         {@link EAS4WorkerPoolSaturationPolicy#REJECT}.
+   * @param <T>
+   *        Return type
+   */
   @Nonnull
   public <T> CompletableFuture <T> supply (@Nonnull final Supplier <T> aSupplier)
   {
@@ -93,9 +432,10 @@ public final class AS4WorkerPool extends AbstractGlobalSingleton
       }
       catch (final Exception ex)
       {
+        s_aStatsFailed.increment ();
         LOGGER.error ("Error running AS4 supplier " + aSupplier, ex);
         return null;
       }
-    }, m_aES);
+    }, this::_execute);
   }
 }
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Exception thrown by the {@link AS4WorkerPool} if no more tasks can be
+ * accepted and the saturation policy is
+ * {@link EAS4WorkerPoolSaturationPolicy#REJECT}.
+ *
+ * @author Philip Helger
+ */
+public class AS4WorkerPoolSaturatedException extends RejectedExecutionException
+{
+  public AS4WorkerPoolSaturatedException (final String sMsg)
+  {
+    super (sMsg);
+  }
+}
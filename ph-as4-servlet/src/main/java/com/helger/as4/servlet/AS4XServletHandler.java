@@ -16,6 +16,8 @@
  */
 package com.helger.as4.servlet;
 
+import java.util.concurrent.CompletionException;
+
 import javax.annotation.Nonnull;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -69,21 +71,50 @@ public final class AS4XServletHandler implements IXServletSimpleHandler
 
     try (final AS4Handler aHandler = new AS4Handler ())
     {
-      aHandler.handleRequest (aRequestScope, aHttpResponse);
+      // Parked pull requests are completed by the thread enqueuing the
+      // message or by the timer of the MPC queue
+      aHandler.handleRequest (aRequestScope, aHttpResponse).join ();
     }
-    catch (final BadRequestException ex)
+    catch (final Throwable t)
     {
-      // Logged inside
-      aHttpResponse.setResponseError (HttpServletResponse.SC_BAD_REQUEST,
-                                      "Bad Request: " + ex.getMessage (),
-                                      ex.getCause ());
+      setResponseError (aHttpResponse, t);
     }
-    catch (final Throwable t)
+  }
+
+  /**
+   * Map an exception that occurred while handling an AS4 request to an HTTP
+   * error response.
+   *
+   * @param aHttpResponse
+   *        The response to modify. May not be <code>null</code>.
+   * @param t
+   *        The exception that occurred. May not be <code>null</code>.
+   */
+  static void setResponseError (@Nonnull final AS4Response aHttpResponse, @Nonnull final Throwable t)
+  {
+    // Unwrap exceptions from asynchronous processing
+    final Throwable aCause = t instanceof CompletionException && t.getCause () != null ? t.getCause () : t;
+    if (aCause instanceof BadRequestException)
     {
       // Logged inside
-      aHttpResponse.setResponseError (HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                                      "Internal error processing AS4 request",
-                                      t);
+      aHttpResponse.setResponseError (HttpServletResponse.SC_BAD_REQUEST,
+                                      "Bad Request: " + aCause.getMessage (),
+                                      aCause.getCause ());
     }
+    else
+      if (aCause instanceof AS4WorkerPoolSaturatedException)
+      {
+        // Sender should retry later
+        aHttpResponse.setResponseError (HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                        "Service Unavailable: " + aCause.getMessage (),
+                                        null);
+      }
+      else
+      {
+        // Logged inside
+        aHttpResponse.setResponseError (HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                        "Internal error processing AS4 request",
+                                        aCause);
+      }
   }
 }
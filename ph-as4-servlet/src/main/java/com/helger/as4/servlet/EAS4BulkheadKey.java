@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines how asynchronous tasks are assigned to an {@link AS4Bulkhead}.
+ *
+ * @author Philip Helger
+ */
+public enum EAS4BulkheadKey implements IHasID <String>
+{
+  /** All tasks share the worker pool without further limitation */
+  NONE ("none"),
+  /** One bulkhead per PMode ID */
+  PMODE ("pmode"),
+  /** One bulkhead per MPC */
+  MPC ("mpc");
+
+  public static final EAS4BulkheadKey DEFAULT = PMODE;
+
+  private final String m_sID;
+
+  private EAS4BulkheadKey (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS4BulkheadKey getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4BulkheadKey.class, sID);
+  }
+
+  @Nullable
+  public static EAS4BulkheadKey getFromIDOrDefault (@Nullable final String sID,
+                                                    @Nullable final EAS4BulkheadKey eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EAS4BulkheadKey.class, sID, eDefault);
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines how the {@link AS4WorkerPool} executes its tasks.
+ *
+ * @author Philip Helger
+ */
+public enum EAS4WorkerPoolMode implements IHasID <String>
+{
+  /** A fixed number of threads */
+  FIXED ("fixed"),
+  /**
+   * Threads are created on demand up to a maximum and terminated when idle.
+   * Suitable when tasks block on partner I/O.
+   */
+  ELASTIC ("elastic"),
+  /**
+   * One virtual thread per task. Requires a Java runtime with virtual thread
+   * support - {@link #ELASTIC} is used otherwise.
+   */
+  VIRTUAL ("virtual");
+
+  public static final EAS4WorkerPoolMode DEFAULT = FIXED;
+
+  private final String m_sID;
+
+  private EAS4WorkerPoolMode (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS4WorkerPoolMode getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4WorkerPoolMode.class, sID);
+  }
+
+  @Nullable
+  public static EAS4WorkerPoolMode getFromIDOrDefault (@Nullable final String sID,
+                                                       @Nullable final EAS4WorkerPoolMode eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EAS4WorkerPoolMode.class, sID, eDefault);
+  }
+}
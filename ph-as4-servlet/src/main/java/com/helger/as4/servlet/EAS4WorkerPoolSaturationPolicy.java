@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines what the {@link AS4WorkerPool} does if no more tasks can be queued.
+ *
+ * @author Philip Helger
+ */
+public enum EAS4WorkerPoolSaturationPolicy implements IHasID <String>
+{
+  /**
+   * Throw an {@link AS4WorkerPoolSaturatedException}, which results in an HTTP
+   * 503 response to the sender.
+   */
+  REJECT ("reject"),
+  /** Run the task synchronously in the calling thread */
+  CALLER_RUNS ("callerruns");
+
+  public static final EAS4WorkerPoolSaturationPolicy DEFAULT = CALLER_RUNS;
+
+  private final String m_sID;
+
+  private EAS4WorkerPoolSaturationPolicy (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS4WorkerPoolSaturationPolicy getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4WorkerPoolSaturationPolicy.class, sID);
+  }
+
+  @Nullable
+  public static EAS4WorkerPoolSaturationPolicy getFromIDOrDefault (@Nullable final String sID,
+                                                                   @Nullable final EAS4WorkerPoolSaturationPolicy eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EAS4WorkerPoolSaturationPolicy.class, sID, eDefault);
+  }
+}
@@ -27,6 +27,7 @@ import org.w3c.dom.Document;
 
 import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.attachment.WSS4JAttachment;
+import com.helger.as4.client.AS4PendingReceipt;
 import com.helger.as4.model.mpc.IMPC;
 import com.helger.as4.model.pmode.IPMode;
 import com.helger.as4.model.pmode.leg.PModeLeg;
@@ -224,4 +225,18 @@ public interface IAS4MessageState extends IAttributeContainer <String, Object>
    *         <code>false</code> otherwise.
    */
   boolean isSoapDecrypted ();
+
+  /**
+   * @return The sent message an incoming receipt refers to. May be
+   *         <code>null</code> if the incoming message is no receipt or if the
+   *         original message is unknown or expired.
+   * @see com.helger.as4.client.AS4ReceiptCorrelationIndex
+   */
+  @Nullable
+  AS4PendingReceipt getCorrelatedOutgoingMessage ();
+
+  default boolean hasCorrelatedOutgoingMessage ()
+  {
+    return getCorrelatedOutgoingMessage () != null;
+  }
 }
@@ -23,6 +23,23 @@ import javax.annotation.concurrent.NotThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.crypto.AS4TrustDecisionCache;
+import com.helger.as4.duplicate.EAS4DuplicateStoreType;
+import com.helger.as4.http.AS4HttpConnectionPool;
+import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.pmode.resolve.CachingPModeResolver;
+import com.helger.as4.mpcqueue.AS4MPCQueue;
+import com.helger.as4.mpcqueue.EAS4MPCQueueStoreType;
+import com.helger.as4.servlet.AS4AsyncResponseSender;
+import com.helger.as4.servlet.AS4AsyncServlet;
+import com.helger.as4.servlet.AS4BulkheadManager;
+import com.helger.as4.servlet.AS4WorkerPool;
+import com.helger.as4.servlet.EAS4BulkheadKey;
+import com.helger.as4.servlet.EAS4WorkerPoolMode;
+import com.helger.as4.servlet.EAS4WorkerPoolSaturationPolicy;
+import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorWSS4J;
+import com.helger.as4.util.AS4AttachmentSpillPolicy;
 import com.helger.commons.annotation.VisibleForTesting;
 import com.helger.commons.exception.InitializationException;
 import com.helger.settings.ISettings;
@@ -142,6 +159,299 @@ public final class AS4ServerConfiguration
     return getSettings ().getAsLong (sFieldName, DEFAULT_RESET_MINUTES);
   }
 
+  /**
+   * @return The persistence backend for the incoming duplicate detection.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public static EAS4DuplicateStoreType getIncomingDuplicateStoreType ()
+  {
+    final String sID = getSettings ().getAsString ("server.incoming.duplicate.store");
+    return EAS4DuplicateStoreType.getFromIDOrDefault (sID, EAS4DuplicateStoreType.DEFAULT);
+  }
+
+  /**
+   * @return The persistence backend for the MPC queues used for pull requests.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public static EAS4MPCQueueStoreType getMPCQueueStoreType ()
+  {
+    final String sID = getSettings ().getAsString ("server.mpcqueue.store");
+    return EAS4MPCQueueStoreType.getFromIDOrDefault (sID, EAS4MPCQueueStoreType.DEFAULT);
+  }
+
+  /**
+   * @return <code>true</code> if asynchronous responses are sent via the
+   *         persistent outbox, so that they are retransmitted according to the
+   *         P-Mode reception awareness.
+   */
+  public static boolean isOutboxEnabled ()
+  {
+    return getSettings ().getAsBoolean ("server.outbox.enabled", MetaAS4Manager.DEFAULT_OUTBOX_ENABLED);
+  }
+
+  /**
+   * @return The time in milliseconds a pulled message stays invisible until it
+   *         is returned again, if no receipt was received for it. 0 means that
+   *         a message is removed as soon as it is pulled.
+   */
+  public static long getMPCQueueVisibilityTimeoutMS ()
+  {
+    return getSettings ().getAsLong ("server.mpcqueue.visibilitytimeout.ms",
+                                     AS4MPCQueue.DEFAULT_VISIBILITY_TIMEOUT_MS);
+  }
+
+  /**
+   * @return The maximum time in milliseconds a pull request on an empty MPC
+   *         waits for a message. 0 means long polling is disabled.
+   */
+  public static long getPullLongPollTimeoutMS ()
+  {
+    return getSettings ().getAsLong ("server.pull.longpoll.timeout.ms",
+                                     AS4ServerSettings.DEFAULT_PULL_LONG_POLL_TIMEOUT_MS);
+  }
+
+  /**
+   * @return The maximum number of bytes a single incoming attachment may keep
+   *         in memory before it is spilled to disk.
+   */
+  public static long getIncomingAttachmentMaxMemoryBytesPerAttachment ()
+  {
+    return getSettings ().getAsLong ("server.incoming.attachment.maxmemory.attachment",
+                                     AS4AttachmentSpillPolicy.DEFAULT_MAX_BYTES_PER_ATTACHMENT);
+  }
+
+  /**
+   * @return The maximum number of bytes all incoming attachments of a single
+   *         request may keep in memory.
+   */
+  public static long getIncomingAttachmentMaxMemoryBytesPerRequest ()
+  {
+    return getSettings ().getAsLong ("server.incoming.attachment.maxmemory.request",
+                                     AS4AttachmentSpillPolicy.DEFAULT_MAX_BYTES_PER_REQUEST);
+  }
+
+  /**
+   * @return The maximum number of bytes the incoming attachments of all
+   *         concurrent requests may keep in memory.
+   */
+  public static long getIncomingAttachmentMaxMemoryBytesGlobal ()
+  {
+    return getSettings ().getAsLong ("server.incoming.attachment.maxmemory.global",
+                                     AS4AttachmentSpillPolicy.DEFAULT_MAX_BYTES_GLOBAL);
+  }
+
+  /**
+   * @return The maximum number of cached PMode resolutions. A value of 0
+   *         disables the cache.
+   */
+  public static int getPModeResolverCacheMaxSize ()
+  {
+    return getSettings ().getAsInt ("server.pmode.resolvercache.maxsize", CachingPModeResolver.DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @return The time in milliseconds after which a cached PMode resolution
+   *         expires.
+   */
+  public static long getPModeResolverCacheTTLMS ()
+  {
+    return getSettings ().getAsLong ("server.pmode.resolvercache.ttl.ms", CachingPModeResolver.DEFAULT_TTL_MS);
+  }
+
+  /**
+   * @return The execution mode of the AS4 worker pool. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static EAS4WorkerPoolMode getWorkerPoolMode ()
+  {
+    final String sID = getSettings ().getAsString ("server.workerpool.mode");
+    return EAS4WorkerPoolMode.getFromIDOrDefault (sID, EAS4WorkerPoolMode.DEFAULT);
+  }
+
+  /**
+   * @return The number of worker threads in fixed mode.
+   */
+  public static int getWorkerPoolThreadCount ()
+  {
+    return getSettings ().getAsInt ("server.workerpool.threads", AS4WorkerPool.DEFAULT_THREAD_COUNT);
+  }
+
+  /**
+   * @return The maximum number of worker threads in elastic mode.
+   */
+  public static int getWorkerPoolMaxThreadCount ()
+  {
+    return getSettings ().getAsInt ("server.workerpool.maxthreads", AS4WorkerPool.DEFAULT_MAX_THREAD_COUNT);
+  }
+
+  /**
+   * @return The maximum number of tasks waiting in the AS4 worker pool.
+   */
+  public static int getWorkerPoolQueueCapacity ()
+  {
+    return getSettings ().getAsInt ("server.workerpool.queuecapacity", AS4WorkerPool.DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * @return What to do if the AS4 worker pool is saturated. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static EAS4WorkerPoolSaturationPolicy getWorkerPoolSaturationPolicy ()
+  {
+    final String sID = getSettings ().getAsString ("server.workerpool.saturationpolicy");
+    return EAS4WorkerPoolSaturationPolicy.getFromIDOrDefault (sID, EAS4WorkerPoolSaturationPolicy.DEFAULT);
+  }
+
+  /**
+   * @return The maximum number of incoming attachments that are decrypted and
+   *         persisted in parallel. Values &le; 1 disable parallel processing.
+   */
+  public static int getAttachmentParallelism ()
+  {
+    return getSettings ().getAsInt ("server.attachment.parallelism",
+                                    SOAPHeaderElementProcessorWSS4J.DEFAULT_ATTACHMENT_PARALLELISM);
+  }
+
+  /**
+   * @return The maximum number of cached positive certificate trust decisions.
+   */
+  public static int getTrustDecisionCacheMaxSize ()
+  {
+    return getSettings ().getAsInt ("server.trustcache.maxsize", AS4TrustDecisionCache.DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @return The time in milliseconds after which a cached certificate trust
+   *         decision expires at the latest.
+   */
+  public static long getTrustDecisionCacheTTLMS ()
+  {
+    return getSettings ().getAsLong ("server.trustcache.ttl.ms", AS4TrustDecisionCache.DEFAULT_TTL_MS);
+  }
+
+  /**
+   * @return The minimum time in milliseconds between two checks whether the
+   *         key store or trust store file was modified.
+   */
+  public static long getTrustStoreCheckIntervalMS ()
+  {
+    return getSettings ().getAsLong ("server.truststore.checkinterval.ms",
+                                     AS4CryptoFactory.DEFAULT_TRUST_STORE_CHECK_INTERVAL_MS);
+  }
+
+  /**
+   * @return The number of threads processing requests received by the
+   *         asynchronous AS4 servlet.
+   */
+  public static int getAsyncServletThreadCount ()
+  {
+    return getSettings ().getAsInt ("server.asyncservlet.threads", AS4AsyncServlet.DEFAULT_THREAD_COUNT);
+  }
+
+  /**
+   * @return The maximum number of completely read requests waiting for
+   *         processing in the asynchronous AS4 servlet.
+   */
+  public static int getAsyncServletQueueCapacity ()
+  {
+    return getSettings ().getAsInt ("server.asyncservlet.queuecapacity", AS4AsyncServlet.DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * @return The maximum time in milliseconds for reading, processing and
+   *         writing a single request in the asynchronous AS4 servlet.
+   */
+  public static long getAsyncServletTimeoutMS ()
+  {
+    return getSettings ().getAsLong ("server.asyncservlet.timeout.ms", AS4AsyncServlet.DEFAULT_TIMEOUT_MS);
+  }
+
+  /**
+   * @return How asynchronous tasks are assigned to bulkheads. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static EAS4BulkheadKey getBulkheadKey ()
+  {
+    final String sID = getSettings ().getAsString ("server.bulkhead.key");
+    return EAS4BulkheadKey.getFromIDOrDefault (sID, EAS4BulkheadKey.DEFAULT);
+  }
+
+  /**
+   * @return The maximum number of concurrently running asynchronous tasks per
+   *         bulkhead.
+   */
+  public static int getBulkheadMaxConcurrent ()
+  {
+    return getSettings ().getAsInt ("server.bulkhead.maxconcurrent", AS4BulkheadManager.DEFAULT_MAX_CONCURRENT);
+  }
+
+  /**
+   * @return The maximum number of waiting asynchronous tasks per bulkhead.
+   */
+  public static int getBulkheadMaxQueued ()
+  {
+    return getSettings ().getAsInt ("server.bulkhead.maxqueued", AS4BulkheadManager.DEFAULT_MAX_QUEUED);
+  }
+
+  /**
+   * @return The connect timeout in milliseconds for asynchronous responses.
+   */
+  public static int getAsyncResponseConnectTimeoutMS ()
+  {
+    return getSettings ().getAsInt ("server.asyncresponse.connecttimeout.ms",
+                                    AS4AsyncResponseSender.DEFAULT_CONNECT_TIMEOUT_MS);
+  }
+
+  /**
+   * @return The socket (read) timeout in milliseconds for asynchronous
+   *         responses.
+   */
+  public static int getAsyncResponseSocketTimeoutMS ()
+  {
+    return getSettings ().getAsInt ("server.asyncresponse.sockettimeout.ms",
+                                    AS4AsyncResponseSender.DEFAULT_SOCKET_TIMEOUT_MS);
+  }
+
+  /**
+   * @return The maximum number of pooled outgoing HTTP connections in total.
+   */
+  public static int getHttpPoolMaxTotal ()
+  {
+    return getSettings ().getAsInt ("server.http.pool.maxtotal", AS4HttpConnectionPool.DEFAULT_MAX_TOTAL);
+  }
+
+  /**
+   * @return The maximum number of pooled outgoing HTTP connections per target
+   *         host.
+   */
+  public static int getHttpPoolMaxPerRoute ()
+  {
+    return getSettings ().getAsInt ("server.http.pool.maxperroute", AS4HttpConnectionPool.DEFAULT_MAX_PER_ROUTE);
+  }
+
+  /**
+   * @return The maximum time in milliseconds an outgoing HTTP connection is
+   *         kept alive.
+   */
+  public static long getHttpPoolKeepAliveMS ()
+  {
+    return getSettings ().getAsLong ("server.http.pool.keepalive.ms", AS4HttpConnectionPool.DEFAULT_KEEP_ALIVE_MS);
+  }
+
+  /**
+   * @return The time in milliseconds after which idle outgoing HTTP
+   *         connections are closed.
+   */
+  public static long getHttpPoolIdleTimeoutMS ()
+  {
+    return getSettings ().getAsLong ("server.http.pool.idletimeout.ms", AS4HttpConnectionPool.DEFAULT_IDLE_TIMEOUT_MS);
+  }
+
   @Nullable
   public static String getServerAddress ()
   {
@@ -16,6 +16,7 @@
  */
 package com.helger.as4.servlet.mgr;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -24,6 +25,9 @@ import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.crypto.AS4CryptoFactory;
 import com.helger.as4.model.pmode.resolve.DefaultPModeResolver;
 import com.helger.as4.model.pmode.resolve.IPModeResolver;
+import com.helger.as4.servlet.AS4AsyncResponseSender;
+import com.helger.as4.util.AS4AttachmentSpillPolicy;
+import com.helger.as4.util.IAS4AttachmentSpillPolicy;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 
@@ -31,11 +35,17 @@ import com.helger.commons.annotation.Nonempty;
 public final class AS4ServerSettings
 {
   private static final String DEFAULT_RESPONDER_ID = "default";
+  /** By default pull requests on an empty MPC are answered immediately */
+  public static final long DEFAULT_PULL_LONG_POLL_TIMEOUT_MS = 0;
 
   private static String s_sResponderID = DEFAULT_RESPONDER_ID;
   private static IIncomingAttachmentFactory s_aIncomingAttachmentFactory = WSS4JAttachment::createIncomingFileAttachment;
   private static IPModeResolver s_aPModeResolver = new DefaultPModeResolver (false);
-  private static AS4CryptoFactory s_aAS4CryptoFactory = AS4CryptoFactory.DEFAULT_INSTANCE;
+  // null means the default instance, which requires the crypto properties
+  private static AS4CryptoFactory s_aAS4CryptoFactory;
+  private static IAS4AttachmentSpillPolicy s_aAttachmentSpillPolicy = AS4AttachmentSpillPolicy.DEFAULT_INSTANCE;
+  private static AS4AsyncResponseSender s_aAsyncResponseSender = new AS4AsyncResponseSender ();
+  private static long s_nPullLongPollTimeoutMS = DEFAULT_PULL_LONG_POLL_TIMEOUT_MS;
 
   private AS4ServerSettings ()
   {}
@@ -80,7 +90,8 @@ public final class AS4ServerSettings
   @Nonnull
   public static AS4CryptoFactory getAS4CryptoFactory ()
   {
-    return s_aAS4CryptoFactory;
+    final AS4CryptoFactory ret = s_aAS4CryptoFactory;
+    return ret != null ? ret : AS4CryptoFactory.DEFAULT_INSTANCE;
   }
 
   public static void setAS4CryptoFactory (@Nonnull final AS4CryptoFactory aAS4CryptoFactory)
@@ -88,4 +99,73 @@ public final class AS4ServerSettings
     ValueEnforcer.notNull (aAS4CryptoFactory, "AS4CryptoFactory");
     s_aAS4CryptoFactory = aAS4CryptoFactory;
   }
+
+  /**
+   * @return The spill policy used for the resource manager of each incoming
+   *         request. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IAS4AttachmentSpillPolicy getAttachmentSpillPolicy ()
+  {
+    return s_aAttachmentSpillPolicy;
+  }
+
+  /**
+   * Set the spill policy to be used. To make a global memory limit work, the
+   * same instance must be used for all requests.
+   *
+   * @param aAttachmentSpillPolicy
+   *        The spill policy to use. May not be <code>null</code>.
+   */
+  public static void setAttachmentSpillPolicy (@Nonnull final IAS4AttachmentSpillPolicy aAttachmentSpillPolicy)
+  {
+    ValueEnforcer.notNull (aAttachmentSpillPolicy, "AttachmentSpillPolicy");
+    s_aAttachmentSpillPolicy = aAttachmentSpillPolicy;
+  }
+
+  /**
+   * @return The sender used for all asynchronous responses. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static AS4AsyncResponseSender getAsyncResponseSender ()
+  {
+    return s_aAsyncResponseSender;
+  }
+
+  /**
+   * Set the sender to be used for all asynchronous responses.
+   *
+   * @param aAsyncResponseSender
+   *        The sender to use. May not be <code>null</code>.
+   */
+  public static void setAsyncResponseSender (@Nonnull final AS4AsyncResponseSender aAsyncResponseSender)
+  {
+    ValueEnforcer.notNull (aAsyncResponseSender, "AsyncResponseSender");
+    s_aAsyncResponseSender = aAsyncResponseSender;
+  }
+
+  /**
+   * @return The maximum time in milliseconds a pull request on an empty MPC
+   *         waits for a message. 0 means long polling is disabled.
+   */
+  @Nonnegative
+  public static long getPullLongPollTimeoutMS ()
+  {
+    return s_nPullLongPollTimeoutMS;
+  }
+
+  /**
+   * Set the maximum time a pull request on an empty MPC waits for a message to
+   * be enqueued, before the "empty MPC" error is returned.
+   *
+   * @param nPullLongPollTimeoutMS
+   *        The timeout in milliseconds. 0 means long polling is disabled. Must
+   *        be &ge; 0.
+   */
+  public static void setPullLongPollTimeoutMS (@Nonnegative final long nPullLongPollTimeoutMS)
+  {
+    ValueEnforcer.isGE0 (nPullLongPollTimeoutMS, "PullLongPollTimeoutMS");
+    s_nPullLongPollTimeoutMS = nPullLongPollTimeoutMS;
+  }
 }
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.soap;
+
+import java.security.cert.X509Certificate;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.apache.wss4j.dom.handler.RequestData;
+import org.apache.wss4j.dom.validate.Credential;
+import org.apache.wss4j.dom.validate.SignatureTrustValidator;
+import org.apache.wss4j.dom.validate.Validator;
+
+import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.crypto.AS4TrustDecisionCache;
+import com.helger.as4.servlet.mgr.AS4ServerSettings;
+
+/**
+ * A WSS4J signature trust validator that skips the certificate path
+ * validation for certificate chains that were already trusted by the trust
+ * store of the current {@link AS4CryptoFactory}. See
+ * {@link AS4TrustDecisionCache} for the details. The cache is bypassed if
+ * revocation checking, subject certificate constraints or issuer DN patterns
+ * are enabled, or if a different crypto is used. Modifications of the key
+ * store files are detected via
+ * {@link AS4CryptoFactory#checkForTrustStoreChange()}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class AS4CachingSignatureTrustValidator implements Validator
+{
+  private final Validator m_aDelegate = new SignatureTrustValidator ();
+
+  public Credential validate (final Credential aCredential, final RequestData aData) throws WSSecurityException
+  {
+    final X509Certificate [] aCerts = aCredential == null ? null : aCredential.getCertificates ();
+    if (aCerts == null ||
+        aCerts.length == 0 ||
+        aData.isRevocationEnabled () ||
+        (aData.getSubjectCertConstraints () != null && !aData.getSubjectCertConstraints ().isEmpty ()) ||
+        (aData.getIssuerDNPatterns () != null && !aData.getIssuerDNPatterns ().isEmpty ()))
+      return m_aDelegate.validate (aCredential, aData);
+
+    final AS4CryptoFactory aCryptoFactory = AS4ServerSettings.getAS4CryptoFactory ();
+    // Drops the cached decisions if the trust store was modified
+    aCryptoFactory.checkForTrustStoreChange ();
+    final AS4TrustDecisionCache aCache = aCryptoFactory.getTrustDecisionCache ();
+    // Read the generation before the crypto is compared, so that decisions
+    // made with an outdated trust store are never cached
+    final long nGeneration = aCache.getGeneration ();
+    if (aData.getSigVerCrypto () != aCryptoFactory.getCrypto ())
+      return m_aDelegate.validate (aCredential, aData);
+
+    if (aCache.isTrusted (aCerts))
+      return aCredential;
+
+    // Throws an exception if the chain is not trusted
+    final Credential ret = m_aDelegate.validate (aCredential, aData);
+    aCache.onTrusted (aCerts, nGeneration);
+    return ret;
+  }
+}
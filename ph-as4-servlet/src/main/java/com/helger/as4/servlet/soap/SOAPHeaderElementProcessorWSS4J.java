@@ -16,16 +16,19 @@
  */
 package com.helger.as4.servlet.soap;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 
+import org.apache.wss4j.common.crypto.Crypto;
 import org.apache.wss4j.common.ext.WSSecurityException;
 import org.apache.wss4j.common.util.AttachmentUtils;
 import org.apache.wss4j.dom.WSConstants;
@@ -53,11 +56,9 @@ import com.helger.as4lib.ebms3header.Ebms3UserMessage;
 import com.helger.commons.collection.impl.CommonsHashSet;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.collection.impl.ICommonsSet;
+import com.helger.commons.concurrent.BasicThreadFactory;
 import com.helger.commons.debug.GlobalDebug;
 import com.helger.commons.error.list.ErrorList;
-import com.helger.commons.io.file.FileHelper;
-import com.helger.commons.io.stream.HasInputStream;
-import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.state.ESuccess;
 import com.helger.commons.string.StringHelper;
 import com.helger.xml.XMLHelper;
@@ -71,6 +72,113 @@ import com.helger.xml.XMLHelper;
 public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProcessor
 {
   private static final Logger LOGGER = LoggerFactory.getLogger (SOAPHeaderElementProcessorWSS4J.class);
+  // Stateless
+  private static final KeyStoreCallbackHandler KEYSTORE_CALLBACK = new KeyStoreCallbackHandler ();
+
+  /** The default number of attachments that are handled in parallel */
+  public static final int DEFAULT_ATTACHMENT_PARALLELISM = Runtime.getRuntime ().availableProcessors ();
+  /** The number of waiting attachment tasks per thread */
+  public static final int ATTACHMENT_QUEUE_CAPACITY_PER_THREAD = 16;
+
+  // Both are only read after construction and shared by all requests
+  private final WSSConfig m_aWSSConfig;
+  private final WSSecurityEngine m_aSecurityEngine;
+  private final int m_nAttachmentParallelism;
+  // null if attachments are handled sequentially
+  private final ExecutorService m_aAttachmentES;
+
+  public SOAPHeaderElementProcessorWSS4J ()
+  {
+    this (DEFAULT_ATTACHMENT_PARALLELISM);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nAttachmentParallelism
+   *        The maximum number of attachments of all messages that are
+   *        decrypted and persisted in parallel. Values &le; 1 mean that all
+   *        attachments are handled sequentially in the calling thread.
+   */
+  public SOAPHeaderElementProcessorWSS4J (final int nAttachmentParallelism)
+  {
+    m_nAttachmentParallelism = Math.max (nAttachmentParallelism, 1);
+    if (m_nAttachmentParallelism > 1)
+    {
+      // Idle threads terminate, so no explicit shutdown is needed. If the
+      // queue is full, the request thread does the work itself.
+      final ThreadPoolExecutor aTPE = new ThreadPoolExecutor (m_nAttachmentParallelism,
+                                                              m_nAttachmentParallelism,
+                                                              60,
+                                                              TimeUnit.SECONDS,
+                                                              new ArrayBlockingQueue <> (m_nAttachmentParallelism *
+                                                                                         ATTACHMENT_QUEUE_CAPACITY_PER_THREAD),
+                                                              new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                               .setNamingPattern ("as4-attachment-%d")
+                                                                                               .build (),
+                                                              new ThreadPoolExecutor.CallerRunsPolicy ());
+      aTPE.allowCoreThreadTimeOut (true);
+      m_aAttachmentES = aTPE;
+    }
+    else
+      m_aAttachmentES = null;
+
+    m_aWSSConfig = WSSConfig.getNewInstance ();
+    m_aSecurityEngine = new WSSecurityEngine ();
+    // Avoid the lazy creation inside the engine
+    m_aSecurityEngine.setWssConfig (m_aWSSConfig);
+    // Remember trusted certificate chains
+    m_aWSSConfig.setValidator (WSConstants.SIGNATURE, new AS4CachingSignatureTrustValidator ());
+  }
+
+  /**
+   * @return The shared WSS4J configuration. Must not be modified. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final WSSConfig getWSSConfig ()
+  {
+    return m_aWSSConfig;
+  }
+
+  /**
+   * @return The maximum number of attachments that are handled in parallel.
+   *         Always &ge; 1.
+   */
+  public final int getAttachmentParallelism ()
+  {
+    return m_nAttachmentParallelism;
+  }
+
+  /**
+   * @return The shared WSS4J security engine. Never <code>null</code>.
+   */
+  @Nonnull
+  public final WSSecurityEngine getSecurityEngine ()
+  {
+    return m_aSecurityEngine;
+  }
+
+  /**
+   * Create the per-request data for signature verification and decryption.
+   * Only this object is specific to a single request - everything referenced
+   * is shared.
+   *
+   * @param aCrypto
+   *        The crypto to use for signature verification and decryption. May
+   *        not be <code>null</code>.
+   * @return A new request data object. Never <code>null</code>.
+   */
+  @Nonnull
+  public RequestData createRequestData (@Nonnull final Crypto aCrypto)
+  {
+    final RequestData aRequestData = new RequestData ();
+    aRequestData.setCallbackHandler (KEYSTORE_CALLBACK);
+    aRequestData.setSigVerCrypto (aCrypto);
+    aRequestData.setDecCrypto (aCrypto);
+    aRequestData.setWssConfig (m_aWSSConfig);
+    return aRequestData;
+  }
 
   @Nonnull
   public ESuccess processHeaderElement (@Nonnull final Document aSOAPDoc,
@@ -182,28 +290,24 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
       }
 
       // Signing Verification and Decryption
-      final WSSecurityEngine aSecurityEngine = new WSSecurityEngine ();
       List <WSSecurityEngineResult> aResults = null;
 
+      // Convert to WSS4J attachments
+      // Multiple attachments are decrypted and persisted in parallel
+      final WSS4JAttachmentCallbackHandler aAttachmentCallbackHandler = new WSS4JAttachmentCallbackHandler (aAttachments,
+                                                                                                            aState.getResourceMgr (),
+                                                                                                            aAttachments.size () > 1 ? m_aAttachmentES
+                                                                                                                                     : null);
       try
       {
-        // Convert to WSS4J attachments
-        final KeyStoreCallbackHandler aKeyStoreCallback = new KeyStoreCallbackHandler ();
-        final WSS4JAttachmentCallbackHandler aAttachmentCallbackHandler = new WSS4JAttachmentCallbackHandler (aAttachments,
-                                                                                                              aState.getResourceMgr ());
-
         // Configure RequestData needed for the check / decrpyt process!
-        final RequestData aRequestData = new RequestData ();
-        aRequestData.setCallbackHandler (aKeyStoreCallback);
+        final RequestData aRequestData = createRequestData (AS4ServerSettings.getAS4CryptoFactory ().getCrypto ());
         if (aAttachments.isNotEmpty ())
           aRequestData.setAttachmentCallbackHandler (aAttachmentCallbackHandler);
-        aRequestData.setSigVerCrypto (AS4ServerSettings.getAS4CryptoFactory ().getCrypto ());
-        aRequestData.setDecCrypto (AS4ServerSettings.getAS4CryptoFactory ().getCrypto ());
-        aRequestData.setWssConfig (WSSConfig.getNewInstance ());
 
         // Upon success, the SOAP document contains the decrypted content
         // afterwards!
-        aResults = aSecurityEngine.processSecurityHeader (aSOAPDoc, aRequestData).getResults ();
+        aResults = m_aSecurityEngine.processSecurityHeader (aSOAPDoc, aRequestData).getResults ();
 
         // Collect all unique used certificates
         final ICommonsSet <X509Certificate> aCertSet = new CommonsHashSet <> ();
@@ -238,19 +342,10 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
         aState.setUsedCertificate (aCertSet.getAtIndex (0));
         aState.setDecryptedSOAPDocument (aSOAPDoc);
 
-        // Decrypting the Attachments
+        // Decrypting the Attachments - always copy to temporary files, so that
+        // decrypted content can be read more than once
+        aAttachmentCallbackHandler.persistAllResponseAttachments ();
         final ICommonsList <WSS4JAttachment> aResponseAttachments = aAttachmentCallbackHandler.getAllResponseAttachments ();
-        for (final WSS4JAttachment aResponseAttachment : aResponseAttachments)
-        {
-          final InputStream aIS = aResponseAttachment.getSourceStream ();
-
-          // Always copy to a temporary file, so that decrypted content can be
-          // read more than once.
-          // Not nice, but working :)
-          final File aTempFile = aState.getResourceMgr ().createTempFile ();
-          StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aIS, FileHelper.getBufferedOutputStream (aTempFile));
-          aResponseAttachment.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile)));
-        }
 
         // Remember in State
         aState.setDecryptedAttachments (aResponseAttachments);
@@ -266,6 +361,11 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
 
         return ESuccess.FAILURE;
       }
+      finally
+      {
+        // No background task may write into the resource manager afterwards
+        aAttachmentCallbackHandler.waitForPendingPersistence ();
+      }
     }
     return ESuccess.SUCCESS;
   }
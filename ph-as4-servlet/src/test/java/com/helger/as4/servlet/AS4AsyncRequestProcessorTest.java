@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.as4.messaging.domain.MessageHelperMethods;
+import com.helger.as4.mpcqueue.AS4MPCQueue;
+import com.helger.as4.mpcqueue.AS4MPCQueueEntry;
+import com.helger.as4.mpcqueue.AS4MPCQueueMemoryStore;
+import com.helger.as4lib.ebms3header.Ebms3UserMessage;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.scope.mock.ScopeTestRule;
+import com.helger.servlet.mock.MockHttpServletResponse;
+
+/**
+ * Test class for class {@link AS4AsyncRequestProcessor}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncRequestProcessorTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new ScopeTestRule ();
+
+  @Nonnull
+  private static MockAsyncContext _start (@Nullable final String sContentType,
+                                          @Nonnull final MockHttpServletResponse aResponse,
+                                          @Nonnull final Executor aExecutor) throws IOException
+  {
+    return _start (sContentType, aResponse, aExecutor, new AS4Handler ());
+  }
+
+  @Nonnull
+  private static MockAsyncContext _start (@Nullable final String sContentType,
+                                          @Nonnull final MockHttpServletResponse aResponse,
+                                          @Nonnull final Executor aExecutor,
+                                          @Nonnull final AS4Handler aHandler) throws IOException
+  {
+    final MockAsyncHttpServletRequest aRequest = new MockAsyncHttpServletRequest (sContentType);
+    final MockAsyncContext aAsyncCtx = (MockAsyncContext) aRequest.startAsync (aRequest, aResponse);
+    AS4AsyncRequestProcessor.start (aAsyncCtx, aExecutor, aHandler);
+    return aAsyncCtx;
+  }
+
+  @Nonnull
+  private static Ebms3UserMessage _createUserMessage (@Nonnull final String sMessageID)
+  {
+    final Ebms3UserMessage ret = new Ebms3UserMessage ();
+    ret.setMessageInfo (MessageHelperMethods.createEbms3MessageInfo (sMessageID, null));
+    return ret;
+  }
+
+  @Nonnull
+  private static MockNonBlockingServletInputStream _getIS (@Nonnull final MockAsyncContext aAsyncCtx)
+  {
+    return ((MockAsyncHttpServletRequest) aAsyncCtx.getRequest ()).getMockInputStream ();
+  }
+
+  @Test
+  public void testBadRequest () throws IOException
+  {
+    final MockHttpServletResponse aResponse = new MockHttpServletResponse ();
+    // Process on the calling thread
+    final MockAsyncContext aAsyncCtx = _start (null, aResponse, Runnable::run);
+    final MockNonBlockingServletInputStream aIS = _getIS (aAsyncCtx);
+
+    // Body arrives in multiple chunks
+    aIS.addContent ("<S12:Envelope".getBytes (StandardCharsets.UTF_8));
+    assertFalse (aAsyncCtx.isCompleted ());
+    aIS.addContent ("/>".getBytes (StandardCharsets.UTF_8));
+    aIS.finish ();
+
+    // The Content-Type is missing
+    assertTrue (aAsyncCtx.isCompleted ());
+    assertEquals (HttpServletResponse.SC_BAD_REQUEST, aResponse.getStatus ());
+  }
+
+  @Test
+  public void testRejected () throws IOException
+  {
+    final long nRejected = AS4AsyncRequestProcessor.getRejectedCount ();
+    final MockHttpServletResponse aResponse = new MockHttpServletResponse ();
+    final MockAsyncContext aAsyncCtx = _start ("application/soap+xml", aResponse, x -> {
+      throw new RejectedExecutionException ("Saturated");
+    });
+    final MockNonBlockingServletInputStream aIS = _getIS (aAsyncCtx);
+    aIS.addContent (new byte [] { 1, 2, 3 });
+    aIS.finish ();
+
+    assertTrue (aAsyncCtx.isCompleted ());
+    assertEquals (HttpServletResponse.SC_SERVICE_UNAVAILABLE, aResponse.getStatus ());
+    assertEquals (nRejected + 1, AS4AsyncRequestProcessor.getRejectedCount ());
+  }
+
+  @Test
+  public void testReadError () throws IOException
+  {
+    final MockHttpServletResponse aResponse = new MockHttpServletResponse ();
+    final MockAsyncContext aAsyncCtx = _start ("application/soap+xml", aResponse, Runnable::run);
+    final MockNonBlockingServletInputStream aIS = _getIS (aAsyncCtx);
+    aIS.addContent (new byte [] { 1, 2, 3 });
+    aIS.fail (new IOException ("Connection reset"));
+
+    assertTrue (aAsyncCtx.isCompleted ());
+    assertEquals (HttpServletResponse.SC_BAD_REQUEST, aResponse.getStatus ());
+  }
+
+  @Test
+  public void testTimeoutWhileQueued () throws IOException
+  {
+    final long nTimeouts = AS4AsyncRequestProcessor.getTimeoutCount ();
+    final ICommonsList <Runnable> aQueued = new CommonsArrayList <> ();
+    final MockHttpServletResponse aResponse = new MockHttpServletResponse ();
+    final MockAsyncContext aAsyncCtx = _start (null, aResponse, aQueued::add);
+    final MockNonBlockingServletInputStream aIS = _getIS (aAsyncCtx);
+    aIS.addContent (new byte [] { 1, 2, 3 });
+    aIS.finish ();
+    assertEquals (1, aQueued.size ());
+    assertFalse (aAsyncCtx.isCompleted ());
+
+    aAsyncCtx.fireTimeout ();
+    assertTrue (aAsyncCtx.isCompleted ());
+    assertEquals (HttpServletResponse.SC_SERVICE_UNAVAILABLE, aResponse.getStatus ());
+    assertEquals (nTimeouts + 1, AS4AsyncRequestProcessor.getTimeoutCount ());
+
+    // Processing afterwards does not touch the response anymore
+    aQueued.getFirst ().run ();
+    assertEquals (HttpServletResponse.SC_SERVICE_UNAVAILABLE, aResponse.getStatus ());
+  }
+
+  @Test
+  public void testTimeoutWhilePullIsParked () throws Exception
+  {
+    final String sMPCID = "mpc-timeout";
+    try (final AS4MPCQueue aQueue = new AS4MPCQueue (new AS4MPCQueueMemoryStore ()))
+    {
+      final AS4Handler aHandler = new AS4Handler ();
+      final MockHttpServletResponse aResponse = new MockHttpServletResponse ();
+      final MockAsyncContext aAsyncCtx = _start (null, aResponse, x -> {}, aHandler);
+
+      // Simulate a pull request parked by the handler
+      final CompletableFuture <AS4MPCQueueEntry> aParked = aQueue.dequeueAsync (sMPCID, 60_000);
+      aHandler.setPendingPullReturn (aParked);
+      assertEquals (1, aQueue.getWaitingCount (sMPCID));
+
+      aAsyncCtx.fireTimeout ();
+      assertTrue (aAsyncCtx.isCompleted ());
+      assertTrue (aParked.isCancelled ());
+
+      // The message is served to the next pull request
+      aQueue.enqueue (sMPCID, _createUserMessage ("pulled"));
+      final CompletableFuture <AS4MPCQueueEntry> aNext = aQueue.dequeueAsync (sMPCID, 60_000);
+      assertTrue (aNext.isDone ());
+      assertEquals ("pulled", aNext.get ().getMessageID ());
+      assertEquals (0, aQueue.getWaitingCount (sMPCID));
+    }
+  }
+}
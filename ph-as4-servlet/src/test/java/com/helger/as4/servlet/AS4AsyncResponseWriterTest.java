@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.scope.mock.ScopeTestRule;
+import com.helger.servlet.mock.MockHttpServletRequest;
+import com.helger.servlet.mock.MockHttpServletResponse;
+
+/**
+ * Test class for class {@link AS4AsyncResponseWriter}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncResponseWriterTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new ScopeTestRule ();
+
+  @Nonnull
+  private static MockAsyncContext _createAsyncContext (@Nonnull final ServletOutputStream aOS)
+  {
+    final HttpServletResponse aResponse = new HttpServletResponseWrapper (new MockHttpServletResponse ())
+    {
+      @Override
+      public ServletOutputStream getOutputStream ()
+      {
+        return aOS;
+      }
+    };
+    return new MockAsyncContext (new MockHttpServletRequest (), aResponse);
+  }
+
+  @Test
+  public void testChunked () throws IOException
+  {
+    final byte [] aBody = new byte [3 * AS4AsyncResponseWriter.CHUNK_SIZE + 10];
+    for (int i = 0; i < aBody.length; ++i)
+      aBody[i] = (byte) i;
+
+    // A client that accepts one chunk at a time
+    final MockNonBlockingServletOutputStream aOS = new MockNonBlockingServletOutputStream (1);
+    final MockAsyncContext aAsyncCtx = _createAsyncContext (aOS);
+    AS4AsyncResponseWriter.start (aAsyncCtx,
+                                  HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aBody)));
+    assertEquals (AS4AsyncResponseWriter.CHUNK_SIZE, aOS.getWrittenBytes ().length);
+    assertTrue (aOS.isBlocked ());
+    assertFalse (aAsyncCtx.isCompleted ());
+
+    for (int i = 0; i < 3; ++i)
+      aOS.resume ();
+    assertArrayEquals (aBody, aOS.getWrittenBytes ());
+    assertFalse (aAsyncCtx.isCompleted ());
+
+    // End of body detected
+    aOS.resume ();
+    assertTrue (aAsyncCtx.isCompleted ());
+  }
+
+  @Test
+  public void testEmpty () throws IOException
+  {
+    final MockNonBlockingServletOutputStream aOS = new MockNonBlockingServletOutputStream (1);
+    final MockAsyncContext aAsyncCtx = _createAsyncContext (aOS);
+    AS4AsyncResponseWriter.start (aAsyncCtx,
+                                  HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (new byte [0])));
+    assertEquals (0, aOS.getWrittenBytes ().length);
+    assertTrue (aAsyncCtx.isCompleted ());
+  }
+
+  @Test
+  public void testClientError () throws IOException
+  {
+    final MockNonBlockingServletOutputStream aOS = new MockNonBlockingServletOutputStream (1);
+    final MockAsyncContext aAsyncCtx = _createAsyncContext (aOS);
+    AS4AsyncResponseWriter.start (aAsyncCtx,
+                                  HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (new byte [AS4AsyncResponseWriter.CHUNK_SIZE *
+                                                                                                                  2])));
+    assertFalse (aAsyncCtx.isCompleted ());
+
+    // Writing is aborted
+    aOS.fail (new IOException ("Connection reset"));
+    assertTrue (aAsyncCtx.isCompleted ());
+    assertEquals (AS4AsyncResponseWriter.CHUNK_SIZE, aOS.getWrittenBytes ().length);
+  }
+}
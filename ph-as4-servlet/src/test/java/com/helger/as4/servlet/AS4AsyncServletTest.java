@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.scope.mock.ScopeTestRule;
+import com.helger.servlet.mock.MockHttpServletRequest;
+import com.helger.servlet.mock.MockHttpServletResponse;
+
+/**
+ * Test class for class {@link AS4AsyncServlet}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncServletTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new ScopeTestRule ();
+
+  @Test
+  public void testAsyncNotSupported () throws Exception
+  {
+    final AS4AsyncServlet aServlet = new AS4AsyncServlet ()
+    {
+      @Override
+      public String getServletName ()
+      {
+        return "as4";
+      }
+    };
+    aServlet.initExecutor (1, 1, 1000);
+    try
+    {
+      final HttpServletRequestWrapper aRequest = new HttpServletRequestWrapper (new MockHttpServletRequest ())
+      {
+        @Override
+        public boolean isAsyncSupported ()
+        {
+          return false;
+        }
+      };
+      aServlet.doPost (aRequest, new MockHttpServletResponse ());
+      fail ();
+    }
+    catch (final ServletException ex)
+    {
+      // expected
+    }
+    finally
+    {
+      aServlet.destroy ();
+    }
+  }
+
+  @Test
+  public void testPost () throws Exception
+  {
+    final AS4AsyncServlet aServlet = new AS4AsyncServlet ();
+    aServlet.initExecutor (2, 10, 60_000);
+    try
+    {
+      final MockAsyncHttpServletRequest aRequest = new MockAsyncHttpServletRequest (null);
+      final MockHttpServletResponse aResponse = new MockHttpServletResponse ();
+      aServlet.doPost (aRequest, aResponse);
+
+      final MockAsyncContext aAsyncCtx = aRequest.getAsyncContext ();
+      assertEquals (60_000, aAsyncCtx.getTimeout ());
+
+      // Processed on the executor of the servlet
+      aRequest.getMockInputStream ().addContent ("<S12:Envelope/>".getBytes (StandardCharsets.UTF_8));
+      aRequest.getMockInputStream ().finish ();
+      assertTrue (aAsyncCtx.waitForCompletion (10_000));
+
+      // The Content-Type is missing
+      assertEquals (HttpServletResponse.SC_BAD_REQUEST, aResponse.getStatus ());
+    }
+    finally
+    {
+      aServlet.destroy ();
+    }
+  }
+}
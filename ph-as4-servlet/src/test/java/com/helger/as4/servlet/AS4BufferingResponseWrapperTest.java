@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.as4.util.AS4AttachmentSpillPolicy;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.scope.mock.ScopeTestRule;
+import com.helger.servlet.mock.MockHttpServletResponse;
+
+/**
+ * Test class for class {@link AS4BufferingResponseWrapper}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4BufferingResponseWrapperTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new ScopeTestRule ();
+
+  @Test
+  public void testOutputStream () throws IOException
+  {
+    final MockHttpServletResponse aResponse = new MockHttpServletResponse ();
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final AS4BufferingResponseWrapper aWrapper = new AS4BufferingResponseWrapper (aResponse, aResMgr);
+      aWrapper.setStatus (202);
+      aWrapper.setHeader ("X-Test", "abc");
+      final ServletOutputStream aOS = aWrapper.getOutputStream ();
+      aOS.write ('a');
+      aOS.write (new byte [] { 'b', 'c', 'd' }, 1, 2);
+      aWrapper.flushBuffer ();
+
+      // Status and headers pass through, the body does not
+      assertEquals (202, aResponse.getStatus ());
+      assertEquals ("abc", aResponse.getHeader ("X-Test"));
+      assertEquals (0, aResponse.getContentAsByteArray ().length);
+
+      assertArrayEquals (new byte [] { 'a', 'c', 'd' }, StreamHelper.getAllBytes (aWrapper.getBufferedContent ()));
+
+      try
+      {
+        aWrapper.getWriter ();
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testWriter () throws IOException
+  {
+    final MockHttpServletResponse aResponse = new MockHttpServletResponse ();
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final AS4BufferingResponseWrapper aWrapper = new AS4BufferingResponseWrapper (aResponse, aResMgr);
+      aWrapper.setCharacterEncoding (StandardCharsets.UTF_8.name ());
+      final PrintWriter aPW = aWrapper.getWriter ();
+      aPW.print ("Gr\u00FC\u00DFe");
+      assertArrayEquals ("Gr\u00FC\u00DFe".getBytes (StandardCharsets.UTF_8),
+                         StreamHelper.getAllBytes (aWrapper.getBufferedContent ()));
+    }
+  }
+
+  @Test
+  public void testSpilled () throws IOException
+  {
+    final AS4AttachmentSpillPolicy aPolicy = new AS4AttachmentSpillPolicy (10, 1000, 10000);
+    final byte [] aBody = new byte [1000];
+    for (int i = 0; i < aBody.length; ++i)
+      aBody[i] = (byte) i;
+
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager (aPolicy))
+    {
+      final AS4BufferingResponseWrapper aWrapper = new AS4BufferingResponseWrapper (new MockHttpServletResponse (),
+                                                                                    aResMgr);
+      aWrapper.getOutputStream ().write (aBody);
+      // Nothing is kept in memory
+      assertEquals (0, aResMgr.getInMemoryBytes ());
+      assertArrayEquals (aBody, StreamHelper.getAllBytes (aWrapper.getBufferedContent ()));
+    }
+  }
+
+  @Test
+  public void testResetBuffer () throws IOException
+  {
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final AS4BufferingResponseWrapper aWrapper = new AS4BufferingResponseWrapper (new MockHttpServletResponse (),
+                                                                                    aResMgr);
+      aWrapper.getOutputStream ().write (new byte [] { 1, 2, 3 });
+      aWrapper.resetBuffer ();
+      aWrapper.getOutputStream ().write (new byte [] { 4 });
+      assertArrayEquals (new byte [] { 4 }, StreamHelper.getAllBytes (aWrapper.getBufferedContent ()));
+    }
+  }
+
+  @Test
+  public void testWriteListener () throws IOException
+  {
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final AS4BufferingResponseWrapper aWrapper = new AS4BufferingResponseWrapper (new MockHttpServletResponse (),
+                                                                                    aResMgr);
+      final ServletOutputStream aOS = aWrapper.getOutputStream ();
+      assertTrue (aOS.isReady ());
+
+      // Called immediately, because the buffer never blocks
+      final boolean [] aCalled = { false };
+      aOS.setWriteListener (new WriteListener ()
+      {
+        public void onWritePossible () throws IOException
+        {
+          aCalled[0] = true;
+          aOS.write (new byte [] { 5, 6 });
+        }
+
+        public void onError (final Throwable t)
+        {
+          fail ();
+        }
+      });
+      assertTrue (aCalled[0]);
+      assertArrayEquals (new byte [] { 5, 6 }, StreamHelper.getAllBytes (aWrapper.getBufferedContent ()));
+    }
+  }
+}
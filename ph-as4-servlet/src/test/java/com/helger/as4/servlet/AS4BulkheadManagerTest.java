@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.scope.mock.ScopeTestRule;
+
+/**
+ * Test class for class {@link AS4BulkheadManager}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4BulkheadManagerTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new ScopeTestRule ();
+
+  @Test
+  public void testDefaultLimits ()
+  {
+    assertTrue (AS4BulkheadManager.DEFAULT_MAX_CONCURRENT > 0);
+    assertTrue (AS4BulkheadManager.DEFAULT_MAX_CONCURRENT <= AS4WorkerPool.DEFAULT_THREAD_COUNT);
+  }
+
+  @Test
+  public void testPerPartnerLimits ()
+  {
+    AS4BulkheadManager.setCustomLimits ("partner-slow", 1, 5);
+    final AS4BulkheadManager aMgr = AS4BulkheadManager.getInstance ();
+
+    final AS4Bulkhead aSlow = aMgr.getOrCreateBulkhead ("partner-slow");
+    assertEquals (1, aSlow.getMaxConcurrent ());
+    assertEquals (5, aSlow.getMaxQueued ());
+    assertSame (aSlow, aMgr.getOrCreateBulkhead ("partner-slow"));
+
+    final AS4Bulkhead aOther = aMgr.getOrCreateBulkhead ("partner-other");
+    assertNotSame (aSlow, aOther);
+    assertEquals (AS4BulkheadManager.DEFAULT_MAX_CONCURRENT, aOther.getMaxConcurrent ());
+    assertEquals (AS4BulkheadManager.DEFAULT_MAX_QUEUED, aOther.getMaxQueued ());
+    assertEquals (2, aMgr.getAllBulkheads ().size ());
+  }
+}
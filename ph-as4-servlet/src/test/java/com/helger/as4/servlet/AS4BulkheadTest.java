@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.scope.mock.ScopeTestRule;
+
+/**
+ * Test class for class {@link AS4Bulkhead}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4BulkheadTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new ScopeTestRule ();
+
+  @After
+  public void after ()
+  {
+    AS4WorkerPool.configure (EAS4WorkerPoolMode.DEFAULT,
+                             AS4WorkerPool.DEFAULT_THREAD_COUNT,
+                             AS4WorkerPool.DEFAULT_MAX_THREAD_COUNT);
+    AS4WorkerPool.configureSaturation (AS4WorkerPool.DEFAULT_QUEUE_CAPACITY, EAS4WorkerPoolSaturationPolicy.DEFAULT);
+  }
+
+  @Test
+  public void testConcurrencyLimit () throws Exception
+  {
+    final AS4Bulkhead aBulkhead = new AS4Bulkhead ("limit", 2, 10);
+    final CountDownLatch aStarted = new CountDownLatch (2);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final AtomicInteger aRunning = new AtomicInteger (0);
+    final AtomicInteger aMaxRunning = new AtomicInteger (0);
+    final ICommonsList <CompletableFuture <Void>> aFutures = new CommonsArrayList <> ();
+    for (int i = 0; i < 5; ++i)
+      aFutures.add (aBulkhead.run ( () -> {
+        aMaxRunning.accumulateAndGet (aRunning.incrementAndGet (), Math::max);
+        aStarted.countDown ();
+        aRelease.await ();
+        aRunning.decrementAndGet ();
+      }));
+    assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+    assertEquals (2, aBulkhead.getInFlightCount ());
+    assertEquals (3, aBulkhead.getQueuedCount ());
+
+    aRelease.countDown ();
+    CompletableFuture.allOf (aFutures.toArray (new CompletableFuture [0])).get (5, TimeUnit.SECONDS);
+    assertEquals (2, aMaxRunning.get ());
+    assertEquals (0, aBulkhead.getQueuedCount ());
+    assertEquals (0, aBulkhead.getInFlightCount ());
+    assertEquals (0, aBulkhead.getRejectedCount ());
+  }
+
+  @Test
+  public void testLongQueue () throws Exception
+  {
+    // All queued tasks are run in the loop of a single worker
+    AS4WorkerPool.configure (EAS4WorkerPoolMode.FIXED, 1, 1);
+    AS4WorkerPool.configureSaturation (1, EAS4WorkerPoolSaturationPolicy.REJECT);
+    final int nTasks = 50_000;
+    final AS4Bulkhead aBulkhead = new AS4Bulkhead ("long", 1, nTasks);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final AtomicInteger aCount = new AtomicInteger (0);
+    final CompletableFuture <Void> aFirst = aBulkhead.run (aRelease::await);
+    CompletableFuture <Void> aLast = null;
+    for (int i = 0; i < nTasks; ++i)
+      aLast = aBulkhead.run (aCount::incrementAndGet);
+    assertEquals (nTasks, aBulkhead.getQueuedCount ());
+
+    aRelease.countDown ();
+    aFirst.get (5, TimeUnit.SECONDS);
+    aLast.get (30, TimeUnit.SECONDS);
+    assertEquals (nTasks, aCount.get ());
+    assertEquals (0, aBulkhead.getInFlightCount ());
+  }
+
+  @Test
+  public void testReject () throws Exception
+  {
+    AS4WorkerPool.configureSaturation (AS4WorkerPool.DEFAULT_QUEUE_CAPACITY, EAS4WorkerPoolSaturationPolicy.REJECT);
+    final AS4Bulkhead aBulkhead = new AS4Bulkhead ("reject", 1, 1);
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final CompletableFuture <Void> f1 = aBulkhead.run ( () -> {
+      aStarted.countDown ();
+      aRelease.await ();
+    });
+    assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+    final CompletableFuture <Void> f2 = aBulkhead.run ( () -> {});
+
+    try
+    {
+      aBulkhead.run ( () -> {});
+      fail ();
+    }
+    catch (final AS4WorkerPoolSaturatedException ex)
+    {
+      // expected
+    }
+    assertEquals (1, aBulkhead.getRejectedCount ());
+
+    aRelease.countDown ();
+    CompletableFuture.allOf (f1, f2).get (5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testCallerRuns () throws Exception
+  {
+    final AS4Bulkhead aBulkhead = new AS4Bulkhead ("callerruns", 1, 0);
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final CompletableFuture <Void> f1 = aBulkhead.run ( () -> {
+      aStarted.countDown ();
+      aRelease.await ();
+    });
+    assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+
+    final AtomicReference <Thread> aThread = new AtomicReference <> ();
+    final CompletableFuture <Void> f2 = aBulkhead.run ( () -> aThread.set (Thread.currentThread ()));
+    assertTrue (f2.isDone ());
+    assertSame (Thread.currentThread (), aThread.get ());
+    assertEquals (1, aBulkhead.getRejectedCount ());
+
+    aRelease.countDown ();
+    f1.get (5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testPoolCallerRunsDoesNotDrainQueue () throws Exception
+  {
+    AS4WorkerPool.configure (EAS4WorkerPoolMode.FIXED, 1, 1);
+    AS4WorkerPool.configureSaturation (1, EAS4WorkerPoolSaturationPolicy.CALLER_RUNS);
+    final AS4WorkerPool aPool = AS4WorkerPool.getInstance ();
+
+    // Saturate the pool: one running and one queued task
+    final CountDownLatch aPoolRelease = new CountDownLatch (1);
+    final CountDownLatch aPoolDone = new CountDownLatch (1);
+    aPool.run (aPoolRelease::await);
+    aPool.run (aPoolDone::countDown);
+
+    final AS4Bulkhead aBulkhead = new AS4Bulkhead ("handback", 1, 10);
+    final Thread aCallingThread = Thread.currentThread ();
+    final ICommonsList <Thread> aThreads = new CommonsArrayList <> ();
+    final ICommonsList <CompletableFuture <Void>> aFutures = new CommonsArrayList <> ();
+    final AtomicReference <Thread> aFirstThread = new AtomicReference <> ();
+    final CompletableFuture <Void> f1 = aBulkhead.run ( () -> {
+      // Runs in the calling thread - queue more tasks
+      aFirstThread.set (Thread.currentThread ());
+      for (int i = 0; i < 3; ++i)
+        aFutures.add (aBulkhead.run ( () -> {
+          synchronized (aThreads)
+          {
+            aThreads.add (Thread.currentThread ());
+          }
+        }));
+
+      // Free the pool again
+      aPoolRelease.countDown ();
+      aPoolDone.await ();
+    });
+    assertTrue (f1.isDone ());
+    assertSame (aCallingThread, aFirstThread.get ());
+
+    // The queued tasks were handed back to the pool
+    CompletableFuture.allOf (aFutures.toArray (new CompletableFuture [0])).get (5, TimeUnit.SECONDS);
+    synchronized (aThreads)
+    {
+      assertEquals (3, aThreads.size ());
+      for (final Thread aThread : aThreads)
+        assertNotSame (aCallingThread, aThread);
+    }
+    assertEquals (0, aBulkhead.getInFlightCount ());
+  }
+}
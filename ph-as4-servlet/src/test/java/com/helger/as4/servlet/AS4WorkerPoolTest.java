@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.commons.callback.IThrowingRunnable;
+import com.helger.scope.mock.ScopeTestRule;
+
+/**
+ * Test class for class {@link AS4WorkerPool}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4WorkerPoolTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new ScopeTestRule ();
+
+  @After
+  public void after ()
+  {
+    AS4WorkerPool.configure (EAS4WorkerPoolMode.DEFAULT,
+                             AS4WorkerPool.DEFAULT_THREAD_COUNT,
+                             AS4WorkerPool.DEFAULT_MAX_THREAD_COUNT);
+    AS4WorkerPool.configureSaturation (AS4WorkerPool.DEFAULT_QUEUE_CAPACITY, EAS4WorkerPoolSaturationPolicy.DEFAULT);
+  }
+
+  @Test
+  public void testSizing () throws Exception
+  {
+    AS4WorkerPool.configure (EAS4WorkerPoolMode.FIXED, 2, 4);
+    AS4WorkerPool.configureSaturation (10, EAS4WorkerPoolSaturationPolicy.REJECT);
+    final AS4WorkerPool aPool = AS4WorkerPool.getInstance ();
+    assertSame (EAS4WorkerPoolMode.FIXED, aPool.getMode ());
+    assertSame (EAS4WorkerPoolSaturationPolicy.REJECT, aPool.getSaturationPolicy ());
+    assertEquals (10, aPool.getQueueCapacity ());
+
+    final CountDownLatch aStarted = new CountDownLatch (2);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final IThrowingRunnable <InterruptedException> aBlocker = () -> {
+      aStarted.countDown ();
+      aRelease.await ();
+    };
+    final int nActiveSamples = AS4WorkerPool.getActiveCountStatistics ().getInvocationCount ();
+    final CompletableFuture <Void> f1 = aPool.run (aBlocker);
+    final CompletableFuture <Void> f2 = aPool.run (aBlocker);
+    assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+
+    // Only 2 threads - the third task is queued
+    final CompletableFuture <Void> f3 = aPool.run (aBlocker);
+    assertEquals (2, aPool.getActiveCount ());
+    assertEquals (1, aPool.getQueueSize ());
+    assertEquals (nActiveSamples + 3, AS4WorkerPool.getActiveCountStatistics ().getInvocationCount ());
+    assertTrue (AS4WorkerPool.getActiveCountStatistics ().getMax () >= 2);
+    assertTrue (AS4WorkerPool.getQueueSizeStatistics ().getMax () >= 1);
+
+    aRelease.countDown ();
+    CompletableFuture.allOf (f1, f2, f3).get (5, TimeUnit.SECONDS);
+    assertEquals (0, aPool.getRejectedCount ());
+  }
+
+  @Test
+  public void testQueueingAndReject () throws Exception
+  {
+    AS4WorkerPool.configure (EAS4WorkerPoolMode.FIXED, 1, 1);
+    AS4WorkerPool.configureSaturation (2, EAS4WorkerPoolSaturationPolicy.REJECT);
+    final AS4WorkerPool aPool = AS4WorkerPool.getInstance ();
+
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final CompletableFuture <Void> f1 = aPool.run ( () -> {
+      aStarted.countDown ();
+      aRelease.await ();
+    });
+    assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+
+    // Fill the queue
+    final CompletableFuture <Void> f2 = aPool.run ( () -> {});
+    final CompletableFuture <Void> f3 = aPool.run ( () -> {});
+    assertEquals (2, aPool.getQueueSize ());
+
+    try
+    {
+      aPool.run ( () -> {});
+      fail ();
+    }
+    catch (final AS4WorkerPoolSaturatedException ex)
+    {
+      // expected
+    }
+    assertEquals (1, aPool.getRejectedCount ());
+
+    aRelease.countDown ();
+    CompletableFuture.allOf (f1, f2, f3).get (5, TimeUnit.SECONDS);
+    assertEquals (0, aPool.getQueueSize ());
+  }
+
+  @Test
+  public void testCallerRuns () throws Exception
+  {
+    AS4WorkerPool.configure (EAS4WorkerPoolMode.FIXED, 1, 1);
+    AS4WorkerPool.configureSaturation (1, EAS4WorkerPoolSaturationPolicy.CALLER_RUNS);
+    final AS4WorkerPool aPool = AS4WorkerPool.getInstance ();
+
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final CompletableFuture <Void> f1 = aPool.run ( () -> {
+      aStarted.countDown ();
+      aRelease.await ();
+    });
+    assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+    final CompletableFuture <Void> f2 = aPool.run ( () -> {});
+
+    // Saturated - runs synchronously in this thread
+    final AtomicReference <Thread> aThread = new AtomicReference <> ();
+    final CompletableFuture <Void> f3 = aPool.run ( () -> aThread.set (Thread.currentThread ()));
+    assertTrue (f3.isDone ());
+    assertSame (Thread.currentThread (), aThread.get ());
+    assertEquals (1, aPool.getRejectedCount ());
+
+    aRelease.countDown ();
+    CompletableFuture.allOf (f1, f2).get (5, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import com.helger.commons.collection.impl.CommonsCopyOnWriteArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * A simple {@link AsyncContext} for testing the asynchronous request
+ * processing without a container.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class MockAsyncContext implements AsyncContext
+{
+  private final ServletRequest m_aRequest;
+  private final ServletResponse m_aResponse;
+  private final ICommonsList <AsyncListener> m_aListeners = new CommonsCopyOnWriteArrayList <> ();
+  private volatile long m_nTimeoutMS = 30_000;
+  private volatile boolean m_bCompleted = false;
+
+  public MockAsyncContext (@Nonnull final ServletRequest aRequest, @Nonnull final ServletResponse aResponse)
+  {
+    m_aRequest = aRequest;
+    m_aResponse = aResponse;
+  }
+
+  public ServletRequest getRequest ()
+  {
+    return m_aRequest;
+  }
+
+  public ServletResponse getResponse ()
+  {
+    return m_aResponse;
+  }
+
+  public boolean hasOriginalRequestAndResponse ()
+  {
+    return true;
+  }
+
+  public void dispatch ()
+  {
+    throw new UnsupportedOperationException ();
+  }
+
+  public void dispatch (final String sPath)
+  {
+    throw new UnsupportedOperationException ();
+  }
+
+  public void dispatch (final ServletContext aContext, final String sPath)
+  {
+    throw new UnsupportedOperationException ();
+  }
+
+  public synchronized void complete ()
+  {
+    if (!m_bCompleted)
+    {
+      m_bCompleted = true;
+      for (final AsyncListener aListener : m_aListeners)
+        try
+        {
+          aListener.onComplete (new AsyncEvent (this));
+        }
+        catch (final IOException ex)
+        {
+          throw new UncheckedIOException (ex);
+        }
+      notifyAll ();
+    }
+  }
+
+  /**
+   * @return <code>true</code> if {@link #complete()} was called.
+   */
+  public boolean isCompleted ()
+  {
+    return m_bCompleted;
+  }
+
+  /**
+   * Wait until the request is completed.
+   *
+   * @param nMaxWaitMS
+   *        Maximum milliseconds to wait.
+   * @return <code>true</code> if the request is completed.
+   * @throws InterruptedException
+   *         If interrupted
+   */
+  public synchronized boolean waitForCompletion (final long nMaxWaitMS) throws InterruptedException
+  {
+    final long nEnd = System.currentTimeMillis () + nMaxWaitMS;
+    long nRemaining = nMaxWaitMS;
+    while (!m_bCompleted && nRemaining > 0)
+    {
+      wait (nRemaining);
+      nRemaining = nEnd - System.currentTimeMillis ();
+    }
+    return m_bCompleted;
+  }
+
+  /**
+   * Simulate that the container detected a timeout.
+   *
+   * @throws IOException
+   *         From the listeners
+   */
+  public void fireTimeout () throws IOException
+  {
+    for (final AsyncListener aListener : m_aListeners)
+      aListener.onTimeout (new AsyncEvent (this));
+  }
+
+  public void start (@Nonnull final Runnable aRunnable)
+  {
+    aRunnable.run ();
+  }
+
+  public void addListener (@Nonnull final AsyncListener aListener)
+  {
+    m_aListeners.add (aListener);
+  }
+
+  public void addListener (@Nonnull final AsyncListener aListener,
+                           final ServletRequest aRequest,
+                           final ServletResponse aResponse)
+  {
+    m_aListeners.add (aListener);
+  }
+
+  public <T extends AsyncListener> T createListener (final Class <T> aClass)
+  {
+    throw new UnsupportedOperationException ();
+  }
+
+  public void setTimeout (final long nTimeoutMS)
+  {
+    m_nTimeoutMS = nTimeoutMS;
+  }
+
+  public long getTimeout ()
+  {
+    return m_nTimeoutMS;
+  }
+}
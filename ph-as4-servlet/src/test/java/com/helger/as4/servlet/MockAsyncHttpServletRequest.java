@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import com.helger.commons.http.CHttpHeader;
+import com.helger.servlet.mock.MockHttpServletRequest;
+
+/**
+ * A POST request supporting asynchronous processing with a
+ * {@link MockNonBlockingServletInputStream}.
+ *
+ * @author Philip Helger
+ */
+final class MockAsyncHttpServletRequest extends HttpServletRequestWrapper
+{
+  private final MockNonBlockingServletInputStream m_aIS = new MockNonBlockingServletInputStream ();
+  private final String m_sContentType;
+  private MockAsyncContext m_aAsyncCtx;
+
+  public MockAsyncHttpServletRequest (@Nullable final String sContentType)
+  {
+    super (new MockHttpServletRequest ());
+    m_sContentType = sContentType;
+  }
+
+  @Override
+  public String getMethod ()
+  {
+    return "POST";
+  }
+
+  @Override
+  public String getContentType ()
+  {
+    return m_sContentType;
+  }
+
+  @Override
+  public String getHeader (final String sName)
+  {
+    if (CHttpHeader.CONTENT_TYPE.equalsIgnoreCase (sName))
+      return m_sContentType;
+    return super.getHeader (sName);
+  }
+
+  @Override
+  public ServletInputStream getInputStream ()
+  {
+    return m_aIS;
+  }
+
+  @Nonnull
+  public MockNonBlockingServletInputStream getMockInputStream ()
+  {
+    return m_aIS;
+  }
+
+  @Override
+  public boolean isAsyncSupported ()
+  {
+    return true;
+  }
+
+  @Override
+  public AsyncContext startAsync (final ServletRequest aRequest, final ServletResponse aResponse)
+  {
+    m_aAsyncCtx = new MockAsyncContext (aRequest, aResponse);
+    return m_aAsyncCtx;
+  }
+
+  @Override
+  public boolean isAsyncStarted ()
+  {
+    return m_aAsyncCtx != null;
+  }
+
+  @Override
+  public MockAsyncContext getAsyncContext ()
+  {
+    return m_aAsyncCtx;
+  }
+}
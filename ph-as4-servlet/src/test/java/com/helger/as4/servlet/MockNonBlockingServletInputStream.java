@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+
+/**
+ * A {@link ServletInputStream} that simulates non-blocking reading. Content
+ * becomes available chunk-wise via {@link #addContent(byte[])}.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+final class MockNonBlockingServletInputStream extends ServletInputStream
+{
+  private byte [] m_aAvailable = new byte [0];
+  private int m_nOfs = 0;
+  private boolean m_bAllAdded = false;
+  private ReadListener m_aListener;
+
+  private boolean _hasAvailable ()
+  {
+    return m_nOfs < m_aAvailable.length;
+  }
+
+  /**
+   * Make more content available and notify the listener.
+   *
+   * @param aContent
+   *        The content that arrived. May not be <code>null</code>.
+   * @throws IOException
+   *         From the listener
+   */
+  public void addContent (@Nonnull final byte [] aContent) throws IOException
+  {
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    aBAOS.write (m_aAvailable, m_nOfs, m_aAvailable.length - m_nOfs);
+    aBAOS.write (aContent, 0, aContent.length);
+    m_aAvailable = aBAOS.toByteArray ();
+    m_nOfs = 0;
+    if (m_aListener != null)
+      m_aListener.onDataAvailable ();
+  }
+
+  /**
+   * Signal that all content was received.
+   *
+   * @throws IOException
+   *         From the listener
+   */
+  public void finish () throws IOException
+  {
+    m_bAllAdded = true;
+    if (m_aListener != null && !_hasAvailable ())
+      m_aListener.onAllDataRead ();
+  }
+
+  /**
+   * Signal a read error.
+   *
+   * @param t
+   *        The error. May not be <code>null</code>.
+   */
+  public void fail (@Nonnull final Throwable t)
+  {
+    m_aListener.onError (t);
+  }
+
+  @Override
+  public int read ()
+  {
+    if (!_hasAvailable ())
+      return m_bAllAdded ? -1 : 0;
+    return m_aAvailable[m_nOfs++] & 0xff;
+  }
+
+  @Override
+  public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen)
+  {
+    if (!_hasAvailable ())
+      return m_bAllAdded ? -1 : 0;
+    final int nRead = Math.min (nLen, m_aAvailable.length - m_nOfs);
+    System.arraycopy (m_aAvailable, m_nOfs, aBuf, nOfs, nRead);
+    m_nOfs += nRead;
+    return nRead;
+  }
+
+  @Override
+  public boolean isFinished ()
+  {
+    return m_bAllAdded && !_hasAvailable ();
+  }
+
+  @Override
+  public boolean isReady ()
+  {
+    return _hasAvailable ();
+  }
+
+  @Override
+  public void setReadListener (@Nonnull final ReadListener aListener)
+  {
+    m_aListener = aListener;
+    try
+    {
+      if (_hasAvailable ())
+        aListener.onDataAvailable ();
+      if (isFinished ())
+        aListener.onAllDataRead ();
+    }
+    catch (final IOException ex)
+    {
+      aListener.onError (ex);
+    }
+  }
+}
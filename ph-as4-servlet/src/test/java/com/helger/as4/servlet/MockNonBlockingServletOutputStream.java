@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+
+/**
+ * A {@link ServletOutputStream} that simulates a slow client. After the
+ * configured number of writes it is no longer ready until {@link #resume()} is
+ * called.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+final class MockNonBlockingServletOutputStream extends ServletOutputStream
+{
+  private final NonBlockingByteArrayOutputStream m_aBAOS = new NonBlockingByteArrayOutputStream ();
+  private final int m_nWritesUntilBlocked;
+  private int m_nWrites = 0;
+  private WriteListener m_aListener;
+
+  public MockNonBlockingServletOutputStream (@Nonnegative final int nWritesUntilBlocked)
+  {
+    m_nWritesUntilBlocked = nWritesUntilBlocked;
+  }
+
+  @Override
+  public void write (final int b)
+  {
+    write (new byte [] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen)
+  {
+    if (!isReady ())
+      throw new IllegalStateException ("Not ready for writing");
+    m_aBAOS.write (aBuf, nOfs, nLen);
+    m_nWrites++;
+  }
+
+  @Override
+  public boolean isReady ()
+  {
+    return m_nWrites < m_nWritesUntilBlocked;
+  }
+
+  @Override
+  public void setWriteListener (@Nonnull final WriteListener aListener)
+  {
+    m_aListener = aListener;
+    resume ();
+  }
+
+  /**
+   * Simulate that the client received everything written so far.
+   */
+  public void resume ()
+  {
+    m_nWrites = 0;
+    try
+    {
+      m_aListener.onWritePossible ();
+    }
+    catch (final IOException ex)
+    {
+      m_aListener.onError (ex);
+    }
+  }
+
+  /**
+   * Simulate that the client aborted the connection.
+   *
+   * @param t
+   *        The error. May not be <code>null</code>.
+   */
+  public void fail (@Nonnull final Throwable t)
+  {
+    m_aListener.onError (t);
+  }
+
+  /**
+   * @return <code>true</code> if the last write blocked.
+   */
+  public boolean isBlocked ()
+  {
+    return !isReady ();
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public byte [] getWrittenBytes ()
+  {
+    return m_aBAOS.toByteArray ();
+  }
+}
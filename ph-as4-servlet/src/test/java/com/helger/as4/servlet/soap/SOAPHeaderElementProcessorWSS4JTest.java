@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2015-2019 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.soap;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.apache.wss4j.common.crypto.Merlin;
+import org.apache.wss4j.dom.engine.WSSConfig;
+import org.apache.wss4j.dom.engine.WSSecurityEngine;
+import org.apache.wss4j.dom.handler.RequestData;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test class for class {@link SOAPHeaderElementProcessorWSS4J}.
+ *
+ * @author Philip Helger
+ */
+public final class SOAPHeaderElementProcessorWSS4JTest
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (SOAPHeaderElementProcessorWSS4JTest.class);
+  private static final int WARMUP = 2_000;
+  private static final int RUNS = 20_000;
+
+  @Test
+  public void testSharedSetup ()
+  {
+    final SOAPHeaderElementProcessorWSS4J aProcessor = new SOAPHeaderElementProcessorWSS4J ();
+    final Crypto aCrypto = new Merlin ();
+
+    final RequestData aRD1 = aProcessor.createRequestData (aCrypto);
+    final RequestData aRD2 = aProcessor.createRequestData (aCrypto);
+    assertNotSame (aRD1, aRD2);
+    assertSame (aProcessor.getWSSConfig (), aRD1.getWssConfig ());
+    assertSame (aProcessor.getWSSConfig (), aRD2.getWssConfig ());
+    assertSame (aProcessor.getWSSConfig (), aProcessor.getSecurityEngine ().getWssConfig ());
+    assertSame (aCrypto, aRD1.getSigVerCrypto ());
+    assertSame (aCrypto, aRD1.getDecCrypto ());
+    assertNotNull (aRD1.getCallbackHandler ());
+  }
+
+  private static long _runPerRequestSetup (final Crypto aCrypto, final int nRuns)
+  {
+    long nHash = 0;
+    for (int i = 0; i < nRuns; ++i)
+    {
+      // The setup as it was done before
+      final WSSecurityEngine aEngine = new WSSecurityEngine ();
+      final RequestData aRequestData = new RequestData ();
+      aRequestData.setCallbackHandler (new KeyStoreCallbackHandler ());
+      aRequestData.setSigVerCrypto (aCrypto);
+      aRequestData.setDecCrypto (aCrypto);
+      aRequestData.setWssConfig (WSSConfig.getNewInstance ());
+      aEngine.setWssConfig (aRequestData.getWssConfig ());
+      nHash += System.identityHashCode (aEngine) + System.identityHashCode (aRequestData);
+    }
+    return nHash;
+  }
+
+  private static long _runSharedSetup (final SOAPHeaderElementProcessorWSS4J aProcessor,
+                                       final Crypto aCrypto,
+                                       final int nRuns)
+  {
+    long nHash = 0;
+    for (int i = 0; i < nRuns; ++i)
+    {
+      final WSSecurityEngine aEngine = aProcessor.getSecurityEngine ();
+      final RequestData aRequestData = aProcessor.createRequestData (aCrypto);
+      nHash += System.identityHashCode (aEngine) + System.identityHashCode (aRequestData);
+    }
+    return nHash;
+  }
+
+  @Test
+  public void testRequestSetupSpeed ()
+  {
+    final SOAPHeaderElementProcessorWSS4J aProcessor = new SOAPHeaderElementProcessorWSS4J ();
+    final Crypto aCrypto = new Merlin ();
+
+    // Warm up
+    long nHash = _runPerRequestSetup (aCrypto, WARMUP) + _runSharedSetup (aProcessor, aCrypto, WARMUP);
+
+    long nStart = System.nanoTime ();
+    nHash += _runPerRequestSetup (aCrypto, RUNS);
+    final long nPerRequestNS = (System.nanoTime () - nStart) / RUNS;
+
+    nStart = System.nanoTime ();
+    nHash += _runSharedSetup (aProcessor, aCrypto, RUNS);
+    final long nSharedNS = (System.nanoTime () - nStart) / RUNS;
+
+    // Timing is not asserted to avoid flaky builds
+    LOGGER.info ("WSS4J setup per request: " +
+                 nPerRequestNS +
+                 " ns/op; shared: " +
+                 nSharedNS +
+                 " ns/op (" +
+                 nHash +
+                 ")");
+  }
+}